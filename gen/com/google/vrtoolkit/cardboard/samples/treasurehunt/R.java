@@ -20,29 +20,39 @@ public final class R {
         public static final int activity_vertical_margin=0x7f050001;
     }
     public static final class drawable {
-        public static final int ic_launcher=0x7f020000;
-        public static final int robot=0x7f020001;
-        public static final int usb_android=0x7f020002;
+        public static final int floor_lightmap=0x7f020000;
+        public static final int ic_launcher=0x7f020001;
+        public static final int robot=0x7f020002;
+        public static final int usb_android=0x7f020003;
     }
     public static final class id {
         public static final int cardboard_view=0x7f080001;
-        public static final int overlay=0x7f080002;
         public static final int ui_layout=0x7f080000;
     }
     public static final class layout {
         public static final int common_ui=0x7f030000;
     }
     public static final class raw {
-        public static final int grid_fragment=0x7f040000;
-        public static final int image_fragment=0x7f040001;
-        public static final int image_vertex=0x7f040002;
-        public static final int light_vertex=0x7f040003;
-        public static final int per_pixel_fragment_shader=0x7f040004;
-        public static final int per_pixel_vertex_shader=0x7f040005;
-        public static final int simple_fragment=0x7f040006;
-        public static final int simple_image_fragment=0x7f040007;
-        public static final int simple_image_vertex=0x7f040008;
-        public static final int simple_vertex=0x7f040009;
+        public static final int calibration_fragment=0x7f040000;
+        public static final int calibration_vertex=0x7f040001;
+        public static final int distortion_fragment=0x7f040002;
+        public static final int distortion_vertex=0x7f040003;
+        public static final int grid_fragment=0x7f040004;
+        public static final int image_fragment=0x7f040005;
+        public static final int image_vertex=0x7f040006;
+        public static final int light_vertex=0x7f040007;
+        public static final int particle_fragment=0x7f040008;
+        public static final int particle_vertex=0x7f040009;
+        public static final int per_pixel_fragment_shader=0x7f04000a;
+        public static final int per_pixel_vertex_shader=0x7f04000b;
+        public static final int sdf_text_fragment=0x7f04000c;
+        public static final int sdf_text_vertex=0x7f04000d;
+        public static final int simple_fragment=0x7f04000e;
+        public static final int simple_image_fragment=0x7f04000f;
+        public static final int simple_image_vertex=0x7f040010;
+        public static final int simple_vertex=0x7f040011;
+        public static final int stereo_fragment=0x7f040012;
+        public static final int stereo_vertex=0x7f040013;
     }
     public static final class string {
         public static final int app_name=0x7f060000;
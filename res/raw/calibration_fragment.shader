@@ -0,0 +1,25 @@
+precision highp float;
+
+const int MAX_LIGHTS = 4;
+
+uniform vec4 u_LightPos[MAX_LIGHTS];
+uniform vec4 u_LightColor[MAX_LIGHTS];
+uniform int u_LightCount;
+
+varying vec3 v_Position;
+
+// The scene's per-fragment light loop, so its cost per light can be measured on its own.
+void main() {
+    vec3 normal = vec3(0.0, 0.0, 1.0);
+    vec3 sum = vec3(0.05);
+    for (int i = 0; i < MAX_LIGHTS; i++) {
+        if (i >= u_LightCount) {
+            break;
+        }
+        vec3 toLight = u_LightPos[i].xyz - v_Position;
+        float distance = length(toLight);
+        float falloff = max(1.0 - distance / u_LightPos[i].w, 0.0);
+        sum += u_LightColor[i].rgb * max(dot(normal, toLight / distance), 0.0) * falloff * falloff;
+    }
+    gl_FragColor = vec4(sum, 1.0);
+}
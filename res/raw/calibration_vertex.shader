@@ -0,0 +1,8 @@
+attribute vec2 a_Position;
+varying vec3 v_Position;
+
+void main() {
+  gl_Position = vec4(a_Position, 0.0, 1.0);
+  // Spread the quad over a plane in front of the lights, like a wall in eye space.
+  v_Position = vec3(a_Position * 5.0, -5.0);
+}
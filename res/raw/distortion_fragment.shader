@@ -0,0 +1,10 @@
+precision mediump float;
+
+uniform sampler2D u_Texture;
+
+varying float v_Vignette;
+varying vec2 v_TexCoordinate;
+
+void main() {
+  gl_FragColor = v_Vignette * texture2D(u_Texture, v_TexCoordinate);
+}
@@ -0,0 +1,14 @@
+uniform vec2 u_TextureCoordScale; // Fraction of the texture the eyes were rendered into.
+
+attribute vec2 a_Position;        // Normalized device coordinates on the screen.
+attribute float a_Vignette;
+attribute vec2 a_TexCoordinate;   // Undistorted point in the eye texture.
+
+varying float v_Vignette;
+varying vec2 v_TexCoordinate;
+
+void main() {
+  v_Vignette = a_Vignette;
+  v_TexCoordinate = a_TexCoordinate * u_TextureCoordScale;
+  gl_Position = vec4(a_Position, 0.0, 1.0);
+}
@@ -1,45 +1,50 @@
-precision highp float;
+precision mediump float;
+
+const int MAX_LIGHTS = 4;
 
 uniform sampler2D u_Texture;
-uniform vec3 u_LightPos;
+uniform sampler2D u_Lightmap;
+// Shared with the vertex shader, so they keep its precision.
+uniform highp vec4 u_LightPos[MAX_LIGHTS];
+uniform highp vec4 u_LightColor[MAX_LIGHTS];
+uniform highp int u_LightCount;
 
 varying vec4 v_Color;
-varying vec3 v_Grid;
+varying float v_Fade;
 varying float v_isFloor;
 varying vec2 v_TexCoordinate;
-varying vec4 v_Position;
-varying vec3 v_Normal;
+varying vec2 v_LightmapCoord;
+varying vec3 v_Light;
+// The cube's lighting squares eye-space distances, which can overflow mediump.
+varying highp vec4 v_Position;
+varying highp vec3 v_Normal;
 
+vec3 diffuseLight(highp vec3 position, highp vec3 normal) {
+    highp vec3 sum = vec3(0.0);
+    for (int i = 0; i < MAX_LIGHTS; i++) {
+        if (i >= u_LightCount) {
+            break;
+        }
+        highp vec3 toLight = u_LightPos[i].xyz - position;
+        highp float distance = length(toLight);
+        // Falls to zero at the light's range, so the CPU can skip lights that cannot reach.
+        highp float falloff = max(1.0 - distance / u_LightPos[i].w, 0.0);
+        sum += u_LightColor[i].rgb * max(dot(normal, toLight / distance), 0.0) * falloff * falloff;
+    }
+    return sum;
+}
 
 void main() {
-    float depth = gl_FragCoord.z / gl_FragCoord.w; // calculate world-space distance
-
     if (v_isFloor > 0.5) {
-        if ((mod(abs(v_Grid[0]), 10.0) < 0.1) || (mod(abs(v_Grid[2]), 10.0) < 0.1)) {
-            gl_FragColor = max(0.0, (90.0-depth) / 90.0) * vec4(1.0, 1.0, 1.0, 1.0)
-                    + min(1.0, depth / 90.0) * v_Color;
-        } else {
-            gl_FragColor = v_Color;
-        }
+        // Baked static lights plus the per-vertex moving ones; no per-fragment light math.
+        vec3 diffuse = max(texture2D(u_Lightmap, v_LightmapCoord).rgb + v_Light, vec3(0.5));
+        vec4 color = vec4(v_Color.rgb * diffuse, v_Color.a);
+        // The texture holds the lines' coverage, already filtered for the distance.
+        float line = texture2D(u_Texture, v_TexCoordinate).a * clamp(v_Fade, 0.0, 1.0);
+        gl_FragColor = mix(color, vec4(1.0), line);
     } else {
-	    // Will be used for attenuation.
-	    float distance = length(u_LightPos - v_Position);
-	 
-	    // Get a lighting direction vector from the light to the vertex.
-	    vec3 lightVector = normalize(u_LightPos - v_Position);
-	 
-	    // Calculate the dot product of the light vector and vertex normal. If the normal and light vector are
-	    // pointing in the same direction then it will get max illumination.
-	    float diffuse = max(dot(v_Normal, lightVector), 0.0);
-	 
-	    // Add attenuation.
-	    diffuse = diffuse * (1.0 / (1.0 + (0.10 * distance)));
-	 
-	    // Add ambient lighting
-	    diffuse = diffuse + 0.3;
-	 
-	    // Multiply the color by the diffuse illumination level and texture value to get final output color.
-	    //gl_FragColor = (v_Color * diffuse * texture2D(u_Texture, v_TexCoordinate));  
-	    gl_FragColor = diffuse * texture2D(u_Texture, v_TexCoordinate);    
-	 }
-}
\ No newline at end of file
+        // Diffuse from the assigned lights plus ambient, times the texture.
+        vec3 diffuse = diffuseLight(v_Position.xyz, normalize(v_Normal)) + 0.3;
+        gl_FragColor = vec4(diffuse, 1.0) * texture2D(u_Texture, v_TexCoordinate);
+    }
+}
@@ -1,40 +1,66 @@
 precision highp float;
 
+const int MAX_LIGHTS = 4;
+// Eye-space depth at which the floor's grid lines have faded out.
+const float FADE_DISTANCE = 90.0;
+
 uniform mat4 u_MVP;
 uniform mat4 u_MVMatrix;
-uniform mat4 u_Model;
-uniform vec3 u_LightPos;
+// The lights assigned to this object: eye-space position with the range in w, and color.
+uniform vec4 u_LightPos[MAX_LIGHTS];
+uniform vec4 u_LightColor[MAX_LIGHTS];
+uniform int u_LightCount;
 uniform float u_IsFloor;
 
 attribute vec4 a_Position;
 attribute vec4 a_Color;
 attribute vec3 a_Normal;
 attribute vec2 a_TexCoordinate;
+attribute vec2 a_LightmapCoord;
 
 varying vec4 v_Color;
-varying vec3 v_Grid;
+varying float v_Fade;
 varying vec2 v_TexCoordinate;
+varying vec2 v_LightmapCoord;
+varying vec3 v_Light;
 varying float v_isFloor;
 varying vec4 v_Position;
 varying vec3 v_Normal;
 
+vec3 diffuseLight(vec3 position, vec3 normal)
+{
+   vec3 sum = vec3(0.0);
+   for (int i = 0; i < MAX_LIGHTS; i++) {
+      if (i >= u_LightCount) {
+         break;
+      }
+      vec3 toLight = u_LightPos[i].xyz - position;
+      float distance = length(toLight);
+      float falloff = max(1.0 - distance / u_LightPos[i].w, 0.0);
+      sum += u_LightColor[i].rgb * max(dot(normal, toLight / distance), 0.0) * falloff * falloff;
+   }
+   return sum;
+}
+
 void main()
 {
    v_Position = vec4(u_MVMatrix * a_Position);
-   v_TexCoordinate = a_TexCoordinate;                                      
+   v_TexCoordinate = a_TexCoordinate;
    v_Normal = vec3(u_MVMatrix * vec4(a_Normal, 0.0));
-   
-   vec3 modelVertex = vec3(u_Model * a_Position);
-   v_Grid = modelVertex;
-
-   vec3 modelViewVertex = vec3(u_MVMatrix * a_Position);
-   vec3 modelViewNormal = vec3(u_MVMatrix * vec4(a_Normal, 0.0));
-   float distance = length(u_LightPos - modelViewVertex);
-   vec3 lightVector = normalize(u_LightPos - modelViewVertex);
-   float diffuse = max(dot(modelViewNormal, lightVector), 0.5   );
-   diffuse = diffuse * (1.0 / (1.0 + (0.00001 * distance * distance)));
-   v_Color = a_Color * diffuse;
+
+   // Linear in eye space, so interpolating it is exact; the fragment shader clamps it.
+   v_Fade = 1.0 + v_Position.z / FADE_DISTANCE;
+
+   // The floor's moving lights are evaluated here, per vertex; its static lights come from the
+   // lightmap. The cube is lit per fragment instead.
+   v_Color = a_Color;
+   v_LightmapCoord = a_LightmapCoord;
+   if (u_IsFloor > 0.5) {
+      v_Light = diffuseLight(v_Position.xyz, v_Normal);
+   } else {
+      v_Light = vec3(0.0);
+   }
    gl_Position = u_MVP * a_Position;
 
    v_isFloor = u_IsFloor;
-}
\ No newline at end of file
+}
@@ -0,0 +1,12 @@
+precision mediump float;
+
+uniform vec4 u_Color;
+
+varying float v_Alpha;
+
+void main() {
+  // Round, soft-edged points.
+  vec2 offset = gl_PointCoord - vec2(0.5);
+  float falloff = 1.0 - smoothstep(0.2, 0.25, dot(offset, offset));
+  gl_FragColor = vec4(u_Color.rgb, u_Color.a * v_Alpha * falloff);
+}
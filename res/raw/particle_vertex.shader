@@ -0,0 +1,12 @@
+uniform mat4 u_MVP;
+uniform float u_PointSize;      // Point diameter in pixels at a distance of one unit.
+
+attribute vec4 a_Position;      // xyz in world space, w carries the particle's remaining life.
+
+varying float v_Alpha;
+
+void main() {
+  v_Alpha = a_Position.w;
+  gl_Position = u_MVP * vec4(a_Position.xyz, 1.0);
+  gl_PointSize = u_PointSize / max(gl_Position.w, 0.1);
+}
@@ -0,0 +1,22 @@
+precision mediump float;
+
+uniform sampler2D u_Texture;    // Signed distance field glyph atlas, 0.5 on the glyph edge.
+uniform vec4 u_Color;
+uniform vec4 u_ShadowColor;
+uniform float u_Smoothing;      // Half width of the anti-aliased edge, in distance field units.
+uniform float u_Elapsed;        // Seconds since the text was shown.
+uniform float u_FadeDuration;   // Seconds until the text has faded out completely.
+
+varying vec2 v_TexCoordinate;
+
+void main() {
+  float distance = texture2D(u_Texture, v_TexCoordinate).a;
+
+  // Sharp glyph edge, plus a soft dark halo behind it standing in for a drop shadow.
+  float glyph = smoothstep(0.5 - u_Smoothing, 0.5 + u_Smoothing, distance);
+  float shadow = smoothstep(0.2, 0.5, distance) * u_ShadowColor.a;
+
+  float fade = clamp(1.0 - u_Elapsed / u_FadeDuration, 0.0, 1.0);
+  vec3 color = mix(u_ShadowColor.rgb, u_Color.rgb, glyph);
+  gl_FragColor = vec4(color, max(glyph, shadow) * u_Color.a * fade);
+}
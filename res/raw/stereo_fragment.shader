@@ -0,0 +1,69 @@
+#version 300 es
+precision mediump float;
+
+const int MAX_LIGHTS = 4;
+
+// Shared with the vertex shader, so they keep its precision.
+layout(std140) uniform Frame {
+    highp mat4 u_ModelView[2];
+    highp vec4 u_LightPos[2 * MAX_LIGHTS];
+    highp vec4 u_LightColor[2 * MAX_LIGHTS];
+    highp ivec4 u_LightCount;
+};
+
+layout(std140) uniform Eyes {
+    highp mat4 u_EyeProjection[2];
+    highp vec4 u_EyeViewport[2];
+};
+
+uniform highp int u_Object;
+uniform sampler2D u_Texture;
+uniform sampler2D u_Lightmap;
+
+in vec4 v_Color;
+in float v_Fade;
+in vec2 v_TexCoordinate;
+in vec2 v_LightmapCoord;
+in vec3 v_Light;
+// The cube's lighting squares head-space distances, which can overflow mediump.
+in highp vec4 v_Position;
+in highp vec3 v_Normal;
+flat in int v_Eye;
+
+out vec4 fragColor;
+
+vec3 diffuseLight(highp vec3 position, highp vec3 normal) {
+    highp vec3 sum = vec3(0.0);
+    int first = u_Object * MAX_LIGHTS;
+    for (int i = 0; i < u_LightCount[u_Object]; i++) {
+        highp vec3 toLight = u_LightPos[first + i].xyz - position;
+        highp float distance = length(toLight);
+        // Falls to zero at the light's range, so the CPU can skip lights that cannot reach.
+        highp float falloff = max(1.0 - distance / u_LightPos[first + i].w, 0.0);
+        sum += u_LightColor[first + i].rgb * max(dot(normal, toLight / distance), 0.0)
+                * falloff * falloff;
+    }
+    return sum;
+}
+
+void main() {
+#ifndef GL_EXT_clip_cull_distance
+    // Without clip distances, a triangle that crosses an eye's inner edge spills into the other
+    // eye's half; drop what lands there.
+    if ((gl_FragCoord.x >= u_EyeViewport[1].z) != (v_Eye == 1)) {
+        discard;
+    }
+#endif
+    if (u_Object == 1) {
+        // Baked static lights plus the per-vertex moving ones; no per-fragment light math.
+        vec3 diffuse = max(texture(u_Lightmap, v_LightmapCoord).rgb + v_Light, vec3(0.5));
+        vec4 color = vec4(v_Color.rgb * diffuse, v_Color.a);
+        // The texture holds the lines' coverage, already filtered for the distance.
+        float line = texture(u_Texture, v_TexCoordinate).a * clamp(v_Fade, 0.0, 1.0);
+        fragColor = mix(color, vec4(1.0), line);
+    } else {
+        // Diffuse from the assigned lights plus ambient, times the texture.
+        vec3 diffuse = diffuseLight(v_Position.xyz, normalize(v_Normal)) + 0.3;
+        fragColor = vec4(diffuse, 1.0) * texture(u_Texture, v_TexCoordinate);
+    }
+}
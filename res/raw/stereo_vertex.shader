@@ -0,0 +1,91 @@
+#version 300 es
+// The scene program of the GLES 3 backend. It draws both eyes in one pass: instance 0 is the left
+// eye and instance 1 the right, each squeezed into its half of a viewport that spans both.
+// Otherwise it matches light_vertex, except that the lighting is done in head space, which the
+// eyes share. Head space is only a translation away from either eye's, so diffuse lighting comes
+// out the same.
+#ifdef GL_EXT_clip_cull_distance
+#extension GL_EXT_clip_cull_distance : enable
+#endif
+precision highp float;
+
+const int MAX_LIGHTS = 4;
+// Eye-space depth at which the floor's grid lines have faded out.
+const float FADE_DISTANCE = 90.0;
+
+// Per frame. Indexed by object, 0 for the cube and 1 for the floor: model-view into head space,
+// and the object's lights in head space with the range in w, their colors, and their count.
+layout(std140) uniform Frame {
+    highp mat4 u_ModelView[2];
+    highp vec4 u_LightPos[2 * MAX_LIGHTS];
+    highp vec4 u_LightColor[2 * MAX_LIGHTS];
+    highp ivec4 u_LightCount;
+};
+
+// Per eye, indexed by instance: projection from head space, and in x and y the scale and offset
+// that move the eye's clip x into its half of the viewport. z of the right eye is the window x
+// where its half begins.
+layout(std140) uniform Eyes {
+    highp mat4 u_EyeProjection[2];
+    highp vec4 u_EyeViewport[2];
+};
+
+uniform highp int u_Object;
+
+in vec4 a_Position;
+in vec4 a_Color;
+in vec3 a_Normal;
+in vec2 a_TexCoordinate;
+in vec2 a_LightmapCoord;
+
+out vec4 v_Color;
+out float v_Fade;
+out vec2 v_TexCoordinate;
+out vec2 v_LightmapCoord;
+out vec3 v_Light;
+out vec4 v_Position;
+out vec3 v_Normal;
+flat out int v_Eye;
+
+vec3 diffuseLight(vec3 position, vec3 normal)
+{
+   vec3 sum = vec3(0.0);
+   int first = u_Object * MAX_LIGHTS;
+   for (int i = 0; i < u_LightCount[u_Object]; i++) {
+      vec3 toLight = u_LightPos[first + i].xyz - position;
+      float distance = length(toLight);
+      float falloff = max(1.0 - distance / u_LightPos[first + i].w, 0.0);
+      sum += u_LightColor[first + i].rgb * max(dot(normal, toLight / distance), 0.0)
+            * falloff * falloff;
+   }
+   return sum;
+}
+
+void main()
+{
+   v_Position = u_ModelView[u_Object] * a_Position;
+   v_TexCoordinate = a_TexCoordinate;
+   v_Normal = vec3(u_ModelView[u_Object] * vec4(a_Normal, 0.0));
+
+   // Linear in head space, so interpolating it is exact; the fragment shader clamps it.
+   v_Fade = 1.0 + v_Position.z / FADE_DISTANCE;
+
+   // The floor's moving lights are evaluated here, per vertex; its static lights come from the
+   // lightmap. The cube is lit per fragment instead.
+   v_Color = a_Color;
+   v_LightmapCoord = a_LightmapCoord;
+   if (u_Object == 1) {
+      v_Light = diffuseLight(v_Position.xyz, v_Normal);
+   } else {
+      v_Light = vec3(0.0);
+   }
+
+   vec4 clip = u_EyeProjection[gl_InstanceID] * v_Position;
+#ifdef GL_EXT_clip_cull_distance
+   // Cut each eye's triangles off at its inner edge, where the other eye's half begins.
+   gl_ClipDistance[0] = gl_InstanceID == 0 ? clip.w - clip.x : clip.w + clip.x;
+#endif
+   clip.x = clip.x * u_EyeViewport[gl_InstanceID].x + clip.w * u_EyeViewport[gl_InstanceID].y;
+   gl_Position = clip;
+   v_Eye = gl_InstanceID;
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Time-based animation for a set of objects, evaluated together in one pass per frame.
+ *
+ * Each object has a rest position and three tracks: a procedural spin at a fixed rate around an
+ * axis, a procedural vertical bob, and a keyframed uniform scale. The tracks are stored as
+ * structure of arrays and are functions of time alone, so an object looks the same at a given
+ * time whatever the frame rate was, and nothing drifts. Model matrices are rebuilt from the
+ * evaluated channels every pass rather than updated in place.
+ *
+ * Times are seconds since an epoch the owner picks. Keep it recent, so floats keep their precision;
+ * an hour in, they still resolve a fraction of a millisecond.
+ *
+ * Large sets can be split across an executor's threads. Not thread safe otherwise; owned by the
+ * thread that calls {@link #evaluate}.
+ */
+public final class AnimationSystem {
+
+    /** Most keyframes in a scale track. */
+    public static final int MAX_KEYS = 4;
+
+    // Below this many objects a pass is cheaper than handing it to other threads.
+    private static final int PARALLEL_MIN_OBJECTS = 4096;
+
+    private final int mCapacity;
+    private int mCount;
+
+    // Rest position.
+    private final float[] mX;
+    private final float[] mY;
+    private final float[] mZ;
+    // Spin: unit axis, rate, and angle at the epoch.
+    private final float[] mAxisX;
+    private final float[] mAxisY;
+    private final float[] mAxisZ;
+    private final float[] mSpinRate; // Radians per second.
+    private final float[] mSpinPhase;
+    // Bob: vertical amplitude, angular frequency and phase.
+    private final float[] mBobAmplitude;
+    private final float[] mBobRate; // Radians per second.
+    private final float[] mBobPhase;
+    // Scale keyframes, MAX_KEYS per object, in seconds since the track started.
+    private final int[] mKeyCount;
+    private final float[] mKeyStart;
+    private final float[] mKeyTimes;
+    private final float[] mKeyValues;
+
+    private final float[] mModels;
+
+    private final ExecutorService mExecutor;
+    private final List<Callable<Void>> mSlices = new ArrayList<Callable<Void>>();
+    private float mSeconds;
+
+    /**
+     * @param executor Threads to split large sets across, or null to always evaluate on the
+     *     calling thread.
+     */
+    public AnimationSystem(int capacity, ExecutorService executor) {
+        mCapacity = capacity;
+        mExecutor = executor;
+        mX = new float[capacity];
+        mY = new float[capacity];
+        mZ = new float[capacity];
+        mAxisX = new float[capacity];
+        mAxisY = new float[capacity];
+        mAxisZ = new float[capacity];
+        mSpinRate = new float[capacity];
+        mSpinPhase = new float[capacity];
+        mBobAmplitude = new float[capacity];
+        mBobRate = new float[capacity];
+        mBobPhase = new float[capacity];
+        mKeyCount = new int[capacity];
+        mKeyStart = new float[capacity];
+        mKeyTimes = new float[capacity * MAX_KEYS];
+        mKeyValues = new float[capacity * MAX_KEYS];
+        mModels = new float[capacity * 16];
+        if (executor != null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            for (int i = 0; i < threads; i++) {
+                final int slice = i;
+                final int slices = threads;
+                mSlices.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        evaluateRange(mCount * slice / slices, mCount * (slice + 1) / slices);
+                        return null;
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Adds an object at the origin that does not move.
+     * @return The object's index.
+     */
+    public int add() {
+        if (mCount == mCapacity) {
+            throw new IllegalStateException("More than " + mCapacity + " animated objects");
+        }
+        int i = mCount++;
+        mAxisY[i] = 1f;
+        mKeyCount[i] = 0;
+        return i;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public void setPosition(int i, float x, float y, float z) {
+        mX[i] = x;
+        mY[i] = y;
+        mZ[i] = z;
+    }
+
+    /**
+     * Returns the rest position, without the bob.
+     */
+    public void getPosition(int i, float[] position, int offset) {
+        position[offset] = mX[i];
+        position[offset + 1] = mY[i];
+        position[offset + 2] = mZ[i];
+    }
+
+    /**
+     * Spins an object around an axis through its position.
+     * @param degreesPerSecond Positive turns counterclockwise looking down the axis.
+     * @param startDegrees The angle at the epoch.
+     */
+    public void setSpin(int i, float axisX, float axisY, float axisZ, float degreesPerSecond,
+            float startDegrees) {
+        float length = (float) Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+        mAxisX[i] = axisX / length;
+        mAxisY[i] = axisY / length;
+        mAxisZ[i] = axisZ / length;
+        mSpinRate[i] = (float) Math.toRadians(degreesPerSecond);
+        mSpinPhase[i] = (float) Math.toRadians(startDegrees);
+    }
+
+    /**
+     * Moves an object up and down around its rest position.
+     */
+    public void setBob(int i, float amplitude, float cyclesPerSecond, float phase) {
+        mBobAmplitude[i] = amplitude;
+        mBobRate[i] = (float) (2 * Math.PI * cyclesPerSecond);
+        mBobPhase[i] = phase;
+    }
+
+    /**
+     * Scales an object by a piecewise linear track. Before the first key and after the last one
+     * the scale holds the nearest key's value.
+     * @param times Seconds after the start, increasing.
+     * @param startSeconds When the track starts.
+     */
+    public void setScaleKeys(int i, float[] times, float[] scales, float startSeconds) {
+        if (times.length > MAX_KEYS || times.length != scales.length) {
+            throw new IllegalArgumentException("Need up to " + MAX_KEYS + " keys with values");
+        }
+        mKeyCount[i] = times.length;
+        mKeyStart[i] = startSeconds;
+        System.arraycopy(times, 0, mKeyTimes, i * MAX_KEYS, times.length);
+        System.arraycopy(scales, 0, mKeyValues, i * MAX_KEYS, scales.length);
+    }
+
+    /**
+     * Rebuilds every object's model matrix for the given time.
+     */
+    public void evaluate(float seconds) {
+        mSeconds = seconds;
+        if (mExecutor == null || mCount < PARALLEL_MIN_OBJECTS) {
+            evaluateRange(0, mCount);
+            return;
+        }
+        try {
+            for (Future<Void> slice : mExecutor.invokeAll(mSlices)) {
+                slice.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Copies an object's model matrix from the last {@link #evaluate}.
+     */
+    public void getModel(int i, float[] model, int offset) {
+        System.arraycopy(mModels, i * 16, model, offset, 16);
+    }
+
+    /**
+     * Transforms a point in an object's own space by its model matrix from the last
+     * {@link #evaluate}.
+     */
+    public void transformPoint(int i, float x, float y, float z, float[] out, int offset) {
+        final float[] m = mModels;
+        int b = i * 16;
+        out[offset] = m[b] * x + m[b + 4] * y + m[b + 8] * z + m[b + 12];
+        out[offset + 1] = m[b + 1] * x + m[b + 5] * y + m[b + 9] * z + m[b + 13];
+        out[offset + 2] = m[b + 2] * x + m[b + 6] * y + m[b + 10] * z + m[b + 14];
+    }
+
+    private void evaluateRange(int from, int to) {
+        final float t = mSeconds;
+        final float[] models = mModels;
+        for (int i = from; i < to; i++) {
+            // Rotation from axis and angle, as Matrix.setRotateM builds it.
+            float angle = mSpinPhase[i] + mSpinRate[i] * t;
+            float s = (float) Math.sin(angle);
+            float c = (float) Math.cos(angle);
+            float nc = 1f - c;
+            float x = mAxisX[i];
+            float y = mAxisY[i];
+            float z = mAxisZ[i];
+            float scale = scaleAt(i, t);
+
+            int m = i * 16;
+            models[m] = (x * x * nc + c) * scale;
+            models[m + 1] = (y * x * nc + z * s) * scale;
+            models[m + 2] = (x * z * nc - y * s) * scale;
+            models[m + 3] = 0f;
+            models[m + 4] = (x * y * nc - z * s) * scale;
+            models[m + 5] = (y * y * nc + c) * scale;
+            models[m + 6] = (y * z * nc + x * s) * scale;
+            models[m + 7] = 0f;
+            models[m + 8] = (x * z * nc + y * s) * scale;
+            models[m + 9] = (y * z * nc - x * s) * scale;
+            models[m + 10] = (z * z * nc + c) * scale;
+            models[m + 11] = 0f;
+            models[m + 12] = mX[i];
+            models[m + 13] = mY[i]
+                    + mBobAmplitude[i] * (float) Math.sin(mBobPhase[i] + mBobRate[i] * t);
+            models[m + 14] = mZ[i];
+            models[m + 15] = 1f;
+        }
+    }
+
+    private float scaleAt(int i, float t) {
+        int count = mKeyCount[i];
+        if (count == 0) {
+            return 1f;
+        }
+        int base = i * MAX_KEYS;
+        float local = t - mKeyStart[i];
+        if (local <= mKeyTimes[base]) {
+            return mKeyValues[base];
+        }
+        for (int k = base + 1; k < base + count; k++) {
+            if (local < mKeyTimes[k]) {
+                float f = (local - mKeyTimes[k - 1]) / (mKeyTimes[k] - mKeyTimes[k - 1]);
+                return mKeyValues[k - 1] + f * (mKeyValues[k] - mKeyValues[k - 1]);
+            }
+        }
+        return mKeyValues[base + count - 1];
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+/**
+ * A list of draw commands encoded into flat int and float arenas.
+ *
+ * Any thread may record into a buffer, as long as only one thread touches it at a time. Only the
+ * GL thread may {@link #replay} it. The arenas are kept across {@link #reset()} calls, so once a
+ * buffer has grown to fit a frame, recording the same frame again allocates nothing.
+ *
+ * Every command starts with an opcode in the int arena, followed by its int arguments. Float
+ * arguments (uniform values) go to the float arena in the same order they are recorded.
+ *
+ * Values that depend on the eye pose are recorded in eye space and finished at replay time with
+ * the projection and a late pose correction, so the pose can be re-latched after recording.
+ */
+public final class CommandBuffer {
+
+    private static final int OP_CLEAR = 1;
+    private static final int OP_USE_PROGRAM = 2;
+    private static final int OP_BIND_TEXTURE = 3;
+    private static final int OP_UNIFORM_1I = 4;
+    private static final int OP_UNIFORM_1F = 5;
+    private static final int OP_UNIFORM_3F = 6;
+    private static final int OP_UNIFORM_MATRIX_4 = 7;
+    private static final int OP_ENABLE_ATTRIB = 8;
+    private static final int OP_ATTRIB_POINTER = 9;
+    private static final int OP_DRAW_ARRAYS = 10;
+    private static final int OP_UNIFORM_EYE_POINT_3 = 11;
+    private static final int OP_UNIFORM_EYE_MATRIX_4 = 12;
+    private static final int OP_UNIFORM_EYE_PROJECTED_MATRIX_4 = 13;
+    private static final int OP_UNIFORM_4FV = 14;
+    private static final int OP_UNIFORM_EYE_POINTS_4FV = 15;
+    private static final int OP_BIND_VERTEX_ARRAY = 16;
+
+    private static final float[] IDENTITY = new float[16];
+    static {
+        Matrix.setIdentityM(IDENTITY, 0);
+    }
+
+    private int[] mInts;
+    private float[] mFloats;
+    private int mIntCount;
+    private int mFloatCount;
+    private int mCommandCount;
+
+    private final Gl mGl;
+    private final GlExtensions mExtensions;
+
+    // Replay scratch space; replay only ever runs on the GL thread.
+    private final float[] mCorrected = new float[16];
+    private final float[] mProjected = new float[16];
+    private final float[] mPointIn = new float[4];
+    private final float[] mPointOut = new float[4];
+    private float[] mVectors = new float[16];
+
+    /**
+     * @param gl The GL the buffer is replayed on.
+     */
+    public CommandBuffer(Gl gl, int intCapacity, int floatCapacity) {
+        this(gl, null, intCapacity, floatCapacity);
+    }
+
+    /**
+     * @param gl The GL the buffer is replayed on.
+     * @param extensions Where {@link #bindVertexArray} commands are replayed, or null if they
+     *     are never recorded.
+     */
+    public CommandBuffer(Gl gl, GlExtensions extensions, int intCapacity, int floatCapacity) {
+        mGl = gl;
+        mExtensions = extensions;
+        mInts = new int[intCapacity];
+        mFloats = new float[floatCapacity];
+    }
+
+    /**
+     * Discards all recorded commands, keeping the arenas.
+     */
+    public void reset() {
+        mIntCount = 0;
+        mFloatCount = 0;
+        mCommandCount = 0;
+    }
+
+    public int getCommandCount() {
+        return mCommandCount;
+    }
+
+    /**
+     * Makes this buffer an exact copy of another one, e.g. to keep a frame around for debugging.
+     */
+    public void copyFrom(CommandBuffer other) {
+        reset();
+        ensureInts(other.mIntCount);
+        ensureFloats(other.mFloatCount);
+        System.arraycopy(other.mInts, 0, mInts, 0, other.mIntCount);
+        System.arraycopy(other.mFloats, 0, mFloats, 0, other.mFloatCount);
+        mIntCount = other.mIntCount;
+        mFloatCount = other.mFloatCount;
+        mCommandCount = other.mCommandCount;
+    }
+
+    public void clear(int mask) {
+        beginCommand(OP_CLEAR, 1);
+        mInts[mIntCount++] = mask;
+    }
+
+    public void useProgram(int program) {
+        beginCommand(OP_USE_PROGRAM, 1);
+        mInts[mIntCount++] = program;
+    }
+
+    /**
+     * @param unit The texture unit index, i.e. 0 for GL_TEXTURE0.
+     */
+    public void bindTexture(int unit, int texture) {
+        beginCommand(OP_BIND_TEXTURE, 2);
+        mInts[mIntCount++] = unit;
+        mInts[mIntCount++] = texture;
+    }
+
+    public void uniform1i(int location, int value) {
+        beginCommand(OP_UNIFORM_1I, 2);
+        mInts[mIntCount++] = location;
+        mInts[mIntCount++] = value;
+    }
+
+    public void uniform1f(int location, float value) {
+        beginCommand(OP_UNIFORM_1F, 1);
+        mInts[mIntCount++] = location;
+        ensureFloats(1);
+        mFloats[mFloatCount++] = value;
+    }
+
+    public void uniform3f(int location, float x, float y, float z) {
+        beginCommand(OP_UNIFORM_3F, 1);
+        mInts[mIntCount++] = location;
+        ensureFloats(3);
+        mFloats[mFloatCount++] = x;
+        mFloats[mFloatCount++] = y;
+        mFloats[mFloatCount++] = z;
+    }
+
+    public void uniformMatrix4(int location, float[] matrix, int offset) {
+        beginCommand(OP_UNIFORM_MATRIX_4, 1);
+        mInts[mIntCount++] = location;
+        ensureFloats(16);
+        System.arraycopy(matrix, offset, mFloats, mFloatCount, 16);
+        mFloatCount += 16;
+    }
+
+    /**
+     * Sets a vec3 uniform to an eye-space point, corrected for the latched pose at replay.
+     */
+    public void uniformEyePoint3(int location, float x, float y, float z) {
+        beginCommand(OP_UNIFORM_EYE_POINT_3, 1);
+        mInts[mIntCount++] = location;
+        ensureFloats(3);
+        mFloats[mFloatCount++] = x;
+        mFloats[mFloatCount++] = y;
+        mFloats[mFloatCount++] = z;
+    }
+
+    /**
+     * Sets a mat4 uniform to a matrix ending in eye space (e.g. model-view), corrected for the
+     * latched pose at replay.
+     */
+    public void uniformEyeMatrix4(int location, float[] matrix, int offset) {
+        beginCommand(OP_UNIFORM_EYE_MATRIX_4, 1);
+        mInts[mIntCount++] = location;
+        ensureFloats(16);
+        System.arraycopy(matrix, offset, mFloats, mFloatCount, 16);
+        mFloatCount += 16;
+    }
+
+    /**
+     * Sets a mat4 uniform to projection * correction * {@code matrix}, where {@code matrix} ends in
+     * eye space. Used for model-view-projection matrices.
+     */
+    public void uniformEyeProjectedMatrix4(int location, float[] matrix, int offset) {
+        beginCommand(OP_UNIFORM_EYE_PROJECTED_MATRIX_4, 1);
+        mInts[mIntCount++] = location;
+        ensureFloats(16);
+        System.arraycopy(matrix, offset, mFloats, mFloatCount, 16);
+        mFloatCount += 16;
+    }
+
+    /**
+     * Sets a vec4 array uniform.
+     */
+    public void uniform4fv(int location, int count, float[] values, int offset) {
+        beginCommand(OP_UNIFORM_4FV, 2);
+        mInts[mIntCount++] = location;
+        mInts[mIntCount++] = count;
+        ensureFloats(count * 4);
+        System.arraycopy(values, offset, mFloats, mFloatCount, count * 4);
+        mFloatCount += count * 4;
+    }
+
+    /**
+     * Sets a vec4 array uniform whose xyz are eye-space points, corrected for the latched pose at
+     * replay. The w components are passed through unchanged.
+     */
+    public void uniformEyePoints4fv(int location, int count, float[] values, int offset) {
+        beginCommand(OP_UNIFORM_EYE_POINTS_4FV, 2);
+        mInts[mIntCount++] = location;
+        mInts[mIntCount++] = count;
+        ensureFloats(count * 4);
+        System.arraycopy(values, offset, mFloats, mFloatCount, count * 4);
+        mFloatCount += count * 4;
+    }
+
+    public void enableAttrib(int index) {
+        beginCommand(OP_ENABLE_ATTRIB, 1);
+        mInts[mIntCount++] = index;
+    }
+
+    /**
+     * Points a float vertex attribute at a range of a buffer object.
+     */
+    public void attribPointer(int index, int size, int buffer, int stride, int offset) {
+        beginCommand(OP_ATTRIB_POINTER, 5);
+        mInts[mIntCount++] = index;
+        mInts[mIntCount++] = size;
+        mInts[mIntCount++] = buffer;
+        mInts[mIntCount++] = stride;
+        mInts[mIntCount++] = offset;
+    }
+
+    /**
+     * Binds a vertex array object, which sets up every attribute at once. Replay unbinds it
+     * again at the end.
+     */
+    public void bindVertexArray(int array) {
+        beginCommand(OP_BIND_VERTEX_ARRAY, 1);
+        mInts[mIntCount++] = array;
+    }
+
+    public void drawArrays(int mode, int first, int count) {
+        beginCommand(OP_DRAW_ARRAYS, 3);
+        mInts[mIntCount++] = mode;
+        mInts[mIntCount++] = first;
+        mInts[mIntCount++] = count;
+    }
+
+    /**
+     * Issues every recorded command with no pose correction. Must be called on the GL thread.
+     */
+    public void replay(float[] projection) {
+        replay(IDENTITY, projection);
+    }
+
+    /**
+     * Issues every recorded command. Must be called on the GL thread.
+     * @param eyeCorrection Maps the eye space used while recording to the latched eye space.
+     * @param projection The eye's projection matrix.
+     */
+    public void replay(float[] eyeCorrection, float[] projection) {
+        final int[] ints = mInts;
+        final float[] floats = mFloats;
+        final int intCount = mIntCount;
+        int i = 0;
+        int f = 0;
+        boolean vertexArrayBound = false;
+        while (i < intCount) {
+            switch (ints[i++]) {
+                case OP_CLEAR:
+                    mGl.glClear(ints[i++]);
+                    break;
+                case OP_USE_PROGRAM:
+                    mGl.glUseProgram(ints[i++]);
+                    break;
+                case OP_BIND_TEXTURE:
+                    mGl.glActiveTexture(GLES20.GL_TEXTURE0 + ints[i++]);
+                    mGl.glBindTexture(GLES20.GL_TEXTURE_2D, ints[i++]);
+                    break;
+                case OP_UNIFORM_1I:
+                    mGl.glUniform1i(ints[i++], ints[i++]);
+                    break;
+                case OP_UNIFORM_1F:
+                    mGl.glUniform1f(ints[i++], floats[f++]);
+                    break;
+                case OP_UNIFORM_3F:
+                    mGl.glUniform3f(ints[i++], floats[f], floats[f + 1], floats[f + 2]);
+                    f += 3;
+                    break;
+                case OP_UNIFORM_MATRIX_4:
+                    mGl.glUniformMatrix4fv(ints[i++], 1, false, floats, f);
+                    f += 16;
+                    break;
+                case OP_UNIFORM_EYE_POINT_3:
+                    mPointIn[0] = floats[f];
+                    mPointIn[1] = floats[f + 1];
+                    mPointIn[2] = floats[f + 2];
+                    mPointIn[3] = 1f;
+                    Matrix.multiplyMV(mPointOut, 0, eyeCorrection, 0, mPointIn, 0);
+                    mGl.glUniform3f(ints[i++], mPointOut[0], mPointOut[1], mPointOut[2]);
+                    f += 3;
+                    break;
+                case OP_UNIFORM_EYE_MATRIX_4:
+                    Matrix.multiplyMM(mCorrected, 0, eyeCorrection, 0, floats, f);
+                    mGl.glUniformMatrix4fv(ints[i++], 1, false, mCorrected, 0);
+                    f += 16;
+                    break;
+                case OP_UNIFORM_EYE_PROJECTED_MATRIX_4:
+                    Matrix.multiplyMM(mCorrected, 0, eyeCorrection, 0, floats, f);
+                    Matrix.multiplyMM(mProjected, 0, projection, 0, mCorrected, 0);
+                    mGl.glUniformMatrix4fv(ints[i++], 1, false, mProjected, 0);
+                    f += 16;
+                    break;
+                case OP_UNIFORM_4FV:
+                    mGl.glUniform4fv(ints[i], ints[i + 1], floats, f);
+                    f += ints[i + 1] * 4;
+                    i += 2;
+                    break;
+                case OP_UNIFORM_EYE_POINTS_4FV:
+                    f = replayEyePoints(ints[i], ints[i + 1], floats, f, eyeCorrection);
+                    i += 2;
+                    break;
+                case OP_ENABLE_ATTRIB:
+                    mGl.glEnableVertexAttribArray(ints[i++]);
+                    break;
+                case OP_ATTRIB_POINTER:
+                    mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, ints[i + 2]);
+                    mGl.glVertexAttribPointer(ints[i], ints[i + 1], GLES20.GL_FLOAT, false,
+                            ints[i + 3], ints[i + 4]);
+                    i += 5;
+                    break;
+                case OP_BIND_VERTEX_ARRAY:
+                    mExtensions.glBindVertexArray(ints[i++]);
+                    vertexArrayBound = true;
+                    break;
+                case OP_DRAW_ARRAYS:
+                    mGl.glDrawArrays(ints[i], ints[i + 1], ints[i + 2]);
+                    i += 3;
+                    break;
+                default:
+                    throw new IllegalStateException("Corrupt command buffer at " + (i - 1));
+            }
+        }
+        if (vertexArrayBound) {
+            mExtensions.glBindVertexArray(0);
+        }
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Corrects and sets an array of eye-space points.
+     * @return The float offset after the points.
+     */
+    private int replayEyePoints(int location, int count, float[] floats, int f,
+            float[] eyeCorrection) {
+        if (mVectors.length < count * 4) {
+            mVectors = new float[count * 4];
+        }
+        for (int p = 0; p < count; p++, f += 4) {
+            mPointIn[0] = floats[f];
+            mPointIn[1] = floats[f + 1];
+            mPointIn[2] = floats[f + 2];
+            mPointIn[3] = 1f;
+            Matrix.multiplyMV(mPointOut, 0, eyeCorrection, 0, mPointIn, 0);
+            mVectors[p * 4] = mPointOut[0];
+            mVectors[p * 4 + 1] = mPointOut[1];
+            mVectors[p * 4 + 2] = mPointOut[2];
+            mVectors[p * 4 + 3] = floats[f + 3];
+        }
+        mGl.glUniform4fv(location, count, mVectors, 0);
+        return f;
+    }
+
+    private void beginCommand(int opcode, int intArgs) {
+        ensureInts(1 + intArgs);
+        mInts[mIntCount++] = opcode;
+        mCommandCount++;
+    }
+
+    private void ensureInts(int extra) {
+        if (mIntCount + extra > mInts.length) {
+            int[] grown = new int[Math.max(mInts.length * 2, mIntCount + extra)];
+            System.arraycopy(mInts, 0, grown, 0, mIntCount);
+            mInts = grown;
+        }
+    }
+
+    private void ensureFloats(int extra) {
+        if (mFloatCount + extra > mFloats.length) {
+            float[] grown = new float[Math.max(mFloats.length * 2, mFloatCount + extra)];
+            System.arraycopy(mFloats, 0, grown, 0, mFloatCount);
+            mFloats = grown;
+        }
+    }
+}
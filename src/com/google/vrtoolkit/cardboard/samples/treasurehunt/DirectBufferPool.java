@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Hands out native-order direct buffers carved from a few large direct slabs.
+ *
+ * Every allocation is rounded up to a power-of-two size class and starts at a multiple of
+ * {@link #ALIGNMENT} bytes from the start of its slab. Released blocks go on a free list for their
+ * class and are reused before the slab is carved any further, so churn does not fragment native
+ * memory or wait for the garbage collector to run Cleaners. Requests larger than a slab get a
+ * dedicated direct buffer.
+ *
+ * In debug builds every live allocation remembers where it was made, so {@link #logLeaks} can
+ * point at buffers that were never released.
+ */
+public final class DirectBufferPool {
+
+    private static final String TAG = "DirectBufferPool";
+
+    public static final int ALIGNMENT = 16;
+
+    private static final int MIN_CLASS_SHIFT = 6; // 64 bytes
+    private static final int SLAB_SHIFT = 18; // 256 KB
+    private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+
+    private static final DirectBufferPool SHARED = new DirectBufferPool(BuildConfig.DEBUG);
+
+    /**
+     * Where a live allocation came from.
+     */
+    private static final class Block {
+        final int slab;  // -1 for dedicated buffers
+        final int offset;
+        final int sizeClass;
+        final int bytes;
+        final Throwable origin;
+
+        Block(int slab, int offset, int sizeClass, int bytes, Throwable origin) {
+            this.slab = slab;
+            this.offset = offset;
+            this.sizeClass = sizeClass;
+            this.bytes = bytes;
+            this.origin = origin;
+        }
+    }
+
+    private final boolean mTrackLeaks;
+    private final List<ByteBuffer> mSlabs = new ArrayList<ByteBuffer>();
+    private int mSlabUsed = SLAB_SIZE; // Forces a new slab on the first allocation.
+
+    // Free blocks per size class, packed as slab << 32 | offset.
+    private final long[][] mFree = new long[SLAB_SHIFT - MIN_CLASS_SHIFT + 1][];
+    private final int[] mFreeCount = new int[SLAB_SHIFT - MIN_CLASS_SHIFT + 1];
+
+    private final Map<ByteBuffer, Block> mLive = new IdentityHashMap<ByteBuffer, Block>();
+    private long mLiveBytes;
+    private long mDedicatedBytes;
+
+    /**
+     * Returns the pool every buffer producer in the renderer shares.
+     */
+    public static DirectBufferPool getShared() {
+        return SHARED;
+    }
+
+    /**
+     * @param trackLeaks Whether to record a stack trace for every allocation.
+     */
+    public DirectBufferPool(boolean trackLeaks) {
+        mTrackLeaks = trackLeaks;
+        for (int i = 0; i < mFree.length; i++) {
+            mFree[i] = new long[4];
+        }
+    }
+
+    /**
+     * Returns a native-order buffer of exactly {@code bytes} capacity. Safe to call from any
+     * thread. Give it back with {@link #release} once nothing reads it any more.
+     */
+    public synchronized ByteBuffer allocate(int bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Bad allocation size " + bytes);
+        }
+        Throwable origin = mTrackLeaks ? new Throwable("Allocated here") : null;
+        ByteBuffer buffer;
+        Block block;
+        if (bytes > SLAB_SIZE) {
+            buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+            block = new Block(-1, 0, -1, bytes, origin);
+            mDedicatedBytes += bytes;
+        } else {
+            int sizeClass = sizeClassOf(bytes);
+            long location;
+            if (mFreeCount[sizeClass] > 0) {
+                location = mFree[sizeClass][--mFreeCount[sizeClass]];
+            } else {
+                location = carve(1 << (sizeClass + MIN_CLASS_SHIFT));
+            }
+            int slab = (int) (location >>> 32);
+            int offset = (int) location;
+            ByteBuffer source = mSlabs.get(slab).duplicate();
+            source.limit(offset + bytes).position(offset);
+            buffer = source.slice().order(ByteOrder.nativeOrder());
+            block = new Block(slab, offset, sizeClass, bytes, origin);
+        }
+        mLive.put(buffer, block);
+        mLiveBytes += bytes;
+        return buffer;
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer, and any views of it, must not be used again.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        Block block = mLive.remove(buffer);
+        if (block == null) {
+            throw new IllegalArgumentException("Buffer was not allocated here or already released");
+        }
+        mLiveBytes -= block.bytes;
+        if (block.slab < 0) {
+            mDedicatedBytes -= block.bytes;
+            return;
+        }
+        addFree(block.sizeClass, (long) block.slab << 32 | block.offset);
+    }
+
+    /**
+     * Returns the bytes handed out and not yet released.
+     */
+    public synchronized long getLiveBytes() {
+        return mLiveBytes;
+    }
+
+    /**
+     * Returns the fraction of slab memory held by live allocations.
+     */
+    public synchronized float getUtilization() {
+        long slabBytes = (long) mSlabs.size() * SLAB_SIZE;
+        return slabBytes == 0 ? 0f : (float) (mLiveBytes - mDedicatedBytes) / slabBytes;
+    }
+
+    /**
+     * Returns how many slabs have been carved so far. Slabs are never given back.
+     */
+    public synchronized int getSlabCount() {
+        return mSlabs.size();
+    }
+
+    public synchronized void logUtilization() {
+        Log.i(TAG, String.format("%d slabs of %d KB, %.1f%% used by %d live buffers (%d KB), "
+                + "%d KB in dedicated buffers", mSlabs.size(), SLAB_SIZE / 1024,
+                getUtilization() * 100f, mLive.size(), mLiveBytes / 1024, mDedicatedBytes / 1024));
+    }
+
+    /**
+     * Logs every live allocation with where it was made. Only has stack traces when the pool
+     * tracks leaks.
+     * @return The number of live allocations.
+     */
+    public synchronized int logLeaks() {
+        for (Block block : mLive.values()) {
+            Log.w(TAG, "Live buffer of " + block.bytes + " bytes", block.origin);
+        }
+        return mLive.size();
+    }
+
+    private static int sizeClassOf(int bytes) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(bytes, 1 << MIN_CLASS_SHIFT) - 1);
+        return shift - MIN_CLASS_SHIFT;
+    }
+
+    /**
+     * Takes a new block from the end of the current slab, starting a new slab when it is full.
+     * Class sizes are multiples of the alignment, so blocks stay aligned.
+     */
+    private long carve(int size) {
+        if (mSlabUsed + size > SLAB_SIZE) {
+            freeTail();
+            mSlabs.add(allocateSlab());
+            mSlabUsed = 0;
+        }
+        long location = (long) (mSlabs.size() - 1) << 32 | mSlabUsed;
+        mSlabUsed += size;
+        return location;
+    }
+
+    /**
+     * Puts what is left of the current slab on the free lists, largest blocks first, so it is
+     * not wasted when a bigger block forces a new slab.
+     */
+    private void freeTail() {
+        int slab = mSlabs.size() - 1;
+        while (SLAB_SIZE - mSlabUsed >= 1 << MIN_CLASS_SHIFT) {
+            int sizeClass = sizeClassOf(Integer.highestOneBit(SLAB_SIZE - mSlabUsed));
+            addFree(sizeClass, (long) slab << 32 | mSlabUsed);
+            mSlabUsed += 1 << (sizeClass + MIN_CLASS_SHIFT);
+        }
+    }
+
+    private void addFree(int sizeClass, long location) {
+        long[] free = mFree[sizeClass];
+        if (mFreeCount[sizeClass] == free.length) {
+            long[] grown = new long[free.length * 2];
+            System.arraycopy(free, 0, grown, 0, free.length);
+            mFree[sizeClass] = grown;
+            free = grown;
+        }
+        free[mFreeCount[sizeClass]++] = location;
+    }
+
+    private static ByteBuffer allocateSlab() {
+        return ByteBuffer.allocateDirect(SLAB_SIZE).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A precomputed lens distortion mesh for both eyes of a viewer.
+ *
+ * The eyes are rendered undistorted, side by side, into one texture. The mesh covers the screen
+ * and maps each vertex to the point of that texture the lens shows there, so the warp is
+ * evaluated per vertex instead of per pixel and the correction costs one textured draw.
+ *
+ * Building the mesh inverts the lens polynomial for every vertex, so it is cached on disk per
+ * viewer profile and only rebuilt when the screen or the lenses change. Pure Java, so it can be
+ * built and checked on a plain JVM.
+ */
+public class DistortionMesh {
+
+    /** Floats per vertex: NDC x and y, vignette, then u and v in the eye texture. */
+    public static final int FLOATS_PER_VERTEX = 5;
+
+    private static final int GRID = 40; // Cells along each side of an eye's mesh.
+    private static final int VERTICES_PER_EYE = (GRID + 1) * (GRID + 1);
+
+    // Width of the fade to black at the edge of each eye's view, as a fraction of the view.
+    private static final float VIGNETTE_SIZE = 0.05f;
+
+    private static final int CACHE_MAGIC = 0x44495354; // "DIST"
+    private static final int CACHE_VERSION = 1;
+
+    /**
+     * The screen and lens measurements a mesh is built from, all in meters.
+     */
+    public static final class Params {
+        public final float screenWidth;
+        public final float screenHeight;
+        public final float border;
+        public final float interpupillaryDistance;
+        public final float verticalDistanceToLensCenter;
+        public final float lensDiameter;
+        public final float screenToLensDistance;
+        public final float eyeToLensDistance;
+        /** Coefficients of distort(r) = r * (1 + k1 r^2 + k2 r^4). */
+        public final float k1;
+        public final float k2;
+
+        public Params(float screenWidth, float screenHeight, float border,
+                float interpupillaryDistance, float verticalDistanceToLensCenter,
+                float lensDiameter, float screenToLensDistance, float eyeToLensDistance, float k1,
+                float k2) {
+            this.screenWidth = screenWidth;
+            this.screenHeight = screenHeight;
+            this.border = border;
+            this.interpupillaryDistance = interpupillaryDistance;
+            this.verticalDistanceToLensCenter = verticalDistanceToLensCenter;
+            this.lensDiameter = lensDiameter;
+            this.screenToLensDistance = screenToLensDistance;
+            this.eyeToLensDistance = eyeToLensDistance;
+            this.k1 = k1;
+            this.k2 = k2;
+        }
+
+        private float[] toArray() {
+            return new float[] {screenWidth, screenHeight, border, interpupillaryDistance,
+                    verticalDistanceToLensCenter, lensDiameter, screenToLensDistance,
+                    eyeToLensDistance, k1, k2};
+        }
+
+        private static Params fromArray(float[] a) {
+            return new Params(a[0], a[1], a[2], a[3], a[4], a[5], a[6], a[7], a[8], a[9]);
+        }
+
+        /**
+         * Returns a short name for the cache file of this profile.
+         */
+        public String key() {
+            return String.format("%08x", hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Params && Arrays.equals(toArray(), ((Params) o).toArray());
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(toArray());
+        }
+    }
+
+    private final Params mParams;
+    private final float[] mVertices;
+    private final short[] mIndices;
+    // Per eye (0 left, 1 right): tangents of the left, right, bottom and top half angles.
+    private final float[][] mFov = new float[2][4];
+    // Per eye: x, y, width and height of its view in the texture, as fractions of the texture.
+    private final float[][] mEyeRect = new float[2][4];
+    // Size of the texture in meters on the virtual screen, for choosing its resolution.
+    private float mTextureWidth;
+    private float mTextureHeight;
+    private boolean mFromCache;
+
+    private DistortionMesh(Params params, float[] vertices, short[] indices) {
+        mParams = params;
+        mVertices = vertices;
+        mIndices = indices;
+        computeLayout();
+    }
+
+    /**
+     * Builds the mesh for a viewer.
+     */
+    public static DistortionMesh build(Params params) {
+        DistortionMesh mesh = new DistortionMesh(params,
+                new float[2 * VERTICES_PER_EYE * FLOATS_PER_VERTEX],
+                new short[2 * GRID * GRID * 6]);
+        mesh.generate();
+        return mesh;
+    }
+
+    /**
+     * Reads the mesh for a viewer from {@code cacheDir}, or builds it and writes it there for next
+     * time. A missing, stale or unreadable cache file is not an error.
+     */
+    public static DistortionMesh load(Params params, File cacheDir) {
+        File file = new File(cacheDir, "distortion-" + params.key() + ".mesh");
+        if (file.exists()) {
+            try {
+                DistortionMesh mesh = read(file, params);
+                if (mesh != null) {
+                    mesh.mFromCache = true;
+                    return mesh;
+                }
+            } catch (IOException e) {
+                // Fall through and rebuild it.
+            }
+        }
+        DistortionMesh mesh = build(params);
+        try {
+            mesh.write(file);
+        } catch (IOException e) {
+            // Only costs a rebuild next time.
+        }
+        return mesh;
+    }
+
+    public Params getParams() {
+        return mParams;
+    }
+
+    /**
+     * Returns whether {@link #load} found this mesh in the cache.
+     */
+    public boolean isFromCache() {
+        return mFromCache;
+    }
+
+    /**
+     * Returns the interleaved vertices, {@link #FLOATS_PER_VERTEX} floats each.
+     */
+    public float[] getVertices() {
+        return mVertices;
+    }
+
+    /**
+     * Returns the triangle list covering both eyes, so the mesh is drawn in one call.
+     */
+    public short[] getIndices() {
+        return mIndices;
+    }
+
+    /**
+     * Returns the tangents of an eye's half angles: left, right, bottom, top.
+     * @param eye 0 for the left eye, 1 for the right.
+     */
+    public float[] getFov(int eye) {
+        return mFov[eye];
+    }
+
+    /**
+     * Returns where an eye's view lies in the texture: x, y, width and height as fractions.
+     * @param eye 0 for the left eye, 1 for the right.
+     */
+    public float[] getEyeRect(int eye) {
+        return mEyeRect[eye];
+    }
+
+    /**
+     * Returns the texture width in meters of the virtual screen. The texture needs about as many
+     * pixels per meter as the real screen to keep the center of the view sharp.
+     */
+    public float getTextureWidthMeters() {
+        return mTextureWidth;
+    }
+
+    public float getTextureHeightMeters() {
+        return mTextureHeight;
+    }
+
+    /**
+     * Returns the apparent distance from the lens center of a point on the screen.
+     */
+    float distort(float r) {
+        float r2 = r * r;
+        return r * (1 + (mParams.k1 + mParams.k2 * r2) * r2);
+    }
+
+    /**
+     * Returns the screen point that appears at distance {@code r} from the lens center. The
+     * polynomial has no closed inverse, so it is solved with the secant method.
+     */
+    float distortInverse(float r) {
+        float r0 = r / 0.9f;
+        float r1 = r * 0.9f;
+        float dr0 = r - distort(r0);
+        for (int i = 0; i < 20 && Math.abs(r1 - r0) > 1e-7f; i++) {
+            float dr1 = r - distort(r1);
+            if (dr1 == dr0) {
+                break;
+            }
+            float r2 = r1 - dr1 * ((r1 - r0) / (dr1 - dr0));
+            r0 = r1;
+            r1 = r2;
+            dr0 = dr1;
+        }
+        return r1;
+    }
+
+    /**
+     * Works out each eye's field of view the way the SDK does, and packs the two views side by
+     * side in the texture.
+     */
+    private void computeLayout() {
+        Params p = mParams;
+        float eyeToScreen = p.eyeToLensDistance + p.screenToLensDistance;
+        // Nothing outside the lens can be seen, however large the screen is.
+        float maxTan = p.lensDiameter / 2 / p.eyeToLensDistance;
+        float outer = Math.min(distort((p.screenWidth - p.interpupillaryDistance) / 2)
+                / eyeToScreen, maxTan);
+        float inner = Math.min(distort(p.interpupillaryDistance / 2) / eyeToScreen, maxTan);
+        float bottom = Math.min(distort(p.verticalDistanceToLensCenter - p.border)
+                / eyeToScreen, maxTan);
+        float top = Math.min(distort(p.screenHeight + p.border - p.verticalDistanceToLensCenter)
+                / eyeToScreen, maxTan);
+        mFov[0][0] = outer;
+        mFov[0][1] = inner;
+        mFov[1][0] = inner;
+        mFov[1][1] = outer;
+        for (int eye = 0; eye < 2; eye++) {
+            mFov[eye][2] = bottom;
+            mFov[eye][3] = top;
+        }
+
+        float eyeWidth = (outer + inner) * eyeToScreen;
+        mTextureWidth = 2 * eyeWidth;
+        mTextureHeight = (bottom + top) * eyeToScreen;
+        for (int eye = 0; eye < 2; eye++) {
+            mEyeRect[eye][0] = eye * 0.5f;
+            mEyeRect[eye][1] = 0f;
+            mEyeRect[eye][2] = 0.5f;
+            mEyeRect[eye][3] = 1f;
+        }
+    }
+
+    private void generate() {
+        Params p = mParams;
+        float eyeToScreen = p.eyeToLensDistance + p.screenToLensDistance;
+        float lensY = p.verticalDistanceToLensCenter - p.border;
+        int v = 0;
+        for (int eye = 0; eye < 2; eye++) {
+            float[] fov = mFov[eye];
+            float[] rect = mEyeRect[eye];
+            float lensX = (p.screenWidth + (eye == 0 ? -1 : 1) * p.interpupillaryDistance) / 2;
+            // Keep each eye on its own half of the screen.
+            float minNdcX = eye == 0 ? -1f : 0f;
+            float maxNdcX = eye == 0 ? 0f : 1f;
+            for (int row = 0; row <= GRID; row++) {
+                float fy = row / (float) GRID;
+                // Position on the virtual screen relative to the lens center.
+                float ty = (-fov[2] + fy * (fov[2] + fov[3])) * eyeToScreen;
+                for (int col = 0; col <= GRID; col++) {
+                    float fx = col / (float) GRID;
+                    float tx = (-fov[0] + fx * (fov[0] + fov[1])) * eyeToScreen;
+                    float r = (float) Math.sqrt(tx * tx + ty * ty);
+                    float toScreen = r > 0 ? distortInverse(r) / r : 1f;
+                    float sx = lensX + tx * toScreen;
+                    float sy = lensY + ty * toScreen;
+
+                    float edge = Math.min(Math.min(fx, 1 - fx), Math.min(fy, 1 - fy));
+                    mVertices[v++] = clamp(sx / p.screenWidth * 2 - 1, minNdcX, maxNdcX);
+                    mVertices[v++] = clamp(sy / p.screenHeight * 2 - 1, -1f, 1f);
+                    mVertices[v++] = clamp(edge / VIGNETTE_SIZE, 0f, 1f);
+                    mVertices[v++] = rect[0] + fx * rect[2];
+                    mVertices[v++] = rect[1] + fy * rect[3];
+                }
+            }
+        }
+
+        int i = 0;
+        for (int eye = 0; eye < 2; eye++) {
+            int base = eye * VERTICES_PER_EYE;
+            for (int row = 0; row < GRID; row++) {
+                for (int col = 0; col < GRID; col++) {
+                    int a = base + row * (GRID + 1) + col;
+                    int b = a + 1;
+                    int c = a + GRID + 1;
+                    int d = c + 1;
+                    mIndices[i++] = (short) a;
+                    mIndices[i++] = (short) b;
+                    mIndices[i++] = (short) c;
+                    mIndices[i++] = (short) b;
+                    mIndices[i++] = (short) d;
+                    mIndices[i++] = (short) c;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cached mesh, or null if the file was written for other parameters.
+     */
+    private static DistortionMesh read(File file, Params params) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+                return null;
+            }
+            float[] stored = new float[params.toArray().length];
+            for (int i = 0; i < stored.length; i++) {
+                stored[i] = in.readFloat();
+            }
+            if (!Params.fromArray(stored).equals(params)) {
+                return null;
+            }
+            float[] vertices = new float[in.readInt()];
+            for (int i = 0; i < vertices.length; i++) {
+                vertices[i] = in.readFloat();
+            }
+            short[] indices = new short[in.readInt()];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = in.readShort();
+            }
+            return new DistortionMesh(params, vertices, indices);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the mesh next to its final name and renames it into place, so a crash midway never
+     * leaves a truncated cache behind.
+     */
+    private void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(CACHE_MAGIC);
+            out.writeInt(CACHE_VERSION);
+            for (float value : mParams.toArray()) {
+                out.writeFloat(value);
+            }
+            out.writeInt(mVertices.length);
+            for (float value : mVertices) {
+                out.writeFloat(value);
+            }
+            out.writeInt(mIndices.length);
+            for (short value : mIndices) {
+                out.writeShort(value);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp + " to " + file);
+        }
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
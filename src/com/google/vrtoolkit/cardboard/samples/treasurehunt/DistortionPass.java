@@ -0,0 +1,344 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import com.google.vrtoolkit.cardboard.CardboardDeviceParams;
+import com.google.vrtoolkit.cardboard.EyeParams;
+import com.google.vrtoolkit.cardboard.HeadMountedDisplay;
+import com.google.vrtoolkit.cardboard.ScreenParams;
+import com.google.vrtoolkit.cardboard.Viewport;
+
+/**
+ * Our own lens correction, in place of the SDK's: both eyes are rendered into one offscreen
+ * target, which {@link #draw} warps onto the screen with a {@link DistortionMesh}.
+ *
+ * Owning the pass lets other full-screen effects share it, and lets the eyes be rendered at a
+ * lower resolution than the target was made for: {@link #setResolutionScale} only changes the
+ * part of the target that is used, so it costs nothing to change from frame to frame.
+ */
+public class DistortionPass {
+
+    private static final String TAG = "DistortionPass";
+
+    private static final int STRIDE = DistortionMesh.FLOATS_PER_VERTEX * 4;
+    private static final float MIN_RESOLUTION_SCALE = 0.5f;
+    // Every GLES 2.0 device we run on supports at least this, and the target is rarely larger.
+    private static final int MAX_TEXTURE_SIZE = 4096;
+
+    private final Gl mGl;
+    private final File mCacheDir;
+
+    // The viewer the mesh was built for.
+    private HeadMountedDisplay mHmd;
+    private DistortionMesh mMesh;
+    private float mResolutionScale = 1f;
+
+    private int mProgram;
+    private int mPositionParam;
+    private int mVignetteParam;
+    private int mTexCoordParam;
+    private int mTextureParam;
+    private int mTextureCoordScaleParam;
+
+    private final int[] mFramebuffer = new int[1];
+    private final int[] mColorTexture = new int[1];
+    private final int[] mDepthRenderbuffer = new int[1];
+    private final int[] mMeshBuffers = new int[2]; // Vertices, indices.
+    private int mIndexCount;
+    private long mVertexBytes;
+    private long mIndexBytes;
+    private int mTextureWidth;
+    private int mTextureHeight;
+
+    // Indexed by EyeParams.Eye; the monocular entry is unused.
+    private final Viewport[] mEyeViewports = {new Viewport(), new Viewport(), new Viewport()};
+    private float mUsedWidth;
+    private float mUsedHeight;
+
+    /**
+     * @param cacheDir Where distortion meshes are cached between runs.
+     */
+    public DistortionPass(Gl gl, File cacheDir) {
+        mGl = gl;
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Looks up the program's variables. Must be called on the GL thread for each new context; the
+     * target and mesh buffers follow on the next {@link #update}.
+     * @param program A program linked from the distortion shaders.
+     */
+    public void onSurfaceCreated(int program) {
+        mProgram = program;
+        mPositionParam = mGl.glGetAttribLocation(program, "a_Position");
+        mVignetteParam = mGl.glGetAttribLocation(program, "a_Vignette");
+        mTexCoordParam = mGl.glGetAttribLocation(program, "a_TexCoordinate");
+        mTextureParam = mGl.glGetUniformLocation(program, "u_Texture");
+        mTextureCoordScaleParam = mGl.glGetUniformLocation(program, "u_TextureCoordScale");
+    }
+
+    /**
+     * Forgets the GL objects of a lost context. The mesh is kept.
+     */
+    public void onContextLost() {
+        mProgram = 0;
+        mFramebuffer[0] = 0;
+        mColorTexture[0] = 0;
+        mDepthRenderbuffer[0] = 0;
+        mMeshBuffers[0] = 0;
+        mMeshBuffers[1] = 0;
+    }
+
+    /**
+     * Returns whether the pass can take the eyes this frame.
+     */
+    public boolean isReady() {
+        return mProgram != 0 && mFramebuffer[0] != 0;
+    }
+
+    /**
+     * Renders the eyes with a fraction of the target's resolution in each direction, from 0.5 to
+     * 1. Takes effect with the next {@link #update}.
+     */
+    public void setResolutionScale(float scale) {
+        mResolutionScale = Math.max(MIN_RESOLUTION_SCALE, Math.min(1f, scale));
+    }
+
+    public float getResolutionScale() {
+        return mResolutionScale;
+    }
+
+    /**
+     * Catches up with the viewer and the resolution scale, creating the GL objects if needed. Call
+     * once per frame on the GL thread, before the eyes are drawn. The mesh is only rebuilt when
+     * the viewer changes, and usually comes from the disk cache.
+     */
+    public void update(HeadMountedDisplay hmd) {
+        if (mProgram == 0) {
+            return;
+        }
+        if (mHmd == null || !mHmd.equals(hmd)) {
+            mHmd = new HeadMountedDisplay(hmd);
+            long start = System.nanoTime();
+            mMesh = DistortionMesh.load(createParams(mHmd), mCacheDir);
+            Log.i(TAG, String.format("Distortion mesh %s in %.1f ms",
+                    mMesh.isFromCache() ? "read" : "built", (System.nanoTime() - start) / 1e6));
+            deleteObjects();
+        }
+        if (mFramebuffer[0] == 0) {
+            createObjects();
+        }
+        layOutEyes();
+    }
+
+    /**
+     * Directs drawing into this eye's part of the target.
+     * @param eye One of EyeParams.Eye.LEFT or RIGHT.
+     */
+    public void beginEye(int eye) {
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        Viewport viewport = mEyeViewports[eye];
+        mGl.glViewport(viewport.x, viewport.y, viewport.width, viewport.height);
+        mGl.glScissor(viewport.x, viewport.y, viewport.width, viewport.height);
+    }
+
+    /**
+     * Computes the projection for an eye that matches the mesh's field of view.
+     * @param eye One of EyeParams.Eye.LEFT or RIGHT.
+     */
+    public void getPerspective(int eye, float zNear, float zFar, float[] perspective) {
+        float[] fov = mMesh.getFov(eye == EyeParams.Eye.RIGHT ? 1 : 0);
+        Matrix.frustumM(perspective, 0, -fov[0] * zNear, fov[1] * zNear, -fov[2] * zNear,
+                fov[3] * zNear, zNear, zFar);
+    }
+
+    /**
+     * Warps the eyes onto the screen in one draw. Leaves the default framebuffer bound, the
+     * depth and scissor tests enabled, and the clear color black.
+     * @param screen The whole screen.
+     */
+    public void draw(Viewport screen) {
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        mGl.glViewport(screen.x, screen.y, screen.width, screen.height);
+        mGl.glDisable(GLES20.GL_SCISSOR_TEST);
+        mGl.glDisable(GLES20.GL_DEPTH_TEST);
+        // The mesh leaves the corners of each eye uncovered.
+        mGl.glClearColor(0f, 0f, 0f, 1f);
+        mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        mGl.glUseProgram(mProgram);
+        mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mColorTexture[0]);
+        mGl.glUniform1i(mTextureParam, 0);
+        mGl.glUniform2f(mTextureCoordScaleParam, mUsedWidth / mTextureWidth,
+                mUsedHeight / mTextureHeight);
+
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mMeshBuffers[0]);
+        mGl.glEnableVertexAttribArray(mPositionParam);
+        mGl.glVertexAttribPointer(mPositionParam, 2, GLES20.GL_FLOAT, false, STRIDE, 0);
+        mGl.glEnableVertexAttribArray(mVignetteParam);
+        mGl.glVertexAttribPointer(mVignetteParam, 1, GLES20.GL_FLOAT, false, STRIDE, 8);
+        mGl.glEnableVertexAttribArray(mTexCoordParam);
+        mGl.glVertexAttribPointer(mTexCoordParam, 2, GLES20.GL_FLOAT, false, STRIDE, 12);
+        mGl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mMeshBuffers[1]);
+        mGl.glDrawElements(GLES20.GL_TRIANGLES, mIndexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+
+        // The other draws use fewer attributes, and must not sample the target while it is drawn
+        // into next frame.
+        mGl.glDisableVertexAttribArray(mVignetteParam);
+        mGl.glDisableVertexAttribArray(mTexCoordParam);
+        mGl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mGl.glEnable(GLES20.GL_DEPTH_TEST);
+        mGl.glEnable(GLES20.GL_SCISSOR_TEST);
+    }
+
+    /**
+     * Returns the GPU memory held by the target, in bytes.
+     */
+    public int getTargetBytes() {
+        return mTextureWidth * mTextureHeight * (4 + 2);
+    }
+
+    private void createObjects() {
+        ScreenParams screen = mHmd.getScreen();
+        // As many texels per meter as the screen has pixels, so the lens center stays sharp.
+        float pixelsPerMeter = screen.getWidth() / screen.getWidthMeters();
+        mTextureWidth = Math.min(MAX_TEXTURE_SIZE,
+                (int) Math.ceil(mMesh.getTextureWidthMeters() * pixelsPerMeter));
+        mTextureHeight = Math.min(MAX_TEXTURE_SIZE,
+                (int) Math.ceil(mMesh.getTextureHeightMeters() * pixelsPerMeter));
+
+        mGl.glGenTextures(1, mColorTexture, 0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mColorTexture[0]);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        mGl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mTextureWidth, mTextureHeight,
+                0, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GpuMemory.getShared().allocate(GpuMemory.TEXTURES, GpuMemory.textureBytes(mTextureWidth,
+                mTextureHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, false));
+
+        mGl.glGenRenderbuffers(1, mDepthRenderbuffer, 0);
+        mGl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, mDepthRenderbuffer[0]);
+        mGl.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16,
+                mTextureWidth, mTextureHeight);
+        mGl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, 0);
+        GpuMemory.getShared().allocate(GpuMemory.RENDERBUFFERS, GpuMemory.renderbufferBytes(
+                mTextureWidth, mTextureHeight, GLES20.GL_DEPTH_COMPONENT16));
+
+        mGl.glGenFramebuffers(1, mFramebuffer, 0);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        mGl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mColorTexture[0], 0);
+        mGl.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+                GLES20.GL_RENDERBUFFER, mDepthRenderbuffer[0]);
+        int status = mGl.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            Log.e(TAG, "Eye target " + mTextureWidth + "x" + mTextureHeight + " incomplete: "
+                    + status);
+            deleteObjects();
+            return;
+        }
+
+        float[] vertices = mMesh.getVertices();
+        short[] indices = mMesh.getIndices();
+        FloatBuffer vertexData = DirectBufferPool.getShared().allocate(vertices.length * 4)
+                .asFloatBuffer();
+        vertexData.put(vertices).position(0);
+        ShortBuffer indexData = DirectBufferPool.getShared().allocate(indices.length * 2)
+                .asShortBuffer();
+        indexData.put(indices).position(0);
+        mGl.glGenBuffers(2, mMeshBuffers, 0);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mMeshBuffers[0]);
+        mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.length * 4, vertexData,
+                GLES20.GL_STATIC_DRAW);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mMeshBuffers[1]);
+        mGl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indices.length * 2, indexData,
+                GLES20.GL_STATIC_DRAW);
+        mGl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        mIndexCount = indices.length;
+        mVertexBytes = vertices.length * 4;
+        mIndexBytes = indices.length * 2;
+        GpuMemory.getShared().allocate(GpuMemory.BUFFERS, mVertexBytes);
+        GpuMemory.getShared().allocate(GpuMemory.BUFFERS, mIndexBytes);
+
+        Log.i(TAG, "Eye target " + mTextureWidth + "x" + mTextureHeight + ", "
+                + getTargetBytes() / 1024 + " KB");
+    }
+
+    private void deleteObjects() {
+        GpuMemory memory = GpuMemory.getShared();
+        if (mFramebuffer[0] != 0) {
+            mGl.glDeleteFramebuffers(1, mFramebuffer, 0);
+            mGl.glDeleteRenderbuffers(1, mDepthRenderbuffer, 0);
+            mGl.glDeleteTextures(1, mColorTexture, 0);
+            memory.free(GpuMemory.RENDERBUFFERS, GpuMemory.renderbufferBytes(mTextureWidth,
+                    mTextureHeight, GLES20.GL_DEPTH_COMPONENT16));
+            memory.free(GpuMemory.TEXTURES, GpuMemory.textureBytes(mTextureWidth,
+                    mTextureHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, false));
+            mFramebuffer[0] = 0;
+            mDepthRenderbuffer[0] = 0;
+            mColorTexture[0] = 0;
+        }
+        if (mMeshBuffers[0] != 0) {
+            mGl.glDeleteBuffers(2, mMeshBuffers, 0);
+            memory.free(GpuMemory.BUFFERS, mVertexBytes);
+            memory.free(GpuMemory.BUFFERS, mIndexBytes);
+            mMeshBuffers[0] = 0;
+            mMeshBuffers[1] = 0;
+        }
+    }
+
+    /**
+     * Places the eyes in the used part of the target.
+     */
+    private void layOutEyes() {
+        mUsedWidth = Math.round(mTextureWidth * mResolutionScale);
+        mUsedHeight = Math.round(mTextureHeight * mResolutionScale);
+        for (int i = 0; i < 2; i++) {
+            float[] rect = mMesh.getEyeRect(i);
+            int x = Math.round(rect[0] * mUsedWidth);
+            int y = Math.round(rect[1] * mUsedHeight);
+            mEyeViewports[i == 0 ? EyeParams.Eye.LEFT : EyeParams.Eye.RIGHT].setViewport(x, y,
+                    Math.round((rect[0] + rect[2]) * mUsedWidth) - x,
+                    Math.round((rect[1] + rect[3]) * mUsedHeight) - y);
+        }
+    }
+
+    private static DistortionMesh.Params createParams(HeadMountedDisplay hmd) {
+        ScreenParams screen = hmd.getScreen();
+        CardboardDeviceParams cardboard = hmd.getCardboard();
+        float[] k = cardboard.getDistortion().getCoefficients();
+        return new DistortionMesh.Params(screen.getWidthMeters(), screen.getHeightMeters(),
+                screen.getBorderSizeMeters(), cardboard.getInterpupillaryDistance(),
+                cardboard.getVerticalDistanceToLensCenter(), cardboard.getLensDiameter(),
+                cardboard.getScreenToLensDistance(), cardboard.getEyeToLensDistance(), k[0], k[1]);
+    }
+}
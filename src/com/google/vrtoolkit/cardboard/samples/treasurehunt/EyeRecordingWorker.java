@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread that records one eye's commands while the GL thread does something else.
+ *
+ * The GL thread calls {@link #submit} early in the frame and {@link #await} just before it needs
+ * the commands. Both eyes have their own worker, so they record in parallel. Inputs are copied on
+ * submit and the command buffer is reused, so steady state allocates nothing.
+ */
+public class EyeRecordingWorker implements Runnable {
+
+    private static final int TRACE_RECORD = Trace.name("recordEye");
+    private static final int TRACE_AWAIT = Trace.name("awaitEye");
+
+    private final SceneRecorder mRecorder;
+    private final CommandBuffer mCommands;
+
+    private final float[] mEyeView = new float[16];
+    private float mNearDepth;
+    private float mFarDepth;
+    private FrameState mState;
+
+    private volatile int mSubmitted;
+    private volatile int mCompleted;
+    private volatile boolean mRunning;
+    private volatile Thread mWaiter;
+    private Thread mThread;
+
+    public EyeRecordingWorker(SceneHandles handles, CommandBuffer commands) {
+        mRecorder = new SceneRecorder(handles);
+        mCommands = commands;
+    }
+
+    public synchronized void start(String name) {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, name);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    /**
+     * Starts recording. The state must not change until {@link #await} returns. If the previous
+     * recording was never collected, waits for it first so its inputs are not overwritten.
+     */
+    public void submit(FrameState state, float[] eyeView) {
+        submit(state, eyeView, 0f, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Starts recording the part of the scene between two depths in front of the eye.
+     * @see SceneRecorder#record(CommandBuffer, FrameState, float[], float, float)
+     */
+    public void submit(FrameState state, float[] eyeView, float nearDepth, float farDepth) {
+        await();
+        System.arraycopy(eyeView, 0, mEyeView, 0, 16);
+        mNearDepth = nearDepth;
+        mFarDepth = farDepth;
+        mState = state;
+        mWaiter = Thread.currentThread();
+        mSubmitted = mSubmitted + 1;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * Blocks until the last submitted recording is done and returns its commands.
+     */
+    public CommandBuffer await() {
+        Trace.begin(TRACE_AWAIT);
+        while (mCompleted != mSubmitted) {
+            LockSupport.park(this);
+        }
+        Trace.end(TRACE_AWAIT);
+        return mCommands;
+    }
+
+    @Override
+    public void run() {
+        Trace.nameCurrentThread(Thread.currentThread().getName());
+        while (mRunning) {
+            int submitted = mSubmitted;
+            if (mCompleted != submitted) {
+                Trace.begin(TRACE_RECORD);
+                mRecorder.record(mCommands, mState, mEyeView, mNearDepth, mFarDepth);
+                Trace.end(TRACE_RECORD);
+                mCompleted = submitted;
+                LockSupport.unpark(mWaiter);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+import android.util.Log;
+
+import com.google.vrtoolkit.cardboard.EyeParams;
+
+/**
+ * Renders the distant part of the scene once per frame, for both eyes to share.
+ *
+ * Beyond some depth the two eyes see the world less than a pixel apart, so drawing it for each
+ * eye is wasted work. That far field is drawn from the middle of the head into an offscreen
+ * target, with the near plane at the split depth and a field of view that covers both eyes plus a
+ * margin for late pose correction. Each eye then draws its near field with the far plane pulled
+ * in, and {@link #draw} puts the target on a quad at the split depth behind it. The quad goes
+ * after the near field with the depth test on, so it is only shaded where nothing is in front.
+ */
+public class FarField {
+
+    private static final String TAG = "FarField";
+
+    private static final int FLOATS_PER_VERTEX = 4; // x, y, u, v
+    private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+    // A unit square as a triangle strip; draw() stretches it over the shared view's frustum.
+    private static final float[] QUAD = {
+        -1f, -1f, 0f, 0f,
+        1f, -1f, 1f, 0f,
+        -1f, 1f, 0f, 1f,
+        1f, 1f, 1f, 1f,
+    };
+    // How far beyond the split depth each eye's near field reaches, as a fraction of it. The quad
+    // faces the middle of the head, so towards the edges of an eye, and more so once its pose has
+    // been corrected, the quad is further away than the split depth.
+    private static final float NEAR_FIELD_OVERLAP = 0.25f;
+    // Added to every side of the shared view, as a tangent, to cover late pose corrections.
+    private static final float FOV_MARGIN = 0.1f;
+    private static final int MAX_TEXTURE_SIZE = 4096;
+    private static final float[] WHITE = {1f, 1f, 1f, 1f};
+
+    private final Gl mGl;
+
+    private int mProgram;
+    private int mMvpParam;
+    private int mColorParam;
+    private int mTextureParam;
+    private int mPositionParam;
+    private int mTexCoordParam;
+
+    private final int[] mFramebuffer = new int[1];
+    private final int[] mColorTexture = new int[1];
+    private final int[] mDepthRenderbuffer = new int[1];
+    private final int[] mQuadBuffer = new int[1];
+    private int mTextureWidth;
+    private int mTextureHeight;
+    private int mMaxTextureSize = MAX_TEXTURE_SIZE;
+    // Set when the device cannot render to the target, until the next context.
+    private boolean mFailed;
+
+    private float mInterpupillaryDistance;
+    private float mMaxDisparityPixels;
+    // Indexed by EyeParams.Eye: the tangents of each eye's frustum (left, right, bottom, top),
+    // and how many pixels it has per unit of tangent.
+    private final float[][] mEyeTangents = new float[3][4];
+    private final float[] mEyePixelsPerTangent = new float[3];
+    private final boolean[] mEyeKnown = new boolean[3];
+    // The shared view's frustum, covering both eyes.
+    private final float[] mTangents = new float[4];
+    private float mPixelsPerTangent;
+    private float mSplitDepth;
+
+    private final float[] mModel = new float[16];
+    private final float[] mModelView = new float[16];
+    private final float[] mMvp = new float[16];
+
+    public FarField(Gl gl) {
+        mGl = gl;
+    }
+
+    /**
+     * Looks up the program's variables. Must be called on the GL thread for each new context; the
+     * target and quad follow on the next {@link #begin}.
+     * @param program A program linked from the simple image shaders.
+     */
+    public void onSurfaceCreated(int program) {
+        mProgram = program;
+        mMvpParam = mGl.glGetUniformLocation(program, "u_MVP");
+        mColorParam = mGl.glGetUniformLocation(program, "u_Color");
+        mTextureParam = mGl.glGetUniformLocation(program, "u_Texture");
+        mPositionParam = mGl.glGetAttribLocation(program, "a_Position");
+        mTexCoordParam = mGl.glGetAttribLocation(program, "a_TexCoordinate");
+    }
+
+    /**
+     * Forgets the GL objects of a lost context. The eyes' frusta are kept.
+     */
+    public void onContextLost() {
+        mProgram = 0;
+        mFramebuffer[0] = 0;
+        mColorTexture[0] = 0;
+        mDepthRenderbuffer[0] = 0;
+        mQuadBuffer[0] = 0;
+        mFailed = false;
+    }
+
+    /**
+     * Limits the target to what the device supports, if that is less than the default cap.
+     */
+    public void setMaxTargetSize(GpuCapabilities capabilities) {
+        mMaxTextureSize = Math.min(MAX_TEXTURE_SIZE,
+                Math.min(capabilities.maxTextureSize, capabilities.maxRenderbufferSize));
+    }
+
+    /**
+     * Sets where the far field starts: at the depth where the eyes see things at most
+     * {@code pixels} apart.
+     * @param interpupillaryDistance The distance between the eyes, in world units.
+     */
+    public void setMaxDisparity(float interpupillaryDistance, float pixels) {
+        mInterpupillaryDistance = interpupillaryDistance;
+        mMaxDisparityPixels = pixels;
+        updateSharedView();
+    }
+
+    /**
+     * Tells the far field how an eye is drawn. The shared view covers every eye seen so far.
+     * @param eye One of EyeParams.Eye.LEFT or RIGHT.
+     * @param perspective The projection the eye is drawn with.
+     * @param width The width of the eye's viewport, in pixels.
+     * @param height The height of the eye's viewport, in pixels.
+     */
+    public void setEye(int eye, float[] perspective, int width, int height) {
+        float[] tangents = mEyeTangents[eye];
+        getFrustumTangents(perspective, tangents);
+        mEyePixelsPerTangent[eye] = Math.max(width / (tangents[1] - tangents[0]),
+                height / (tangents[3] - tangents[2]));
+        mEyeKnown[eye] = true;
+        updateSharedView();
+    }
+
+    /**
+     * Returns whether the far field can be drawn this frame: both eyes have been seen, the
+     * program is loaded and the target works.
+     */
+    public boolean isReady() {
+        return mProgram != 0 && mSplitDepth > 0f && !mFailed;
+    }
+
+    /**
+     * Returns the depth the far field starts at, in front of the middle of the head.
+     */
+    public float getSplitDepth() {
+        return mSplitDepth;
+    }
+
+    /**
+     * Returns the depth the eyes' near fields should reach to, a little beyond the split depth.
+     */
+    public float getNearFieldDepth() {
+        return mSplitDepth * (1f + NEAR_FIELD_OVERLAP);
+    }
+
+    /**
+     * Computes the projection of the shared view, from the split depth to {@code zFar}.
+     */
+    public void getPerspective(float zFar, float[] perspective) {
+        float d = mSplitDepth;
+        Matrix.frustumM(perspective, 0, mTangents[0] * d, mTangents[1] * d, mTangents[2] * d,
+                mTangents[3] * d, d, zFar);
+    }
+
+    /**
+     * Moves the far plane of an eye's projection in to {@link #getNearFieldDepth()}, keeping the
+     * rest of it.
+     */
+    public void getNearPerspective(float[] perspective, float[] nearPerspective) {
+        System.arraycopy(perspective, 0, nearPerspective, 0, 16);
+        float zNear = perspective[14] / (perspective[10] - 1f);
+        float zFar = getNearFieldDepth();
+        nearPerspective[10] = -(zFar + zNear) / (zFar - zNear);
+        nearPerspective[14] = -2f * zFar * zNear / (zFar - zNear);
+    }
+
+    /**
+     * Directs drawing into the shared target, creating or resizing it to match the eyes if
+     * needed. The caller restores its own framebuffer, viewport and scissor afterwards.
+     * @return false if there is no usable target.
+     */
+    public boolean begin() {
+        int width = Math.min(mMaxTextureSize,
+                (int) Math.ceil(mPixelsPerTangent * (mTangents[1] - mTangents[0])));
+        int height = Math.min(mMaxTextureSize,
+                (int) Math.ceil(mPixelsPerTangent * (mTangents[3] - mTangents[2])));
+        if (mFramebuffer[0] != 0 && (width != mTextureWidth || height != mTextureHeight)) {
+            deleteObjects();
+        }
+        if (mFramebuffer[0] == 0 && !createObjects(width, height)) {
+            return false;
+        }
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        mGl.glViewport(0, 0, mTextureWidth, mTextureHeight);
+        mGl.glScissor(0, 0, mTextureWidth, mTextureHeight);
+        return true;
+    }
+
+    /**
+     * Draws the far field on a quad at the split depth, behind what the eye has drawn so far.
+     * @param eyeFromShared Transforms the shared view's eye space to this eye's.
+     * @param perspective The eye's near field projection.
+     */
+    public void draw(float[] eyeFromShared, float[] perspective) {
+        float d = mSplitDepth;
+        Matrix.setIdentityM(mModel, 0);
+        mModel[0] = d * (mTangents[1] - mTangents[0]) / 2f;
+        mModel[5] = d * (mTangents[3] - mTangents[2]) / 2f;
+        mModel[12] = d * (mTangents[1] + mTangents[0]) / 2f;
+        mModel[13] = d * (mTangents[3] + mTangents[2]) / 2f;
+        mModel[14] = -d;
+        Matrix.multiplyMM(mModelView, 0, eyeFromShared, 0, mModel, 0);
+        Matrix.multiplyMM(mMvp, 0, perspective, 0, mModelView, 0);
+
+        mGl.glUseProgram(mProgram);
+        mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mColorTexture[0]);
+        mGl.glUniform1i(mTextureParam, 0);
+        mGl.glUniform4fv(mColorParam, 1, WHITE, 0);
+        mGl.glUniformMatrix4fv(mMvpParam, 1, false, mMvp, 0);
+
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mQuadBuffer[0]);
+        mGl.glEnableVertexAttribArray(mPositionParam);
+        mGl.glVertexAttribPointer(mPositionParam, 2, GLES20.GL_FLOAT, false, STRIDE, 0);
+        mGl.glEnableVertexAttribArray(mTexCoordParam);
+        mGl.glVertexAttribPointer(mTexCoordParam, 2, GLES20.GL_FLOAT, false, STRIDE, 8);
+        mGl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        // The draws that follow use fewer attributes, and the target is drawn into next frame.
+        mGl.glDisableVertexAttribArray(mTexCoordParam);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * Returns the GPU memory held by the target, in bytes.
+     */
+    public int getTargetBytes() {
+        return mTextureWidth * mTextureHeight * (4 + 2);
+    }
+
+    /**
+     * Reads the sides of a projection's frustum, as the tangents of their angles from the view
+     * direction: left, right, bottom and top, with left and bottom usually negative.
+     */
+    public static void getFrustumTangents(float[] perspective, float[] tangents) {
+        tangents[0] = (perspective[8] - 1f) / perspective[0];
+        tangents[1] = (perspective[8] + 1f) / perspective[0];
+        tangents[2] = (perspective[9] - 1f) / perspective[5];
+        tangents[3] = (perspective[9] + 1f) / perspective[5];
+    }
+
+    /**
+     * Combines the eyes into the shared view, and places the split where their disparity falls
+     * to the limit. Until both eyes have been seen the split stays at zero, so nothing is shared.
+     */
+    private void updateSharedView() {
+        int left = EyeParams.Eye.LEFT;
+        int right = EyeParams.Eye.RIGHT;
+        if (!mEyeKnown[left] || !mEyeKnown[right] || mMaxDisparityPixels <= 0f) {
+            mSplitDepth = 0f;
+            return;
+        }
+        float[] l = mEyeTangents[left];
+        float[] r = mEyeTangents[right];
+        mTangents[0] = Math.min(l[0], r[0]) - FOV_MARGIN;
+        mTangents[1] = Math.max(l[1], r[1]) + FOV_MARGIN;
+        mTangents[2] = Math.min(l[2], r[2]) - FOV_MARGIN;
+        mTangents[3] = Math.max(l[3], r[3]) + FOV_MARGIN;
+        mPixelsPerTangent = Math.max(mEyePixelsPerTangent[left], mEyePixelsPerTangent[right]);
+        // The eyes see a point at depth d about ipd / d apart, in units of tangent.
+        mSplitDepth = mInterpupillaryDistance * mPixelsPerTangent / mMaxDisparityPixels;
+    }
+
+    private boolean createObjects(int width, int height) {
+        mTextureWidth = width;
+        mTextureHeight = height;
+
+        mGl.glGenTextures(1, mColorTexture, 0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mColorTexture[0]);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        // Required for a texture whose size is not a power of two.
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        mGl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GpuMemory.getShared().allocate(GpuMemory.TEXTURES, GpuMemory.textureBytes(width, height,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, false));
+
+        mGl.glGenRenderbuffers(1, mDepthRenderbuffer, 0);
+        mGl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, mDepthRenderbuffer[0]);
+        mGl.glRenderbufferStorage(GLES20.GL_RENDERBUFFER, GLES20.GL_DEPTH_COMPONENT16, width,
+                height);
+        mGl.glBindRenderbuffer(GLES20.GL_RENDERBUFFER, 0);
+        GpuMemory.getShared().allocate(GpuMemory.RENDERBUFFERS,
+                GpuMemory.renderbufferBytes(width, height, GLES20.GL_DEPTH_COMPONENT16));
+
+        mGl.glGenFramebuffers(1, mFramebuffer, 0);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        mGl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mColorTexture[0], 0);
+        mGl.glFramebufferRenderbuffer(GLES20.GL_FRAMEBUFFER, GLES20.GL_DEPTH_ATTACHMENT,
+                GLES20.GL_RENDERBUFFER, mDepthRenderbuffer[0]);
+        int status = mGl.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            Log.e(TAG, "Far field target " + width + "x" + height + " incomplete: " + status);
+            deleteObjects();
+            mFailed = true;
+            return false;
+        }
+
+        if (mQuadBuffer[0] == 0) {
+            FloatBuffer vertices = DirectBufferPool.getShared().allocate(QUAD.length * 4)
+                    .asFloatBuffer();
+            vertices.put(QUAD).position(0);
+            mGl.glGenBuffers(1, mQuadBuffer, 0);
+            mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mQuadBuffer[0]);
+            mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, QUAD.length * 4, vertices,
+                    GLES20.GL_STATIC_DRAW);
+            mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            GpuMemory.getShared().allocate(GpuMemory.BUFFERS, QUAD.length * 4);
+        }
+
+        Log.i(TAG, String.format("Far field from %.1f m, target %dx%d, %d KB", mSplitDepth,
+                width, height, getTargetBytes() / 1024));
+        return true;
+    }
+
+    /**
+     * Deletes the target. The quad is kept, as it never changes.
+     */
+    private void deleteObjects() {
+        if (mFramebuffer[0] == 0) {
+            return;
+        }
+        GpuMemory memory = GpuMemory.getShared();
+        mGl.glDeleteFramebuffers(1, mFramebuffer, 0);
+        mGl.glDeleteRenderbuffers(1, mDepthRenderbuffer, 0);
+        mGl.glDeleteTextures(1, mColorTexture, 0);
+        memory.free(GpuMemory.RENDERBUFFERS, GpuMemory.renderbufferBytes(mTextureWidth,
+                mTextureHeight, GLES20.GL_DEPTH_COMPONENT16));
+        memory.free(GpuMemory.TEXTURES, GpuMemory.textureBytes(mTextureWidth, mTextureHeight,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, false));
+        mFramebuffer[0] = 0;
+        mDepthRenderbuffer[0] = 0;
+        mColorTexture[0] = 0;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * Which of the optional GL fast paths the renderer takes on the current context, and what the
+ * work they replace costs the CPU per frame. Together they make up the GLES 3 backend.
+ *
+ * A path is taken when the GPU offers it and Java can reach it. GLES 2.0 drivers offer these
+ * through extensions, but Android binds no extension entry points, only their GLES 3.0 core
+ * versions; so in practice the paths are taken on 3.0 contexts, which most drivers hand out
+ * even when 2.0 is asked for. Everywhere else the renderer keeps its GLES 2.0 path.
+ *
+ * Decided once per context on the GL thread. The cost counters are GL thread only.
+ */
+public final class FastPaths {
+
+    private static final String VERTEX_ARRAY_OBJECT = "GL_OES_vertex_array_object";
+    private static final String MAP_BUFFER_RANGE = "GL_EXT_map_buffer_range";
+    private static final String MAP_BUFFER = "GL_OES_mapbuffer";
+    private static final String EXT_INSTANCED_ARRAYS = "GL_EXT_instanced_arrays";
+    private static final String ANGLE_INSTANCED_ARRAYS = "GL_ANGLE_instanced_arrays";
+    private static final String OVR_MULTIVIEW = "GL_OVR_multiview";
+    /** Lets the stereo pass clip the eyes apart instead of discarding fragments. */
+    public static final String CLIP_CULL_DISTANCE = "GL_EXT_clip_cull_distance";
+
+    /**
+     * Whether the scene meshes are drawn from vertex array objects that hold their attribute
+     * setup, instead of pointing every attribute at its buffer again for each draw.
+     */
+    public final boolean vertexArrays;
+    /**
+     * Whether dynamic vertex data is written straight into mapped buffer storage, instead of
+     * being copied in by glBufferSubData.
+     */
+    public final boolean mappedBuffers;
+    /**
+     * Whether side-by-side eyes are drawn in one pass, with per-frame and per-eye uniform buffers
+     * and a two-instance draw per mesh. Needs the vertex arrays, and GLES 3.0 for the rest.
+     */
+    public final boolean instancedStereo;
+
+    private final GlExtensions mExtensions;
+    private final String mVertexArraysStatus;
+    private final String mMappedBuffersStatus;
+    private final String mInstancingStatus;
+    private final String mMultiviewStatus;
+
+    // CPU time of the work the paths replace: this frame's, and the sums over all frames.
+    private long mFrameReplayNanos;
+    private long mFrameUploadNanos;
+    private long mReplayNanos;
+    private long mUploadNanos;
+    private int mFrames;
+    private int mStereoFrames;
+
+    private FastPaths(GpuCapabilities capabilities, GlExtensions extensions, boolean enabled) {
+        boolean core = capabilities.isAtLeast(3, 0);
+        boolean bound = extensions != null;
+        mVertexArraysStatus = getStatus(enabled, core, bound,
+                capabilities.hasExtension(VERTEX_ARRAY_OBJECT));
+        mMappedBuffersStatus = getStatus(enabled, core, bound,
+                capabilities.hasExtension(MAP_BUFFER_RANGE)
+                        || capabilities.hasExtension(MAP_BUFFER));
+        // Instancing is used for the stereo pass, whose uniform buffers only GLES 3.0 has.
+        mInstancingStatus = getStatus(enabled, core, bound,
+                capabilities.hasExtension(EXT_INSTANCED_ARRAYS)
+                        || capabilities.hasExtension(ANGLE_INSTANCED_ARRAYS));
+        // Multiview would draw the eyes into the layers of an array target, but has no Java
+        // bindings at all; the instanced stereo pass takes its place.
+        mMultiviewStatus = capabilities.hasExtension(OVR_MULTIVIEW)
+                ? "offered, not bound" : "not offered";
+        vertexArrays = enabled && core && bound;
+        mappedBuffers = enabled && core && bound;
+        instancedStereo = vertexArrays;
+        mExtensions = vertexArrays || mappedBuffers ? extensions : null;
+    }
+
+    /**
+     * Picks the paths for the current context. Only call on the GL thread.
+     * @param extensions The bindings to use, or null if the platform has none.
+     * @param enabled False to keep to the GLES 2.0 path everywhere, e.g. to compare costs.
+     */
+    public static FastPaths choose(GpuCapabilities capabilities, GlExtensions extensions,
+            boolean enabled) {
+        return new FastPaths(capabilities, extensions, enabled);
+    }
+
+    /**
+     * Returns the bindings the chosen paths call, or null if no path was chosen.
+     */
+    public GlExtensions getExtensions() {
+        return mExtensions;
+    }
+
+    /**
+     * Adds CPU time spent replaying scene commands this frame.
+     */
+    public void addReplayNanos(long nanos) {
+        mFrameReplayNanos += nanos;
+    }
+
+    /**
+     * Adds CPU time spent uploading dynamic vertex data this frame.
+     */
+    public void addUploadNanos(long nanos) {
+        mFrameUploadNanos += nanos;
+    }
+
+    /**
+     * Closes the frame's cost counters. Call once per drawn frame.
+     * @param stereo Whether the frame's eyes were drawn in one pass.
+     */
+    public void endFrame(boolean stereo) {
+        mReplayNanos += mFrameReplayNanos;
+        mUploadNanos += mFrameUploadNanos;
+        mFrameReplayNanos = 0;
+        mFrameUploadNanos = 0;
+        mFrames++;
+        if (stereo) {
+            mStereoFrames++;
+        }
+    }
+
+    /**
+     * Returns a one-line summary of the paths taken and their mean cost per frame.
+     */
+    public String describe() {
+        int frames = Math.max(1, mFrames);
+        return String.format("Fast paths: vertex arrays %s, mapped buffers %s, instanced stereo "
+                + "%s, multiview %s; %.3f ms replay, %.3f ms upload CPU per frame over %d "
+                + "frames, %d of them in one stereo pass",
+                mVertexArraysStatus, mMappedBuffersStatus, mInstancingStatus, mMultiviewStatus,
+                mReplayNanos / 1e6 / frames, mUploadNanos / 1e6 / frames, mFrames,
+                mStereoFrames);
+    }
+
+    private static String getStatus(boolean enabled, boolean core, boolean bound,
+            boolean extension) {
+        if (!core && !extension) {
+            return "not offered";
+        }
+        if (!enabled) {
+            return "disabled";
+        }
+        if (!bound) {
+            return "off, no bindings";
+        }
+        return core ? "on" : "off, extension not bound";
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.ByteBuffer;
+
+import android.opengl.GLES20;
+
+/**
+ * The floor: a tessellated patch and the texture its grid lines are drawn from.
+ *
+ * The patch covers the same square as {@link WorldLayoutData#FLOOR_COORDS}, split into cells so
+ * the per-vertex lighting and distance fade have vertices near the user to work with. Each
+ * cell's grid coordinates start from zero, so they stay small enough for mediump at any
+ * distance. The user never leaves the origin in this sample, so the patch stays centred on them.
+ *
+ * The line texture holds one period of the grid, with each texel's exact line coverage. Every
+ * mip level is computed the same way rather than averaged from the one above, so distant lines
+ * fade into the floor instead of flickering.
+ */
+public final class FloorGrid {
+
+    /** Distance between grid lines, in world units. */
+    public static final float PERIOD = 10f;
+
+    /** Width of a grid line, in world units. */
+    public static final float LINE_WIDTH = 0.1f;
+
+    /** Side of a patch cell; a whole number of periods, so the texture repeats across cells. */
+    public static final float CELL_SIZE = 2f * PERIOD;
+
+    /** Side of the line texture's base level, in texels. */
+    public static final int TEXTURE_SIZE = 256;
+
+    private static final int VERTICES_PER_CELL = 6;
+
+    // Corners of a cell in the winding of FLOOR_COORDS, as 0 or 1 along x and z.
+    private static final int[] CORNER_X = {1, 0, 0, 1, 0, 1};
+    private static final int[] CORNER_Z = {0, 0, 1, 0, 1, 1};
+
+    private final float[] mCoords;
+    private final float[] mNormals;
+    private final float[] mColors;
+    private final float[] mGridCoords;
+
+    /**
+     * Tessellates a flat, axis-aligned floor. Safe to call on any thread.
+     * @param outline x, y, z per vertex of the floor's untessellated triangles; only its bounds
+     *     and height are used.
+     * @param normal The floor's normal, x, y, z.
+     * @param color The floor's color, r, g, b, a.
+     */
+    public FloorGrid(float[] outline, float[] normal, float[] color) {
+        float minX = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE;
+        float minZ = Float.MAX_VALUE;
+        float maxZ = -Float.MAX_VALUE;
+        for (int i = 0; i < outline.length; i += 3) {
+            minX = Math.min(minX, outline[i]);
+            maxX = Math.max(maxX, outline[i]);
+            minZ = Math.min(minZ, outline[i + 2]);
+            maxZ = Math.max(maxZ, outline[i + 2]);
+        }
+        float y = outline[1];
+        int cellsX = Math.max(1, Math.round((maxX - minX) / CELL_SIZE));
+        int cellsZ = Math.max(1, Math.round((maxZ - minZ) / CELL_SIZE));
+        float cellX = (maxX - minX) / cellsX;
+        float cellZ = (maxZ - minZ) / cellsZ;
+
+        int vertices = cellsX * cellsZ * VERTICES_PER_CELL;
+        mCoords = new float[vertices * 3];
+        mNormals = new float[vertices * 3];
+        mColors = new float[vertices * 4];
+        mGridCoords = new float[vertices * 2];
+        int v = 0;
+        for (int z = 0; z < cellsZ; z++) {
+            for (int x = 0; x < cellsX; x++) {
+                for (int corner = 0; corner < VERTICES_PER_CELL; corner++, v++) {
+                    mCoords[v * 3] = minX + (x + CORNER_X[corner]) * cellX;
+                    mCoords[v * 3 + 1] = y;
+                    mCoords[v * 3 + 2] = minZ + (z + CORNER_Z[corner]) * cellZ;
+                    System.arraycopy(normal, 0, mNormals, v * 3, 3);
+                    System.arraycopy(color, 0, mColors, v * 4, 4);
+                    mGridCoords[v * 2] = CORNER_X[corner] * cellX / PERIOD;
+                    mGridCoords[v * 2 + 1] = CORNER_Z[corner] * cellZ / PERIOD;
+                }
+            }
+        }
+    }
+
+    public int getVertexCount() {
+        return mCoords.length / 3;
+    }
+
+    /**
+     * Returns x, y, z per vertex, drawn as triangles.
+     */
+    public float[] getCoords() {
+        return mCoords;
+    }
+
+    public float[] getNormals() {
+        return mNormals;
+    }
+
+    public float[] getColors() {
+        return mColors;
+    }
+
+    /**
+     * Returns the line texture's u, v per vertex, one unit per {@link #PERIOD}.
+     */
+    public float[] getGridCoords() {
+        return mGridCoords;
+    }
+
+    /**
+     * Fills a square alpha texture with the coverage of one period of the grid: lines along both
+     * axes, centred on the texture's edges.
+     * @param size Side of the level, in texels.
+     * @param out Receives size * size bytes at its position.
+     */
+    public static void fillLevel(int size, ByteBuffer out) {
+        float halfWidth = LINE_WIDTH / PERIOD / 2f;
+        float[] coverage = new float[size];
+        for (int i = 0; i < size; i++) {
+            float start = i / (float) size;
+            float end = (i + 1) / (float) size;
+            // The line wraps around 0, so it shows up at both ends of the period.
+            float covered = overlap(start, end, -halfWidth, halfWidth)
+                    + overlap(start, end, 1f - halfWidth, 1f + halfWidth);
+            coverage[i] = covered * size;
+        }
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < size; column++) {
+                // Where the lines cross, count the overlap once.
+                float u = coverage[column];
+                float v = coverage[row];
+                float covered = u + v - u * v;
+                out.put((byte) Math.round(Math.min(1f, covered) * 255f));
+            }
+        }
+    }
+
+    private static float overlap(float start, float end, float lineStart, float lineEnd) {
+        return Math.max(0f, Math.min(end, lineEnd) - Math.max(start, lineStart));
+    }
+
+    /**
+     * The line texture with its full mip chain, repeating and trilinearly filtered.
+     */
+    public static class Texture extends GpuResources.EvictableResource {
+        private final ByteBuffer mPixels;
+
+        /**
+         * Computes every level. Safe to call on any thread.
+         */
+        public Texture(String label, int priority) {
+            super(label, priority);
+            mPixels = DirectBufferPool.getShared().allocate((int) getGpuBytes());
+            for (int size = TEXTURE_SIZE; size >= 1; size /= 2) {
+                fillLevel(size, mPixels);
+            }
+            mPixels.position(0);
+        }
+
+        @Override
+        protected int create(Gl gl) {
+            final int[] texture = new int[1];
+            gl.glGenTextures(1, texture, 0);
+            gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                    GLES20.GL_LINEAR_MIPMAP_LINEAR);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                    GLES20.GL_LINEAR);
+            gl.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+            int level = 0;
+            for (int size = TEXTURE_SIZE; size >= 1; size /= 2, level++) {
+                gl.glTexImage2D(GLES20.GL_TEXTURE_2D, level, GLES20.GL_ALPHA, size, size, 0,
+                        GLES20.GL_ALPHA, GLES20.GL_UNSIGNED_BYTE, mPixels);
+                mPixels.position(mPixels.position() + size * size);
+            }
+            mPixels.position(0);
+            gl.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+            GpuMemory.getShared().allocate(GpuMemory.TEXTURES, getGpuBytes());
+            return texture[0];
+        }
+
+        @Override
+        protected int getSizeBytes() {
+            return mPixels.capacity();
+        }
+
+        @Override
+        protected void destroy(Gl gl, int handle) {
+            gl.glDeleteTextures(1, new int[] {handle}, 0);
+            GpuMemory.getShared().free(GpuMemory.TEXTURES, getGpuBytes());
+        }
+
+        private static long getGpuBytes() {
+            return GpuMemory.textureBytes(TEXTURE_SIZE, TEXTURE_SIZE, GLES20.GL_ALPHA,
+                    GLES20.GL_UNSIGNED_BYTE, true);
+        }
+    }
+}
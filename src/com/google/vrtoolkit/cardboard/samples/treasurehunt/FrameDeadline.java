@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * Predicts whether a frame will miss the display, from how long it has taken so far and how long
+ * drawing the eyes has recently taken, and decides whether to reproject it instead.
+ *
+ * Reprojection is never chosen for more than a few frames in a row, so a scene that is simply
+ * too heavy still shows its new frames, late, rather than freezing on an old one.
+ *
+ * Pure Java, and every time is passed in, so its decisions can be replayed off the device.
+ */
+public class FrameDeadline {
+
+    // Weight of each drawn frame in the running average of the eyes' drawing time.
+    private static final float SMOOTHING = 1f / 16;
+
+    private final long mBudgetNanos;
+    private final int mMaxConsecutive;
+
+    private float mDrawNanos;
+    private int mConsecutive;
+
+    // Statistics for the session.
+    private int mFrames;
+    private int mPredictedLate;
+    private int mReprojected;
+
+    /**
+     * @param budgetNanos How long a frame may take, usually the display's refresh period.
+     * @param maxConsecutive The most frames in a row that may be reprojected.
+     */
+    public FrameDeadline(long budgetNanos, int maxConsecutive) {
+        mBudgetNanos = budgetNanos;
+        mMaxConsecutive = maxConsecutive;
+    }
+
+    /**
+     * Decides what to do with the rest of a frame, once it is ready to draw the eyes.
+     * @param elapsedNanos How long the frame has taken so far.
+     * @param canReproject Whether there are images to show instead.
+     * @return true to show the last images again, turned to the new pose; false to draw.
+     */
+    public boolean shouldReproject(long elapsedNanos, boolean canReproject) {
+        mFrames++;
+        boolean late = elapsedNanos + (long) mDrawNanos > mBudgetNanos;
+        if (late) {
+            mPredictedLate++;
+        }
+        if (late && canReproject && mConsecutive < mMaxConsecutive) {
+            mConsecutive++;
+            mReprojected++;
+            return true;
+        }
+        mConsecutive = 0;
+        return false;
+    }
+
+    /**
+     * Records how long drawing the eyes took, for a frame that was drawn.
+     */
+    public void onDrawn(long drawNanos) {
+        if (mDrawNanos == 0f) {
+            mDrawNanos = drawNanos;
+        } else {
+            mDrawNanos += (drawNanos - mDrawNanos) * SMOOTHING;
+        }
+    }
+
+    public int getReprojectedFrames() {
+        return mReprojected;
+    }
+
+    /**
+     * Returns a one-line summary of the session.
+     */
+    public String describe() {
+        return String.format("Frames: %d predicted late, %d of %d reprojected, eyes take %.1f ms",
+                mPredictedLate, mReprojected, mFrames, mDrawNanos / 1e6);
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * Everything the renderer needs to draw one frame of the world.
+ *
+ * Instances are owned by a {@link TripleBuffer}: the simulation thread fills one in and publishes
+ * it, after which it is treated as immutable until the renderer hands the slot back.
+ */
+public final class FrameState {
+
+    /** Monotonic number of the simulation step that produced this state. */
+    public long sequence;
+
+    /** {@link System#nanoTime()} when the state was published. */
+    public long publishTimeNanos;
+
+    /** Model matrix of the treasure cube. */
+    public final float[] cubeModel = new float[16];
+
+    /** Whether the cube should be drawn at all. */
+    public boolean cubeVisible;
+
+    /** Whether the user is looking at the cube, which selects the "found" material. */
+    public boolean cubeHighlighted;
+
+    /** Current score, so the renderer never has to read simulation-owned fields. */
+    public int score;
+
+    /** Number of finds so far; the renderer starts a burst effect whenever it goes up. */
+    public int bursts;
+
+    /** World position of the cube when it was last found. */
+    public final float[] burstPosition = new float[3];
+
+    /**
+     * Lights assigned to the cube: world-space position and range, and color, as vec4s.
+     * See {@link PointLights#assign}.
+     */
+    public int cubeLightCount;
+    public final float[] cubeLightPositions = new float[PointLights.MAX_PER_OBJECT * 4];
+    public final float[] cubeLightColors = new float[PointLights.MAX_PER_OBJECT * 4];
+
+    /** Lights assigned to the floor, laid out like the cube's. */
+    public int floorLightCount;
+    public final float[] floorLightPositions = new float[PointLights.MAX_PER_OBJECT * 4];
+    public final float[] floorLightColors = new float[PointLights.MAX_PER_OBJECT * 4];
+}
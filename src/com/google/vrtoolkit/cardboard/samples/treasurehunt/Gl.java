@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.Buffer;
+
+/**
+ * The OpenGL ES 2.0 entry points the renderer uses, with the names and arguments of
+ * {@link android.opengl.GLES20}. Enum values are still taken from GLES20; they are compile-time
+ * constants, so using them needs no Android classes at run time.
+ *
+ * {@link AndroidGl} draws for real; {@link RecordingGl} validates and counts calls on a plain JVM.
+ * Add methods here as the renderer needs them.
+ */
+public interface Gl {
+
+    void glActiveTexture(int texture);
+    void glAttachShader(int program, int shader);
+    void glBindAttribLocation(int program, int index, String name);
+    void glBindBuffer(int target, int buffer);
+    void glBindFramebuffer(int target, int framebuffer);
+    void glBindRenderbuffer(int target, int renderbuffer);
+    void glBindTexture(int target, int texture);
+    void glBlendFunc(int sfactor, int dfactor);
+    void glBufferData(int target, int size, Buffer data, int usage);
+    void glBufferSubData(int target, int offset, int size, Buffer data);
+    int glCheckFramebufferStatus(int target);
+    void glClear(int mask);
+    void glClearColor(float red, float green, float blue, float alpha);
+    void glCompileShader(int shader);
+    void glCopyTexSubImage2D(int target, int level, int xoffset, int yoffset, int x, int y,
+            int width, int height);
+    int glCreateProgram();
+    int glCreateShader(int type);
+    void glDeleteBuffers(int n, int[] buffers, int offset);
+    void glDeleteFramebuffers(int n, int[] framebuffers, int offset);
+    void glDeleteProgram(int program);
+    void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset);
+    void glDeleteShader(int shader);
+    void glDeleteTextures(int n, int[] textures, int offset);
+    void glDepthMask(boolean flag);
+    void glDisable(int cap);
+    void glDisableVertexAttribArray(int index);
+    void glDrawArrays(int mode, int first, int count);
+    void glDrawElements(int mode, int count, int type, int offset);
+    void glEnable(int cap);
+    void glEnableVertexAttribArray(int index);
+    void glFinish();
+    void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget,
+            int renderbuffer);
+    void glFramebufferTexture2D(int target, int attachment, int textarget, int texture, int level);
+    void glGenBuffers(int n, int[] buffers, int offset);
+    void glGenFramebuffers(int n, int[] framebuffers, int offset);
+    void glGenRenderbuffers(int n, int[] renderbuffers, int offset);
+    void glGenTextures(int n, int[] textures, int offset);
+    int glGetAttribLocation(int program, String name);
+    int glGetError();
+    void glGetIntegerv(int pname, int[] params, int offset);
+    String glGetProgramInfoLog(int program);
+    void glGetProgramiv(int program, int pname, int[] params, int offset);
+    String glGetShaderInfoLog(int shader);
+    void glGetShaderiv(int shader, int pname, int[] params, int offset);
+    String glGetString(int name);
+    int glGetUniformLocation(int program, String name);
+    void glLinkProgram(int program);
+    void glPixelStorei(int pname, int param);
+    void glRenderbufferStorage(int target, int internalformat, int width, int height);
+    void glScissor(int x, int y, int width, int height);
+    void glShaderSource(int shader, String string);
+    void glTexImage2D(int target, int level, int internalformat, int width, int height, int border,
+            int format, int type, Buffer pixels);
+    void glTexParameteri(int target, int pname, int param);
+    void glUniform1f(int location, float x);
+    void glUniform1i(int location, int x);
+    void glUniform2f(int location, float x, float y);
+    void glUniform3f(int location, float x, float y, float z);
+    void glUniform4fv(int location, int count, float[] v, int offset);
+    void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value, int offset);
+    void glUseProgram(int program);
+    void glVertexAttribPointer(int index, int size, int type, boolean normalized, int stride,
+            int offset);
+    void glViewport(int x, int y, int width, int height);
+}
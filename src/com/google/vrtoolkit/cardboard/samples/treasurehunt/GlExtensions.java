@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.Buffer;
+
+/**
+ * The entry points beyond OpenGL ES 2.0 that the renderer's fast paths use, with the names and
+ * arguments of {@link android.opengl.GLES30}.
+ *
+ * Each of them is core in GLES 3.0, and most are offered to GLES 2.0 contexts by an extension
+ * (OES_vertex_array_object, EXT_map_buffer_range, EXT_instanced_arrays). Android only binds the
+ * core versions, so {@link AndroidGlExtensions} can only be used on a 3.0 context;
+ * {@link FastPaths} decides.
+ */
+public interface GlExtensions {
+
+    void glBindBufferBase(int target, int index, int buffer);
+    void glBindVertexArray(int array);
+    void glDeleteVertexArrays(int n, int[] arrays, int offset);
+    void glDrawArraysInstanced(int mode, int first, int count, int instanceCount);
+    void glGenVertexArrays(int n, int[] arrays, int offset);
+    int glGetUniformBlockIndex(int program, String uniformBlockName);
+    Buffer glMapBufferRange(int target, int offset, int length, int access);
+    void glUniformBlockBinding(int program, int uniformBlockIndex, int uniformBlockBinding);
+    boolean glUnmapBuffer(int target);
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.ByteBuffer;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * A short micro-benchmark of the GPU, run on first launch so quality can start at a tier the
+ * device can hold rather than finding it by dropping frames.
+ *
+ * It measures the three costs the quality tiers trade against each other: filling a pixel,
+ * evaluating one light for a pixel with the scene's light loop, and transforming a vertex. Each
+ * is timed over enough work to dwarf the glFinish round trips around it, in an offscreen target
+ * of its own. The measurements are separate calls so a loader can spread them over frames.
+ * Only use on the GL thread.
+ */
+public class GpuCalibration {
+
+    private static final String TAG = "GpuCalibration";
+
+    /** Side of the offscreen target, in pixels. */
+    public static final int TARGET_SIZE = 512;
+
+    private static final int FILL_QUADS = 32;
+    private static final int LIGHT_QUADS = 8;
+    private static final int LIGHTS = 4;
+    // Zero-area triangles: every vertex is transformed, but nothing is rasterized.
+    private static final int VERTEX_COUNT = 30000;
+    private static final int VERTEX_DRAWS = 10;
+
+    private static final float[] QUAD = {
+        -1f, -1f,
+        1f, -1f,
+        -1f, 1f,
+        1f, 1f,
+    };
+    // Eye-space position and range, and color, of each light; all of them reach the quad.
+    private static final float[] LIGHT_POSITIONS = {
+        -2f, -2f, -1f, 20f,
+        2f, -2f, -1f, 20f,
+        -2f, 2f, -1f, 20f,
+        2f, 2f, -1f, 20f,
+    };
+    private static final float[] LIGHT_COLORS = {
+        0.2f, 0.1f, 0.1f, 1f,
+        0.1f, 0.2f, 0.1f, 1f,
+        0.1f, 0.1f, 0.2f, 1f,
+        0.1f, 0.1f, 0.1f, 1f,
+    };
+
+    /**
+     * The measured costs, and the quality tier they suggest.
+     */
+    public static final class Profile {
+        // Bump when the measurements change meaning, so stored profiles are measured again.
+        private static final int FORMAT = 1;
+        // Share of the frame budget the predicted GPU work may take, leaving the rest for the
+        // CPU side, overdraw and the lens correction the model leaves out.
+        private static final float START_LOAD = 0.5f;
+
+        public final float fillNanosPerPixel;
+        public final float lightNanosPerPixel;
+        public final float vertexNanos;
+
+        public Profile(float fillNanosPerPixel, float lightNanosPerPixel, float vertexNanos) {
+            this.fillNanosPerPixel = fillNanosPerPixel;
+            this.lightNanosPerPixel = lightNanosPerPixel;
+            this.vertexNanos = vertexNanos;
+        }
+
+        /**
+         * Predicts the GPU time of a frame at a tier. A deliberately rough model, which only
+         * has to pick a starting point; the quality governor corrects it from there.
+         * @param pixels Pixels drawn per frame at full resolution, over both eyes.
+         * @param vertices Vertices drawn per frame, over both eyes.
+         */
+        public long predictFrameNanos(QualityGovernor.Tier tier, long pixels, int vertices) {
+            float scaledPixels = pixels * tier.resolutionScale * tier.resolutionScale;
+            return (long) (scaledPixels
+                    * (fillNanosPerPixel + tier.lightsPerObject * lightNanosPerPixel)
+                    + vertices * vertexNanos);
+        }
+
+        /**
+         * Returns the index of the best tier whose predicted frame fits the budget with room to
+         * spare, or the last tier if none does.
+         */
+        public int chooseTier(QualityGovernor.Tier[] tiers, long pixels, int vertices,
+                long frameBudgetNanos) {
+            for (int i = 0; i < tiers.length; i++) {
+                if (predictFrameNanos(tiers[i], pixels, vertices)
+                        <= START_LOAD * frameBudgetNanos) {
+                    return i;
+                }
+            }
+            return tiers.length - 1;
+        }
+
+        /**
+         * Returns a one-line summary for the log.
+         */
+        public String describe() {
+            return String.format("GPU profile: fill %.3f ns per pixel, %.3f ns per light per "
+                    + "pixel, %.2f ns per vertex", fillNanosPerPixel, lightNanosPerPixel,
+                    vertexNanos);
+        }
+
+        /**
+         * Returns the profile in the form {@link #parse} reads.
+         */
+        @Override
+        public String toString() {
+            return FORMAT + " " + fillNanosPerPixel + " " + lightNanosPerPixel + " "
+                    + vertexNanos;
+        }
+
+        /**
+         * Reads a stored profile.
+         * @return null if there is none, or it was stored in another format.
+         */
+        public static Profile parse(String stored) {
+            if (stored == null) {
+                return null;
+            }
+            String[] fields = stored.split(" ");
+            try {
+                if (fields.length != 4 || Integer.parseInt(fields[0]) != FORMAT) {
+                    return null;
+                }
+                return new Profile(Float.parseFloat(fields[1]), Float.parseFloat(fields[2]),
+                        Float.parseFloat(fields[3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final Gl mGl;
+    private int mVertexShader;
+    private int mFragmentShader;
+    private int mProgram;
+    private int mPositionParam;
+    private int mLightPosParam;
+    private int mLightColorParam;
+    private int mLightCountParam;
+    private final int[] mFramebuffer = new int[1];
+    private final int[] mColorTexture = new int[1];
+    private final int[] mBuffers = new int[2]; // Quad, then the zero-area triangles.
+    private final int[] mSavedFramebuffer = new int[1];
+    private final int[] mSavedViewport = new int[4];
+    private final int[] mSavedScissor = new int[4];
+    private boolean mFailed;
+
+    private float mFillNanosPerPixel;
+    private float mLightNanosPerPixel;
+    private float mVertexNanos;
+
+    public GpuCalibration(Gl gl) {
+        mGl = gl;
+    }
+
+    /**
+     * Creates the benchmark's program, target and buffers.
+     * @param vertexSource calibration_vertex.
+     * @param fragmentSource calibration_fragment.
+     */
+    public void begin(String vertexSource, String fragmentSource) {
+        mVertexShader = ShaderHelper.compileShader(mGl, GLES20.GL_VERTEX_SHADER, vertexSource);
+        mFragmentShader = ShaderHelper.compileShader(mGl, GLES20.GL_FRAGMENT_SHADER,
+                fragmentSource);
+        mProgram = ShaderHelper.createAndLinkProgram(mGl, mVertexShader, mFragmentShader,
+                new String[] {"a_Position"});
+        mPositionParam = mGl.glGetAttribLocation(mProgram, "a_Position");
+        mLightPosParam = mGl.glGetUniformLocation(mProgram, "u_LightPos");
+        mLightColorParam = mGl.glGetUniformLocation(mProgram, "u_LightColor");
+        mLightCountParam = mGl.glGetUniformLocation(mProgram, "u_LightCount");
+
+        // The same format as the eye buffers, which is what the fill rate matters for.
+        mGl.glGenTextures(1, mColorTexture, 0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mColorTexture[0]);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+        mGl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, TARGET_SIZE, TARGET_SIZE, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GpuMemory.getShared().allocate(GpuMemory.TEXTURES, getTargetBytes());
+        mGl.glGenFramebuffers(1, mFramebuffer, 0);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        mGl.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mColorTexture[0], 0);
+        int status = mGl.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            Log.e(TAG, "Calibration target incomplete: " + status);
+            mFailed = true;
+        }
+
+        DirectBufferPool pool = DirectBufferPool.getShared();
+        ByteBuffer quad = pool.allocate(QUAD.length * 4);
+        quad.asFloatBuffer().put(QUAD);
+        // Every vertex at the origin, so every triangle has zero area.
+        ByteBuffer triangles = pool.allocate(VERTEX_COUNT * 2 * 4);
+        triangles.asFloatBuffer().put(new float[VERTEX_COUNT * 2]);
+        mGl.glGenBuffers(2, mBuffers, 0);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[0]);
+        mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, quad.capacity(), quad, GLES20.GL_STATIC_DRAW);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[1]);
+        mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, triangles.capacity(), triangles,
+                GLES20.GL_STATIC_DRAW);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GpuMemory.getShared().allocate(GpuMemory.BUFFERS, getBufferBytes());
+        // The buffer objects have their own copies.
+        pool.release(quad);
+        pool.release(triangles);
+    }
+
+    /**
+     * Times full-target quads with no lights, blended so the GPU cannot skip covered ones.
+     */
+    public void measureFill() {
+        if (bindTarget()) {
+            long nanos = timeQuads(0, FILL_QUADS);
+            mFillNanosPerPixel = nanos / (float) FILL_QUADS / (TARGET_SIZE * TARGET_SIZE);
+            restoreTarget();
+        }
+    }
+
+    /**
+     * Times full-target quads lit by every light, less their fill. Call after
+     * {@link #measureFill}.
+     */
+    public void measureLights() {
+        if (bindTarget()) {
+            long nanos = timeQuads(LIGHTS, LIGHT_QUADS);
+            float perPixel = nanos / (float) LIGHT_QUADS / (TARGET_SIZE * TARGET_SIZE);
+            mLightNanosPerPixel = Math.max(0f, (perPixel - mFillNanosPerPixel) / LIGHTS);
+            restoreTarget();
+        }
+    }
+
+    /**
+     * Times draws of zero-area triangles.
+     */
+    public void measureVertices() {
+        if (bindTarget()) {
+            mGl.glUniform1i(mLightCountParam, 0);
+            mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[1]);
+            mGl.glVertexAttribPointer(mPositionParam, 2, GLES20.GL_FLOAT, false, 0, 0);
+            mGl.glDrawArrays(GLES20.GL_TRIANGLES, 0, 3); // Warm up.
+            mGl.glFinish();
+            long start = System.nanoTime();
+            for (int i = 0; i < VERTEX_DRAWS; i++) {
+                mGl.glDrawArrays(GLES20.GL_TRIANGLES, 0, VERTEX_COUNT);
+            }
+            mGl.glFinish();
+            mVertexNanos = (System.nanoTime() - start) / (float) (VERTEX_DRAWS * VERTEX_COUNT);
+            restoreTarget();
+        }
+    }
+
+    /**
+     * Deletes the benchmark's GL objects.
+     * @return The measurements, or null if the benchmark could not run.
+     */
+    public Profile end() {
+        mGl.glDeleteFramebuffers(1, mFramebuffer, 0);
+        mGl.glDeleteTextures(1, mColorTexture, 0);
+        GpuMemory.getShared().free(GpuMemory.TEXTURES, getTargetBytes());
+        mGl.glDeleteBuffers(2, mBuffers, 0);
+        GpuMemory.getShared().free(GpuMemory.BUFFERS, getBufferBytes());
+        mGl.glDeleteProgram(mProgram);
+        mGl.glDeleteShader(mVertexShader);
+        mGl.glDeleteShader(mFragmentShader);
+        mProgram = 0;
+        if (mFailed) {
+            return null;
+        }
+        return new Profile(mFillNanosPerPixel, mLightNanosPerPixel, mVertexNanos);
+    }
+
+    private long timeQuads(int lights, int quads) {
+        mGl.glUniform1i(mLightCountParam, lights);
+        mGl.glUniform4fv(mLightPosParam, LIGHTS, LIGHT_POSITIONS, 0);
+        mGl.glUniform4fv(mLightColorParam, LIGHTS, LIGHT_COLORS, 0);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[0]);
+        mGl.glVertexAttribPointer(mPositionParam, 2, GLES20.GL_FLOAT, false, 0, 0);
+        mGl.glEnable(GLES20.GL_BLEND);
+        mGl.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE);
+        // The first draw pays for any work the driver deferred to the program's first use.
+        mGl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        mGl.glFinish();
+        long start = System.nanoTime();
+        for (int i = 0; i < quads; i++) {
+            mGl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        }
+        mGl.glFinish();
+        long nanos = System.nanoTime() - start;
+        mGl.glDisable(GLES20.GL_BLEND);
+        return nanos;
+    }
+
+    /**
+     * Points drawing at the benchmark's target, remembering the caller's.
+     * @return false if the target could not be created.
+     */
+    private boolean bindTarget() {
+        if (mFailed) {
+            return false;
+        }
+        mGl.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mSavedFramebuffer, 0);
+        mGl.glGetIntegerv(GLES20.GL_VIEWPORT, mSavedViewport, 0);
+        mGl.glGetIntegerv(GLES20.GL_SCISSOR_BOX, mSavedScissor, 0);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer[0]);
+        mGl.glViewport(0, 0, TARGET_SIZE, TARGET_SIZE);
+        mGl.glScissor(0, 0, TARGET_SIZE, TARGET_SIZE);
+        mGl.glDisable(GLES20.GL_DEPTH_TEST);
+        mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        mGl.glUseProgram(mProgram);
+        mGl.glEnableVertexAttribArray(mPositionParam);
+        return true;
+    }
+
+    /**
+     * Restores the caller's target, and the depth test the renderer keeps enabled.
+     */
+    private void restoreTarget() {
+        mGl.glDisableVertexAttribArray(mPositionParam);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGl.glEnable(GLES20.GL_DEPTH_TEST);
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mSavedFramebuffer[0]);
+        mGl.glViewport(mSavedViewport[0], mSavedViewport[1], mSavedViewport[2],
+                mSavedViewport[3]);
+        mGl.glScissor(mSavedScissor[0], mSavedScissor[1], mSavedScissor[2], mSavedScissor[3]);
+    }
+
+    private static long getTargetBytes() {
+        return GpuMemory.textureBytes(TARGET_SIZE, TARGET_SIZE, GLES20.GL_RGBA,
+                GLES20.GL_UNSIGNED_BYTE, false);
+    }
+
+    private static long getBufferBytes() {
+        return (QUAD.length + VERTEX_COUNT * 2) * 4;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.opengl.GLES20;
+
+/**
+ * What the current GL context offers beyond the GLES 2.0 minimums: its driver strings,
+ * extensions and limits. Probed once per context, on the GL thread, and immutable afterwards.
+ */
+public final class GpuCapabilities {
+
+    // GLES requires GL_VERSION to start like this, e.g. "OpenGL ES 3.1 V@145.0".
+    private static final Pattern VERSION = Pattern.compile("OpenGL ES (\\d+)\\.(\\d+).*");
+
+    public final String vendor;
+    public final String renderer;
+    /** The GL_VERSION string, which on most drivers also carries the driver's own version. */
+    public final String version;
+    /** The context's GLES version, e.g. 3 and 1 for 3.1; 2.0 if the version string is odd. */
+    public final int majorVersion;
+    public final int minorVersion;
+    public final int maxTextureSize;
+    public final int maxRenderbufferSize;
+    public final int maxTextureImageUnits;
+    public final int maxVertexAttribs;
+    public final int maxVaryingVectors;
+    public final int maxFragmentUniformVectors;
+    private final Set<String> mExtensions;
+
+    private GpuCapabilities(Gl gl) {
+        vendor = nonNull(gl.glGetString(GLES20.GL_VENDOR));
+        renderer = nonNull(gl.glGetString(GLES20.GL_RENDERER));
+        version = nonNull(gl.glGetString(GLES20.GL_VERSION));
+        Matcher matcher = VERSION.matcher(version);
+        boolean matched = matcher.matches();
+        majorVersion = matched ? Integer.parseInt(matcher.group(1)) : 2;
+        minorVersion = matched ? Integer.parseInt(matcher.group(2)) : 0;
+        String extensions = nonNull(gl.glGetString(GLES20.GL_EXTENSIONS)).trim();
+        mExtensions = new HashSet<String>(extensions.isEmpty()
+                ? Arrays.<String>asList() : Arrays.asList(extensions.split("\\s+")));
+        maxTextureSize = getInteger(gl, GLES20.GL_MAX_TEXTURE_SIZE);
+        maxRenderbufferSize = getInteger(gl, GLES20.GL_MAX_RENDERBUFFER_SIZE);
+        maxTextureImageUnits = getInteger(gl, GLES20.GL_MAX_TEXTURE_IMAGE_UNITS);
+        maxVertexAttribs = getInteger(gl, GLES20.GL_MAX_VERTEX_ATTRIBS);
+        maxVaryingVectors = getInteger(gl, GLES20.GL_MAX_VARYING_VECTORS);
+        maxFragmentUniformVectors = getInteger(gl, GLES20.GL_MAX_FRAGMENT_UNIFORM_VECTORS);
+    }
+
+    /**
+     * Queries the current context. Only call on the GL thread.
+     */
+    public static GpuCapabilities probe(Gl gl) {
+        return new GpuCapabilities(gl);
+    }
+
+    public boolean hasExtension(String name) {
+        return mExtensions.contains(name);
+    }
+
+    /**
+     * Returns whether the context is at least the given GLES version.
+     */
+    public boolean isAtLeast(int major, int minor) {
+        return majorVersion > major || (majorVersion == major && minorVersion >= minor);
+    }
+
+    public int getExtensionCount() {
+        return mExtensions.size();
+    }
+
+    /**
+     * Returns a key that changes whenever the GPU or its driver might, for results measured on
+     * this device.
+     * @param build Identifies the device and system image, e.g. the build fingerprint. System
+     *     updates ship new drivers without always changing the version string.
+     */
+    public String getProfileKey(String build) {
+        return build + "|" + renderer + "|" + version;
+    }
+
+    /**
+     * Returns a one-line summary for the log.
+     */
+    public String describe() {
+        return String.format("GPU: %s %s, %s; max texture %d, renderbuffer %d, %d texture units, "
+                + "%d attributes, %d varyings, %d fragment uniforms; %d extensions",
+                vendor, renderer, version, maxTextureSize, maxRenderbufferSize,
+                maxTextureImageUnits, maxVertexAttribs, maxVaryingVectors,
+                maxFragmentUniformVectors, mExtensions.size());
+    }
+
+    private static int getInteger(Gl gl, int name) {
+        int[] value = new int[1];
+        gl.glGetIntegerv(name, value, 0);
+        return value[0];
+    }
+
+    private static String nonNull(String value) {
+        return value == null ? "" : value;
+    }
+}
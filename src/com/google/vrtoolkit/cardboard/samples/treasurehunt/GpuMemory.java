@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import android.opengl.GLES20;
+
+/**
+ * A ledger of the GPU memory the renderer's objects take, by category.
+ *
+ * GLES 2.0 cannot say how much memory an object uses, so whoever creates or deletes a texture,
+ * buffer or renderbuffer reports an estimate here: the size of its storage as specified, with
+ * the whole mip chain for mipmapped textures and RGB padded to four bytes per texel, as drivers
+ * store it. Drivers add alignment and bookkeeping on top, so the totals are a lower bound.
+ *
+ * The totals go to the trace as counters whenever they change. Only use on the GL thread.
+ */
+public final class GpuMemory {
+
+    public static final int TEXTURES = 0;
+    public static final int BUFFERS = 1;
+    /** Renderbuffers; framebuffer color attachments are textures and count as such. */
+    public static final int RENDERBUFFERS = 2;
+    public static final int CATEGORIES = 3;
+
+    private static final String[] NAMES = {"textures", "buffers", "renderbuffers"};
+    private static final int[] TRACE_COUNTERS = {
+        Trace.name("gpuTextureKB"), Trace.name("gpuBufferKB"), Trace.name("gpuRenderbufferKB"),
+    };
+
+    private static final GpuMemory SHARED = new GpuMemory();
+
+    private final long[] mBytes = new long[CATEGORIES];
+    private final int[] mObjects = new int[CATEGORIES];
+    private long mPeakBytes;
+
+    /**
+     * Returns the ledger for the renderer's GL context.
+     */
+    public static GpuMemory getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Records a new object, or new storage for an existing one after its old storage was freed.
+     */
+    public void allocate(int category, long bytes) {
+        mBytes[category] += bytes;
+        mObjects[category]++;
+        mPeakBytes = Math.max(mPeakBytes, getTotalBytes());
+        Trace.counter(TRACE_COUNTERS[category], mBytes[category] / 1024.0);
+    }
+
+    /**
+     * Records that an object reported to {@link #allocate} was deleted.
+     */
+    public void free(int category, long bytes) {
+        mBytes[category] -= bytes;
+        mObjects[category]--;
+        Trace.counter(TRACE_COUNTERS[category], mBytes[category] / 1024.0);
+    }
+
+    /**
+     * Forgets everything; the objects went away with the lost context and must not be freed.
+     */
+    public void onContextLost() {
+        for (int i = 0; i < CATEGORIES; i++) {
+            mBytes[i] = 0;
+            mObjects[i] = 0;
+            Trace.counter(TRACE_COUNTERS[i], 0);
+        }
+    }
+
+    public long getBytes(int category) {
+        return mBytes[category];
+    }
+
+    public long getTotalBytes() {
+        long total = 0;
+        for (int i = 0; i < CATEGORIES; i++) {
+            total += mBytes[i];
+        }
+        return total;
+    }
+
+    /**
+     * Returns a one-line breakdown of the live objects and the peak so far.
+     */
+    public String describe() {
+        StringBuilder text = new StringBuilder("GPU memory:");
+        for (int i = 0; i < CATEGORIES; i++) {
+            text.append(String.format(" %d %s %.1f KB,", mObjects[i], NAMES[i],
+                    mBytes[i] / 1024f));
+        }
+        return text.append(String.format(" peak %.1f KB", mPeakBytes / 1024f)).toString();
+    }
+
+    /**
+     * Estimates the storage of a texture's level 0, and of its smaller levels if it has them.
+     * @param format The GL format, e.g. {@link GLES20#GL_RGBA}.
+     * @param type The GL type, e.g. {@link GLES20#GL_UNSIGNED_BYTE}.
+     */
+    public static long textureBytes(int width, int height, int format, int type,
+            boolean mipmapped) {
+        int texelBytes = texelBytes(format, type);
+        long bytes = (long) width * height * texelBytes;
+        while (mipmapped && (width > 1 || height > 1)) {
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+            bytes += (long) width * height * texelBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimates the storage of a renderbuffer.
+     */
+    public static long renderbufferBytes(int width, int height, int internalFormat) {
+        int pixelBytes;
+        switch (internalFormat) {
+            case GLES20.GL_STENCIL_INDEX8:
+                pixelBytes = 1;
+                break;
+            case GLES20.GL_DEPTH_COMPONENT16:
+            case GLES20.GL_RGB565:
+            case GLES20.GL_RGBA4:
+            case GLES20.GL_RGB5_A1:
+                pixelBytes = 2;
+                break;
+            default:
+                pixelBytes = 4;
+                break;
+        }
+        return (long) width * height * pixelBytes;
+    }
+
+    /**
+     * Returns whether a minification filter samples from the smaller levels.
+     */
+    public static boolean isMipmapFilter(int minFilter) {
+        return minFilter != GLES20.GL_NEAREST && minFilter != GLES20.GL_LINEAR;
+    }
+
+    private static int texelBytes(int format, int type) {
+        if (type == GLES20.GL_UNSIGNED_SHORT_5_6_5 || type == GLES20.GL_UNSIGNED_SHORT_4_4_4_4
+                || type == GLES20.GL_UNSIGNED_SHORT_5_5_5_1) {
+            return 2;
+        }
+        switch (format) {
+            case GLES20.GL_ALPHA:
+            case GLES20.GL_LUMINANCE:
+                return 1;
+            case GLES20.GL_LUMINANCE_ALPHA:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.util.Log;
+
+/**
+ * Keeps track of every GL object together with the CPU-side data it was made from, so the objects
+ * can be recreated after the GL context is lost without reading or decoding anything again.
+ *
+ * Resources are restored in priority order, a few per frame, so the objects needed to draw the
+ * visible world come back first.
+ *
+ * The same CPU-side copies let plain textures and buffers, the {@link EvictableResource}s, be
+ * evicted to stay within a GPU memory budget. The renderer marks what each frame draws with
+ * {@link #use}, which also brings evicted objects back; {@link #trim} then deletes the least
+ * recently used of the others until the {@link GpuMemory} total is back under the budget.
+ */
+public class GpuResources {
+
+    private static final String TAG = "GpuResources";
+
+    /**
+     * A GL object and the data to create it from.
+     */
+    public abstract static class Resource {
+        private final String mLabel;
+        private final int mPriority;
+        private int mHandle;
+        private long mLastUsedFrame;
+
+        /**
+         * @param priority Lower values are restored first.
+         */
+        protected Resource(String label, int priority) {
+            mLabel = label;
+            mPriority = priority;
+        }
+
+        /**
+         * Returns the GL name of the object, or 0 while it does not exist in the current context.
+         */
+        public int getHandle() {
+            return mHandle;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * Creates the GL object on the current context. Only called on the GL thread.
+         * @return The new GL name; composite resources may return any nonzero value.
+         */
+        protected abstract int create(Gl gl);
+
+        /**
+         * Returns the size of the CPU-side copy kept for restoring.
+         */
+        protected abstract int getSizeBytes();
+    }
+
+    /**
+     * A resource that {@link #trim} may evict, because it can delete its own GL object.
+     */
+    public abstract static class EvictableResource extends Resource {
+
+        protected EvictableResource(String label, int priority) {
+            super(label, priority);
+        }
+
+        /**
+         * Deletes the GL object, so it can be created again when it is next used.
+         */
+        protected abstract void destroy(Gl gl, int handle);
+    }
+
+    /**
+     * A static vertex buffer object.
+     */
+    public static class VertexBuffer extends EvictableResource {
+        private final Buffer mData;
+        private final int mSizeBytes;
+
+        /**
+         * @param data The vertex data, positioned at its start. Must not change afterwards.
+         */
+        public VertexBuffer(String label, int priority, Buffer data, int sizeBytes) {
+            super(label, priority);
+            mData = data;
+            mSizeBytes = sizeBytes;
+        }
+
+        @Override
+        protected int create(Gl gl) {
+            final int[] buffer = new int[1];
+            gl.glGenBuffers(1, buffer, 0);
+            gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer[0]);
+            gl.glBufferData(GLES20.GL_ARRAY_BUFFER, mSizeBytes, mData,
+                    GLES20.GL_STATIC_DRAW);
+            gl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            GpuMemory.getShared().allocate(GpuMemory.BUFFERS, mSizeBytes);
+            return buffer[0];
+        }
+
+        @Override
+        protected int getSizeBytes() {
+            return mSizeBytes;
+        }
+
+        @Override
+        protected void destroy(Gl gl, int handle) {
+            gl.glDeleteBuffers(1, new int[] {handle}, 0);
+            GpuMemory.getShared().free(GpuMemory.BUFFERS, mSizeBytes);
+        }
+    }
+
+    /**
+     * An RGBA texture with nearest filtering, kept as decoded pixels.
+     */
+    public static class Texture extends EvictableResource {
+        private final ByteBuffer mPixels;
+        private final int mWidth;
+        private final int mHeight;
+        private final int mFilter;
+
+        /**
+         * Copies the pixels out of an ARGB_8888 bitmap and recycles it. Safe to call on any thread.
+         */
+        public Texture(String label, int priority, Bitmap bitmap) {
+            this(label, priority, bitmap, GLES20.GL_NEAREST);
+        }
+
+        /**
+         * @param filter The minification and magnification filter.
+         */
+        public Texture(String label, int priority, Bitmap bitmap, int filter) {
+            super(label, priority);
+            mFilter = filter;
+            if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                throw new IllegalArgumentException(label + ": unsupported bitmap config "
+                        + bitmap.getConfig());
+            }
+            mWidth = bitmap.getWidth();
+            mHeight = bitmap.getHeight();
+            mPixels = DirectBufferPool.getShared().allocate(mWidth * mHeight * 4);
+            bitmap.copyPixelsToBuffer(mPixels);
+            mPixels.position(0);
+            bitmap.recycle();
+        }
+
+        @Override
+        protected int create(Gl gl) {
+            final int[] texture = new int[1];
+            gl.glGenTextures(1, texture, 0);
+            gl.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, mFilter);
+            gl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, mFilter);
+            gl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth, mHeight, 0,
+                    GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, mPixels);
+            GpuMemory.getShared().allocate(GpuMemory.TEXTURES, getGpuBytes());
+            return texture[0];
+        }
+
+        @Override
+        protected int getSizeBytes() {
+            return mPixels.capacity();
+        }
+
+        @Override
+        protected void destroy(Gl gl, int handle) {
+            gl.glDeleteTextures(1, new int[] {handle}, 0);
+            GpuMemory.getShared().free(GpuMemory.TEXTURES, getGpuBytes());
+        }
+
+        private long getGpuBytes() {
+            return GpuMemory.textureBytes(mWidth, mHeight, GLES20.GL_RGBA,
+                    GLES20.GL_UNSIGNED_BYTE, GpuMemory.isMipmapFilter(mFilter));
+        }
+    }
+
+    /**
+     * A linked program, kept as shader source. GLES 2.0 has no portable program binaries.
+     */
+    public static class Program extends Resource {
+        private final String mVertexSource;
+        private final String mFragmentSource;
+        private final String[] mAttributes;
+
+        /**
+         * @param attributes Attribute names, bound to locations in order.
+         */
+        public Program(String label, int priority, String vertexSource, String fragmentSource,
+                String[] attributes) {
+            super(label, priority);
+            mVertexSource = vertexSource;
+            mFragmentSource = fragmentSource;
+            mAttributes = attributes;
+        }
+
+        @Override
+        protected int create(Gl gl) {
+            int vertexShader = ShaderHelper.compileShader(gl, GLES20.GL_VERTEX_SHADER,
+                    mVertexSource);
+            int fragmentShader = ShaderHelper.compileShader(gl, GLES20.GL_FRAGMENT_SHADER,
+                    mFragmentSource);
+            return ShaderHelper.createAndLinkProgram(gl, vertexShader, fragmentShader,
+                    mAttributes);
+        }
+
+        @Override
+        protected int getSizeBytes() {
+            return (mVertexSource.length() + mFragmentSource.length()) * 2;
+        }
+    }
+
+    private static final Comparator<Resource> BY_PRIORITY = new Comparator<Resource>() {
+        @Override
+        public int compare(Resource a, Resource b) {
+            return a.mPriority < b.mPriority ? -1 : (a.mPriority == b.mPriority ? 0 : 1);
+        }
+    };
+
+    private final Gl mGl;
+    private final List<Resource> mResources = new ArrayList<Resource>();
+    private boolean mSorted = true;
+
+    // Restore bookkeeping, GL thread only.
+    private long mLostAtNanos;
+    private boolean mRestoring;
+
+    // Eviction bookkeeping, GL thread only.
+    private long mBudgetBytes = Long.MAX_VALUE;
+    private long mFrame = 1;
+    private int mEvictions;
+    private int mReloads;
+
+    /**
+     * @param gl The GL that resources are created on.
+     */
+    public GpuResources(Gl gl) {
+        mGl = gl;
+    }
+
+    /**
+     * Adds a resource. Safe to call from any thread.
+     */
+    public synchronized <T extends Resource> T register(T resource) {
+        mResources.add(resource);
+        mSorted = false;
+        return resource;
+    }
+
+    /**
+     * Creates a resource's GL object if it does not exist yet. Only call on the GL thread.
+     */
+    public void ensureCreated(Resource resource) {
+        if (resource.mHandle == 0) {
+            resource.mHandle = resource.create(mGl);
+        }
+    }
+
+    /**
+     * Sets how much GPU memory, as counted by {@link GpuMemory}, {@link #trim} evicts down to.
+     */
+    public void setBudget(long bytes) {
+        mBudgetBytes = bytes;
+    }
+
+    /**
+     * Marks a resource as drawn this frame, creating it again if it was evicted. Only call on the
+     * GL thread.
+     * @return true if the resource got a new GL name.
+     */
+    public boolean use(Resource resource) {
+        resource.mLastUsedFrame = mFrame;
+        if (resource.mHandle != 0) {
+            return false;
+        }
+        resource.mHandle = resource.create(mGl);
+        mReloads++;
+        return true;
+    }
+
+    /**
+     * Evicts resources not used this frame, least recently used first, while the GPU memory
+     * total is over budget, and starts the next frame. Call once per frame on the GL thread, after
+     * the frame's draws were issued.
+     * @return The number of resources evicted; their GL names are no longer valid.
+     */
+    public synchronized int trim() {
+        GpuMemory memory = GpuMemory.getShared();
+        int evicted = 0;
+        while (memory.getTotalBytes() > mBudgetBytes) {
+            // A linear search, to keep this allocation-free; there are only a few dozen.
+            Resource oldest = null;
+            for (Resource resource : mResources) {
+                if (resource instanceof EvictableResource && resource.mHandle != 0
+                        && resource.mLastUsedFrame < mFrame
+                        && (oldest == null || resource.mLastUsedFrame < oldest.mLastUsedFrame)) {
+                    oldest = resource;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            ((EvictableResource) oldest).destroy(mGl, oldest.mHandle);
+            oldest.mHandle = 0;
+            evicted++;
+        }
+        mEvictions += evicted;
+        mFrame++;
+        return evicted;
+    }
+
+    /**
+     * Forgets every GL name. Call when a new context replaces a lost one; the old objects went
+     * away with it and must not be deleted.
+     */
+    public synchronized void onContextLost() {
+        for (Resource resource : mResources) {
+            resource.mHandle = 0;
+        }
+        mLostAtNanos = System.nanoTime();
+        mRestoring = true;
+    }
+
+    /**
+     * Recreates missing objects in priority order until the budget is used up. At least one object
+     * is created per call. Only call on the GL thread.
+     * @param maxPriority Only restore resources with this priority or a more urgent one.
+     * @return true once every such resource exists.
+     */
+    public synchronized boolean restore(int maxPriority, long budgetNanos) {
+        if (!mSorted) {
+            Collections.sort(mResources, BY_PRIORITY);
+            mSorted = true;
+        }
+        long start = System.nanoTime();
+        boolean done = true;
+        for (Resource resource : mResources) {
+            if (resource.mPriority > maxPriority) {
+                break;
+            }
+            if (resource.mHandle != 0) {
+                continue;
+            }
+            if (System.nanoTime() - start > budgetNanos) {
+                done = false;
+                break;
+            }
+            resource.mHandle = resource.create(mGl);
+        }
+        if (done && mRestoring && maxPriority == Integer.MAX_VALUE) {
+            mRestoring = false;
+            Log.i(TAG, String.format("Restored %d resources (%d KB) in %.1f ms",
+                    mResources.size(), getSizeBytes() / 1024,
+                    (System.nanoTime() - mLostAtNanos) / 1e6));
+        }
+        return done;
+    }
+
+    /**
+     * Returns how long the current restore has taken so far, for reporting milestones.
+     */
+    public long getRestoreNanos() {
+        return System.nanoTime() - mLostAtNanos;
+    }
+
+    /**
+     * Returns a one-line summary of the evictions so far.
+     */
+    public String describeEvictions() {
+        return "GPU resources: " + mEvictions + " evicted, " + mReloads + " reloaded on use";
+    }
+
+    /**
+     * Returns the total size of the CPU-side copies.
+     */
+    public synchronized int getSizeBytes() {
+        int total = 0;
+        for (Resource resource : mResources) {
+            total += resource.getSizeBytes();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * A head view together with the time it is shown to the user.
+ *
+ * Instances are owned by a {@link TripleBuffer} or a history ring and are overwritten in place.
+ */
+public final class HeadPose {
+
+    /** {@link System#nanoTime()} at which a frame rendered with this pose is on the display. */
+    public long displayTimeNanos;
+
+    /** The head view matrix. */
+    public final float[] headView = new float[16];
+
+    public void set(HeadPose other) {
+        displayTimeNanos = other.displayTimeNanos;
+        System.arraycopy(other.headView, 0, headView, 0, 16);
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.graphics.Typeface;
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+/**
+ * Draws fading, head-locked text messages into each eye with OpenGL.
+ *
+ * Messages are picked from a fixed set of templates, in which a '#' stands for an integer value.
+ * {@link #showToast} may be called from any thread and allocates nothing; the text is laid out
+ * into a dynamic vertex buffer on the GL thread, and only when the message changes.
+ */
+public class HudRenderer {
+
+    private static final int MAX_CHARS = 128;
+    private static final int FLOATS_PER_VERTEX = 4; // x, y, u, v
+    private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+
+    // How long a message takes to fade out, like the old overlay's AlphaAnimation.
+    private static final float FADE_SECONDS = 5f;
+
+    // Head-space placement of the text: in front of the user, a little below their gaze. The drop
+    // and size are for the default distance, and scale with it.
+    public static final float DEFAULT_DISTANCE = 2f;
+    private static final float DROP = 0.1f;
+    private static final float TEXT_SIZE = 0.08f;
+
+    // Half width of the anti-aliased edge, in distance field units.
+    private static final float SMOOTHING = 0.08f;
+
+    private static final float[] TEXT_COLOR = {150 / 255f, 1f, 180 / 255f, 1f};
+    private static final float[] SHADOW_COLOR = {0.27f, 0.27f, 0.27f, 0.8f};
+
+    private static final long NO_MESSAGE = -1;
+
+    private final Gl mGl;
+    private final String[] mTemplates;
+    private SdfGlyphAtlas mAtlas;
+
+    // Latest requested message: serial << 40 | message << 32 | value.
+    private final AtomicLong mPending = new AtomicLong(NO_MESSAGE);
+    private final AtomicInteger mSerial = new AtomicInteger();
+
+    // GL thread state.
+    private long mShown = NO_MESSAGE;
+    private long mShownAtNanos;
+    private int mIndexCount;
+    private final char[] mText = new char[MAX_CHARS];
+    private final char[] mDigits = new char[11];
+    private final FloatBuffer mVertices;
+    // Indexed by EyeParams.Eye.
+    private final float[][] mModels = new float[3][16];
+    private final float[] mModelView = new float[16];
+    private final float[] mMvp = new float[16];
+
+    private int mProgram;
+    private int mMvpParam;
+    private int mTextureParam;
+    private int mColorParam;
+    private int mShadowColorParam;
+    private int mSmoothingParam;
+    private int mElapsedParam;
+    private int mFadeDurationParam;
+    private int mPositionParam;
+    private int mTexCoordParam;
+    private int mVertexBuffer;
+    private int mIndexBuffer;
+
+    /**
+     * @param templates The messages that can be shown. A '#' is replaced by the value passed to
+     *     {@link #showToast}.
+     */
+    public HudRenderer(Gl gl, String[] templates) {
+        mGl = gl;
+        mTemplates = templates;
+        mVertices = DirectBufferPool.getShared().allocate(MAX_CHARS * 4 * STRIDE).asFloatBuffer();
+
+        for (int eye = 0; eye < mModels.length; eye++) {
+            setDistance(eye, DEFAULT_DISTANCE);
+        }
+    }
+
+    /**
+     * Sets how far in front of the head one eye sees the text. The text keeps its apparent size
+     * and place, so giving the eyes different distances only moves it in depth. Only call on the
+     * GL thread.
+     * @param eye One of EyeParams.Eye.
+     * @param distance In meters.
+     */
+    public void setDistance(int eye, float distance) {
+        float scale = distance / DEFAULT_DISTANCE;
+        float[] model = mModels[eye];
+        Matrix.setIdentityM(model, 0);
+        Matrix.translateM(model, 0, 0f, -DROP * scale, -distance);
+        Matrix.scaleM(model, 0, TEXT_SIZE * scale, TEXT_SIZE * scale, 1f);
+    }
+
+    /**
+     * Shows a message, restarting its fade. Safe to call from any thread.
+     * @param message Index into the templates.
+     * @param value Replaces the '#' in the template, if it has one.
+     */
+    public void showToast(int message, int value) {
+        long serial = mSerial.incrementAndGet() & 0xffffff;
+        mPending.set(serial << 40 | (long) (message & 0xff) << 32 | (value & 0xffffffffL));
+    }
+
+    /**
+     * Builds the glyph atlas ahead of {@link #onSurfaceCreated}, e.g. on a loader thread.
+     */
+    public void buildAtlas() {
+        if (mAtlas == null) {
+            mAtlas = new SdfGlyphAtlas(mGl, Typeface.DEFAULT_BOLD);
+        }
+    }
+
+    /**
+     * Creates the GL objects. Must be called on the GL thread for each new context.
+     * @param program A program linked from the sdf_text shaders, with a_Position bound to
+     *     attribute 0 and a_TexCoordinate to attribute 1.
+     */
+    public void onSurfaceCreated(int program) {
+        buildAtlas();
+        mAtlas.upload();
+
+        mProgram = program;
+        mMvpParam = mGl.glGetUniformLocation(program, "u_MVP");
+        mTextureParam = mGl.glGetUniformLocation(program, "u_Texture");
+        mColorParam = mGl.glGetUniformLocation(program, "u_Color");
+        mShadowColorParam = mGl.glGetUniformLocation(program, "u_ShadowColor");
+        mSmoothingParam = mGl.glGetUniformLocation(program, "u_Smoothing");
+        mElapsedParam = mGl.glGetUniformLocation(program, "u_Elapsed");
+        mFadeDurationParam = mGl.glGetUniformLocation(program, "u_FadeDuration");
+        mPositionParam = mGl.glGetAttribLocation(program, "a_Position");
+        mTexCoordParam = mGl.glGetAttribLocation(program, "a_TexCoordinate");
+
+        final int[] buffers = new int[2];
+        mGl.glGenBuffers(2, buffers, 0);
+        mVertexBuffer = buffers[0];
+        mIndexBuffer = buffers[1];
+
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+        mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, mVertices.capacity() * 4, null,
+                GLES20.GL_DYNAMIC_DRAW);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GpuMemory.getShared().allocate(GpuMemory.BUFFERS, mVertices.capacity() * 4);
+
+        // Every glyph is a quad of two triangles, so the indices never change.
+        ByteBuffer indexBytes = DirectBufferPool.getShared().allocate(MAX_CHARS * 6 * 2);
+        ShortBuffer indices = indexBytes.asShortBuffer();
+        for (int i = 0; i < MAX_CHARS; i++) {
+            short first = (short) (i * 4);
+            indices.put(first).put((short) (first + 1)).put((short) (first + 2));
+            indices.put(first).put((short) (first + 2)).put((short) (first + 3));
+        }
+        indices.position(0);
+        mGl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBuffer);
+        mGl.glBufferData(GLES20.GL_ELEMENT_ARRAY_BUFFER, indices.capacity() * 2, indices,
+                GLES20.GL_STATIC_DRAW);
+        mGl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        GpuMemory.getShared().allocate(GpuMemory.BUFFERS, indices.capacity() * 2);
+        DirectBufferPool.getShared().release(indexBytes);
+
+        // The new vertex buffer is empty; lay out the current message again, keeping its fade.
+        if (mShown != NO_MESSAGE) {
+            long shownAt = mShownAtNanos;
+            layOut(mShown);
+            mShownAtNanos = shownAt;
+        }
+    }
+
+    /**
+     * Forgets the GL objects of a lost context. Nothing is drawn until {@link #onSurfaceCreated}
+     * is called again.
+     */
+    public void onContextLost() {
+        mProgram = 0;
+    }
+
+    /**
+     * Picks up a new message, if one was requested. Call once per frame on the GL thread.
+     */
+    public void update() {
+        if (mProgram == 0) {
+            return;
+        }
+        long pending = mPending.get();
+        if (pending != NO_MESSAGE && pending != mShown) {
+            layOut(pending);
+        }
+    }
+
+    /**
+     * Draws the current message over one eye, if it has not faded out yet.
+     * @param eye One of EyeParams.Eye.
+     * @param eyeFromHead Transform from head space to this eye's space.
+     * @param perspective The eye's projection matrix.
+     */
+    public void draw(int eye, float[] eyeFromHead, float[] perspective) {
+        if (mProgram == 0 || mIndexCount == 0) {
+            return;
+        }
+        float elapsed = (System.nanoTime() - mShownAtNanos) / 1e9f;
+        if (elapsed >= FADE_SECONDS) {
+            return;
+        }
+
+        Matrix.multiplyMM(mModelView, 0, eyeFromHead, 0, mModels[eye], 0);
+        Matrix.multiplyMM(mMvp, 0, perspective, 0, mModelView, 0);
+
+        mGl.glUseProgram(mProgram);
+        mGl.glDisable(GLES20.GL_DEPTH_TEST);
+        mGl.glEnable(GLES20.GL_BLEND);
+        mGl.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+
+        mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mAtlas.getTexture());
+        mGl.glUniform1i(mTextureParam, 0);
+        mGl.glUniformMatrix4fv(mMvpParam, 1, false, mMvp, 0);
+        mGl.glUniform4fv(mColorParam, 1, TEXT_COLOR, 0);
+        mGl.glUniform4fv(mShadowColorParam, 1, SHADOW_COLOR, 0);
+        mGl.glUniform1f(mSmoothingParam, SMOOTHING);
+        mGl.glUniform1f(mElapsedParam, elapsed);
+        mGl.glUniform1f(mFadeDurationParam, FADE_SECONDS);
+
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+        mGl.glEnableVertexAttribArray(mPositionParam);
+        mGl.glVertexAttribPointer(mPositionParam, 2, GLES20.GL_FLOAT, false, STRIDE, 0);
+        mGl.glEnableVertexAttribArray(mTexCoordParam);
+        mGl.glVertexAttribPointer(mTexCoordParam, 2, GLES20.GL_FLOAT, false, STRIDE, 8);
+        mGl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, mIndexBuffer);
+        mGl.glDrawElements(GLES20.GL_TRIANGLES, mIndexCount, GLES20.GL_UNSIGNED_SHORT, 0);
+
+        mGl.glBindBuffer(GLES20.GL_ELEMENT_ARRAY_BUFFER, 0);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGl.glDisable(GLES20.GL_BLEND);
+        mGl.glEnable(GLES20.GL_DEPTH_TEST);
+    }
+
+    /**
+     * Formats a packed message into text, builds its glyph quads and uploads them.
+     */
+    private void layOut(long packed) {
+        mShown = packed;
+        mShownAtNanos = System.nanoTime();
+
+        String template = mTemplates[(int) (packed >>> 32) & 0xff];
+        int length = format(template, (int) packed);
+
+        // Text space is in units of the font size, with y up and the first baseline at 0.
+        final SdfGlyphAtlas atlas = mAtlas;
+        final float lineHeight = atlas.getLineHeight();
+        int lines = 1;
+        for (int i = 0; i < length; i++) {
+            if (mText[i] == '\n') {
+                lines++;
+            }
+        }
+        float baseline = (lines - 1) * lineHeight / 2f;
+
+        mVertices.clear();
+        int glyphs = 0;
+        int lineStart = 0;
+        while (lineStart <= length) {
+            int lineEnd = lineStart;
+            float width = 0;
+            while (lineEnd < length && mText[lineEnd] != '\n') {
+                width += advance(mText[lineEnd]);
+                lineEnd++;
+            }
+
+            float pen = -width / 2f;
+            for (int i = lineStart; i < lineEnd; i++) {
+                char c = mText[i];
+                if (c != ' ' && atlas.hasGlyph(c)) {
+                    putGlyph(c, pen, baseline);
+                    glyphs++;
+                }
+                pen += advance(c);
+            }
+            baseline -= lineHeight;
+            lineStart = lineEnd + 1;
+        }
+        mVertices.position(0);
+        mIndexCount = glyphs * 6;
+
+        if (glyphs > 0) {
+            mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBuffer);
+            mGl.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, glyphs * 4 * STRIDE, mVertices);
+            mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+    }
+
+    private float advance(char c) {
+        return mAtlas.hasGlyph(c) ? mAtlas.getAdvance(c) : 0f;
+    }
+
+    private void putGlyph(char c, float pen, float baseline) {
+        final SdfGlyphAtlas atlas = mAtlas;
+        float left = pen + atlas.getCellLeft();
+        float top = baseline + atlas.getCellTop();
+        float right = left + atlas.getCellSize();
+        float bottom = top - atlas.getCellSize();
+        float u0 = atlas.getU(c);
+        float v0 = atlas.getV(c);
+        float u1 = u0 + atlas.getCellU();
+        float v1 = v0 + atlas.getCellV();
+
+        mVertices.put(left).put(top).put(u0).put(v0);
+        mVertices.put(left).put(bottom).put(u0).put(v1);
+        mVertices.put(right).put(bottom).put(u1).put(v1);
+        mVertices.put(right).put(top).put(u1).put(v0);
+    }
+
+    /**
+     * Copies {@code template} into the text buffer, replacing '#' with {@code value}.
+     * @return The number of characters written, at most {@link #MAX_CHARS}.
+     */
+    private int format(String template, int value) {
+        int length = 0;
+        for (int i = 0; i < template.length() && length < MAX_CHARS; i++) {
+            char c = template.charAt(i);
+            if (c != '#') {
+                mText[length++] = c;
+                continue;
+            }
+            // Digits come out least significant first; work in negatives to cover MIN_VALUE.
+            int digits = 0;
+            int remaining = value < 0 ? value : -value;
+            do {
+                mDigits[digits++] = (char) ('0' - remaining % 10);
+                remaining /= 10;
+            } while (remaining != 0);
+            if (value < 0 && length < MAX_CHARS) {
+                mText[length++] = '-';
+            }
+            while (digits > 0 && length < MAX_CHARS) {
+                mText[length++] = mDigits[--digits];
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded, lock-free queue of timestamped input events.
+ *
+ * Events are copied into preallocated slots, so posting one never allocates. Any number of
+ * threads may post events; exactly one thread may take them. Each slot carries a sequence number
+ * that tells producers when it is free and the consumer when it is filled in, so neither side
+ * ever waits on the other. When the queue is full, new events are dropped and counted.
+ */
+public final class InputEventQueue {
+
+    /** The Cardboard trigger (magnet) was pulled. */
+    public static final int TYPE_TRIGGER = 1;
+
+    /**
+     * A consumer-owned copy of one event.
+     */
+    public static final class Event {
+        public int type;
+        /** {@link System#nanoTime()} when the event happened. */
+        public long timeNanos;
+    }
+
+    private final int mMask;
+    private final AtomicLongArray mSequences;
+    private final int[] mTypes;
+    private final long[] mTimes;
+
+    // Next position to be claimed by a producer.
+    private final AtomicLong mTail = new AtomicLong();
+    // Next position to be read. Owned by the consumer thread.
+    private long mHead;
+
+    private final AtomicInteger mDropped = new AtomicInteger();
+
+    /**
+     * @param capacity Maximum number of events in flight; rounded up to a power of two.
+     */
+    public InputEventQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+        mMask = size - 1;
+        mSequences = new AtomicLongArray(size);
+        mTypes = new int[size];
+        mTimes = new long[size];
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Posts an event. Safe to call from any thread.
+     * @return false if the queue was full and the event was dropped.
+     */
+    public boolean post(int type, long timeNanos) {
+        while (true) {
+            long position = mTail.get();
+            int index = (int) position & mMask;
+            long available = mSequences.get(index) - position;
+            if (available == 0) {
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mTypes[index] = type;
+                    mTimes[index] = timeNanos;
+                    // Publishes the slot contents to the consumer.
+                    mSequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if (available < 0) {
+                // The consumer has not freed this slot since the last lap.
+                mDropped.incrementAndGet();
+                return false;
+            }
+            // Another producer claimed this position first; try the next one.
+        }
+    }
+
+    /**
+     * Takes the oldest event, if there is one. Only call from the consumer thread.
+     * @param out Receives the event.
+     * @return false if the queue was empty.
+     */
+    public boolean poll(Event out) {
+        int index = (int) mHead & mMask;
+        if (mSequences.get(index) != mHead + 1) {
+            return false;
+        }
+        out.type = mTypes[index];
+        out.timeNanos = mTimes[index];
+        // Hands the slot back to producers for their next lap.
+        mSequences.lazySet(index, mHead + mMask + 1);
+        mHead++;
+        return true;
+    }
+
+    /**
+     * Returns how many events were dropped because the queue was full.
+     */
+    public int getDroppedCount() {
+        return mDropped.get();
+    }
+}
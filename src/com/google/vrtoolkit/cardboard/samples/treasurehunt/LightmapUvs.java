@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * Generates the second texture coordinate set that static meshes sample their lightmap with.
+ *
+ * Shared by the app and LightmapBaker, so both agree on where each texel lies.
+ */
+public final class LightmapUvs {
+
+    private LightmapUvs() {
+    }
+
+    /**
+     * Projects a flat mesh along the dominant axis of its normal and fits it into the lightmap,
+     * inset by half a texel so bilinear filtering never reads past the mesh's edge.
+     * @param coords x, y, z per vertex.
+     * @param normals x, y, z per vertex.
+     * @param size Side of the lightmap, in texels.
+     * @return u, v per vertex.
+     * @throws IllegalArgumentException If the mesh is not flat. Anything else would need to be
+     *     split into charts.
+     */
+    public static float[] generate(float[] coords, float[] normals, int size) {
+        int axis = dominantAxis(normals, 0);
+        for (int i = 3; i < normals.length; i += 3) {
+            if (dominantAxis(normals, i) != axis) {
+                throw new IllegalArgumentException("Mesh is not flat");
+            }
+        }
+        // The two axes that span the plane.
+        int uAxis = axis == 0 ? 1 : 0;
+        int vAxis = axis == 2 ? 1 : 2;
+
+        int vertices = coords.length / 3;
+        float minU = Float.MAX_VALUE;
+        float maxU = -Float.MAX_VALUE;
+        float minV = Float.MAX_VALUE;
+        float maxV = -Float.MAX_VALUE;
+        for (int i = 0; i < vertices; i++) {
+            minU = Math.min(minU, coords[i * 3 + uAxis]);
+            maxU = Math.max(maxU, coords[i * 3 + uAxis]);
+            minV = Math.min(minV, coords[i * 3 + vAxis]);
+            maxV = Math.max(maxV, coords[i * 3 + vAxis]);
+        }
+        float inset = 0.5f / size;
+        float scale = 1f - 2f * inset;
+        float[] uvs = new float[vertices * 2];
+        for (int i = 0; i < vertices; i++) {
+            uvs[i * 2] = inset + scale * (coords[i * 3 + uAxis] - minU) / (maxU - minU);
+            uvs[i * 2 + 1] = inset + scale * (coords[i * 3 + vAxis] - minV) / (maxV - minV);
+        }
+        return uvs;
+    }
+
+    private static int dominantAxis(float[] vectors, int offset) {
+        float x = Math.abs(vectors[offset]);
+        float y = Math.abs(vectors[offset + 1]);
+        float z = Math.abs(vectors[offset + 2]);
+        if (x >= y && x >= z) {
+            return 0;
+        }
+        return y >= z ? 1 : 2;
+    }
+}
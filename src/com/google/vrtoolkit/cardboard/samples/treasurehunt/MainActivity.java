@@ -17,51 +17,152 @@
 package com.google.vrtoolkit.cardboard.samples.treasurehunt;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 import javax.microedition.khronos.egl.EGLConfig;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.opengl.GLES20;
 import android.opengl.Matrix;
+import android.os.BatteryManager;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Vibrator;
 import android.util.Log;
 
 import com.google.vrtoolkit.cardboard.CardboardActivity;
 import com.google.vrtoolkit.cardboard.CardboardView;
+import com.google.vrtoolkit.cardboard.EyeParams;
 import com.google.vrtoolkit.cardboard.EyeTransform;
 import com.google.vrtoolkit.cardboard.HeadTransform;
 import com.google.vrtoolkit.cardboard.Viewport;
+import com.google.vrtoolkit.cardboard.sensors.HeadTracker;
 
 /**
  * A Cardboard sample application.
  */
-public class MainActivity extends CardboardActivity implements CardboardView.StereoRenderer {
+public class MainActivity extends CardboardActivity
+        implements CardboardView.StereoRenderer, WorldSimulation.Listener {
 
     private static final String TAG = "MainActivity";
 
     private static final float CAMERA_Z = 0.01f;
-    private static final float TIME_DELTA = 0.3f;
 
-    private static final float YAW_LIMIT = 0.12f;
-    private static final float PITCH_LIMIT = 0.12f;
-
-    // We keep the light always position just above the user.
-    private final float[] mLightPosInWorldSpace = new float[] {0.0f, 2.0f, 0.0f, 1.0f};
-    private final float[] mLightPosInEyeSpace = new float[4];
-
-    private static final int COORDS_PER_VERTEX = 3;
+    // A snapshot older than this missed its frame; 60Hz is the slowest display we target.
+    private static final long FRAME_PERIOD_NANOS = 16666667L;
+
+    // Time from the start of a frame until it is half way through scanout: one frame to render
+    // and wait for vsync, plus half a frame of scanout.
+    private static final long DISPLAY_LATENCY_NANOS = FRAME_PERIOD_NANOS * 3 / 2;
+
+    // How often to log the pose prediction error, in frames.
+    private static final int PREDICTION_LOG_INTERVAL = 600;
+
+    // GL time each frame may spend on loading, leaving the rest for the loading screen.
+    private static final long LOAD_SLICE_NANOS = 4000000L;
+
+    // Restore priorities of GPU resources: the world must be back before it can be drawn, the HUD
+    // can follow a few frames later.
+    private static final int PRIORITY_WORLD = 0;
+    private static final int PRIORITY_HUD = 1;
+    private static final int PRIORITY_EFFECTS = 1;
+
+    private static final int BURST_PARTICLES = 2000;
+    // Longest frame time the particles are advanced by, so they don't jump after a stall.
+    private static final float MAX_PARTICLE_STEP = 0.1f;
+
+    // Set to record a Chrome trace of every session into the app's files directory.
+    private static final boolean TRACING = false;
+    // Half a minute of records at the current density; the exporter drains it ten times a second.
+    private static final int TRACE_CAPACITY = 1 << 16;
+
+    // Set to correct the lenses with our own DistortionPass instead of the SDK.
+    private static final boolean CUSTOM_DISTORTION = false;
+    // Set to alternate between our lens correction and the SDK's, and log what each costs.
+    private static final boolean DISTORTION_BENCHMARK = false;
+    private static final int BENCHMARK_PHASE_FRAMES = 300;
+    // Frames after each switch that are not timed, while the pipeline settles.
+    private static final int BENCHMARK_WARMUP_FRAMES = 30;
+
+    // Shortest time the quality governor stays in a tier before the frame load may change it.
+    private static final long QUALITY_DWELL_NANOS = 5000000000L;
+
+    // Set to benchmark the GPU on first launch, and again after a system or driver update, and
+    // start quality at the tier the results suggest. They are kept per device and driver.
+    private static final boolean CALIBRATION = true;
+    private static final String GPU_PROFILES = "gpuProfiles";
+
+    // Set to take the GL fast paths (vertex array objects, mapped buffers, both eyes in one pass)
+    // where the context has them. Clear to compare their per-frame CPU cost with the GLES 2.0
+    // path's, in the log.
+    private static final boolean FAST_PATHS = true;
+
+    // GPU memory the world's textures and buffers are evicted down to when they are not in view.
+    private static final long GPU_MEMORY_BUDGET_BYTES = 32L * 1024 * 1024;
+
+    // Set to record head motion, eye transforms and triggers into the app's files directory.
+    private static final boolean RECORD_SESSION = false;
+    // A recorded session in the files directory to play back in place of live input, or null.
+    // Live input takes over again when the session ends.
+    private static final String REPLAY_SESSION = null;
+
+    // Set to draw what lies beyond the depth where the eyes see it less than
+    // FAR_FIELD_DISPARITY_PIXELS apart once per frame, for both eyes.
+    private static final boolean FAR_FIELD = true;
+    private static final float FAR_FIELD_DISPARITY_PIXELS = 1f;
+
+    // Set to show the last eye images again, turned to the new head pose, when a frame is
+    // predicted to miss the display.
+    private static final boolean REPROJECTION = true;
+    private static final int MAX_REPROJECTED_FRAMES = 1;
+
+    private static final int TRACE_SURFACE_CREATED = Trace.name("onSurfaceCreated");
+    private static final int TRACE_NEW_FRAME = Trace.name("onNewFrame");
+    private static final int TRACE_DRAW_EYE = Trace.name("onDrawEye");
+    private static final int TRACE_REPLAY = Trace.name("replay");
+    private static final int TRACE_FAR_FIELD = Trace.name("farField");
+    private static final int TRACE_REPROJECTED = Trace.name("reprojected");
+    private static final int TRACE_SNAPSHOT_AGE = Trace.name("snapshotAgeMs");
+    private static final int TRACE_PARTICLE_UPLOAD = Trace.name("particleUploadBytes");
+    // The quality governor's inputs and output; tools/.../GovernorReplay replays them.
+    private static final int TRACE_FRAME_BUSY = Trace.name("frameBusyMs");
+    private static final int TRACE_BATTERY_LEVEL = Trace.name("batteryLevel");
+    private static final int TRACE_BATTERY_CHARGING = Trace.name("batteryCharging");
+    private static final int TRACE_BATTERY_TEMPERATURE = Trace.name("batteryTemperature");
+    private static final int TRACE_QUALITY_TIER = Trace.name("qualityTier");
+
+
+    // Starting arena sizes for one eye's command buffer; they grow on the first frames if needed.
+    private static final int COMMAND_INTS = 256;
+    private static final int COMMAND_FLOATS = 256;
+
+    // HUD messages; a '#' is replaced by the value passed along with the message.
+    private static final int TOAST_INTRO = 0;
+    private static final int TOAST_FOUND = 1;
+    private static final int TOAST_MISSED = 2;
+    private static final String[] TOASTS = {
+        "Pull the magnet when you find an object.",
+        "Found it! Look around for another one.\nScore = #",
+        "Look around to find the object!",
+    };
 
     private final WorldLayoutData DATA = new WorldLayoutData();
 
+    private FloorGrid mFloorGrid;
     private FloatBuffer mFloorVertices;
     private FloatBuffer mFloorColors;
+    private FloatBuffer mFloorLightmapCoord;
+    private FloatBuffer mFloorGridCoord;
     private FloatBuffer mFloorNormals;
 
     private FloatBuffer mCubeVertices;
@@ -70,78 +171,224 @@ public class MainActivity extends CardboardActivity implements CardboardView.Ste
     private FloatBuffer mCubeNormals;
     private FloatBuffer mCubeTextureCoord;
 
+    // Every GL call goes through here, so the renderer can also run on a RecordingGl.
+    private final Gl mGl = new AndroidGl();
+    // Entry points past GLES 2.0, if the platform binds them; only used where mFastPaths says.
+    private final GlExtensions mGlExtensions =
+            Build.VERSION.SDK_INT >= 18 ? new AndroidGlExtensions() : null;
+
     /*
-     * Handles to the attributes in the vertex & fragment shaders
-     */
-    private int mProgramHandler;
-    private int mPositionHandler;
-    private int mNormalHandler;
-    private int mColorHandler;
-    private int mModelViewProjectionHandler;
-    private int mLightPosHandler;
-    private int mModelViewHandler;
-    private int mModelHandler;
-    private int mIsFloorHandler;
-    
-    private int mTextureUniformHandler;
-    private int mTextureCoordinateHandler;    
-    private int mTextureDataHandler;
-    private int mTextureFoundHandler;
-
-    private float[] mModelCube;
-    private float[] mCamera;
-    private float[] mView;
+     * Handles to the GL objects and shader variables, shared with the scene recorders
+     */
+    private final SceneHandles mHandles = new SceneHandles();
+
+    /*
+     * Per-eye command recording. Indexed by EyeParams.Eye (monocular, left, right).
+     */
+    private final EyeRecordingWorker[] mEyeWorkers = new EyeRecordingWorker[3];
+    private final SceneRecorder mInlineRecorder = new SceneRecorder(mHandles);
+    private final CommandBuffer mInlineCommands =
+            new CommandBuffer(mGl, mGlExtensions, COMMAND_INTS, COMMAND_FLOATS);
+    private final CommandBuffer[] mCapturedCommands = new CommandBuffer[3];
+    private final boolean[] mRecordedAhead = new boolean[3];
+    // Eye offset relative to the head, learned from the previous frame.
+    private final float[][] mEyeFromHead = new float[3][16];
+    private final boolean[] mEyeKnown = new boolean[3];
+    // The eye view each eye's commands were recorded with.
+    private final float[][] mRecordedEyeView = new float[3][16];
+    private final float[][] mCapturedPerspective = new float[3][16];
+    private final float[] mInverse = new float[16];
+    private final float[] mScratch = new float[16];
+    private final float[] mEyeCorrection = new float[16];
+    private volatile boolean mCaptureNextFrame;
+    private boolean mCapturingFrame;
+    private volatile boolean mReplayCapturedFrame;
+
+    /*
+     * Head pose prediction and late latching. The SDK's head view for the frame is predicted to
+     * the display time, and re-latched from our own tracker just before each eye is drawn.
+     */
+    private final PosePredictor mPosePredictor = new PosePredictor();
+    private HeadTracker mHeadTracker;
+    private final float[] mSdkHeadView = new float[16];
+    private final float[] mTrackerAtFrameStart = new float[16];
+    private final float[] mLatchedHeadView = new float[16];
+    private long mDisplayTimeNanos;
+    private int mFramesSincePredictionLog;
+
+    // The predicted head view the frame is recorded with.
     private float[] mHeadView;
-    private float[] mModelViewProjection;
-    private float[] mModelView;
-    private float[] mModelFloor;
 
-    private int mScore = 0;
-    private float mObjectDistance = 12f;
-    private float mFloorDepth = 20f;
+    private float mFloorDepth = WorldLayoutData.FLOOR_DEPTH;
+
+    private WorldSimulation mSimulation;
+    private FrameState mFrameState;
+    private long mLastFrameSequence = -1;
+    private int mStaleFrames;
+    private int mLateFrames;
 
     private Vibrator mVibrator;
 
-    private CardboardOverlayView mOverlayView;
+    private TraceExporter mTraceExporter;
 
+    private final HudRenderer mHud = new HudRenderer(mGl, TOASTS);
 
-    /**
-     * Converts a raw text file, saved as a resource, into an OpenGL ES shader
-     * @param type The type of shader we will be creating.
-     * @param resId The resource ID of the raw text file about to be turned into a shader.
-     * @return
+    private final ParticleSystem mParticles = new ParticleSystem(mGl);
+    private final float[] mParticleView = new float[16];
+    private int mLastBursts;
+    private long mLastParticleUpdateNanos;
+
+    private SessionLog.Writer mSessionWriter;
+    // Set while replaying; the UI thread checks it to ignore live triggers.
+    private volatile SessionLog.Reader mSessionReader;
+    private final SessionLog.Frame mSessionFrame = new SessionLog.Frame();
+    private final EyeParams[] mReplayEyes = new EyeParams[SessionLog.EYES];
+
+    /*
+     * Our own lens correction. Switching between it and the SDK's takes effect from the next
+     * frame on both sides, so the switch is decided at the end of a frame.
      */
-    private int loadGLShader(int type, int resId) {
-        String code = readRawTextFile(resId);
-        int shader = GLES20.glCreateShader(type);
-        GLES20.glShaderSource(shader, code);
-        GLES20.glCompileShader(shader);
+    private CardboardView mCardboardView;
+    private DistortionPass mDistortion;
+    // Whether the SDK's correction is off for this frame.
+    private boolean mDistortionActive;
+    // Whether this frame's eyes go through mDistortion.
+    private boolean mDrawingToPass;
+    private final float[] mPassPerspective = new float[16];
+    private long mFrameStartNanos;
+    private int mBenchmarkFrame;
+    // Indexed by whether our pass was used.
+    private final long[] mBenchmarkNanos = new long[2];
+    private final int[] mBenchmarkFrames = new int[2];
 
-        // Get the compilation status.
-        final int[] compileStatus = new int[1];
-        GLES20.glGetShaderiv(shader, GLES20.GL_COMPILE_STATUS, compileStatus, 0);
+    /*
+     * The distant part of the world, recorded from the middle of the head and drawn before the
+     * first eye that needs it.
+     */
+    private final FarField mFarField = new FarField(mGl);
+    private EyeRecordingWorker mFarFieldWorker;
+    // Whether this frame's eyes only draw their near field.
+    private boolean mFarFieldActive;
+    private boolean mFarFieldDrawn;
 
-        // If the compilation failed, delete the shader.
-        if (compileStatus[0] == 0) {
-            Log.e(TAG, "Error compiling shader: " + GLES20.glGetShaderInfoLog(shader));
-            GLES20.glDeleteShader(shader);
-            shader = 0;
-        }
+    /*
+     * Drawing both eyes in one pass, where the context can and the eyes are side by side. The
+     * pass needs to know where the other eye goes before it is asked for, so it goes by where
+     * each eye went last frame.
+     */
+    private StereoSceneRenderer mStereo;
+    private boolean mStereoFrame;
+    private boolean mStereoDrawn;
+    private final int[][] mEyeViewports = new int[3][4];
+    private final int[] mEyeFramebuffers = new int[3];
+    private final float[][] mEyePerspectives = new float[3][16];
+    private final float[] mStereoPerspective = new float[16];
+    private final float[] mFarFieldPerspective = new float[16];
+    private final float[] mNearPerspective = new float[16];
+    private final float[] mEyeFromShared = new float[16];
+    private final int[] mEyeViewport = new int[4];
+    private final int[] mEyeFramebuffer = new int[1];
+
+    /*
+     * Late frames show the last eye images again instead, turned to the newest head pose.
+     */
+    private final Reprojection mReprojection = new Reprojection(mGl);
+    private final FrameDeadline mDeadline = new FrameDeadline(FRAME_PERIOD_NANOS,
+            MAX_REPROJECTED_FRAMES);
+    private boolean mReprojecting;
+    private long mDrawStartNanos;
+    // The eye view the current eye is drawn with, after the late pose correction.
+    private final float[] mLatchedEyeView = new float[16];
 
-        if (shader == 0) {
-            throw new RuntimeException("Error creating shader.");
+    /*
+     * Quality follows the frame load, the battery and the phone's temperature.
+     */
+    private final QualityGovernor mQuality = new QualityGovernor(QualityGovernor.DEFAULT_TIERS,
+            FRAME_PERIOD_NANOS, QUALITY_DWELL_NANOS);
+    private final BroadcastReceiver mBatteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+            int tenths = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, Integer.MIN_VALUE);
+            float fraction = level >= 0 && scale > 0 ? level / (float) scale : 1f;
+            float celsius = tenths == Integer.MIN_VALUE ? Float.NaN : tenths / 10f;
+            mQuality.setBattery(fraction, plugged != 0, celsius);
+            Trace.counter(TRACE_BATTERY_LEVEL, fraction);
+            Trace.counter(TRACE_BATTERY_CHARGING, plugged != 0 ? 1 : 0);
+            Trace.counter(TRACE_BATTERY_TEMPERATURE, celsius);
         }
+    };
+
+    /*
+     * What the GPU offers and what its work costs, from the loader. A stored profile spares the
+     * calibration.
+     */
+    private GpuCapabilities mCapabilities;
+    private FastPaths mFastPaths;
+    // Set if the scene meshes are drawn from vertex array objects.
+    private SceneVertexArrays mVertexArrays;
+    private SharedPreferences mGpuProfiles;
+    private String mGpuProfileKey;
+    private GpuCalibration.Profile mGpuProfile;
+    private GpuCalibration mCalibration;
+    private String mCalibrationVertexSource;
+    private String mCalibrationFragmentSource;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+
+    /*
+     * Startup loading. CPU stages hand their results to GL stages through these fields; the
+     * loader's scheduling orders the accesses.
+     */
+    private StartupLoader mLoader;
+    private boolean mLoaded;
+    private long mCreateTimeNanos;
+    private boolean mFirstFrameLogged;
+
+    /*
+     * Every GL object, with the CPU-side data to recreate it after the context is lost.
+     */
+    private GpuResources mGpu;
+    private boolean mRestoring;
+    private GpuResources.Program mSceneProgram;
+    private GpuResources.Program mTextProgram;
+    private GpuResources.Texture mRobotTexture;
+    private GpuResources.Texture mUsbAndroidTexture;
+    private GpuResources.Texture mFloorLightmap;
+    private FloorGrid.Texture mFloorGridTexture;
+    private GpuResources.VertexBuffer mCubeVerticesObject;
+    private GpuResources.VertexBuffer mCubeColorsObject;
+    private GpuResources.VertexBuffer mCubeFoundColorsObject;
+    private GpuResources.VertexBuffer mCubeNormalsObject;
+    private GpuResources.VertexBuffer mCubeTextureCoordObject;
+    private GpuResources.VertexBuffer mFloorVerticesObject;
+    private GpuResources.VertexBuffer mFloorNormalsObject;
+    private GpuResources.VertexBuffer mFloorColorsObject;
+    private GpuResources.VertexBuffer mFloorLightmapCoordObject;
+    private GpuResources.VertexBuffer mFloorGridCoordObject;
+    private GpuResources.Resource mHudObjects;
+    private GpuResources.Program mParticleProgram;
+    private GpuResources.Resource mParticleObjects;
+    private GpuResources.Program mStereoProgram;
+    private GpuResources.Resource mStereoObjects;
+    private String mStereoVertexSource;
+    private String mStereoFragmentSource;
+    private GpuResources.Program mDistortionProgram;
+    private GpuResources.Resource mDistortionObjects;
+    private GpuResources.Program mImageProgram;
+    private GpuResources.Resource mFarFieldObjects;
+    private GpuResources.Resource mReprojectionObjects;
 
-        return shader;
-    }
 
     /**
      * Checks if we've had an error inside of OpenGL ES, and if so what that error is.
      * @param func
      */
-    private static void checkGLError(String func) {
+    private void checkGLError(String func) {
         int error;
-        while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
+        while ((error = mGl.glGetError()) != GLES20.GL_NO_ERROR) {
             Log.e(TAG, func + ": glError " + error);
             throw new RuntimeException(func + ": glError " + error);
         }
@@ -155,148 +402,797 @@ public class MainActivity extends CardboardActivity implements CardboardView.Ste
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreateTimeNanos = System.nanoTime();
 
         setContentView(R.layout.common_ui);
         CardboardView cardboardView = (CardboardView) findViewById(R.id.cardboard_view);
         cardboardView.setRenderer(this);
         setCardboardView(cardboardView);
+        mCardboardView = cardboardView;
+        mDistortion = new DistortionPass(mGl, getCacheDir());
 
-        mModelCube = new float[16];
-        mCamera = new float[16];
-        mView = new float[16];
-        mModelViewProjection = new float[16];
-        mModelView = new float[16];
-        mModelFloor = new float[16];
         mHeadView = new float[16];
+        mHeadTracker = new HeadTracker(this);
+        for (int eye = 0; eye < mEyeWorkers.length; eye++) {
+            mEyeWorkers[eye] = new EyeRecordingWorker(mHandles,
+                    new CommandBuffer(mGl, mGlExtensions, COMMAND_INTS, COMMAND_FLOATS));
+            mCapturedCommands[eye] =
+                    new CommandBuffer(mGl, mGlExtensions, COMMAND_INTS, COMMAND_FLOATS);
+        }
+        mFarFieldWorker = new EyeRecordingWorker(mHandles,
+                new CommandBuffer(mGl, mGlExtensions, COMMAND_INTS, COMMAND_FLOATS));
         mVibrator = (Vibrator) getSystemService(Context.VIBRATOR_SERVICE);
+        mSimulation = new WorldSimulation(this, openSession());
+        if (TRACING) {
+            Trace.enable(TRACE_CAPACITY);
+        }
 
+        mHud.showToast(TOAST_INTRO, 0);
+    }
 
-        mOverlayView = (CardboardOverlayView) findViewById(R.id.overlay);
-        mOverlayView.show3DToast("Pull the magnet when you find an object.");
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (Trace.isEnabled()) {
+            mTraceExporter = new TraceExporter(
+                    new File(getFilesDir(), "trace-" + System.currentTimeMillis() + ".json"));
+            mTraceExporter.start();
+        }
+        mHeadTracker.startTracking();
+        // The battery state is a sticky broadcast, so this also delivers the current one.
+        registerReceiver(mBatteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        mSimulation.start();
+        for (int eye = 0; eye < mEyeWorkers.length; eye++) {
+            mEyeWorkers[eye].start("EyeRecorder" + eye);
+        }
+        mFarFieldWorker.start("FarFieldRecorder");
+    }
+
+    @Override
+    protected void onPause() {
+        mSimulation.stop();
+        // Pausing the view stops the GL thread, so nobody is waiting on the workers any more.
+        super.onPause();
+        for (int eye = 0; eye < mEyeWorkers.length; eye++) {
+            mEyeWorkers[eye].stop();
+        }
+        mFarFieldWorker.stop();
+        mHeadTracker.stopTracking();
+        unregisterReceiver(mBatteryReceiver);
+        if (mSessionWriter != null) {
+            mSessionWriter.flush();
+        }
+        if (mTraceExporter != null) {
+            mTraceExporter.stop();
+            mTraceExporter = null;
+        }
+    }
+
+    /**
+     * Opens the session to record or replay, if any.
+     * @return The seed for the simulation: the recorded one when replaying.
+     */
+    private long openSession() {
+        long seed = System.nanoTime();
+        if (REPLAY_SESSION != null) {
+            File file = new File(getFilesDir(), REPLAY_SESSION);
+            try {
+                mSessionReader = new SessionLog.Reader(file);
+                seed = mSessionReader.getSeed();
+                Log.i(TAG, "Replaying " + file);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not open " + file + ", using live input", e);
+            }
+        } else if (RECORD_SESSION) {
+            File file = new File(getFilesDir(), "session-" + System.currentTimeMillis() + ".bin");
+            try {
+                mSessionWriter = new SessionLog.Writer(file, seed);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not create " + file, e);
+            }
+        }
+        return seed;
+    }
+
+    /**
+     * Keeps a copy of the command buffers of the next frame. Safe to call from any thread.
+     */
+    public void captureNextFrame() {
+        mCaptureNextFrame = true;
+    }
+
+    /**
+     * Toggles replaying the captured frame in place of live rendering, e.g. to inspect a single
+     * frame with a GL debugger. Safe to call from any thread.
+     */
+    public void setReplayCapturedFrame(boolean replay) {
+        mReplayCapturedFrame = replay;
     }
 
     @Override
     public void onRendererShutdown() {
         Log.i(TAG, "onRendererShutdown");
+        if (mLoader != null) {
+            mLoader.cancel();
+        }
+        Log.i(TAG, "Simulation snapshots: " + mStaleFrames + " stale, " + mLateFrames + " late");
+        logPredictionError();
+        Log.i(TAG, mParticles.describeUploads());
+        if (mFastPaths != null) {
+            Log.i(TAG, mFastPaths.describe());
+        }
+        Log.i(TAG, mDeadline.describe());
+        Log.i(TAG, mQuality.describe());
+        Log.i(TAG, GpuMemory.getShared().describe());
+        if (mGpu != null) {
+            Log.i(TAG, mGpu.describeEvictions());
+        }
+        if (BuildConfig.DEBUG) {
+            // The world's CPU-side copies are kept for restoring; anything else is a leak.
+            int live = DirectBufferPool.getShared().logLeaks();
+            Log.i(TAG, live + " direct buffers still live at shutdown");
+        }
+        if (mSessionWriter != null) {
+            mSessionWriter.close();
+            mSessionWriter = null;
+        }
     }
 
     @Override
     public void onSurfaceChanged(int width, int height) {
         Log.i(TAG, "onSurfaceChanged");
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
     }
 
     /**
-     * Creates the buffers we use to store information about the 3D world. OpenGL doesn't use Java
-     * arrays, but rather needs data in a format it can understand. Hence we use ByteBuffers.
+     * Sets up the GL state for a new surface and starts loading the world. Loading runs on a
+     * thread pool and in slices of the next frames, which show a progress bar until it is done.
+     * If the world was loaded before, its GL objects are restored from the CPU-side copies instead.
      * @param config The EGL configuration used when creating the surface.
      */
     @Override
     public void onSurfaceCreated(EGLConfig config) {
-        
         Log.i(TAG, "onSurfaceCreated");
-        GLES20.glClearColor(0.1f, 0.1f, 0.1f, 0.5f); // Dark background so text shows up well
+        Trace.nameCurrentThread("GLThread");
+        Trace.begin(TRACE_SURFACE_CREATED);
+        mGl.glClearColor(0.1f, 0.1f, 0.1f, 0.5f); // Dark background so text shows up well
+
+        /*
+         * Enables depth test. For depth test, the depth buffer is used to determine where
+         * in the z-axis a fragment is placed.
+         */
+        mGl.glEnable(GLES20.GL_DEPTH_TEST);
+
+        /*
+         * Position Floor. The cube is positioned by the simulation.
+         */
+        Matrix.setIdentityM(mHandles.floorModel,    // The matrix
+                                0               // Offset ??
+        );
+        
+        Matrix.translateM(mHandles.floorModel,      // The matrix
+                              0,                // Offset ??
+                              0,                // x-co-ordinate
+                             -mFloorDepth,      // y-co-ordinate
+                              0                 // z-co-ordinate
+        ); // Floor appears -mFloorDepth units below user
+        
+        /*
+         *  Build the camera matrix. The head and eye transforms are applied on top of it.
+         */
+        // Defines a viewing transformation in terms of an eye-point, a centre of view
+        // and an up-vector
+        Matrix.setLookAtM(mHandles.camera, // The matrix
+                              0,           // Offset ??
+                              0.0f,        // eye x
+                              0.0f,        // eye y
+                              CAMERA_Z,    // eye z
+                              0.0f,        // C.O.V. x
+                              0.0f,        // C.O.V. y
+                              0.0f,        // C.O.V. z
+                              0.0f,        // up-vector x
+                              1.0f,        // up-vector y
+                              0.0f         // up-vector z
+        );
+
+        // Captured commands refer to objects of the previous context, if there was one.
+        for (int eye = 0; eye < mCapturedCommands.length; eye++) {
+            mCapturedCommands[eye].reset();
+        }
+
+        mLoaded = false;
+        GpuMemory.getShared().onContextLost();
+        if (mLoader != null && mLoader.isDone()) {
+            // The previous context was lost, but everything it held is still on the CPU side.
+            mGpu.onContextLost();
+            mHud.onContextLost();
+            mParticles.onContextLost();
+            if (mVertexArrays != null) {
+                mVertexArrays.forget(mHandles);
+            }
+            if (mStereo != null) {
+                mStereo.onContextLost();
+            }
+            mDistortion.onContextLost();
+            mFarField.onContextLost();
+            mReprojection.onContextLost();
+            mRestoring = true;
+        } else {
+            if (mLoader != null) {
+                mLoader.cancel();
+            }
+            mGpu = new GpuResources(mGl);
+            mGpu.setBudget(GPU_MEMORY_BUDGET_BYTES);
+            mLoader = createLoader(mGpu);
+            mLoader.start();
+        }
+
+        checkGLError("onSurfaceCreated");
+        Trace.end(TRACE_SURFACE_CREATED);
+    }
+
+    /**
+     * Describes loading the world as a graph of CPU stages feeding GL stages. The CPU stages
+     * register every GL object with {@code gpu} along with the data to create it from.
+     */
+    private StartupLoader createLoader(final GpuResources gpu) {
+        StartupLoader loader = new StartupLoader();
+
+        StartupLoader.Stage readShaders = loader.add(new StartupLoader.Stage("readShaders", false) {
+            @Override
+            protected void run() {
+                mSceneProgram = gpu.register(new GpuResources.Program("scene", PRIORITY_WORLD,
+                        readRawTextFile(R.raw.light_vertex), readRawTextFile(R.raw.grid_fragment),
+                        new String[] {"a_Position", "a_Color", "a_Normal", "a_TexCoordinate",
+                                "a_LightmapCoord"}));
+                mTextProgram = gpu.register(new GpuResources.Program("text", PRIORITY_HUD,
+                        readRawTextFile(R.raw.sdf_text_vertex),
+                        readRawTextFile(R.raw.sdf_text_fragment),
+                        new String[] {"a_Position", "a_TexCoordinate"}));
+                mParticleProgram = gpu.register(new GpuResources.Program("particles",
+                        PRIORITY_EFFECTS, readRawTextFile(R.raw.particle_vertex),
+                        readRawTextFile(R.raw.particle_fragment), new String[] {"a_Position"}));
+                if (FAST_PATHS) {
+                    // Only built if the context turns out to be GLES 3.
+                    mStereoVertexSource = readRawTextFile(R.raw.stereo_vertex);
+                    mStereoFragmentSource = readRawTextFile(R.raw.stereo_fragment);
+                }
+                mParticleObjects = gpu.register(new GpuResources.Resource("particleBuffers",
+                        PRIORITY_EFFECTS) {
+                    @Override
+                    protected int create(Gl gl) {
+                        gpu.ensureCreated(mParticleProgram);
+                        mParticles.onSurfaceCreated(mParticleProgram.getHandle());
+                        return mParticleProgram.getHandle();
+                    }
+
+                    @Override
+                    protected int getSizeBytes() {
+                        return 0;
+                    }
+                });
+                if (CUSTOM_DISTORTION || DISTORTION_BENCHMARK) {
+                    registerDistortion(gpu);
+                }
+                if (FAR_FIELD || REPROJECTION) {
+                    registerImagePasses(gpu);
+                }
+            }
+        });
+        StartupLoader.Stage packGeometry = loader.add(new StartupLoader.Stage("packGeometry", false) {
+            @Override
+            protected void run() {
+                packGeometry();
+                registerGeometry(gpu);
+            }
+        });
+        StartupLoader.Stage readGpuProfiles = loader.add(
+                new StartupLoader.Stage("readGpuProfiles", false) {
+            @Override
+            protected void run() {
+                mGpuProfiles = getSharedPreferences(GPU_PROFILES, Context.MODE_PRIVATE);
+                if (CALIBRATION) {
+                    mCalibrationVertexSource = readRawTextFile(R.raw.calibration_vertex);
+                    mCalibrationFragmentSource = readRawTextFile(R.raw.calibration_fragment);
+                }
+            }
+        });
+        StartupLoader.Stage decodeRobot = loader.add(new StartupLoader.Stage("decodeRobot", false) {
+            @Override
+            protected void run() {
+                mRobotTexture = gpu.register(new GpuResources.Texture("robot", PRIORITY_WORLD,
+                        TextureHelper.decodeBitmap(MainActivity.this, R.drawable.robot)));
+            }
+        });
+        StartupLoader.Stage decodeUsbAndroid = loader.add(
+                new StartupLoader.Stage("decodeUsbAndroid", false) {
+            @Override
+            protected void run() {
+                mUsbAndroidTexture = gpu.register(new GpuResources.Texture("usbAndroid",
+                        PRIORITY_WORLD,
+                        TextureHelper.decodeBitmap(MainActivity.this, R.drawable.usb_android)));
+            }
+        });
+        StartupLoader.Stage decodeFloorLightmap = loader.add(
+                new StartupLoader.Stage("decodeFloorLightmap", false) {
+            @Override
+            protected void run() {
+                // Baked offline by tools/.../LightmapBaker; filtered, as it is magnified a lot.
+                mFloorLightmap = gpu.register(new GpuResources.Texture("floorLightmap",
+                        PRIORITY_WORLD,
+                        TextureHelper.decodeBitmap(MainActivity.this, R.drawable.floor_lightmap),
+                        GLES20.GL_LINEAR));
+            }
+        });
+        StartupLoader.Stage buildFloorGrid = loader.add(
+                new StartupLoader.Stage("buildFloorGrid", false) {
+            @Override
+            protected void run() {
+                mFloorGridTexture = gpu.register(new FloorGrid.Texture("floorGrid",
+                        PRIORITY_WORLD));
+            }
+        });
+        StartupLoader.Stage buildGlyphs = loader.add(new StartupLoader.Stage("buildGlyphs", false) {
+            @Override
+            protected void run() {
+                // The HUD keeps its own atlas pixels and text layout.
+                mHud.buildAtlas();
+                mHudObjects = gpu.register(new GpuResources.Resource("hud", PRIORITY_HUD) {
+                    @Override
+                    protected int create(Gl gl) {
+                        gpu.ensureCreated(mTextProgram);
+                        mHud.onSurfaceCreated(mTextProgram.getHandle());
+                        return mTextProgram.getHandle();
+                    }
+
+                    @Override
+                    protected int getSizeBytes() {
+                        return SdfGlyphAtlas.WIDTH * SdfGlyphAtlas.HEIGHT;
+                    }
+                });
+            }
+        });
+
+        StartupLoader.Stage probeGpu = loader.add(new StartupLoader.Stage("probeGpu", true) {
+            @Override
+            protected void run() {
+                probeGpu();
+            }
+        }, readGpuProfiles);
+        // One measurement per stage, so each frame of the loading screen waits for only one.
+        StartupLoader.Stage calibrateFill = loader.add(
+                new StartupLoader.Stage("calibrateFill", true) {
+            @Override
+            protected void run() {
+                if (mCalibration != null) {
+                    mCalibration.measureFill();
+                }
+            }
+        }, probeGpu);
+        StartupLoader.Stage calibrateLights = loader.add(
+                new StartupLoader.Stage("calibrateLights", true) {
+            @Override
+            protected void run() {
+                if (mCalibration != null) {
+                    mCalibration.measureLights();
+                }
+            }
+        }, calibrateFill);
+        StartupLoader.Stage calibrateVertices = loader.add(
+                new StartupLoader.Stage("calibrateVertices", true) {
+            @Override
+            protected void run() {
+                if (mCalibration != null) {
+                    mCalibration.measureVertices();
+                }
+            }
+        }, calibrateLights);
+        loader.add(new StartupLoader.Stage("chooseQuality", true) {
+            @Override
+            protected void run() {
+                chooseQuality();
+            }
+        }, calibrateVertices, packGeometry);
+
+        loader.add(new StartupLoader.Stage("compileScene", true) {
+            @Override
+            protected void run() {
+                gpu.ensureCreated(mSceneProgram);
+            }
+        }, readShaders);
+        loader.add(new StartupLoader.Stage("uploadGeometry", true) {
+            @Override
+            protected void run() {
+                gpu.ensureCreated(mCubeVerticesObject);
+                gpu.ensureCreated(mCubeColorsObject);
+                gpu.ensureCreated(mCubeFoundColorsObject);
+                gpu.ensureCreated(mCubeNormalsObject);
+                gpu.ensureCreated(mCubeTextureCoordObject);
+                gpu.ensureCreated(mFloorVerticesObject);
+                gpu.ensureCreated(mFloorNormalsObject);
+                gpu.ensureCreated(mFloorColorsObject);
+                gpu.ensureCreated(mFloorLightmapCoordObject);
+                gpu.ensureCreated(mFloorGridCoordObject);
+            }
+        }, packGeometry);
+        loader.add(new StartupLoader.Stage("uploadRobot", true) {
+            @Override
+            protected void run() {
+                gpu.ensureCreated(mRobotTexture);
+            }
+        }, decodeRobot);
+        loader.add(new StartupLoader.Stage("uploadUsbAndroid", true) {
+            @Override
+            protected void run() {
+                gpu.ensureCreated(mUsbAndroidTexture);
+            }
+        }, decodeUsbAndroid);
+        loader.add(new StartupLoader.Stage("uploadFloorLightmap", true) {
+            @Override
+            protected void run() {
+                gpu.ensureCreated(mFloorLightmap);
+            }
+        }, decodeFloorLightmap);
+        loader.add(new StartupLoader.Stage("uploadFloorGrid", true) {
+            @Override
+            protected void run() {
+                gpu.ensureCreated(mFloorGridTexture);
+            }
+        }, buildFloorGrid);
+        loader.add(new StartupLoader.Stage("setUpHud", true) {
+            @Override
+            protected void run() {
+                gpu.ensureCreated(mHudObjects);
+            }
+        }, readShaders, buildGlyphs);
+        loader.add(new StartupLoader.Stage("setUpParticles", true) {
+            @Override
+            protected void run() {
+                gpu.ensureCreated(mParticleObjects);
+            }
+        }, readShaders);
+        if (CUSTOM_DISTORTION || DISTORTION_BENCHMARK) {
+            loader.add(new StartupLoader.Stage("setUpDistortion", true) {
+                @Override
+                protected void run() {
+                    gpu.ensureCreated(mDistortionObjects);
+                }
+            }, readShaders);
+        }
+        if (FAR_FIELD) {
+            loader.add(new StartupLoader.Stage("setUpFarField", true) {
+                @Override
+                protected void run() {
+                    gpu.ensureCreated(mFarFieldObjects);
+                }
+            }, readShaders);
+        }
+        if (REPROJECTION) {
+            loader.add(new StartupLoader.Stage("setUpReprojection", true) {
+                @Override
+                protected void run() {
+                    gpu.ensureCreated(mReprojectionObjects);
+                }
+            }, readShaders);
+        }
+        if (FAST_PATHS) {
+            loader.add(new StartupLoader.Stage("setUpStereo", true) {
+                @Override
+                protected void run() {
+                    if (mFastPaths.instancedStereo) {
+                        registerStereo(gpu);
+                    }
+                }
+            }, probeGpu, readShaders);
+        }
+
+        return loader;
+    }
+
+    /**
+     * Reads what the context offers, and looks for a profile of this GPU and driver. Without one,
+     * sets up a calibration to measure it.
+     */
+    private void probeGpu() {
+        mCapabilities = GpuCapabilities.probe(mGl);
+        Log.i(TAG, mCapabilities.describe());
+        mFarField.setMaxTargetSize(mCapabilities);
+        mFastPaths = FastPaths.choose(mCapabilities, mGlExtensions, FAST_PATHS);
+        Log.i(TAG, mFastPaths.describe());
+        mParticles.setMapper(mFastPaths.mappedBuffers ? mFastPaths.getExtensions() : null);
+        mVertexArrays = mFastPaths.vertexArrays
+                ? new SceneVertexArrays(mGl, mFastPaths.getExtensions(), mInlineRecorder) : null;
+        mGpuProfileKey = mCapabilities.getProfileKey(Build.FINGERPRINT);
+        mGpuProfile = GpuCalibration.Profile.parse(mGpuProfiles.getString(mGpuProfileKey, null));
+        mCalibration = null;
+        if (mGpuProfile == null && CALIBRATION) {
+            mCalibration = new GpuCalibration(mGl);
+            mCalibration.begin(mCalibrationVertexSource, mCalibrationFragmentSource);
+        }
+    }
+
+    /**
+     * Registers and creates the one-pass stereo program and its uniform buffers. Registered from
+     * the GL thread, once the context is known to be GLES 3 and the shaders have been read, so
+     * that restoring a lost context brings them back with the world.
+     */
+    private void registerStereo(final GpuResources gpu) {
+        mStereo = new StereoSceneRenderer(mGl, mFastPaths.getExtensions(), mHandles,
+                mCapabilities.hasExtension(FastPaths.CLIP_CULL_DISTANCE));
+        // The scene program's attributes, in the same order, so the vertex arrays fit both.
+        mStereoProgram = gpu.register(new GpuResources.Program("stereoScene", PRIORITY_WORLD,
+                mStereoVertexSource, mStereoFragmentSource,
+                new String[] {"a_Position", "a_Color", "a_Normal", "a_TexCoordinate",
+                        "a_LightmapCoord"}));
+        mStereoObjects = gpu.register(new GpuResources.Resource("stereoBuffers", PRIORITY_WORLD) {
+            @Override
+            protected int create(Gl gl) {
+                gpu.ensureCreated(mStereoProgram);
+                mStereo.onSurfaceCreated(mStereoProgram.getHandle());
+                return mStereoProgram.getHandle();
+            }
+
+            @Override
+            protected int getSizeBytes() {
+                return 0;
+            }
+        });
+        gpu.ensureCreated(mStereoObjects);
+    }
+
+    /**
+     * Stores the calibration's results, if one ran, and starts quality at the tier the GPU's
+     * profile suggests for this screen and scene.
+     */
+    private void chooseQuality() {
+        if (mCalibration != null) {
+            mGpuProfile = mCalibration.end();
+            mCalibration = null;
+            if (mGpuProfile != null) {
+                mGpuProfiles.edit().putString(mGpuProfileKey, mGpuProfile.toString()).apply();
+            }
+        }
+        if (mGpuProfile == null || mSurfaceWidth == 0) {
+            return;
+        }
+        long pixels = (long) mSurfaceWidth * mSurfaceHeight;
+        int vertices = 2 * (mFloorVertices.capacity() + mCubeVertices.capacity()) / 3;
+        mQuality.startAt(mGpuProfile.chooseTier(QualityGovernor.DEFAULT_TIERS, pixels, vertices,
+                FRAME_PERIOD_NANOS));
+        Log.i(TAG, mGpuProfile.describe() + "; starting at quality " + mQuality.getTier());
+        applyQualityTier();
+    }
+
+    /**
+     * Registers the lens correction program. The pass creates its target and mesh buffers on the
+     * first frame, once it knows the viewer.
+     */
+    private void registerDistortion(final GpuResources gpu) {
+        mDistortionProgram = gpu.register(new GpuResources.Program("distortion",
+                PRIORITY_EFFECTS, readRawTextFile(R.raw.distortion_vertex),
+                readRawTextFile(R.raw.distortion_fragment),
+                new String[] {"a_Position", "a_Vignette", "a_TexCoordinate"}));
+        mDistortionObjects = gpu.register(new GpuResources.Resource("distortionPass",
+                PRIORITY_EFFECTS) {
+            @Override
+            protected int create(Gl gl) {
+                gpu.ensureCreated(mDistortionProgram);
+                mDistortion.onSurfaceCreated(mDistortionProgram.getHandle());
+                return mDistortionProgram.getHandle();
+            }
+
+            @Override
+            protected int getSizeBytes() {
+                return 0;
+            }
+        });
+    }
+
+    /**
+     * Registers the program that draws offscreen images on quads, for the far field and
+     * reprojection. Both create their targets once they have seen the eyes.
+     */
+    private void registerImagePasses(final GpuResources gpu) {
+        mImageProgram = gpu.register(new GpuResources.Program("image", PRIORITY_EFFECTS,
+                readRawTextFile(R.raw.simple_image_vertex),
+                readRawTextFile(R.raw.simple_image_fragment),
+                new String[] {"a_Position", "a_TexCoordinate"}));
+        if (FAR_FIELD) {
+            mFarFieldObjects = gpu.register(new GpuResources.Resource("farField",
+                    PRIORITY_EFFECTS) {
+                @Override
+                protected int create(Gl gl) {
+                    gpu.ensureCreated(mImageProgram);
+                    mFarField.onSurfaceCreated(mImageProgram.getHandle());
+                    return mImageProgram.getHandle();
+                }
+
+                @Override
+                protected int getSizeBytes() {
+                    return 0;
+                }
+            });
+        }
+        if (REPROJECTION) {
+            mReprojectionObjects = gpu.register(new GpuResources.Resource("reprojection",
+                    PRIORITY_EFFECTS) {
+                @Override
+                protected int create(Gl gl) {
+                    gpu.ensureCreated(mImageProgram);
+                    mReprojection.onSurfaceCreated(mImageProgram.getHandle());
+                    return mImageProgram.getHandle();
+                }
+
+                @Override
+                protected int getSizeBytes() {
+                    return 0;
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates the buffers we use to store information about the 3D world. OpenGL doesn't use Java
+     * arrays, but rather needs data in a format it can understand. Hence we use ByteBuffers.
+     */
+    private void packGeometry() {
+        DirectBufferPool pool = DirectBufferPool.getShared();
 
         /*
          * Make a cube
          */
-        ByteBuffer bbVertices = ByteBuffer.allocateDirect(DATA.CUBE_COORDS.length * 4);
-        bbVertices.order(ByteOrder.nativeOrder());
+        ByteBuffer bbVertices = pool.allocate(DATA.CUBE_COORDS.length * 4);
         mCubeVertices = bbVertices.asFloatBuffer();
         mCubeVertices.put(DATA.CUBE_COORDS);
         mCubeVertices.position(0);
 
-        ByteBuffer bbColors = ByteBuffer.allocateDirect(DATA.CUBE_COLORS.length * 4);
-        bbColors.order(ByteOrder.nativeOrder());
+        ByteBuffer bbColors = pool.allocate(DATA.CUBE_COLORS.length * 4);
         mCubeColors = bbColors.asFloatBuffer();
         mCubeColors.put(DATA.CUBE_COLORS);
         mCubeColors.position(0);
 
-        ByteBuffer bbFoundColors = ByteBuffer.allocateDirect(DATA.CUBE_FOUND_COLORS.length * 4);
-        bbFoundColors.order(ByteOrder.nativeOrder());
+        ByteBuffer bbFoundColors = pool.allocate(WorldLayoutData.CUBE_FOUND_COLORS.length * 4);
         mCubeFoundColors = bbFoundColors.asFloatBuffer();
-        mCubeFoundColors.put(DATA.CUBE_FOUND_COLORS);
+        mCubeFoundColors.put(WorldLayoutData.CUBE_FOUND_COLORS);
         mCubeFoundColors.position(0);
 
-        ByteBuffer bbNormals = ByteBuffer.allocateDirect(DATA.CUBE_NORMALS.length * 4);
-        bbNormals.order(ByteOrder.nativeOrder());
+        ByteBuffer bbNormals = pool.allocate(DATA.CUBE_NORMALS.length * 4);
         mCubeNormals = bbNormals.asFloatBuffer();
         mCubeNormals.put(DATA.CUBE_NORMALS);
         mCubeNormals.position(0);
         
-        ByteBuffer bbTexture = ByteBuffer.allocateDirect(DATA.CUBE_TEXTURE.length * 4);
-        bbTexture.order(ByteOrder.nativeOrder());
+        ByteBuffer bbTexture = pool.allocate(DATA.CUBE_TEXTURE.length * 4);
         mCubeTextureCoord = bbTexture.asFloatBuffer();
         mCubeTextureCoord.put(DATA.CUBE_TEXTURE);
         mCubeTextureCoord.position(0);
 
         /* 
-         * Make a floor
+         * Make a floor, tessellated so its lighting and grid fade have vertices near the user.
          */
-        ByteBuffer bbFloorVertices = ByteBuffer.allocateDirect(DATA.FLOOR_COORDS.length * 4);
-        bbFloorVertices.order(ByteOrder.nativeOrder());
+        mFloorGrid = new FloorGrid(WorldLayoutData.FLOOR_COORDS, WorldLayoutData.FLOOR_NORMALS,
+                WorldLayoutData.FLOOR_COLORS);
+        float[] floorCoords = mFloorGrid.getCoords();
+        ByteBuffer bbFloorVertices = pool.allocate(floorCoords.length * 4);
         mFloorVertices = bbFloorVertices.asFloatBuffer();
-        mFloorVertices.put(DATA.FLOOR_COORDS);
+        mFloorVertices.put(floorCoords);
         mFloorVertices.position(0);
 
-        ByteBuffer bbFloorNormals = ByteBuffer.allocateDirect(DATA.FLOOR_NORMALS.length * 4);
-        bbFloorNormals.order(ByteOrder.nativeOrder());
+        float[] floorNormals = mFloorGrid.getNormals();
+        ByteBuffer bbFloorNormals = pool.allocate(floorNormals.length * 4);
         mFloorNormals = bbFloorNormals.asFloatBuffer();
-        mFloorNormals.put(DATA.FLOOR_NORMALS);
+        mFloorNormals.put(floorNormals);
         mFloorNormals.position(0);
 
-        ByteBuffer bbFloorColors = ByteBuffer.allocateDirect(DATA.FLOOR_COLORS.length * 4);
-        bbFloorColors.order(ByteOrder.nativeOrder());
+        float[] floorColors = mFloorGrid.getColors();
+        ByteBuffer bbFloorColors = pool.allocate(floorColors.length * 4);
         mFloorColors = bbFloorColors.asFloatBuffer();
-        mFloorColors.put(DATA.FLOOR_COLORS);
+        mFloorColors.put(floorColors);
         mFloorColors.position(0);
 
-        // Load the vertex, grid & texture shaders
-        int vertexShader = loadGLShader(GLES20.GL_VERTEX_SHADER, R.raw.light_vertex);
-        int gridShader = loadGLShader(GLES20.GL_FRAGMENT_SHADER, R.raw.grid_fragment);
-
-        mProgramHandler = ShaderHelper.createAndLinkProgram(vertexShader, gridShader,
-                          new String[] {"a_Position",  
-                                        "a_Color", 
-                                        "a_Normal", 
-                                        "a_TexCoordinate"
-                                       }
-                          );
+        // The patch has the outline's bounds, so it maps onto the lightmap the same way.
+        float[] floorLightmapCoords = LightmapUvs.generate(floorCoords, floorNormals,
+                WorldLayoutData.FLOOR_LIGHTMAP_SIZE);
+        ByteBuffer bbFloorLightmapCoords = pool.allocate(floorLightmapCoords.length * 4);
+        mFloorLightmapCoord = bbFloorLightmapCoords.asFloatBuffer();
+        mFloorLightmapCoord.put(floorLightmapCoords);
+        mFloorLightmapCoord.position(0);
+
+        float[] floorGridCoords = mFloorGrid.getGridCoords();
+        ByteBuffer bbFloorGridCoords = pool.allocate(floorGridCoords.length * 4);
+        mFloorGridCoord = bbFloorGridCoords.asFloatBuffer();
+        mFloorGridCoord.put(floorGridCoords);
+        mFloorGridCoord.position(0);
+    }
+
+    /**
+     * Registers the packed geometry, so it can be uploaded and later restored.
+     */
+    private void registerGeometry(GpuResources gpu) {
+        mCubeVerticesObject = gpu.register(new GpuResources.VertexBuffer("cubeVertices",
+                PRIORITY_WORLD, mCubeVertices, mCubeVertices.capacity() * 4));
+        mCubeColorsObject = gpu.register(new GpuResources.VertexBuffer("cubeColors",
+                PRIORITY_WORLD, mCubeColors, mCubeColors.capacity() * 4));
+        mCubeFoundColorsObject = gpu.register(new GpuResources.VertexBuffer("cubeFoundColors",
+                PRIORITY_WORLD, mCubeFoundColors, mCubeFoundColors.capacity() * 4));
+        mCubeNormalsObject = gpu.register(new GpuResources.VertexBuffer("cubeNormals",
+                PRIORITY_WORLD, mCubeNormals, mCubeNormals.capacity() * 4));
+        mCubeTextureCoordObject = gpu.register(new GpuResources.VertexBuffer("cubeTextureCoord",
+                PRIORITY_WORLD, mCubeTextureCoord, mCubeTextureCoord.capacity() * 4));
+        mFloorVerticesObject = gpu.register(new GpuResources.VertexBuffer("floorVertices",
+                PRIORITY_WORLD, mFloorVertices, mFloorVertices.capacity() * 4));
+        mFloorNormalsObject = gpu.register(new GpuResources.VertexBuffer("floorNormals",
+                PRIORITY_WORLD, mFloorNormals, mFloorNormals.capacity() * 4));
+        mFloorColorsObject = gpu.register(new GpuResources.VertexBuffer("floorColors",
+                PRIORITY_WORLD, mFloorColors, mFloorColors.capacity() * 4));
+        mFloorLightmapCoordObject = gpu.register(new GpuResources.VertexBuffer(
+                "floorLightmapCoord", PRIORITY_WORLD, mFloorLightmapCoord,
+                mFloorLightmapCoord.capacity() * 4));
+        mFloorGridCoordObject = gpu.register(new GpuResources.VertexBuffer("floorGridCoord",
+                PRIORITY_WORLD, mFloorGridCoord, mFloorGridCoord.capacity() * 4));
+    }
+
+    /**
+     * Copies the current GL names into the handles the recorders use, and looks up the shader
+     * variables of the scene program. Called whenever the world's objects have been (re)created.
+     */
+    private void bindSceneHandles() {
+        mHandles.program = mSceneProgram.getHandle();
+
         /*
-         * Enables depth test. For depth test, the depth buffer is used to determine where
-         * in the z-axis a fragment is placed.
+         * Get the location of various uniform variables.
+         *
+         * Uniform variables: variables that act as constants for the duration of
+         * a draw call. The u_MVP 4x4 matrix applies to all vertices and not any
+         * particular vertex, hence why it is a uniform variable.
          */
-        GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+        mHandles.modelViewProjection = mGl.glGetUniformLocation(mHandles.program, "u_MVP");
+        mHandles.lightPositions = mGl.glGetUniformLocation(mHandles.program, "u_LightPos");
+        mHandles.lightColors = mGl.glGetUniformLocation(mHandles.program, "u_LightColor");
+        mHandles.lightCount = mGl.glGetUniformLocation(mHandles.program, "u_LightCount");
+        mHandles.modelView = mGl.glGetUniformLocation(mHandles.program, "u_MVMatrix");
+        mHandles.isFloor = mGl.glGetUniformLocation(mHandles.program, "u_IsFloor");
+        mHandles.texture = mGl.glGetUniformLocation(mHandles.program, "u_Texture");
+        mHandles.lightmap = mGl.glGetUniformLocation(mHandles.program, "u_Lightmap");
 
         /*
-         * Position Cube & Floor
+         * Get the location of an attribute variable.
+         *
+         * Attribute variables: variables that represent vertex attributes.
+         * Examples of vertex attributes include: position, normal & color.
          */
-        Matrix.setIdentityM(mModelCube,     // The matrix
-                                0               // Offset ??
-        );
-        
-        Matrix.translateM(mModelCube,       // The matrix
-                              0,                // Offset ??
-                              0,                // x-co-ordinate
-                              0,                // y-co-ordinate
-                             -mObjectDistance   // z-co-ordinate
-        ); // Cube appears -mObjectDistance units behind the user
-
-        Matrix.setIdentityM(mModelFloor,    // The matrix
-                                0               // Offset ??
-        );
-        
-        Matrix.translateM(mModelFloor,      // The matrix
-                              0,                // Offset ??
-                              0,                // x-co-ordinate
-                             -mFloorDepth,      // y-co-ordinate
-                              0                 // z-co-ordinate
-        ); // Floor appears -mFloorDepth units below user
-        
-        // Load the texture
-        mTextureDataHandler = TextureHelper.loadTexture(this, R.drawable.robot);
-        mTextureFoundHandler = TextureHelper.loadTexture(this, R.drawable.usb_android);
+        mHandles.position = mGl.glGetAttribLocation(mHandles.program, "a_Position");
+        mHandles.normal = mGl.glGetAttribLocation(mHandles.program, "a_Normal");
+        mHandles.color = mGl.glGetAttribLocation(mHandles.program, "a_Color");
+        mHandles.textureCoordinate = mGl.glGetAttribLocation(mHandles.program, "a_TexCoordinate");
+        mHandles.lightmapCoordinate =
+                mGl.glGetAttribLocation(mHandles.program, "a_LightmapCoord");
+
+        bindGeometryHandles();
+    }
 
-        checkGLError("onSurfaceCreated");
+    private void bindGeometryHandles() {
+        /*
+         * The geometry lives in buffer objects, so recorded commands can refer to it by name.
+         */
+        mHandles.cubeVertices = mCubeVerticesObject.getHandle();
+        mHandles.cubeColors = mCubeColorsObject.getHandle();
+        mHandles.cubeFoundColors = mCubeFoundColorsObject.getHandle();
+        mHandles.cubeNormals = mCubeNormalsObject.getHandle();
+        mHandles.cubeTextureCoords = mCubeTextureCoordObject.getHandle();
+        mHandles.floorVertices = mFloorVerticesObject.getHandle();
+        mHandles.floorNormals = mFloorNormalsObject.getHandle();
+        mHandles.floorColors = mFloorColorsObject.getHandle();
+        mHandles.floorLightmapCoords = mFloorLightmapCoordObject.getHandle();
+        mHandles.floorGridCoords = mFloorGridCoordObject.getHandle();
+        mHandles.floorVertexCount = mFloorGrid.getVertexCount();
+        mHandles.cubeTexture = mRobotTexture.getHandle();
+        mHandles.cubeFoundTexture = mUsbAndroidTexture.getHandle();
+        mHandles.floorLightmap = mFloorLightmap.getHandle();
+        mHandles.floorGrid = mFloorGridTexture.getHandle();
+        if (mVertexArrays != null) {
+            mVertexArrays.build(mHandles);
+        }
     }
 
     /**
@@ -327,61 +1223,197 @@ public class MainActivity extends CardboardActivity implements CardboardView.Ste
      */
     @Override
     public void onNewFrame(HeadTransform headTransform) {
-        
+        Trace.begin(TRACE_NEW_FRAME);
+        mFrameStartNanos = System.nanoTime();
+        mDrawingToPass = false;
+        mReprojecting = false;
         /*
-         *  Install the specified program as the current rendering state
+         * Pick up the latest world snapshot and kick off the next simulation step, which runs
+         * while we render this one.
          */
-        GLES20.glUseProgram(mProgramHandler);
+        mFrameState = mSimulation.acquireLatest();
+        long snapshotAge = System.nanoTime() - mFrameState.publishTimeNanos;
+        if (mFrameState.sequence == mLastFrameSequence) {
+            mStaleFrames++;
+        } else if (snapshotAge > FRAME_PERIOD_NANOS) {
+            mLateFrames++;
+        }
+        mLastFrameSequence = mFrameState.sequence;
+        Trace.counter(TRACE_SNAPSHOT_AGE, snapshotAge / 1e6);
+
+        mCapturingFrame = mCaptureNextFrame && !mReplayCapturedFrame;
+        mCaptureNextFrame = false;
 
         /*
-         * Get the location of various uniform variables.
-         * 
-         * Uniform variables: variables that act as constants for the duration of 
-         * a draw call. The u_MVP 4x4 matrix applies to all vertices and not any
-         * particular vertex, hence why it is a uniform variable.
+         * Predict the head pose at the time this frame will be on the display. Only the rotation
+         * is predicted; any translation comes straight from the SDK.
          */
-        mModelViewProjectionHandler = GLES20.glGetUniformLocation(mProgramHandler,  /* The program to be queried */
-                                                                "u_MVP"           /* The name of the uniform variable 
-                                                                                     whose location is to be queried  */
-        );
-        mLightPosHandler = GLES20.glGetUniformLocation(mProgramHandler, "u_LightPos");
-        mModelViewHandler = GLES20.glGetUniformLocation(mProgramHandler, "u_MVMatrix");
-        mModelHandler = GLES20.glGetUniformLocation(mProgramHandler, "u_Model");
-        mIsFloorHandler = GLES20.glGetUniformLocation(mProgramHandler, "u_IsFloor");
-        
+        long now = System.nanoTime();
+        if (nextReplayFrame(now)) {
+            now = mSessionFrame.timeNanos;
+        } else {
+            headTransform.getHeadView(mSdkHeadView, 0);
+            mHeadTracker.getLastHeadView(mTrackerAtFrameStart, 0);
+            if (mSessionWriter != null) {
+                mSessionWriter.beginFrame(now, mSdkHeadView, mTrackerAtFrameStart);
+            }
+        }
+        mDisplayTimeNanos = now + DISPLAY_LATENCY_NANOS;
+        mPosePredictor.addSample(now, mSdkHeadView);
+        System.arraycopy(mSdkHeadView, 0, mHeadView, 0, 16);
+        mPosePredictor.predict(mDisplayTimeNanos, mHeadView);
+
+        mSimulation.setHeadView(mHeadView, mDisplayTimeNanos);
+        mSimulation.requestFrame();
+
+        if (!mLoaded) {
+            if (mRestoring) {
+                // Only the world is needed to draw again; the rest is restored in later frames.
+                mLoaded = mGpu.restore(PRIORITY_WORLD, LOAD_SLICE_NANOS);
+                if (mLoaded) {
+                    Log.i(TAG, String.format("World restored %.1f ms after context loss",
+                            mGpu.getRestoreNanos() / 1e6));
+                }
+            } else {
+                mLoaded = mLoader.runGlStages(LOAD_SLICE_NANOS);
+            }
+            if (!mLoaded) {
+                checkGLError("onReadyToDraw");
+                Trace.end(TRACE_NEW_FRAME);
+                return;
+            }
+            bindSceneHandles();
+            if (!mFirstFrameLogged) {
+                mFirstFrameLogged = true;
+                DirectBufferPool.getShared().logUtilization();
+                Log.i(TAG, String.format("First world frame %.1f ms after onCreate",
+                        (System.nanoTime() - mCreateTimeNanos) / 1e6));
+            }
+        }
+        if (mRestoring) {
+            mRestoring = !mGpu.restore(Integer.MAX_VALUE, LOAD_SLICE_NANOS);
+        }
+        if (useVisibleResources()) {
+            bindGeometryHandles();
+        }
+        mHud.update();
+        updateParticles(now);
+        if (CUSTOM_DISTORTION || DISTORTION_BENCHMARK) {
+            mDistortion.update(mCardboardView.getHeadMountedDisplay());
+            mDrawingToPass = mDistortionActive && mDistortion.isReady();
+        }
+        if (FAR_FIELD) {
+            mFarField.setMaxDisparity(mCardboardView.getHeadMountedDisplay().getCardboard()
+                    .getInterpupillaryDistance(), FAR_FIELD_DISPARITY_PIXELS);
+        }
+
         /*
-         * Build the Model part of the ModelView matrix.
+         * A frame that is already going to be late only turns the last eye images to the newest
+         * pose, and records nothing.
          */
-        // Rotates mModelCube in place, by angle TIME_DELTA around point (x, y, z)
-        Matrix.rotateM(mModelCube,     // The matrix 
-                           0,              // Offset ??
-                           TIME_DELTA,     // The angle of rotation
-                           0.5f,           // x-co-ordinate
-                           0.5f,           // y-co-ordinate
-                           1.0f            // z-co-ordinate
-        );
+        mReprojecting = REPROJECTION && mDeadline.shouldReproject(
+                System.nanoTime() - mFrameStartNanos, canReproject());
+        Trace.counter(TRACE_REPROJECTED, mReprojecting ? 1 : 0);
+        if (mReprojecting) {
+            mFarFieldActive = false;
+            checkGLError("onReadyToDraw");
+            Trace.end(TRACE_NEW_FRAME);
+            return;
+        }
+        mDrawStartNanos = System.nanoTime();
+
+        // A captured frame is replayed whole, so it is recorded without a far field.
+        mFarFieldActive = FAR_FIELD && mFarField.isReady() && mCardboardView.getVRMode()
+                && !mCapturingFrame && !mReplayCapturedFrame;
+        mFarFieldDrawn = false;
+
+        // Both eyes in one pass, if they sat side by side in one framebuffer last frame.
+        mStereoFrame = mStereo != null && mStereo.isReady() && mHandles.floorVertexArray != 0
+                && mCardboardView.getVRMode() && !mDrawingToPass && !mCapturingFrame
+                && !mReplayCapturedFrame
+                && mEyeFramebuffers[EyeParams.Eye.LEFT] == mEyeFramebuffers[EyeParams.Eye.RIGHT]
+                && StereoSceneRenderer.isSideBySide(mEyeViewports[EyeParams.Eye.LEFT],
+                        mEyeViewports[EyeParams.Eye.RIGHT]);
+        mStereoDrawn = false;
 
         /*
-         *  Build the camera matrix and apply it to the ModelView.
+         * The eye views are a fixed offset from the head view, so once we have seen each eye we
+         * can record both of them in parallel before the renderer asks for either. The far field
+         * is recorded from the head view itself, between the eyes. Only the eyes this mode draws
+         * are recorded, since every recording must be collected before the frame state goes back
+         * to the simulation.
          */
-        // Defines a viewing transformation in terms of an eye-point, a centre of view
-        // and an up-vector
-        Matrix.setLookAtM(mCamera,     // The matrix
-                              0,           // Offset ??
-                              0.0f,        // eye x
-                              0.0f,        // eye y
-                              CAMERA_Z,    // eye z
-                              0.0f,        // C.O.V. x
-                              0.0f,        // C.O.V. y
-                              0.0f,        // C.O.V. z
-                              0.0f,        // up-vector x
-                              1.0f,        // up-vector y
-                              0.0f         // up-vector z
-        );
-
-        headTransform.getHeadView(mHeadView, 0);
+        boolean vrMode = mCardboardView.getVRMode();
+        for (int eye = 0; eye < mEyeWorkers.length; eye++) {
+            boolean drawn = vrMode ? eye != EyeParams.Eye.MONOCULAR
+                    : eye == EyeParams.Eye.MONOCULAR;
+            mRecordedAhead[eye] = drawn && mEyeKnown[eye] && !mReplayCapturedFrame
+                    && !(mStereoFrame && eye != EyeParams.Eye.MONOCULAR);
+            if (mRecordedAhead[eye]) {
+                Matrix.multiplyMM(mRecordedEyeView[eye], 0, mEyeFromHead[eye], 0, mHeadView, 0);
+                mEyeWorkers[eye].submit(mFrameState, mRecordedEyeView[eye], 0f,
+                        getNearFieldDepth());
+            }
+        }
+        if (mFarFieldActive) {
+            mFarFieldWorker.submit(mFrameState, mHeadView, mFarField.getSplitDepth(),
+                    Float.POSITIVE_INFINITY);
+        }
 
         checkGLError("onReadyToDraw");
+        Trace.end(TRACE_NEW_FRAME);
+    }
+
+    /**
+     * Takes the head motion of the next frame from the session being replayed, and hands its
+     * trigger pulls to the simulation.
+     * @return false if there is no session (left) to replay.
+     */
+    private boolean nextReplayFrame(long now) {
+        if (mSessionReader == null) {
+            return false;
+        }
+        try {
+            if (mSessionReader.next(now, mSessionFrame)) {
+                System.arraycopy(mSessionFrame.headView, 0, mSdkHeadView, 0, 16);
+                System.arraycopy(mSessionFrame.trackerView, 0, mTrackerAtFrameStart, 0, 16);
+                for (int i = 0; i < mSessionFrame.triggerCount; i++) {
+                    mSimulation.onTrigger(mSessionFrame.triggerNanos[i]);
+                }
+                return true;
+            }
+            Log.i(TAG, "Replayed " + mSessionReader.getFrameCount() + " frames, using live input");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read session, using live input", e);
+        }
+        mSessionReader.close();
+        mSessionReader = null;
+        return false;
+    }
+
+    /**
+     * Swaps in the recorded transform of an eye while replaying, or records the live one. The
+     * viewport stays live, since the SDK has already set it up for this display.
+     */
+    private EyeTransform replayOrRecordEye(EyeTransform transform) {
+        int eye = transform.getParams().getEye();
+        Viewport viewport = transform.getParams().getViewport();
+        if (mSessionReader != null && mSessionFrame.hasEye[eye]) {
+            if (mReplayEyes[eye] == null) {
+                mReplayEyes[eye] = new EyeParams(eye);
+            }
+            mReplayEyes[eye].getViewport().setViewport(viewport.x, viewport.y, viewport.width,
+                    viewport.height);
+            EyeTransform replayed = mReplayEyes[eye].getTransform();
+            System.arraycopy(mSessionFrame.eyeView[eye], 0, replayed.getEyeView(), 0, 16);
+            System.arraycopy(mSessionFrame.perspective[eye], 0, replayed.getPerspective(), 0, 16);
+            return replayed;
+        }
+        if (mSessionWriter != null) {
+            mSessionWriter.eye(eye, transform.getEyeView(), transform.getPerspective(),
+                    viewport.x, viewport.y, viewport.width, viewport.height);
+        }
+        return transform;
     }
 
     /**
@@ -391,260 +1423,469 @@ public class MainActivity extends CardboardActivity implements CardboardView.Ste
      */
     @Override
     public void onDrawEye(EyeTransform transform) {
-        /*
-         * Clears the color buffer and the depth buffer
-         * Color Buffer: 
-         * Depth Buffer: used to determine where in the 
-         *               z-axis a fragment is placed.
-         */
-        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        final int eye = transform.getParams().getEye();
+        Trace.begin(TRACE_DRAW_EYE);
+        transform = replayOrRecordEye(transform);
+
+        // Remember how this eye relates to the head, for recording it ahead and late latching.
+        Matrix.invertM(mInverse, 0, mSdkHeadView, 0);
+        Matrix.multiplyMM(mEyeFromHead[eye], 0, transform.getEyeView(), 0, mInverse, 0);
+        mEyeKnown[eye] = true;
+
+        if (!mLoaded) {
+            drawLoadingScreen(transform.getParams().getViewport());
+            checkGLError("onDrawEye");
+            Trace.end(TRACE_DRAW_EYE);
+            return;
+        }
 
-        /*
-         * Get the location of an attribute variable.
-         * 
-         * Attribute variables: variables that represent vertex attributes.
-         * Examples of vertex attributes include: position, normal & color.
-         */
-        mPositionHandler = GLES20.glGetAttribLocation(mProgramHandler, /* The program to be queried */ 
-                                                   "a_Position"      /* The name of the attribute */
-        );
-        mNormalHandler = GLES20.glGetAttribLocation(mProgramHandler, "a_Normal");
-        mColorHandler = GLES20.glGetAttribLocation(mProgramHandler, "a_Color");
-        mTextureUniformHandler = GLES20.glGetUniformLocation(mProgramHandler, "u_Texture");
-        mTextureCoordinateHandler = GLES20.glGetAttribLocation(mProgramHandler, "a_TexCoordinate");
-        
-        // Set the active texture unit to texture unit 0.
-        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
-        checkGLError("glActiveTexture");
-        
-        // Bind the texture to this unit.
-        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureDataHandler);
-        checkGLError("glBindTexture");
-        
-        // Tell the texture uniform sampler to use this texture in the shader by binding to texture unit 0.
-        GLES20.glUniform1i(mTextureUniformHandler, 0);     
-        checkGLError("glUniform1i");
+        float[] perspective = transform.getPerspective();
+        if (mDrawingToPass) {
+            mDistortion.beginEye(eye);
+            mDistortion.getPerspective(eye, mCardboardView.getZNear(), mCardboardView.getZFar(),
+                    mPassPerspective);
+            perspective = mPassPerspective;
+        }
+        if (FAR_FIELD || REPROJECTION || mStereo != null) {
+            mGl.glGetIntegerv(GLES20.GL_VIEWPORT, mEyeViewport, 0);
+        }
+        if (mStereo != null && !rememberEyeLayout(eye, perspective) && !mStereoDrawn) {
+            /*
+             * The stereo pass would put the other eye where it was last frame. Once the pass has
+             * drawn both eyes, the frame stays stereo rather than drawing this eye a second time;
+             * the next frame is laid out from where the eyes are now.
+             */
+            mStereoFrame = false;
+        }
+        if (FAR_FIELD && eye != EyeParams.Eye.MONOCULAR) {
+            mFarField.setEye(eye, perspective, mEyeViewport[2], mEyeViewport[3]);
+        }
 
-        /*
-         * Enable the arrays of different vertex attributes
-         */
-        GLES20.glEnableVertexAttribArray(mPositionHandler);
-        checkGLError("mPositionHandler");
-        GLES20.glEnableVertexAttribArray(mNormalHandler);
-        checkGLError("mNormalHandler");
-        GLES20.glEnableVertexAttribArray(mColorHandler);
-        checkGLError("mColorHandler");
-        GLES20.glEnableVertexAttribArray(mTextureCoordinateHandler);
-        checkGLError("mTextureCoordinateHandler");
-
-        // Apply the eye transformation to the camera.
-        /*
-         * Multiplies two 4x4 matrices together and stores the result in a third
-         * 4x4 matrix.
-         */
-        Matrix.multiplyMM(mView,                   // View matrix
-                          0,                           // Offset ??
-                          transform.getEyeView(),      // ??
-                          0,                           // Offset ??
-                          mCamera,                     // ??
-                          0                            // Offset ??
-        );
+        if (mReprojecting) {
+            latchHeadView(eye);
+            Matrix.multiplyMM(mLatchedEyeView, 0, mEyeFromHead[eye], 0, mLatchedHeadView, 0);
+            mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+            mReprojection.draw(eye, mLatchedEyeView, perspective);
+            mHud.draw(eye, mEyeFromHead[eye], perspective);
+            checkGLError("onDrawEye");
+            Trace.end(TRACE_DRAW_EYE);
+            return;
+        }
 
-        // Set the position of the light
-        /*
-         * Multiplies a 4 element column vector by a 4x4 matrix and stores the result 
-         * in a 4 element column vector. 
-         */
-        Matrix.multiplyMV(mLightPosInEyeSpace,      // 4 element column vector
-                          0,                            // Offset ??
-                          mView,                        // View matrix
-                          0,                            // Offset ??
-                          mLightPosInWorldSpace,        // 4 element column vector
-                          0                             // Offset ??
-        );
-        
-        /*
-         * Specify the value of a uniform variable for the current program object
-         */
-        GLES20.glUniform3f(mLightPosHandler,          // Uniform variable
-                           mLightPosInEyeSpace[0],        // x-coordinate
-                           mLightPosInEyeSpace[1],        // y-coordinate
-                           mLightPosInEyeSpace[2]     // z-coordinate
-         );
+        if (mReplayCapturedFrame) {
+            mCapturedCommands[eye].replay(mCapturedPerspective[eye]);
+            mHud.draw(eye, mEyeFromHead[eye], mCapturedPerspective[eye]);
+            checkGLError("onDrawEye");
+            Trace.end(TRACE_DRAW_EYE);
+            return;
+        }
 
-        /* 
-         * Build the ModelView and ModelViewProjection matrices for calculating cube position 
-         * and light.
-         */
-        Matrix.multiplyMM(mModelView, 
-                          0, 
-                          mView, 
-                          0, 
-                          mModelCube, 
-                          0
-        );
-        Matrix.multiplyMM(mModelViewProjection, 
-                          0, 
-                          transform.getPerspective(), 
-                          0, 
-                          mModelView, 
-                          0
-        );
-        
-        drawCube();
-        
-        // Set mModelView for the floor, so we draw floor in the correct location
-        Matrix.multiplyMM(mModelView, 0, mView, 0, mModelFloor, 0);
-        Matrix.multiplyMM(mModelViewProjection, 0, transform.getPerspective(), 0,
-                mModelView, 0);
+        CommandBuffer commands = null;
+        if (mStereoFrame) {
+            // Drawn in the stereo pass; the far field and particles still go by this view.
+            Matrix.multiplyMM(mRecordedEyeView[eye], 0, mEyeFromHead[eye], 0, mHeadView, 0);
+        } else if (mRecordedAhead[eye]) {
+            mRecordedAhead[eye] = false;
+            commands = mEyeWorkers[eye].await();
+        } else {
+            // First time we see this eye; record on this thread with the predicted pose.
+            Matrix.multiplyMM(mRecordedEyeView[eye], 0, mEyeFromHead[eye], 0, mHeadView, 0);
+            mInlineRecorder.record(mInlineCommands, mFrameState, mRecordedEyeView[eye], 0f,
+                    getNearFieldDepth());
+            commands = mInlineCommands;
+        }
 
-        drawFloor(transform.getPerspective());
+        if (mCapturingFrame) {
+            mCapturedCommands[eye].copyFrom(commands);
+            System.arraycopy(perspective, 0, mCapturedPerspective[eye], 0, 16);
+        }
+        if (mFarFieldActive) {
+            if (!mFarFieldDrawn) {
+                drawFarField();
+            }
+            mFarField.getNearPerspective(perspective, mNearPerspective);
+            perspective = mNearPerspective;
+        }
+
+        if (!mStereoFrame || !mStereoDrawn) {
+            // The eyes of a stereo pass share its pose.
+            latchHeadView(eye);
+        }
+        // Correction from the eye space the commands were recorded in to the latched one.
+        Matrix.multiplyMM(mLatchedEyeView, 0, mEyeFromHead[eye], 0, mLatchedHeadView, 0);
+        Matrix.invertM(mInverse, 0, mRecordedEyeView[eye], 0);
+        Matrix.multiplyMM(mEyeCorrection, 0, mLatchedEyeView, 0, mInverse, 0);
+
+        Trace.begin(TRACE_REPLAY);
+        long replayStart = System.nanoTime();
+        if (!mStereoFrame) {
+            commands.replay(mEyeCorrection, perspective);
+        } else if (!mStereoDrawn) {
+            drawStereo(eye, perspective);
+        }
+        mFastPaths.addReplayNanos(System.nanoTime() - replayStart);
+        if (mFarFieldActive) {
+            // The far field was recorded from the head view; the eye view is a fixed offset from
+            // it, plus the same correction as the near field.
+            Matrix.multiplyMM(mEyeFromShared, 0, mEyeCorrection, 0, mEyeFromHead[eye], 0);
+            mFarField.draw(mEyeFromShared, perspective);
+        }
+        // The particles are in world space; view them the same way the replayed scene is.
+        Matrix.multiplyMM(mScratch, 0, mRecordedEyeView[eye], 0, mHandles.camera, 0);
+        Matrix.multiplyMM(mParticleView, 0, mEyeCorrection, 0, mScratch, 0);
+        mParticles.draw(mParticleView, perspective);
+        if (REPROJECTION) {
+            // Keep the world without the HUD, which stays with the head anyway.
+            mReprojection.keep(eye, mLatchedEyeView, perspective, mEyeViewport[0],
+                    mEyeViewport[1], mEyeViewport[2], mEyeViewport[3]);
+        }
+        mHud.draw(eye, mEyeFromHead[eye], perspective);
+        Trace.end(TRACE_REPLAY);
+        checkGLError("onDrawEye");
+        Trace.end(TRACE_DRAW_EYE);
     }
 
-    @Override
-    public void onFinishFrame(Viewport viewport) {
+    /**
+     * Waits for any recording this frame submitted but did not draw, as when the VR mode changed
+     * mid-frame, so no worker still reads the frame state once the next frame hands it back.
+     */
+    private void collectRecordings() {
+        for (int eye = 0; eye < mEyeWorkers.length; eye++) {
+            if (mRecordedAhead[eye]) {
+                mRecordedAhead[eye] = false;
+                mEyeWorkers[eye].await();
+            }
+        }
+        if (mFarFieldActive && !mFarFieldDrawn) {
+            mFarFieldDrawn = true;
+            mFarFieldWorker.await();
+        }
     }
 
     /**
-     * Draw the cube. We've set all of our transformation matrices. Now we simply pass them into
-     * the shader.
+     * Notes where an eye is drawn, for the stereo pass of the next frame.
+     * @param perspective The eye's projection, before any far field split.
+     * @return whether the eye is drawn where it was last frame.
      */
-    public void drawCube() {
+    private boolean rememberEyeLayout(int eye, float[] perspective) {
+        mGl.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mEyeFramebuffer, 0);
+        boolean same = mEyeFramebuffer[0] == mEyeFramebuffers[eye]
+                && Arrays.equals(mEyeViewport, mEyeViewports[eye]);
+        mEyeFramebuffers[eye] = mEyeFramebuffer[0];
+        System.arraycopy(mEyeViewport, 0, mEyeViewports[eye], 0, 4);
+        System.arraycopy(perspective, 0, mEyePerspectives[eye], 0, 16);
+        return same;
+    }
 
-        /*
-         * Set the value of mIsFloorParam (a uniform variable to 0)
-         * Indicates that the cube is not a floor
-         */
-        GLES20.glUniform1f(mIsFloorHandler, 0f);
-
-        // Set the Model in the shader, used to calculate lighting
-        GLES20.glUniformMatrix4fv(mModelHandler,       // The location of the uniform value to be modified
-                                      1,                   // The number of matrices that are to be modified
-                                      false,               /* True if the matrix should be transposed as the 
-                                                              values are loaded */
-                                      mModelCube,          // ??
-                                      0                    // ??
-                                  
-       );
-
-        // Set the ModelView in the shader, used to calculate lighting
-        GLES20.glUniformMatrix4fv(mModelViewHandler, 1, false, mModelView, 0);
-
-        // Set the position of the cube
-        GLES20.glVertexAttribPointer(mPositionHandler, COORDS_PER_VERTEX, GLES20.GL_FLOAT,
-                false, 0, mCubeVertices);
-
-        // Set the ModelViewProjection matrix in the shader.
-        GLES20.glUniformMatrix4fv(mModelViewProjectionHandler, 1, false, mModelViewProjection, 0);
-
-        // Set the normal positions of the cube, again for shading
-        GLES20.glVertexAttribPointer(mNormalHandler, 3, GLES20.GL_FLOAT,
-                false, 0, mCubeNormals);
-        
-        // Set the texture positions of the cube
-        GLES20.glVertexAttribPointer(mTextureCoordinateHandler, 2, GLES20.GL_FLOAT,
-                false, 0, mCubeTextureCoord);
-
-        if (isLookingAtObject()) {
-          GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureFoundHandler);
-          checkGLError("glBindTexture");
-            GLES20.glVertexAttribPointer(mColorHandler, 4, GLES20.GL_FLOAT, false,
-                    0, mCubeFoundColors);
+    /**
+     * Draws the near field of both eyes in one pass, from the pose just latched, and puts back
+     * this eye's viewport and scissor. The other eye's projection is the one it had last frame,
+     * which only changes with the viewer.
+     * @param perspective This eye's projection.
+     */
+    private void drawStereo(int eye, float[] perspective) {
+        mStereoDrawn = true;
+        int other = eye == EyeParams.Eye.LEFT ? EyeParams.Eye.RIGHT : EyeParams.Eye.LEFT;
+        float[] otherPerspective = mEyePerspectives[other];
+        if (mFarFieldActive) {
+            mFarField.getNearPerspective(otherPerspective, mStereoPerspective);
+            otherPerspective = mStereoPerspective;
+        }
+        mStereo.setEye(toStereoEye(eye), mEyeFromHead[eye], perspective, mEyeViewports[eye]);
+        mStereo.setEye(toStereoEye(other), mEyeFromHead[other], otherPerspective,
+                mEyeViewports[other]);
+        mStereo.draw(mFrameState, mLatchedHeadView, getNearFieldDepth());
+        mGl.glViewport(mEyeViewport[0], mEyeViewport[1], mEyeViewport[2], mEyeViewport[3]);
+        mGl.glScissor(mEyeViewport[0], mEyeViewport[1], mEyeViewport[2], mEyeViewport[3]);
+    }
+
+    private static int toStereoEye(int eye) {
+        return eye == EyeParams.Eye.LEFT ? StereoSceneRenderer.LEFT : StereoSceneRenderer.RIGHT;
+    }
+
+    /**
+     * Returns whether every eye the renderer draws has an image to reproject.
+     */
+    private boolean canReproject() {
+        if (mCapturingFrame || mReplayCapturedFrame) {
+            return false;
+        }
+        if (mCardboardView.getVRMode()) {
+            return mReprojection.hasImage(EyeParams.Eye.LEFT)
+                    && mReprojection.hasImage(EyeParams.Eye.RIGHT);
+        }
+        return mReprojection.hasImage(EyeParams.Eye.MONOCULAR);
+    }
+
+    /**
+     * Returns how far in front of the eyes they draw the world themselves this frame.
+     */
+    private float getNearFieldDepth() {
+        return mFarFieldActive ? mFarField.getNearFieldDepth() : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Draws the far field into its shared target, with the particles beyond the split, and puts
+     * back the eye's framebuffer, viewport and scissor.
+     */
+    private void drawFarField() {
+        Trace.begin(TRACE_FAR_FIELD);
+        mFarFieldDrawn = true;
+        CommandBuffer commands = mFarFieldWorker.await();
+        mGl.glGetIntegerv(GLES20.GL_FRAMEBUFFER_BINDING, mEyeFramebuffer, 0);
+        if (mFarField.begin()) {
+            mFarField.getPerspective(mCardboardView.getZFar(), mFarFieldPerspective);
+            commands.replay(mFarFieldPerspective);
+            Matrix.multiplyMM(mParticleView, 0, mHeadView, 0, mHandles.camera, 0);
+            mParticles.draw(mParticleView, mFarFieldPerspective);
         } else {
-          GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureDataHandler);
-          checkGLError("glBindTexture");
-            GLES20.glVertexAttribPointer(mColorHandler, 4, GLES20.GL_FLOAT, false,
-                    0, mCubeColors);
+            // Whatever only the far field has is missing from this frame.
+            mFarFieldActive = false;
         }
-        
-        GLES20.glUniform1i(mTextureUniformHandler, 0);     
-        checkGLError("glUniform1i");
+        mGl.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mEyeFramebuffer[0]);
+        mGl.glViewport(mEyeViewport[0], mEyeViewport[1], mEyeViewport[2], mEyeViewport[3]);
+        mGl.glScissor(mEyeViewport[0], mEyeViewport[1], mEyeViewport[2], mEyeViewport[3]);
+        Trace.end(TRACE_FAR_FIELD);
+    }
 
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 36);
-        
-        checkGLError("Drawing cube");
+    /**
+     * Marks the world objects this frame's snapshot draws as in use, so they are not evicted, and
+     * brings back any that were.
+     * @return true if any of them got a new GL name.
+     */
+    private boolean useVisibleResources() {
+        final GpuResources gpu = mGpu;
+        boolean changed = false;
+        changed |= gpu.use(mFloorVerticesObject);
+        changed |= gpu.use(mFloorNormalsObject);
+        changed |= gpu.use(mFloorColorsObject);
+        changed |= gpu.use(mFloorLightmapCoordObject);
+        changed |= gpu.use(mFloorGridCoordObject);
+        changed |= gpu.use(mFloorLightmap);
+        changed |= gpu.use(mFloorGridTexture);
+        if (mFrameState.cubeVisible) {
+            changed |= gpu.use(mCubeTextureCoordObject);
+            changed |= gpu.use(mCubeVerticesObject);
+            changed |= gpu.use(mCubeNormalsObject);
+            if (mFrameState.cubeHighlighted) {
+                changed |= gpu.use(mUsbAndroidTexture);
+                changed |= gpu.use(mCubeFoundColorsObject);
+            } else {
+                changed |= gpu.use(mRobotTexture);
+                changed |= gpu.use(mCubeColorsObject);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Starts a burst for every find since the last frame and advances the particles.
+     */
+    private void updateParticles(long now) {
+        if (mFrameState.bursts != mLastBursts) {
+            mLastBursts = mFrameState.bursts;
+            float[] position = mFrameState.burstPosition;
+            mParticles.burst(position[0], position[1], position[2], BURST_PARTICLES);
+        }
+        float dt = mLastParticleUpdateNanos == 0 ? 0f : (now - mLastParticleUpdateNanos) / 1e9f;
+        mLastParticleUpdateNanos = now;
+        mParticles.update(Math.min(dt, MAX_PARTICLE_STEP));
+        mFastPaths.addUploadNanos(mParticles.getLastUploadNanos());
+        Trace.counter(TRACE_PARTICLE_UPLOAD, mParticles.getLastUploadBytes());
     }
 
     /**
-     * Draw the floor. This feeds in data for the floor into the shader. Note that this doesn't
-     * feed in data about position of the light, so if we rewrite our code to draw the floor first,
-     * the lighting might look strange.
+     * Draws a progress bar across the middle of the eye, using scissored clears so it needs no
+     * shaders or buffers.
      */
-    public void drawFloor(float[] perspective) {
-        // This is the floor!
-        GLES20.glUniform1f(mIsFloorHandler, 1f);
+    private void drawLoadingScreen(Viewport viewport) {
+        mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+
+        int width = viewport.width / 2;
+        int height = Math.max(4, viewport.height / 40);
+        int x = viewport.x + (viewport.width - width) / 2;
+        int y = viewport.y + (viewport.height - height) / 2;
+        mGl.glEnable(GLES20.GL_SCISSOR_TEST);
+        mGl.glScissor(x, y, width, height);
+        mGl.glClearColor(0.3f, 0.3f, 0.3f, 1f);
+        mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        mGl.glScissor(x, y, (int) (width * mLoader.getProgress()), height);
+        mGl.glClearColor(150 / 255f, 1f, 180 / 255f, 1f);
+        mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+
+        // Leave the scissor and clear color as the rest of the frame expects them.
+        viewport.setGLScissor();
+        mGl.glClearColor(0.1f, 0.1f, 0.1f, 0.5f);
+    }
+
+    /**
+     * Samples the freshest head pose and predicts it to this frame's display time.
+     *
+     * Our tracker is a separate sensor fusion instance whose yaw reference differs from the
+     * SDK's, so only the motion it has seen since the frame started is applied to the SDK pose.
+     */
+    private void latchHeadView(int eye) {
+        long now = System.nanoTime();
+        if (mSessionReader != null) {
+            // An eye the recording did not latch sees no motion since the frame started.
+            if (mSessionFrame.latched[eye]) {
+                now = mSessionFrame.latchNanos[eye];
+                System.arraycopy(mSessionFrame.latchTrackerView[eye], 0, mScratch, 0, 16);
+            } else {
+                now = mSessionFrame.timeNanos;
+                System.arraycopy(mTrackerAtFrameStart, 0, mScratch, 0, 16);
+            }
+        } else {
+            mHeadTracker.getLastHeadView(mScratch, 0);
+            if (mSessionWriter != null) {
+                mSessionWriter.latch(now, mScratch);
+            }
+        }
+        Matrix.invertM(mInverse, 0, mTrackerAtFrameStart, 0);
+        Matrix.multiplyMM(mEyeCorrection, 0, mScratch, 0, mInverse, 0);
+        Matrix.multiplyMM(mLatchedHeadView, 0, mEyeCorrection, 0, mSdkHeadView, 0);
+        mPosePredictor.addSample(now, mLatchedHeadView);
+        mPosePredictor.predict(mDisplayTimeNanos, mLatchedHeadView);
+    }
 
-        // Set ModelView, MVP, position, normals, and color
-        GLES20.glUniformMatrix4fv(mModelHandler, 1, false, mModelFloor, 0);
-        GLES20.glUniformMatrix4fv(mModelViewHandler, 1, false, mModelView, 0);
-        GLES20.glUniformMatrix4fv(mModelViewProjectionHandler, 1, false, mModelViewProjection, 0);
-        GLES20.glVertexAttribPointer(mPositionHandler, COORDS_PER_VERTEX, GLES20.GL_FLOAT,
-                false, 0, mFloorVertices);
-        GLES20.glVertexAttribPointer(mNormalHandler, 3, GLES20.GL_FLOAT, false, 0, mFloorNormals);
-        GLES20.glVertexAttribPointer(mColorHandler, 4, GLES20.GL_FLOAT, false, 0, mFloorColors);
-        GLES20.glDrawArrays(GLES20.GL_TRIANGLES, 0, 6);
+    private void logPredictionError() {
+        Log.i(TAG, "Pose prediction error over " + mPosePredictor.getErrorSampleCount()
+                + " samples: mean " + mPosePredictor.getMeanErrorDegrees()
+                + " deg, max " + mPosePredictor.getMaxErrorDegrees() + " deg");
+        mPosePredictor.resetErrorStats();
+    }
 
-        checkGLError("drawing floor");
+    @Override
+    public void onFinishFrame(Viewport viewport) {
+        if (mDrawingToPass) {
+            mDistortion.draw(viewport);
+            mGl.glClearColor(0.1f, 0.1f, 0.1f, 0.5f);
+            checkGLError("onFinishFrame");
+        }
+        if (DISTORTION_BENCHMARK && mLoaded) {
+            recordBenchmarkFrame();
+        }
+        chooseDistortion();
+        collectRecordings();
+        if (mLoaded && !mReprojecting) {
+            mDeadline.onDrawn(System.nanoTime() - mDrawStartNanos);
+            mFastPaths.endFrame(mStereoFrame);
+        }
+        if (mLoaded) {
+            updateQuality();
+            if (mGpu.trim() > 0) {
+                // A captured frame may refer to the objects that were deleted.
+                for (int eye = 0; eye < mCapturedCommands.length; eye++) {
+                    mCapturedCommands[eye].reset();
+                }
+            }
+        }
+        if (++mFramesSincePredictionLog >= PREDICTION_LOG_INTERVAL) {
+            mFramesSincePredictionLog = 0;
+            logPredictionError();
+        }
     }
 
     /**
-     * Increment the score, hide the object, and give feedback if the user pulls the magnet while
-     * looking at the object. Otherwise, remind the user what to do.
+     * Feeds the frame's time to the quality governor and applies the tier it settles on, from the
+     * next frame.
+     */
+    private void updateQuality() {
+        long busyNanos = System.nanoTime() - mFrameStartNanos;
+        Trace.counter(TRACE_FRAME_BUSY, busyNanos / 1e6);
+        if (!mQuality.onFrame(mFrameStartNanos, busyNanos)) {
+            return;
+        }
+        Log.i(TAG, "Quality " + mQuality.getTier() + " at " + mQuality.getLoad()
+                + " of the frame budget");
+        applyQualityTier();
+    }
+
+    /**
+     * Applies the quality governor's tier, from the next frame.
+     */
+    private void applyQualityTier() {
+        QualityGovernor.Tier tier = mQuality.getTier();
+        Trace.counter(TRACE_QUALITY_TIER, mQuality.getTierIndex());
+        mDistortion.setResolutionScale(tier.resolutionScale);
+        mCardboardView.setDistortionCorrectionScale(tier.resolutionScale);
+        mSimulation.setLightsPerObject(tier.lightsPerObject);
+        mParticles.setBudget(tier.particleBudget);
+    }
+
+    /**
+     * Decides whose lens correction the next frame uses. The SDK applies the change from its next
+     * frame, so we switch at the same point.
+     */
+    private void chooseDistortion() {
+        boolean wanted = DISTORTION_BENCHMARK
+                ? (mBenchmarkFrame / BENCHMARK_PHASE_FRAMES) % 2 == 1 : CUSTOM_DISTORTION;
+        wanted = wanted && mLoaded && mDistortion.isReady() && mCardboardView.getVRMode();
+        if (wanted != mDistortionActive) {
+            mCardboardView.setDistortionCorrectionEnabled(!wanted);
+            mDistortionActive = wanted;
+        }
+    }
+
+    /**
+     * Times the frame from onNewFrame until the GPU has finished it, including either lens
+     * correction, and logs the mean of each after every pair of phases. GLES 2.0 has no timer
+     * queries, so this waits for the GPU and is only meant for benchmark runs.
+     */
+    private void recordBenchmarkFrame() {
+        mGl.glFinish();
+        long busyNanos = System.nanoTime() - mFrameStartNanos;
+        boolean passPhase = (mBenchmarkFrame / BENCHMARK_PHASE_FRAMES) % 2 == 1;
+        // Frames still using the other correction after a switch are not counted either.
+        if (mBenchmarkFrame % BENCHMARK_PHASE_FRAMES >= BENCHMARK_WARMUP_FRAMES
+                && passPhase == mDrawingToPass) {
+            int mode = passPhase ? 1 : 0;
+            mBenchmarkNanos[mode] += busyNanos;
+            mBenchmarkFrames[mode]++;
+        }
+        if (++mBenchmarkFrame % (2 * BENCHMARK_PHASE_FRAMES) == 0) {
+            Log.i(TAG, String.format("Frame time with SDK distortion %.2f ms over %d frames, "
+                    + "with DistortionPass %.2f ms over %d frames",
+                    mBenchmarkNanos[0] / 1e6 / Math.max(1, mBenchmarkFrames[0]),
+                    mBenchmarkFrames[0],
+                    mBenchmarkNanos[1] / 1e6 / Math.max(1, mBenchmarkFrames[1]),
+                    mBenchmarkFrames[1]));
+            mBenchmarkNanos[0] = 0;
+            mBenchmarkNanos[1] = 0;
+            mBenchmarkFrames[0] = 0;
+            mBenchmarkFrames[1] = 0;
+        }
+    }
+
+    /**
+     * Hand the trigger to the simulation, which owns the object and the score. The result comes
+     * back through {@link #onTriggerResult}.
      */
     @Override
     public void onCardboardTrigger() {
         Log.i(TAG, "onCardboardTrigger");
-        if (isLookingAtObject()) {
-            mScore++;
-            mOverlayView.show3DToast("Found it! Look around for another one.\nScore = " + mScore);
-            hideObject();
-        } else {
-            mOverlayView.show3DToast("Look around to find the object!");
+        long now = System.nanoTime();
+        if (mSessionReader == null) {
+            // While replaying, only the recorded triggers reach the simulation.
+            mSimulation.onTrigger(now);
+            if (mSessionWriter != null) {
+                mSessionWriter.onTrigger(now);
+            }
         }
         // Always give user feedback
         mVibrator.vibrate(50);
     }
 
     /**
-     * Find a new random position for the object.
-     * We'll rotate it around the Y-axis so it's out of sight, and then up or down by a little bit.
+     * Give feedback once the simulation has decided whether the user found the object. Called on
+     * the simulation thread; the HUD picks the message up on the next frame.
      */
-    private void hideObject() {
-        float[] rotationMatrix = new float[16];
-        float[] posVec = new float[4];
-        // First rotate in XZ plane, between 90 and 270 deg away, and scale so that we vary
-        // the object's distance from the user.
-        float angleXZ = (float) Math.random() * 180 + 90;
-        Matrix.setRotateM(rotationMatrix, 0, angleXZ, 0f, 1f, 0f);
-        float oldObjectDistance = mObjectDistance;
-        mObjectDistance = (float) Math.random() * 15 + 5;
-        float objectScalingFactor = mObjectDistance / oldObjectDistance;
-        Matrix.scaleM(rotationMatrix, 0, objectScalingFactor, objectScalingFactor, objectScalingFactor);
-        Matrix.multiplyMV(posVec, 0, rotationMatrix, 0, mModelCube, 12);
-        // Now get the up or down angle, between -20 and 20 degrees
-        float angleY = (float) Math.random() * 80 - 40; // angle in Y plane, between -40 and 40
-        angleY = (float) Math.toRadians(angleY);
-        float newY = (float)Math.tan(angleY) * mObjectDistance;
-        Matrix.setIdentityM(mModelCube, 0);
-        Matrix.translateM(mModelCube, 0, posVec[0], newY, posVec[2]);
+    @Override
+    public void onTriggerResult(boolean found, int score) {
+        if (found) {
+            mHud.showToast(TOAST_FOUND, score);
+        } else {
+            mHud.showToast(TOAST_MISSED, 0);
+        }
     }
-
-    /**
-     * Check if user is looking at object by calculating where the object is in eye-space.
-     * @return
-     */
-    private boolean isLookingAtObject() {
-        float[] initVec = {0, 0, 0, 1.0f};
-        float[] objPositionVec = new float[4];
-        // Convert object space to camera space. Use the headView from onNewFrame.
-        Matrix.multiplyMM(mModelView, 0, mHeadView, 0, mModelCube, 0);
-        Matrix.multiplyMV(objPositionVec, 0, mModelView, 0, initVec, 0);
-        float pitch = (float)Math.atan2(objPositionVec[1], -objPositionVec[2]);
-        float yaw = (float)Math.atan2(objPositionVec[0], -objPositionVec[2]);
-        Log.i(TAG, "Object position: X: " + objPositionVec[0]
-                + "  Y: " + objPositionVec[1] + " Z: " + objPositionVec[2]);
-        Log.i(TAG, "Object Pitch: " + pitch +"  Yaw: " + yaw);
-        return (Math.abs(pitch) < PITCH_LIMIT) && (Math.abs(yaw) < YAW_LIMIT);
-    }
-    
 }
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+
+/**
+ * Point-sprite particles for the "found it" burst.
+ *
+ * Particles are simulated on the GL thread in structure-of-arrays form; dead particles are
+ * replaced by the last live one, so the live set is always the first {@link #getLiveCount()}
+ * entries. Each frame the live particles are packed into one of a ring of dynamic vertex
+ * buffers, orphaning its old storage first so the upload never waits for the GPU to finish
+ * reading the previous contents, and are drawn with a single call per eye. Where buffers can be
+ * mapped, the particles are written straight into the new storage instead.
+ */
+public class ParticleSystem {
+
+    public static final int MAX_PARTICLES = 10240;
+
+    private static final int FLOATS_PER_PARTICLE = 4; // x, y, z, remaining life
+    private static final int BYTES_PER_PARTICLE = FLOATS_PER_PARTICLE * 4;
+    private static final int RING_SIZE = 3;
+
+    private static final float GRAVITY = -9.8f;
+    private static final float DRAG = 0.6f; // Fraction of velocity lost per second.
+    private static final float MIN_SPEED = 2f;
+    private static final float MAX_SPEED = 8f;
+    private static final float MIN_LIFE = 1f;
+    private static final float MAX_LIFE = 2.5f;
+    private static final float POINT_SIZE = 40f;
+    private static final float[] COLOR = {1f, 0.8f, 0.2f, 1f};
+
+    // Particle state, structure of arrays.
+    private final float[] mX = new float[MAX_PARTICLES];
+    private final float[] mY = new float[MAX_PARTICLES];
+    private final float[] mZ = new float[MAX_PARTICLES];
+    private final float[] mVx = new float[MAX_PARTICLES];
+    private final float[] mVy = new float[MAX_PARTICLES];
+    private final float[] mVz = new float[MAX_PARTICLES];
+    private final float[] mLife = new float[MAX_PARTICLES];
+    private final float[] mMaxLife = new float[MAX_PARTICLES];
+    private int mLive;
+    private int mBudget = MAX_PARTICLES;
+    private int mRandom = 0x2545f491;
+
+    // Vertex staging; bulk-copied into the direct buffer.
+    private final float[] mStaging = new float[MAX_PARTICLES * FLOATS_PER_PARTICLE];
+    private final FloatBuffer mVertices;
+    private final int[] mBuffers = new int[RING_SIZE];
+    private int mRingIndex;
+    private int mUploadedCount;
+    private int mLastUploadBytes;
+    private long mLastUploadNanos;
+    private long mTotalUploadBytes;
+    private int mUploadFrames;
+    private int mPeakLive;
+
+    private final float[] mMvp = new float[16];
+
+    private final Gl mGl;
+    private GlExtensions mMapper;
+    private int mProgram;
+    private int mMvpParam;
+    private int mPointSizeParam;
+    private int mColorParam;
+    private int mPositionParam;
+
+    public ParticleSystem(Gl gl) {
+        mGl = gl;
+        mVertices = DirectBufferPool.getShared().allocate(MAX_PARTICLES * BYTES_PER_PARTICLE)
+                .asFloatBuffer();
+    }
+
+    /**
+     * Creates the GL objects. Must be called on the GL thread for each new context.
+     * @param program A program linked from the particle shaders, with a_Position bound to
+     *     attribute 0.
+     */
+    public void onSurfaceCreated(int program) {
+        mProgram = program;
+        mMvpParam = mGl.glGetUniformLocation(program, "u_MVP");
+        mPointSizeParam = mGl.glGetUniformLocation(program, "u_PointSize");
+        mColorParam = mGl.glGetUniformLocation(program, "u_Color");
+        mPositionParam = mGl.glGetAttribLocation(program, "a_Position");
+
+        mGl.glGenBuffers(RING_SIZE, mBuffers, 0);
+        for (int i = 0; i < RING_SIZE; i++) {
+            mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[i]);
+            mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, MAX_PARTICLES * BYTES_PER_PARTICLE, null,
+                    GLES20.GL_STREAM_DRAW);
+            GpuMemory.getShared().allocate(GpuMemory.BUFFERS, MAX_PARTICLES * BYTES_PER_PARTICLE);
+        }
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mUploadedCount = 0;
+    }
+
+    /**
+     * Forgets the GL objects of a lost context. The particles keep simulating.
+     */
+    public void onContextLost() {
+        mProgram = 0;
+    }
+
+    /**
+     * Makes uploads write into mapped buffer storage, or copy in with glBufferSubData again.
+     * @param mapper The bindings to map buffers with, or null.
+     */
+    public void setMapper(GlExtensions mapper) {
+        mMapper = mapper;
+    }
+
+    public int getLiveCount() {
+        return mLive;
+    }
+
+    /**
+     * Limits how many particles may be alive at once. Particles already alive are not culled;
+     * new bursts are cut short until the count falls below the budget.
+     */
+    public void setBudget(int budget) {
+        mBudget = Math.max(0, Math.min(MAX_PARTICLES, budget));
+    }
+
+    /**
+     * Spawns up to {@code count} particles at a point, flying out in random directions. Excess
+     * particles are dropped once the system is at its budget.
+     */
+    public void burst(float x, float y, float z, int count) {
+        int end = Math.max(mLive, Math.min(mBudget, mLive + count));
+        for (int i = mLive; i < end; i++) {
+            // Uniform direction on the sphere from a random height and angle.
+            float dirY = nextFloat() * 2f - 1f;
+            float angle = nextFloat() * (float) (2 * Math.PI);
+            float radius = (float) Math.sqrt(1f - dirY * dirY);
+            float speed = MIN_SPEED + nextFloat() * (MAX_SPEED - MIN_SPEED);
+            mX[i] = x;
+            mY[i] = y;
+            mZ[i] = z;
+            mVx[i] = radius * (float) Math.cos(angle) * speed;
+            mVy[i] = dirY * speed;
+            mVz[i] = radius * (float) Math.sin(angle) * speed;
+            mMaxLife[i] = MIN_LIFE + nextFloat() * (MAX_LIFE - MIN_LIFE);
+            mLife[i] = mMaxLife[i];
+        }
+        mLive = end;
+        mPeakLive = Math.max(mPeakLive, mLive);
+    }
+
+    /**
+     * Advances the simulation and uploads the live particles. Call once per frame on the GL
+     * thread, before drawing.
+     * @param dt Seconds since the last update.
+     */
+    public void update(float dt) {
+        if (mLive == 0 && mUploadedCount == 0) {
+            return;
+        }
+        final float[] x = mX;
+        final float[] y = mY;
+        final float[] z = mZ;
+        final float[] vx = mVx;
+        final float[] vy = mVy;
+        final float[] vz = mVz;
+        final float[] life = mLife;
+        final float damping = Math.max(0f, 1f - DRAG * dt);
+        final float fall = GRAVITY * dt;
+
+        int live = mLive;
+        for (int i = 0; i < live; ) {
+            life[i] -= dt;
+            if (life[i] <= 0f) {
+                live--;
+                moveParticle(live, i);
+                continue;
+            }
+            vx[i] *= damping;
+            vy[i] = vy[i] * damping + fall;
+            vz[i] *= damping;
+            x[i] += vx[i] * dt;
+            y[i] += vy[i] * dt;
+            z[i] += vz[i] * dt;
+            i++;
+        }
+        mLive = live;
+
+        final float[] staging = mStaging;
+        for (int i = 0, v = 0; i < live; i++, v += FLOATS_PER_PARTICLE) {
+            staging[v] = x[i];
+            staging[v + 1] = y[i];
+            staging[v + 2] = z[i];
+            staging[v + 3] = life[i] / mMaxLife[i];
+        }
+        upload(live);
+    }
+
+    /**
+     * Draws every live particle in one call.
+     * @param view The eye's full view matrix, from world space to eye space.
+     * @param perspective The eye's projection matrix.
+     */
+    public void draw(float[] view, float[] perspective) {
+        if (mProgram == 0 || mUploadedCount == 0) {
+            return;
+        }
+        Matrix.multiplyMM(mMvp, 0, perspective, 0, view, 0);
+
+        mGl.glUseProgram(mProgram);
+        mGl.glEnable(GLES20.GL_BLEND);
+        mGl.glBlendFunc(GLES20.GL_SRC_ALPHA, GLES20.GL_ONE);
+        mGl.glDepthMask(false);
+
+        mGl.glUniformMatrix4fv(mMvpParam, 1, false, mMvp, 0);
+        mGl.glUniform1f(mPointSizeParam, POINT_SIZE);
+        mGl.glUniform4fv(mColorParam, 1, COLOR, 0);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[mRingIndex]);
+        mGl.glEnableVertexAttribArray(mPositionParam);
+        mGl.glVertexAttribPointer(mPositionParam, FLOATS_PER_PARTICLE, GLES20.GL_FLOAT, false,
+                BYTES_PER_PARTICLE, 0);
+        mGl.glDrawArrays(GLES20.GL_POINTS, 0, mUploadedCount);
+
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGl.glDepthMask(true);
+        mGl.glDisable(GLES20.GL_BLEND);
+    }
+
+    /**
+     * Returns the bytes uploaded by the last update.
+     */
+    public int getLastUploadBytes() {
+        return mLastUploadBytes;
+    }
+
+    /**
+     * Returns the CPU time the last update spent uploading.
+     */
+    public long getLastUploadNanos() {
+        return mLastUploadNanos;
+    }
+
+    /**
+     * Returns a one-line summary of the upload traffic so far.
+     */
+    public String describeUploads() {
+        return String.format("Particles: peak %d live, %d frames uploaded, mean %.1f KB per frame",
+                mPeakLive, mUploadFrames,
+                mUploadFrames == 0 ? 0f : mTotalUploadBytes / 1024f / mUploadFrames);
+    }
+
+    private void upload(int count) {
+        mUploadedCount = count;
+        mLastUploadBytes = 0;
+        mLastUploadNanos = 0;
+        if (mProgram == 0 || count == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        int bytes = count * BYTES_PER_PARTICLE;
+
+        // Move on to the next buffer of the ring and orphan its storage, so the driver can hand
+        // us fresh memory while the GPU may still be reading what we put there before.
+        mRingIndex = (mRingIndex + 1) % RING_SIZE;
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[mRingIndex]);
+        if (mMapper == null || !uploadMapped(bytes)) {
+            mVertices.clear();
+            mVertices.put(mStaging, 0, count * FLOATS_PER_PARTICLE);
+            mVertices.position(0);
+            mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, MAX_PARTICLES * BYTES_PER_PARTICLE, null,
+                    GLES20.GL_STREAM_DRAW);
+            mGl.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, bytes, mVertices);
+        }
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        mLastUploadBytes = bytes;
+        mTotalUploadBytes += bytes;
+        mUploadFrames++;
+        mLastUploadNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Writes the staged particles into the bound buffer through a mapping that orphans its old
+     * storage, saving the driver's copy out of our direct buffer.
+     * @return false if the buffer could not be mapped, or its contents were lost while mapped.
+     */
+    private boolean uploadMapped(int bytes) {
+        Buffer mapped = mMapper.glMapBufferRange(GLES20.GL_ARRAY_BUFFER, 0, bytes,
+                GLES30.GL_MAP_WRITE_BIT | GLES30.GL_MAP_INVALIDATE_BUFFER_BIT);
+        if (mapped == null) {
+            return false;
+        }
+        ((ByteBuffer) mapped).order(ByteOrder.nativeOrder()).asFloatBuffer()
+                .put(mStaging, 0, bytes / 4);
+        return mMapper.glUnmapBuffer(GLES20.GL_ARRAY_BUFFER);
+    }
+
+    private void moveParticle(int from, int to) {
+        mX[to] = mX[from];
+        mY[to] = mY[from];
+        mZ[to] = mZ[from];
+        mVx[to] = mVx[from];
+        mVy[to] = mVy[from];
+        mVz[to] = mVz[from];
+        mLife[to] = mLife[from];
+        mMaxLife[to] = mMaxLife[from];
+    }
+
+    /**
+     * Returns a pseudo-random float in [0, 1) from a xorshift generator.
+     */
+    private float nextFloat() {
+        int r = mRandom;
+        r ^= r << 13;
+        r ^= r >>> 17;
+        r ^= r << 5;
+        mRandom = r;
+        return (r >>> 8) / (float) (1 << 24);
+    }
+}
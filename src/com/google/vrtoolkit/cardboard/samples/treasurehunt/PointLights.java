@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * The world's point lights, and the per-object choice of which ones to shade with.
+ *
+ * Shaders evaluate at most {@link #MAX_PER_OBJECT} lights, so each frame the simulation ranks the
+ * lights by how much they can contribute to an object's bounding sphere and hands the shaders only
+ * the winners. Lights fall off to nothing at their range, which makes out-of-range lights free to
+ * skip rather than merely dim. The number of lights in the world only costs CPU time here.
+ *
+ * Not thread safe; owned by the simulation thread.
+ */
+public class PointLights {
+
+    /** Must match MAX_LIGHTS in the lit shaders. */
+    public static final int MAX_PER_OBJECT = 4;
+
+    // Packed as x, y, z, range and r, g, b, unused, so assignments can be copied out as vec4s.
+    private final float[] mPositions;
+    private final float[] mColors;
+    private final boolean[] mBaked;
+    private final int mCapacity;
+    private int mCount;
+
+    private final int[] mBest = new int[MAX_PER_OBJECT];
+    private final float[] mBestInfluence = new float[MAX_PER_OBJECT];
+
+    public PointLights(int capacity) {
+        mCapacity = capacity;
+        mPositions = new float[capacity * 4];
+        mColors = new float[capacity * 4];
+        mBaked = new boolean[capacity];
+    }
+
+    /**
+     * Adds each light in a packed array, as laid out in {@link WorldLayoutData#STATIC_LIGHTS}.
+     * @param baked Whether their effect is already in the static geometry's lightmaps.
+     */
+    public void addAll(float[] packed, boolean baked) {
+        for (int i = 0; i < packed.length; i += 8) {
+            int light = add(packed[i], packed[i + 1], packed[i + 2], packed[i + 3],
+                    packed[i + 4], packed[i + 5], packed[i + 6]);
+            mBaked[light] = baked;
+        }
+    }
+
+    /**
+     * @return The index of the new light, for later {@link #setPosition} calls.
+     */
+    public int add(float x, float y, float z, float range, float r, float g, float b) {
+        if (mCount == mCapacity) {
+            throw new IllegalStateException("No room for more than " + mCapacity + " lights");
+        }
+        int i = mCount++;
+        setPosition(i, x, y, z);
+        mPositions[i * 4 + 3] = range;
+        mColors[i * 4] = r;
+        mColors[i * 4 + 1] = g;
+        mColors[i * 4 + 2] = b;
+        return i;
+    }
+
+    public void setPosition(int light, float x, float y, float z) {
+        mPositions[light * 4] = x;
+        mPositions[light * 4 + 1] = y;
+        mPositions[light * 4 + 2] = z;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Picks the lights that contribute most to a bounding sphere and copies them out, strongest
+     * first.
+     * @param includeBaked False for static geometry, whose lightmap already has baked lights.
+     * @param positions Receives world-space position and range per light, as vec4s.
+     * @param colors Receives the color per light, as vec4s.
+     * @return The number of lights written, at most {@link #MAX_PER_OBJECT}.
+     */
+    public int assign(float cx, float cy, float cz, float radius, boolean includeBaked,
+            float[] positions, float[] colors) {
+        int chosen = 0;
+        for (int i = 0; i < mCount; i++) {
+            if (mBaked[i] && !includeBaked) {
+                continue;
+            }
+            float dx = mPositions[i * 4] - cx;
+            float dy = mPositions[i * 4 + 1] - cy;
+            float dz = mPositions[i * 4 + 2] - cz;
+            float range = mPositions[i * 4 + 3];
+            // Distance from the light to the nearest point of the sphere.
+            float distance = Math.max((float) Math.sqrt(dx * dx + dy * dy + dz * dz) - radius, 0f);
+            if (distance >= range) {
+                continue;
+            }
+            float falloff = 1f - distance / range;
+            float influence = falloff * falloff
+                    * (mColors[i * 4] + mColors[i * 4 + 1] + mColors[i * 4 + 2]);
+            if (chosen == MAX_PER_OBJECT && influence <= mBestInfluence[chosen - 1]) {
+                continue;
+            }
+            // Insertion into the short sorted list, dropping the weakest if it is full.
+            int slot = chosen < MAX_PER_OBJECT ? chosen++ : chosen - 1;
+            while (slot > 0 && mBestInfluence[slot - 1] < influence) {
+                mBest[slot] = mBest[slot - 1];
+                mBestInfluence[slot] = mBestInfluence[slot - 1];
+                slot--;
+            }
+            mBest[slot] = i;
+            mBestInfluence[slot] = influence;
+        }
+        for (int j = 0; j < chosen; j++) {
+            System.arraycopy(mPositions, mBest[j] * 4, positions, j * 4, 4);
+            System.arraycopy(mColors, mBest[j] * 4, colors, j * 4, 4);
+        }
+        return chosen;
+    }
+
+    /**
+     * The lit shaders' diffuse term for one light, per unit of light color. The lightmap baker
+     * uses this so baked and dynamic lighting match.
+     * @param light Position and range, packed as in {@link WorldLayoutData#STATIC_LIGHTS}.
+     * @param normal Unit surface normal.
+     */
+    public static float diffuse(float[] light, int offset, float px, float py, float pz,
+            float nx, float ny, float nz) {
+        float dx = light[offset] - px;
+        float dy = light[offset + 1] - py;
+        float dz = light[offset + 2] - pz;
+        float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+        float falloff = Math.max(1f - distance / light[offset + 3], 0f);
+        float cosine = Math.max((nx * dx + ny * dy + nz * dz) / distance, 0f);
+        return cosine * falloff * falloff;
+    }
+}
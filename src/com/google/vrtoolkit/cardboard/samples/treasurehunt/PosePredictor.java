@@ -0,0 +1,344 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * Predicts where the head will be pointing when a frame reaches the display.
+ *
+ * Keeps a ring buffer of timestamped head orientations, estimates angular velocity from it and
+ * extrapolates the newest orientation to a target time. Every prediction is remembered and
+ * scored against the samples that later arrive for that time, so the prediction error can be
+ * watched in the field.
+ *
+ * This class is plain Java with no Android dependencies, so it can be fed recorded pose traces
+ * on a desktop JVM. Matrices are column-major 4x4 float arrays, like android.opengl.Matrix uses,
+ * and quaternions are (x, y, z, w). Not thread safe.
+ */
+public class PosePredictor {
+
+    private static final int HISTORY = 64;
+    private static final int PENDING = 16;
+
+    /** Velocity is estimated across at least this much history, to smooth out sensor jitter. */
+    private static final long VELOCITY_WINDOW_NANOS = 10000000L;
+
+    /** Never extrapolate further than this; beyond it the guess is worse than no guess. */
+    private static final long MAX_HORIZON_NANOS = 50000000L;
+
+    // Pose history, as a ring of structure-of-arrays.
+    private final long[] mTimes = new long[HISTORY];
+    private final float[] mQuats = new float[HISTORY * 4];
+    private int mNewest = -1;
+    private int mCount;
+
+    // Angular velocity in the head frame, radians per second.
+    private final float[] mVelocity = new float[3];
+
+    // Predictions waiting for the pose at their target time to arrive.
+    private final long[] mPendingTimes = new long[PENDING];
+    private final float[] mPendingQuats = new float[PENDING * 4];
+    private int mPendingCount;
+
+    private long mErrorSamples;
+    private double mErrorSumDegrees;
+    private float mMaxErrorDegrees;
+
+    private final float[] mScratchA = new float[4];
+    private final float[] mScratchB = new float[4];
+
+    /**
+     * Adds an observed head view.
+     * @param timeNanos When the pose was sampled, in {@link System#nanoTime()} units.
+     * @param headView The head view matrix.
+     */
+    public void addSample(long timeNanos, float[] headView) {
+        matrixToQuaternion(headView, mScratchA);
+        addSample(timeNanos, mScratchA[0], mScratchA[1], mScratchA[2], mScratchA[3]);
+    }
+
+    /**
+     * Adds an observed head orientation. Samples must arrive in time order.
+     */
+    public void addSample(long timeNanos, float x, float y, float z, float w) {
+        if (mCount > 0 && timeNanos <= mTimes[mNewest]) {
+            return;
+        }
+        int previous = mNewest;
+        mNewest = (mNewest + 1) % HISTORY;
+        mTimes[mNewest] = timeNanos;
+        int q = mNewest * 4;
+        // Keep consecutive samples in the same hemisphere so differences take the short way.
+        float sign = 1f;
+        if (previous >= 0) {
+            int p = previous * 4;
+            float dot = mQuats[p] * x + mQuats[p + 1] * y + mQuats[p + 2] * z + mQuats[p + 3] * w;
+            sign = dot < 0 ? -1f : 1f;
+        }
+        mQuats[q] = x * sign;
+        mQuats[q + 1] = y * sign;
+        mQuats[q + 2] = z * sign;
+        mQuats[q + 3] = w * sign;
+        if (mCount < HISTORY) {
+            mCount++;
+        }
+        if (previous >= 0) {
+            scorePending(previous, mNewest);
+        }
+        updateVelocity();
+    }
+
+    /**
+     * Predicts the head view at a future time. Falls back to the newest sample when there is no
+     * velocity estimate yet. Only the rotation is predicted; the translation entries of
+     * {@code headView} are left as they are.
+     * @param targetNanos The time the frame is expected to be on the display.
+     * @param headView Receives the predicted head view matrix.
+     */
+    public void predict(long targetNanos, float[] headView) {
+        if (mCount == 0) {
+            return;
+        }
+        float tx = headView[12];
+        float ty = headView[13];
+        float tz = headView[14];
+        predictQuaternion(targetNanos, mScratchB);
+        remember(targetNanos, mScratchB);
+        quaternionToMatrix(mScratchB, headView);
+        headView[12] = tx;
+        headView[13] = ty;
+        headView[14] = tz;
+    }
+
+    /** Number of predictions that have been scored so far. */
+    public long getErrorSampleCount() {
+        return mErrorSamples;
+    }
+
+    /** Mean angular prediction error in degrees. */
+    public float getMeanErrorDegrees() {
+        return mErrorSamples == 0 ? 0f : (float) (mErrorSumDegrees / mErrorSamples);
+    }
+
+    /** Largest angular prediction error seen, in degrees. */
+    public float getMaxErrorDegrees() {
+        return mMaxErrorDegrees;
+    }
+
+    public void resetErrorStats() {
+        mErrorSamples = 0;
+        mErrorSumDegrees = 0;
+        mMaxErrorDegrees = 0;
+    }
+
+    private void predictQuaternion(long targetNanos, float[] out) {
+        int q = mNewest * 4;
+        long horizon = Math.min(Math.max(targetNanos - mTimes[mNewest], 0), MAX_HORIZON_NANOS);
+        float seconds = horizon * 1e-9f;
+        float rx = mVelocity[0] * seconds;
+        float ry = mVelocity[1] * seconds;
+        float rz = mVelocity[2] * seconds;
+        rotationVectorToQuaternion(rx, ry, rz, mScratchA);
+        multiply(mQuats[q], mQuats[q + 1], mQuats[q + 2], mQuats[q + 3],
+                mScratchA[0], mScratchA[1], mScratchA[2], mScratchA[3], out);
+    }
+
+    private void updateVelocity() {
+        if (mCount < 2) {
+            return;
+        }
+        // Walk back until the window is wide enough, or we run out of history.
+        int older = mNewest;
+        for (int i = 1; i < mCount; i++) {
+            older = (mNewest - i + HISTORY) % HISTORY;
+            if (mTimes[mNewest] - mTimes[older] >= VELOCITY_WINDOW_NANOS) {
+                break;
+            }
+        }
+        float seconds = (mTimes[mNewest] - mTimes[older]) * 1e-9f;
+        int o = older * 4;
+        int n = mNewest * 4;
+        // delta = conjugate(older) * newest, the rotation in the head frame between the two.
+        multiply(-mQuats[o], -mQuats[o + 1], -mQuats[o + 2], mQuats[o + 3],
+                mQuats[n], mQuats[n + 1], mQuats[n + 2], mQuats[n + 3], mScratchA);
+        quaternionToRotationVector(mScratchA, mVelocity);
+        mVelocity[0] /= seconds;
+        mVelocity[1] /= seconds;
+        mVelocity[2] /= seconds;
+    }
+
+    private void remember(long targetNanos, float[] quat) {
+        if (mPendingCount == PENDING) {
+            // Drop the oldest; it has waited long enough.
+            System.arraycopy(mPendingTimes, 1, mPendingTimes, 0, PENDING - 1);
+            System.arraycopy(mPendingQuats, 4, mPendingQuats, 0, (PENDING - 1) * 4);
+            mPendingCount--;
+        }
+        mPendingTimes[mPendingCount] = targetNanos;
+        System.arraycopy(quat, 0, mPendingQuats, mPendingCount * 4, 4);
+        mPendingCount++;
+    }
+
+    /**
+     * Scores every prediction whose target time falls between two consecutive samples.
+     */
+    private void scorePending(int before, int after) {
+        long start = mTimes[before];
+        long end = mTimes[after];
+        int kept = 0;
+        for (int i = 0; i < mPendingCount; i++) {
+            long target = mPendingTimes[i];
+            if (target > end) {
+                mPendingTimes[kept] = target;
+                System.arraycopy(mPendingQuats, i * 4, mPendingQuats, kept * 4, 4);
+                kept++;
+                continue;
+            }
+            if (target < start) {
+                continue;  // Predicted for a time we have no samples around; cannot score it.
+            }
+            float t = end == start ? 1f : (float) (target - start) / (end - start);
+            nlerp(mQuats, before * 4, mQuats, after * 4, t, mScratchA);
+            int p = i * 4;
+            float dot = Math.abs(mScratchA[0] * mPendingQuats[p]
+                    + mScratchA[1] * mPendingQuats[p + 1]
+                    + mScratchA[2] * mPendingQuats[p + 2]
+                    + mScratchA[3] * mPendingQuats[p + 3]);
+            float degrees = (float) Math.toDegrees(2.0 * Math.acos(Math.min(dot, 1f)));
+            mErrorSamples++;
+            mErrorSumDegrees += degrees;
+            mMaxErrorDegrees = Math.max(mMaxErrorDegrees, degrees);
+        }
+        mPendingCount = kept;
+    }
+
+    static void multiply(float ax, float ay, float az, float aw,
+            float bx, float by, float bz, float bw, float[] out) {
+        out[0] = aw * bx + ax * bw + ay * bz - az * by;
+        out[1] = aw * by - ax * bz + ay * bw + az * bx;
+        out[2] = aw * bz + ax * by - ay * bx + az * bw;
+        out[3] = aw * bw - ax * bx - ay * by - az * bz;
+    }
+
+    static void rotationVectorToQuaternion(float rx, float ry, float rz, float[] out) {
+        float angle = (float) Math.sqrt(rx * rx + ry * ry + rz * rz);
+        if (angle < 1e-6f) {
+            out[0] = rx * 0.5f;
+            out[1] = ry * 0.5f;
+            out[2] = rz * 0.5f;
+            out[3] = 1f;
+            return;
+        }
+        float s = (float) Math.sin(angle * 0.5f) / angle;
+        out[0] = rx * s;
+        out[1] = ry * s;
+        out[2] = rz * s;
+        out[3] = (float) Math.cos(angle * 0.5f);
+    }
+
+    static void quaternionToRotationVector(float[] q, float[] out) {
+        float w = q[3];
+        float sign = w < 0 ? -1f : 1f;
+        float sinHalf = (float) Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2]);
+        if (sinHalf < 1e-6f) {
+            out[0] = 2f * q[0] * sign;
+            out[1] = 2f * q[1] * sign;
+            out[2] = 2f * q[2] * sign;
+            return;
+        }
+        float angle = 2f * (float) Math.atan2(sinHalf, Math.abs(w));
+        float s = angle / sinHalf * sign;
+        out[0] = q[0] * s;
+        out[1] = q[1] * s;
+        out[2] = q[2] * s;
+    }
+
+    static void nlerp(float[] a, int ao, float[] b, int bo, float t, float[] out) {
+        float x = a[ao] + (b[bo] - a[ao]) * t;
+        float y = a[ao + 1] + (b[bo + 1] - a[ao + 1]) * t;
+        float z = a[ao + 2] + (b[bo + 2] - a[ao + 2]) * t;
+        float w = a[ao + 3] + (b[bo + 3] - a[ao + 3]) * t;
+        float inv = 1f / (float) Math.sqrt(x * x + y * y + z * z + w * w);
+        out[0] = x * inv;
+        out[1] = y * inv;
+        out[2] = z * inv;
+        out[3] = w * inv;
+    }
+
+    /**
+     * Extracts the rotation of a column-major matrix as a unit quaternion.
+     */
+    static void matrixToQuaternion(float[] m, float[] out) {
+        float m00 = m[0], m01 = m[4], m02 = m[8];
+        float m10 = m[1], m11 = m[5], m12 = m[9];
+        float m20 = m[2], m21 = m[6], m22 = m[10];
+        float trace = m00 + m11 + m22;
+        float x, y, z, w;
+        if (trace > 0) {
+            float s = (float) Math.sqrt(trace + 1f) * 2f;
+            w = 0.25f * s;
+            x = (m21 - m12) / s;
+            y = (m02 - m20) / s;
+            z = (m10 - m01) / s;
+        } else if (m00 > m11 && m00 > m22) {
+            float s = (float) Math.sqrt(1f + m00 - m11 - m22) * 2f;
+            w = (m21 - m12) / s;
+            x = 0.25f * s;
+            y = (m01 + m10) / s;
+            z = (m02 + m20) / s;
+        } else if (m11 > m22) {
+            float s = (float) Math.sqrt(1f + m11 - m00 - m22) * 2f;
+            w = (m02 - m20) / s;
+            x = (m01 + m10) / s;
+            y = 0.25f * s;
+            z = (m12 + m21) / s;
+        } else {
+            float s = (float) Math.sqrt(1f + m22 - m00 - m11) * 2f;
+            w = (m10 - m01) / s;
+            x = (m02 + m20) / s;
+            y = (m12 + m21) / s;
+            z = 0.25f * s;
+        }
+        float inv = 1f / (float) Math.sqrt(x * x + y * y + z * z + w * w);
+        out[0] = x * inv;
+        out[1] = y * inv;
+        out[2] = z * inv;
+        out[3] = w * inv;
+    }
+
+    /**
+     * Writes the rotation of a unit quaternion into a column-major matrix with no translation.
+     */
+    static void quaternionToMatrix(float[] q, float[] m) {
+        float x = q[0], y = q[1], z = q[2], w = q[3];
+        m[0] = 1f - 2f * (y * y + z * z);
+        m[1] = 2f * (x * y + z * w);
+        m[2] = 2f * (x * z - y * w);
+        m[3] = 0f;
+        m[4] = 2f * (x * y - z * w);
+        m[5] = 1f - 2f * (x * x + z * z);
+        m[6] = 2f * (y * z + x * w);
+        m[7] = 0f;
+        m[8] = 2f * (x * z + y * w);
+        m[9] = 2f * (y * z - x * w);
+        m[10] = 1f - 2f * (x * x + y * y);
+        m[11] = 0f;
+        m[12] = 0f;
+        m[13] = 0f;
+        m[14] = 0f;
+        m[15] = 1f;
+    }
+}
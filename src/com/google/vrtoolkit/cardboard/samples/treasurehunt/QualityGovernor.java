@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * Steps rendering quality down when frames run late, the phone runs hot or the battery runs low,
+ * and back up once there is headroom again.
+ *
+ * Quality is a ladder of declared {@link Tier}s, best first. The frame load drives steps of one
+ * tier in either direction, with a gap between the thresholds for stepping down and up and a
+ * minimum time in a tier between steps, so a borderline load does not make the quality flicker.
+ * Heat and a low battery put a ceiling on the quality instead, which applies at once.
+ *
+ * Pure Java, and every input carries its own timestamp, so recorded telemetry can be replayed
+ * through it off the device. Not thread safe apart from {@link #setBattery}.
+ */
+public class QualityGovernor {
+
+    /**
+     * One set of quality settings.
+     */
+    public static final class Tier {
+        public final String name;
+        /** Eye resolution relative to the screen's, in each direction. */
+        public final float resolutionScale;
+        /** Dynamic lights the lit shader evaluates per object. */
+        public final int lightsPerObject;
+        /** Most particles alive at once. */
+        public final int particleBudget;
+
+        public Tier(String name, float resolutionScale, int lightsPerObject, int particleBudget) {
+            this.name = name;
+            this.resolutionScale = resolutionScale;
+            this.lightsPerObject = lightsPerObject;
+            this.particleBudget = particleBudget;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public static final Tier[] DEFAULT_TIERS = {
+        new Tier("high", 1f, PointLights.MAX_PER_OBJECT, ParticleSystem.MAX_PARTICLES),
+        new Tier("medium", 0.85f, 2, ParticleSystem.MAX_PARTICLES / 2),
+        new Tier("low", 0.7f, 1, ParticleSystem.MAX_PARTICLES / 4),
+        new Tier("minimum", 0.5f, 0, ParticleSystem.MAX_PARTICLES / 10),
+    };
+
+    // Share of the frame budget the frames may use before quality goes down, and below which it
+    // may go up again.
+    private static final float STEP_DOWN_LOAD = 0.9f;
+    private static final float STEP_UP_LOAD = 0.6f;
+    // Share of frames that may miss vsync before quality goes down, and below which it may go up.
+    private static final float STEP_DOWN_MISSES = 0.05f;
+    private static final float STEP_UP_MISSES = 0.005f;
+    // Weight of each new frame in the running averages; about a second at 60Hz.
+    private static final float SMOOTHING = 1f / 64;
+    // A frame interval this many budgets long means vsync was missed.
+    private static final float MISS_INTERVAL = 1.5f;
+    // Frames after a change before the averages describe the new tier.
+    private static final int SETTLE_FRAMES = 30;
+
+    // Battery temperatures in Celsius at which quality is capped, and at which the caps lift.
+    private static final float WARM_CELSIUS = 40f;
+    private static final float HOT_CELSIUS = 43f;
+    private static final float COOL_MARGIN_CELSIUS = 2f;
+    private static final float LOW_BATTERY = 0.15f;
+
+    private final Tier[] mTiers;
+    private final long mFrameBudgetNanos;
+    private final long mMinDwellNanos;
+
+    // Latest battery state, from any thread.
+    private volatile float mBatteryLevel = 1f;
+    private volatile boolean mCharging = true;
+    private volatile float mTemperature = Float.NaN;
+
+    private int mTier;
+    private long mTierSinceNanos = Long.MIN_VALUE;
+    private long mLastFrameNanos = Long.MIN_VALUE;
+    private int mSettleFrames = SETTLE_FRAMES;
+    private float mLoad;
+    private float mMisses;
+    private boolean mWarm;
+    private boolean mHot;
+
+    // Statistics for the session.
+    private final long[] mNanosInTier;
+    private int mChanges;
+
+    /**
+     * @param tiers The quality ladder, best first. The last tier is used when the phone is hot or
+     *     the battery is low.
+     * @param frameBudgetNanos How long the renderer may take per frame, usually the display's
+     *     refresh period.
+     * @param minDwellNanos How long quality stays in a tier before the load may change it.
+     */
+    public QualityGovernor(Tier[] tiers, long frameBudgetNanos, long minDwellNanos) {
+        if (tiers.length == 0) {
+            throw new IllegalArgumentException("No quality tiers");
+        }
+        mTiers = tiers;
+        mFrameBudgetNanos = frameBudgetNanos;
+        mMinDwellNanos = minDwellNanos;
+        mNanosInTier = new long[tiers.length];
+    }
+
+    /**
+     * Passes on the latest battery state. Safe to call from any thread.
+     * @param level Charge, from 0 to 1.
+     * @param temperatureCelsius Battery temperature, the best thermal signal most phones offer, or
+     *     NaN if unknown.
+     */
+    public void setBattery(float level, boolean charging, float temperatureCelsius) {
+        mBatteryLevel = level;
+        mCharging = charging;
+        mTemperature = temperatureCelsius;
+    }
+
+    /**
+     * Moves straight to a tier without counting it as a change, e.g. one a calibration chose
+     * before the first frames have shown what the device can do. The load then moves it as usual.
+     */
+    public void startAt(int tier) {
+        mTier = Math.max(0, Math.min(mTiers.length - 1, tier));
+        mSettleFrames = SETTLE_FRAMES;
+        mTierSinceNanos = Long.MIN_VALUE;
+    }
+
+    /**
+     * Accounts for a frame and moves to another tier if needed.
+     * @param startNanos When the frame started. Successive frames' starts give the frame interval.
+     * @param busyNanos How long the renderer worked on the frame.
+     * @return Whether the tier changed.
+     */
+    public boolean onFrame(long startNanos, long busyNanos) {
+        if (mTierSinceNanos == Long.MIN_VALUE) {
+            mTierSinceNanos = startNanos;
+        }
+        long interval = mLastFrameNanos == Long.MIN_VALUE ? 0 : startNanos - mLastFrameNanos;
+        if (interval > 0) {
+            mNanosInTier[mTier] += interval;
+        }
+        mLastFrameNanos = startNanos;
+
+        float load = busyNanos / (float) mFrameBudgetNanos;
+        float missed = interval > MISS_INTERVAL * mFrameBudgetNanos ? 1f : 0f;
+        if (mSettleFrames > 0) {
+            // Seed the averages from the new tier's first frames rather than the old tier's.
+            mSettleFrames--;
+            float weight = 1f / (SETTLE_FRAMES - mSettleFrames);
+            mLoad += (load - mLoad) * weight;
+            mMisses += (missed - mMisses) * weight;
+            return applyCeiling(startNanos);
+        }
+        mLoad += (load - mLoad) * SMOOTHING;
+        mMisses += (missed - mMisses) * SMOOTHING;
+
+        if (applyCeiling(startNanos)) {
+            return true;
+        }
+        if (startNanos - mTierSinceNanos < mMinDwellNanos) {
+            return false;
+        }
+        if ((mLoad > STEP_DOWN_LOAD || mMisses > STEP_DOWN_MISSES)
+                && mTier < mTiers.length - 1) {
+            setTier(mTier + 1, startNanos);
+            return true;
+        }
+        if (mLoad < STEP_UP_LOAD && mMisses < STEP_UP_MISSES && mTier > getCeiling()) {
+            setTier(mTier - 1, startNanos);
+            return true;
+        }
+        return false;
+    }
+
+    public Tier getTier() {
+        return mTiers[mTier];
+    }
+
+    public int getTierIndex() {
+        return mTier;
+    }
+
+    /**
+     * Returns the smoothed share of the frame budget used per frame.
+     */
+    public float getLoad() {
+        return mLoad;
+    }
+
+    /**
+     * Returns a one-line summary of the time spent in each tier.
+     */
+    public String describe() {
+        long total = 0;
+        for (long nanos : mNanosInTier) {
+            total += nanos;
+        }
+        StringBuilder sb = new StringBuilder("Quality: ").append(mChanges).append(" changes");
+        for (int i = 0; i < mTiers.length; i++) {
+            sb.append(String.format(", %s %.0f%%", mTiers[i].name,
+                    total == 0 ? 0f : mNanosInTier[i] * 100f / total));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Steps straight down to the best tier that heat and battery allow, if quality is above it.
+     */
+    private boolean applyCeiling(long nowNanos) {
+        float temperature = mTemperature;
+        // Each cap lifts a little below where it engaged, so it does not toggle at the threshold.
+        if (!Float.isNaN(temperature)) {
+            mWarm = temperature >= (mWarm ? WARM_CELSIUS - COOL_MARGIN_CELSIUS : WARM_CELSIUS);
+            mHot = temperature >= (mHot ? HOT_CELSIUS - COOL_MARGIN_CELSIUS : HOT_CELSIUS);
+        }
+        int ceiling = getCeiling();
+        if (mTier < ceiling) {
+            setTier(ceiling, nowNanos);
+            return true;
+        }
+        return false;
+    }
+
+    private int getCeiling() {
+        int last = mTiers.length - 1;
+        if (mHot || (!mCharging && mBatteryLevel <= LOW_BATTERY)) {
+            return last;
+        }
+        return mWarm ? Math.min(1, last) : 0;
+    }
+
+    private void setTier(int tier, long nowNanos) {
+        mTier = tier;
+        mTierSinceNanos = nowNanos;
+        mSettleFrames = SETTLE_FRAMES;
+        mChanges++;
+    }
+}
@@ -0,0 +1,1040 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.opengl.GLES20;
+
+/**
+ * A fake {@link Gl} for headless tests of the renderer. Draws nothing, but tracks the objects and
+ * bindings a real context would, throws {@link IllegalStateException} on calls that would be
+ * errors or undefined behaviour there, and counts the work each frame submits.
+ *
+ * Only refers to GLES20 for its constants, so it runs on a plain JVM. Only covers the subset of
+ * GL this renderer uses, and assumes all vertex data lives in buffer objects. Not thread safe,
+ * like a real context.
+ */
+public class RecordingGl implements Gl {
+
+    protected static final int MAX_ATTRIBS = 16;
+    private static final int MAX_TEXTURE_UNITS = 8;
+
+    /**
+     * What one frame asked of the GPU, from one {@link #endFrame()} to the next.
+     */
+    public static final class FrameStats {
+        public int drawCalls;
+        public int vertices;
+        /** Binds, enables and other pipeline state calls. */
+        public int stateChanges;
+        /** State calls that set the value already in effect. */
+        public int redundantStateChanges;
+        public int uniformUpdates;
+        /** Bytes passed to buffer and texture uploads. */
+        public long bytesUploaded;
+
+        @Override
+        public String toString() {
+            return drawCalls + " draws, " + vertices + " vertices, " + stateChanges
+                    + " state changes (" + redundantStateChanges + " redundant), "
+                    + uniformUpdates + " uniforms, " + bytesUploaded + " bytes uploaded";
+        }
+    }
+
+    private static final class Shader {
+        boolean hasSource;
+        boolean compiled;
+    }
+
+    private static final class Program {
+        final List<Integer> shaders = new ArrayList<Integer>();
+        final Map<String, Integer> attributes = new HashMap<String, Integer>();
+        final Map<String, Integer> uniforms = new HashMap<String, Integer>();
+        boolean linked;
+    }
+
+    private static final class Framebuffer {
+        int colorTexture;
+        int depthRenderbuffer;
+    }
+
+    private int mNextName = 1;
+    // Buffer name to size in bytes, or -1 before the first glBufferData.
+    private final Map<Integer, Integer> mBuffers = new HashMap<Integer, Integer>();
+    // Texture name to size in bytes of level 0.
+    private final Map<Integer, Integer> mTextures = new HashMap<Integer, Integer>();
+    private final Map<Integer, Shader> mShaders = new HashMap<Integer, Shader>();
+    private final Map<Integer, Program> mPrograms = new HashMap<Integer, Program>();
+    private final Map<Integer, Framebuffer> mFramebuffers = new HashMap<Integer, Framebuffer>();
+    // Renderbuffer name to size in bytes, or 0 before the first glRenderbufferStorage.
+    private final Map<Integer, Integer> mRenderbuffers = new HashMap<Integer, Integer>();
+
+    // Bindings and pipeline state.
+    private int mProgram;
+    private int mArrayBuffer;
+    private int mElementBuffer;
+    private int mActiveUnit;
+    private int mFramebuffer;
+    private int mRenderbuffer;
+    private final int[] mBoundTextures = new int[MAX_TEXTURE_UNITS];
+    private final Map<Integer, Boolean> mCaps = new HashMap<Integer, Boolean>();
+    private int mBlendSrc = GLES20.GL_ONE;
+    private int mBlendDst = GLES20.GL_ZERO;
+    private boolean mDepthMask = true;
+    private final int[] mScissor = new int[4];
+    private final int[] mViewport = new int[4];
+    private final float[] mClearColor = new float[4];
+    private final Map<Integer, Integer> mPixelStore = new HashMap<Integer, Integer>();
+
+    // Vertex attribute arrays.
+    private final boolean[] mAttribEnabled = new boolean[MAX_ATTRIBS];
+    private final int[] mAttribBuffer = new int[MAX_ATTRIBS];
+    private final int[] mAttribSize = new int[MAX_ATTRIBS];
+    private final int[] mAttribStride = new int[MAX_ATTRIBS];
+    private final int[] mAttribOffset = new int[MAX_ATTRIBS];
+
+    private FrameStats mStats = new FrameStats();
+    private final List<String> mCalls = new ArrayList<String>();
+    private boolean mLoggingCalls;
+
+    /**
+     * Returns what was submitted since the last call, and starts counting afresh.
+     */
+    public FrameStats endFrame() {
+        FrameStats stats = mStats;
+        mStats = new FrameStats();
+        mCalls.clear();
+        return stats;
+    }
+
+    /**
+     * Also keeps the names of the calls made this frame, for asserting on frame structure.
+     */
+    public void setLoggingCalls(boolean logging) {
+        mLoggingCalls = logging;
+    }
+
+    public List<String> getCalls() {
+        return mCalls;
+    }
+
+    /**
+     * Forgets every object and resets all state, as losing the EGL context would.
+     */
+    public void loseContext() {
+        mBuffers.clear();
+        mTextures.clear();
+        mShaders.clear();
+        mPrograms.clear();
+        mFramebuffers.clear();
+        mRenderbuffers.clear();
+        mProgram = 0;
+        mArrayBuffer = 0;
+        mElementBuffer = 0;
+        mActiveUnit = 0;
+        mFramebuffer = 0;
+        mRenderbuffer = 0;
+        Arrays.fill(mBoundTextures, 0);
+        mCaps.clear();
+        Arrays.fill(mAttribEnabled, false);
+        Arrays.fill(mAttribBuffer, 0);
+    }
+
+    public int getLiveBufferCount() {
+        return mBuffers.size();
+    }
+
+    public int getLiveTextureCount() {
+        return mTextures.size();
+    }
+
+    public int getLiveProgramCount() {
+        return mPrograms.size();
+    }
+
+    public int getLiveShaderCount() {
+        return mShaders.size();
+    }
+
+    public int getLiveFramebufferCount() {
+        return mFramebuffers.size();
+    }
+
+    public long getBufferBytes() {
+        long total = 0;
+        for (int size : mBuffers.values()) {
+            total += Math.max(size, 0);
+        }
+        return total;
+    }
+
+    public long getTextureBytes() {
+        long total = 0;
+        for (int size : mTextures.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    public long getRenderbufferBytes() {
+        long total = 0;
+        for (int size : mRenderbuffers.values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    // State for subclasses that act on the calls, like SoftwareGl. Arrays must not be modified.
+
+    protected int getCurrentProgram() {
+        return mProgram;
+    }
+
+    protected int getArrayBuffer() {
+        return mArrayBuffer;
+    }
+
+    protected int getElementBuffer() {
+        return mElementBuffer;
+    }
+
+    protected int getActiveTextureUnit() {
+        return mActiveUnit;
+    }
+
+    protected int getBoundTexture(int unit) {
+        return mBoundTextures[unit];
+    }
+
+    protected boolean isCapEnabled(int cap) {
+        return isEnabled(cap);
+    }
+
+    protected boolean getDepthMask() {
+        return mDepthMask;
+    }
+
+    protected int[] getScissor() {
+        return mScissor;
+    }
+
+    protected int[] getViewport() {
+        return mViewport;
+    }
+
+    protected int getFramebuffer() {
+        return mFramebuffer;
+    }
+
+    protected float[] getClearColor() {
+        return mClearColor;
+    }
+
+    protected boolean isAttribEnabled(int index) {
+        return mAttribEnabled[index];
+    }
+
+    protected int getAttribBuffer(int index) {
+        return mAttribBuffer[index];
+    }
+
+    protected int getAttribSize(int index) {
+        return mAttribSize[index];
+    }
+
+    protected int getAttribStride(int index) {
+        return mAttribStride[index];
+    }
+
+    protected int getAttribOffset(int index) {
+        return mAttribOffset[index];
+    }
+
+    @Override
+    public void glActiveTexture(int texture) {
+        log("glActiveTexture");
+        int unit = texture - GLES20.GL_TEXTURE0;
+        check(unit >= 0 && unit < MAX_TEXTURE_UNITS, "glActiveTexture: bad unit " + unit);
+        stateChange(mActiveUnit == unit);
+        mActiveUnit = unit;
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        log("glAttachShader");
+        program(program, "glAttachShader").shaders.add(shader);
+        shader(shader, "glAttachShader");
+    }
+
+    @Override
+    public void glBindAttribLocation(int program, int index, String name) {
+        log("glBindAttribLocation");
+        check(index >= 0 && index < MAX_ATTRIBS, "glBindAttribLocation: bad index " + index);
+        program(program, "glBindAttribLocation").attributes.put(name, index);
+    }
+
+    @Override
+    public void glBindBuffer(int target, int buffer) {
+        log("glBindBuffer");
+        check(buffer == 0 || mBuffers.containsKey(buffer),
+                "glBindBuffer: " + buffer + " is not a buffer");
+        if (target == GLES20.GL_ARRAY_BUFFER) {
+            stateChange(mArrayBuffer == buffer);
+            mArrayBuffer = buffer;
+        } else if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+            stateChange(mElementBuffer == buffer);
+            mElementBuffer = buffer;
+        } else {
+            throw new IllegalStateException("glBindBuffer: bad target " + target);
+        }
+    }
+
+    @Override
+    public void glBindFramebuffer(int target, int framebuffer) {
+        log("glBindFramebuffer");
+        check(target == GLES20.GL_FRAMEBUFFER, "glBindFramebuffer: bad target " + target);
+        check(framebuffer == 0 || mFramebuffers.containsKey(framebuffer),
+                "glBindFramebuffer: " + framebuffer + " is not a framebuffer");
+        stateChange(mFramebuffer == framebuffer);
+        mFramebuffer = framebuffer;
+    }
+
+    @Override
+    public void glBindRenderbuffer(int target, int renderbuffer) {
+        log("glBindRenderbuffer");
+        check(target == GLES20.GL_RENDERBUFFER, "glBindRenderbuffer: bad target " + target);
+        check(renderbuffer == 0 || mRenderbuffers.containsKey(renderbuffer),
+                "glBindRenderbuffer: " + renderbuffer + " is not a renderbuffer");
+        stateChange(mRenderbuffer == renderbuffer);
+        mRenderbuffer = renderbuffer;
+    }
+
+    @Override
+    public void glBindTexture(int target, int texture) {
+        log("glBindTexture");
+        check(target == GLES20.GL_TEXTURE_2D, "glBindTexture: bad target " + target);
+        check(texture == 0 || mTextures.containsKey(texture),
+                "glBindTexture: " + texture + " is not a texture");
+        stateChange(mBoundTextures[mActiveUnit] == texture);
+        mBoundTextures[mActiveUnit] = texture;
+    }
+
+    @Override
+    public void glBlendFunc(int sfactor, int dfactor) {
+        log("glBlendFunc");
+        stateChange(mBlendSrc == sfactor && mBlendDst == dfactor);
+        mBlendSrc = sfactor;
+        mBlendDst = dfactor;
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        log("glBufferData");
+        int buffer = boundBuffer(target, "glBufferData");
+        check(size >= 0, "glBufferData: negative size");
+        check(data == null || data.remaining() * elementBytes(data) >= size,
+                "glBufferData: " + size + " bytes requested from a smaller buffer");
+        mBuffers.put(buffer, size);
+        if (data != null) {
+            mStats.bytesUploaded += size;
+        }
+    }
+
+    @Override
+    public void glBufferSubData(int target, int offset, int size, Buffer data) {
+        log("glBufferSubData");
+        int buffer = boundBuffer(target, "glBufferSubData");
+        int capacity = mBuffers.get(buffer);
+        check(offset >= 0 && offset + size <= capacity, "glBufferSubData: " + offset + "+"
+                + size + " is outside buffer " + buffer + " of " + capacity + " bytes");
+        check(data.remaining() * elementBytes(data) >= size,
+                "glBufferSubData: " + size + " bytes requested from a smaller buffer");
+        mStats.bytesUploaded += size;
+    }
+
+    @Override
+    public int glCheckFramebufferStatus(int target) {
+        log("glCheckFramebufferStatus");
+        check(target == GLES20.GL_FRAMEBUFFER, "glCheckFramebufferStatus: bad target " + target);
+        if (mFramebuffer == 0) {
+            return GLES20.GL_FRAMEBUFFER_COMPLETE;
+        }
+        Framebuffer f = mFramebuffers.get(mFramebuffer);
+        if (f.colorTexture == 0 && f.depthRenderbuffer == 0) {
+            return GLES20.GL_FRAMEBUFFER_INCOMPLETE_MISSING_ATTACHMENT;
+        }
+        Integer colorBytes = mTextures.get(f.colorTexture);
+        Integer depthBytes = mRenderbuffers.get(f.depthRenderbuffer);
+        if ((f.colorTexture != 0 && (colorBytes == null || colorBytes == 0))
+                || (f.depthRenderbuffer != 0 && (depthBytes == null || depthBytes == 0))) {
+            return GLES20.GL_FRAMEBUFFER_INCOMPLETE_ATTACHMENT;
+        }
+        return GLES20.GL_FRAMEBUFFER_COMPLETE;
+    }
+
+    @Override
+    public void glClear(int mask) {
+        log("glClear");
+    }
+
+    @Override
+    public void glClearColor(float red, float green, float blue, float alpha) {
+        log("glClearColor");
+        stateChange(mClearColor[0] == red && mClearColor[1] == green && mClearColor[2] == blue
+                && mClearColor[3] == alpha);
+        mClearColor[0] = red;
+        mClearColor[1] = green;
+        mClearColor[2] = blue;
+        mClearColor[3] = alpha;
+    }
+
+    @Override
+    public void glCompileShader(int shader) {
+        log("glCompileShader");
+        Shader s = shader(shader, "glCompileShader");
+        check(s.hasSource, "glCompileShader: shader " + shader + " has no source");
+        s.compiled = true;
+    }
+
+    @Override
+    public void glCopyTexSubImage2D(int target, int level, int xoffset, int yoffset, int x, int y,
+            int width, int height) {
+        log("glCopyTexSubImage2D");
+        check(target == GLES20.GL_TEXTURE_2D, "glCopyTexSubImage2D: bad target " + target);
+        int texture = mBoundTextures[mActiveUnit];
+        check(texture != 0, "glCopyTexSubImage2D: no texture bound to unit " + mActiveUnit);
+        Integer bytes = mTextures.get(texture);
+        check(bytes != null && bytes > 0, "glCopyTexSubImage2D: texture " + texture
+                + " has no storage");
+        check(mFramebuffer == 0 || mFramebuffers.get(mFramebuffer).colorTexture != texture,
+                "glCopyTexSubImage2D: texture " + texture + " is the one being read");
+    }
+
+    @Override
+    public int glCreateProgram() {
+        log("glCreateProgram");
+        int name = mNextName++;
+        mPrograms.put(name, new Program());
+        return name;
+    }
+
+    @Override
+    public int glCreateShader(int type) {
+        log("glCreateShader");
+        check(type == GLES20.GL_VERTEX_SHADER || type == GLES20.GL_FRAGMENT_SHADER,
+                "glCreateShader: bad type " + type);
+        int name = mNextName++;
+        mShaders.put(name, new Shader());
+        return name;
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        log("glDeleteBuffers");
+        for (int i = 0; i < n; i++) {
+            int buffer = buffers[offset + i];
+            check(buffer == 0 || mBuffers.remove(buffer) != null,
+                    "glDeleteBuffers: " + buffer + " is not a buffer");
+            // Deleting a bound buffer unbinds it.
+            if (mArrayBuffer == buffer) {
+                mArrayBuffer = 0;
+            }
+            if (mElementBuffer == buffer) {
+                mElementBuffer = 0;
+            }
+        }
+    }
+
+    @Override
+    public void glDeleteFramebuffers(int n, int[] framebuffers, int offset) {
+        log("glDeleteFramebuffers");
+        for (int i = 0; i < n; i++) {
+            int framebuffer = framebuffers[offset + i];
+            check(framebuffer == 0 || mFramebuffers.remove(framebuffer) != null,
+                    "glDeleteFramebuffers: " + framebuffer + " is not a framebuffer");
+            // Deleting the bound framebuffer binds the default one.
+            if (mFramebuffer == framebuffer) {
+                mFramebuffer = 0;
+            }
+        }
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        log("glDeleteProgram");
+        check(program == 0 || mPrograms.remove(program) != null,
+                "glDeleteProgram: " + program + " is not a program");
+    }
+
+    @Override
+    public void glDeleteRenderbuffers(int n, int[] renderbuffers, int offset) {
+        log("glDeleteRenderbuffers");
+        for (int i = 0; i < n; i++) {
+            int renderbuffer = renderbuffers[offset + i];
+            check(renderbuffer == 0 || mRenderbuffers.remove(renderbuffer) != null,
+                    "glDeleteRenderbuffers: " + renderbuffer + " is not a renderbuffer");
+            if (mRenderbuffer == renderbuffer) {
+                mRenderbuffer = 0;
+            }
+        }
+    }
+
+    @Override
+    public void glDeleteShader(int shader) {
+        log("glDeleteShader");
+        check(shader == 0 || mShaders.remove(shader) != null,
+                "glDeleteShader: " + shader + " is not a shader");
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        log("glDeleteTextures");
+        for (int i = 0; i < n; i++) {
+            int texture = textures[offset + i];
+            check(texture == 0 || mTextures.remove(texture) != null,
+                    "glDeleteTextures: " + texture + " is not a texture");
+            for (int unit = 0; unit < MAX_TEXTURE_UNITS; unit++) {
+                if (mBoundTextures[unit] == texture) {
+                    mBoundTextures[unit] = 0;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void glDepthMask(boolean flag) {
+        log("glDepthMask");
+        stateChange(mDepthMask == flag);
+        mDepthMask = flag;
+    }
+
+    @Override
+    public void glDisable(int cap) {
+        log("glDisable");
+        stateChange(!isEnabled(cap));
+        mCaps.put(cap, false);
+    }
+
+    @Override
+    public void glDisableVertexAttribArray(int index) {
+        log("glDisableVertexAttribArray");
+        checkAttrib(index, "glDisableVertexAttribArray");
+        stateChange(!mAttribEnabled[index]);
+        mAttribEnabled[index] = false;
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        log("glDrawArrays");
+        checkDraw("glDrawArrays", first + count);
+        mStats.drawCalls++;
+        mStats.vertices += count;
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        log("glDrawElements");
+        // The highest index is in the element buffer, which is not kept, so only check bindings.
+        checkDraw("glDrawElements", 0);
+        check(mElementBuffer != 0, "glDrawElements: no element array buffer bound");
+        int indexBytes = type == GLES20.GL_UNSIGNED_SHORT ? 2 : 1;
+        check(offset + count * indexBytes <= mBuffers.get(mElementBuffer),
+                "glDrawElements: indices run past the end of the element array buffer");
+        mStats.drawCalls++;
+        mStats.vertices += count;
+    }
+
+    @Override
+    public void glEnable(int cap) {
+        log("glEnable");
+        stateChange(isEnabled(cap));
+        mCaps.put(cap, true);
+    }
+
+    @Override
+    public void glEnableVertexAttribArray(int index) {
+        log("glEnableVertexAttribArray");
+        checkAttrib(index, "glEnableVertexAttribArray");
+        stateChange(mAttribEnabled[index]);
+        mAttribEnabled[index] = true;
+    }
+
+    @Override
+    public void glFinish() {
+        log("glFinish");
+    }
+
+    @Override
+    public void glFramebufferRenderbuffer(int target, int attachment, int renderbuffertarget,
+            int renderbuffer) {
+        log("glFramebufferRenderbuffer");
+        Framebuffer f = boundFramebuffer(target, "glFramebufferRenderbuffer");
+        check(attachment == GLES20.GL_DEPTH_ATTACHMENT,
+                "glFramebufferRenderbuffer: unsupported attachment " + attachment);
+        check(renderbuffertarget == GLES20.GL_RENDERBUFFER,
+                "glFramebufferRenderbuffer: bad renderbuffer target " + renderbuffertarget);
+        check(renderbuffer == 0 || mRenderbuffers.containsKey(renderbuffer),
+                "glFramebufferRenderbuffer: " + renderbuffer + " is not a renderbuffer");
+        f.depthRenderbuffer = renderbuffer;
+    }
+
+    @Override
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, int texture,
+            int level) {
+        log("glFramebufferTexture2D");
+        Framebuffer f = boundFramebuffer(target, "glFramebufferTexture2D");
+        check(attachment == GLES20.GL_COLOR_ATTACHMENT0,
+                "glFramebufferTexture2D: unsupported attachment " + attachment);
+        check(textarget == GLES20.GL_TEXTURE_2D,
+                "glFramebufferTexture2D: bad texture target " + textarget);
+        check(level == 0, "glFramebufferTexture2D: GLES 2.0 only renders to level 0");
+        check(texture == 0 || mTextures.containsKey(texture),
+                "glFramebufferTexture2D: " + texture + " is not a texture");
+        f.colorTexture = texture;
+    }
+
+    @Override
+    public void glGenBuffers(int n, int[] buffers, int offset) {
+        log("glGenBuffers");
+        for (int i = 0; i < n; i++) {
+            buffers[offset + i] = mNextName;
+            mBuffers.put(mNextName++, -1);
+        }
+    }
+
+    @Override
+    public void glGenFramebuffers(int n, int[] framebuffers, int offset) {
+        log("glGenFramebuffers");
+        for (int i = 0; i < n; i++) {
+            framebuffers[offset + i] = mNextName;
+            mFramebuffers.put(mNextName++, new Framebuffer());
+        }
+    }
+
+    @Override
+    public void glGenRenderbuffers(int n, int[] renderbuffers, int offset) {
+        log("glGenRenderbuffers");
+        for (int i = 0; i < n; i++) {
+            renderbuffers[offset + i] = mNextName;
+            mRenderbuffers.put(mNextName++, 0);
+        }
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        log("glGenTextures");
+        for (int i = 0; i < n; i++) {
+            textures[offset + i] = mNextName;
+            mTextures.put(mNextName++, 0);
+        }
+    }
+
+    @Override
+    public int glGetAttribLocation(int program, String name) {
+        log("glGetAttribLocation");
+        Program p = linkedProgram(program, "glGetAttribLocation");
+        Integer location = p.attributes.get(name);
+        if (location == null) {
+            // Unbound attributes get the next free location at link time.
+            location = p.attributes.size();
+            p.attributes.put(name, location);
+        }
+        return location;
+    }
+
+    @Override
+    public int glGetError() {
+        log("glGetError");
+        // Anything that would raise an error has already thrown.
+        return GLES20.GL_NO_ERROR;
+    }
+
+    @Override
+    public void glGetIntegerv(int pname, int[] params, int offset) {
+        log("glGetIntegerv");
+        switch (pname) {
+            case GLES20.GL_FRAMEBUFFER_BINDING:
+                params[offset] = mFramebuffer;
+                break;
+            case GLES20.GL_SCISSOR_BOX:
+                System.arraycopy(mScissor, 0, params, offset, 4);
+                break;
+            case GLES20.GL_VIEWPORT:
+                System.arraycopy(mViewport, 0, params, offset, 4);
+                break;
+            // Limits of a modest real device, so sizes derived from them stay realistic.
+            case GLES20.GL_MAX_TEXTURE_SIZE:
+            case GLES20.GL_MAX_RENDERBUFFER_SIZE:
+                params[offset] = 2048;
+                break;
+            case GLES20.GL_MAX_TEXTURE_IMAGE_UNITS:
+            case GLES20.GL_MAX_VARYING_VECTORS:
+            case GLES20.GL_MAX_VERTEX_ATTRIBS:
+                params[offset] = 8;
+                break;
+            case GLES20.GL_MAX_FRAGMENT_UNIFORM_VECTORS:
+                params[offset] = 64;
+                break;
+            case GLES20.GL_MAX_VERTEX_UNIFORM_VECTORS:
+                params[offset] = 128;
+                break;
+            default:
+                check(false, "glGetIntegerv: unsupported pname " + pname);
+        }
+    }
+
+    @Override
+    public String glGetProgramInfoLog(int program) {
+        log("glGetProgramInfoLog");
+        program(program, "glGetProgramInfoLog");
+        return "";
+    }
+
+    @Override
+    public void glGetProgramiv(int program, int pname, int[] params, int offset) {
+        log("glGetProgramiv");
+        Program p = program(program, "glGetProgramiv");
+        check(pname == GLES20.GL_LINK_STATUS, "glGetProgramiv: unsupported pname " + pname);
+        params[offset] = p.linked ? GLES20.GL_TRUE : GLES20.GL_FALSE;
+    }
+
+    @Override
+    public String glGetShaderInfoLog(int shader) {
+        log("glGetShaderInfoLog");
+        shader(shader, "glGetShaderInfoLog");
+        return "";
+    }
+
+    @Override
+    public void glGetShaderiv(int shader, int pname, int[] params, int offset) {
+        log("glGetShaderiv");
+        Shader s = shader(shader, "glGetShaderiv");
+        check(pname == GLES20.GL_COMPILE_STATUS, "glGetShaderiv: unsupported pname " + pname);
+        params[offset] = s.compiled ? GLES20.GL_TRUE : GLES20.GL_FALSE;
+    }
+
+    @Override
+    public String glGetString(int name) {
+        log("glGetString");
+        switch (name) {
+            case GLES20.GL_VENDOR:
+            case GLES20.GL_RENDERER:
+                return "RecordingGl";
+            case GLES20.GL_VERSION:
+                return "OpenGL ES 2.0 RecordingGl";
+            case GLES20.GL_EXTENSIONS:
+                return "";
+            default:
+                check(false, "glGetString: unsupported name " + name);
+                return null;
+        }
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        log("glGetUniformLocation");
+        Program p = linkedProgram(program, "glGetUniformLocation");
+        Integer location = p.uniforms.get(name);
+        if (location == null) {
+            location = p.uniforms.size();
+            p.uniforms.put(name, location);
+        }
+        return location;
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        log("glLinkProgram");
+        Program p = program(program, "glLinkProgram");
+        check(p.shaders.size() == 2, "glLinkProgram: program " + program + " has "
+                + p.shaders.size() + " shaders attached");
+        for (int shader : p.shaders) {
+            check(shader(shader, "glLinkProgram").compiled,
+                    "glLinkProgram: shader " + shader + " is not compiled");
+        }
+        p.linked = true;
+    }
+
+    @Override
+    public void glPixelStorei(int pname, int param) {
+        log("glPixelStorei");
+        Integer old = mPixelStore.put(pname, param);
+        stateChange(old != null ? old == param : param == 4);
+    }
+
+    @Override
+    public void glRenderbufferStorage(int target, int internalformat, int width, int height) {
+        log("glRenderbufferStorage");
+        check(target == GLES20.GL_RENDERBUFFER, "glRenderbufferStorage: bad target " + target);
+        check(mRenderbuffer != 0, "glRenderbufferStorage: no renderbuffer bound");
+        check(width > 0 && height > 0, "glRenderbufferStorage: empty size");
+        int bytesPerPixel = internalformat == GLES20.GL_DEPTH_COMPONENT16 ? 2 : 4;
+        mRenderbuffers.put(mRenderbuffer, width * height * bytesPerPixel);
+    }
+
+    @Override
+    public void glScissor(int x, int y, int width, int height) {
+        log("glScissor");
+        check(width >= 0 && height >= 0, "glScissor: negative size");
+        stateChange(mScissor[0] == x && mScissor[1] == y && mScissor[2] == width
+                && mScissor[3] == height);
+        mScissor[0] = x;
+        mScissor[1] = y;
+        mScissor[2] = width;
+        mScissor[3] = height;
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        log("glShaderSource");
+        check(string != null, "glShaderSource: null source");
+        shader(shader, "glShaderSource").hasSource = true;
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels) {
+        log("glTexImage2D");
+        check(target == GLES20.GL_TEXTURE_2D, "glTexImage2D: bad target " + target);
+        int texture = mBoundTextures[mActiveUnit];
+        check(texture != 0, "glTexImage2D: no texture bound to unit " + mActiveUnit);
+        check(internalformat == format, "glTexImage2D: GLES 2.0 needs matching formats");
+        check(type == GLES20.GL_UNSIGNED_BYTE, "glTexImage2D: unsupported type " + type);
+        int bytes = width * height * channels(format);
+        check(pixels == null || pixels.remaining() * elementBytes(pixels) >= bytes,
+                "glTexImage2D: " + bytes + " bytes requested from a smaller buffer");
+        if (level == 0) {
+            mTextures.put(texture, bytes);
+        }
+        if (pixels != null) {
+            mStats.bytesUploaded += bytes;
+        }
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        log("glTexParameteri");
+        check(mBoundTextures[mActiveUnit] != 0,
+                "glTexParameteri: no texture bound to unit " + mActiveUnit);
+        stateChange(false);
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        uniform("glUniform1f");
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        uniform("glUniform1i");
+    }
+
+    @Override
+    public void glUniform2f(int location, float x, float y) {
+        uniform("glUniform2f");
+    }
+
+    @Override
+    public void glUniform3f(int location, float x, float y, float z) {
+        uniform("glUniform3f");
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, float[] v, int offset) {
+        uniform("glUniform4fv");
+        check(offset + count * 4 <= v.length, "glUniform4fv: array too short");
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset) {
+        uniform("glUniformMatrix4fv");
+        check(!transpose, "glUniformMatrix4fv: GLES 2.0 cannot transpose");
+        check(offset + count * 16 <= value.length, "glUniformMatrix4fv: array too short");
+    }
+
+    @Override
+    public void glUseProgram(int program) {
+        log("glUseProgram");
+        if (program != 0) {
+            linkedProgram(program, "glUseProgram");
+        }
+        stateChange(mProgram == program);
+        mProgram = program;
+    }
+
+    @Override
+    public void glVertexAttribPointer(int index, int size, int type, boolean normalized,
+            int stride, int offset) {
+        log("glVertexAttribPointer");
+        checkAttrib(index, "glVertexAttribPointer");
+        check(type == GLES20.GL_FLOAT, "glVertexAttribPointer: unsupported type " + type);
+        check(mArrayBuffer != 0, "glVertexAttribPointer: no array buffer bound for attribute "
+                + index + "; client-side arrays are not supported");
+        stateChange(false);
+        mAttribBuffer[index] = mArrayBuffer;
+        mAttribSize[index] = size;
+        mAttribStride[index] = stride;
+        mAttribOffset[index] = offset;
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        log("glViewport");
+        check(width >= 0 && height >= 0, "glViewport: negative size");
+        stateChange(mViewport[0] == x && mViewport[1] == y && mViewport[2] == width
+                && mViewport[3] == height);
+        mViewport[0] = x;
+        mViewport[1] = y;
+        mViewport[2] = width;
+        mViewport[3] = height;
+    }
+
+    private void log(String call) {
+        if (mLoggingCalls) {
+            mCalls.add(call);
+        }
+    }
+
+    private void stateChange(boolean redundant) {
+        mStats.stateChanges++;
+        if (redundant) {
+            mStats.redundantStateChanges++;
+        }
+    }
+
+    private void uniform(String call) {
+        log(call);
+        check(mProgram != 0, call + ": no program in use");
+        mStats.uniformUpdates++;
+    }
+
+    private boolean isEnabled(int cap) {
+        Boolean enabled = mCaps.get(cap);
+        // Dithering is the only capability GL starts with enabled.
+        return enabled != null ? enabled : cap == GLES20.GL_DITHER;
+    }
+
+    private int boundBuffer(int target, String call) {
+        int buffer;
+        if (target == GLES20.GL_ARRAY_BUFFER) {
+            buffer = mArrayBuffer;
+        } else if (target == GLES20.GL_ELEMENT_ARRAY_BUFFER) {
+            buffer = mElementBuffer;
+        } else {
+            throw new IllegalStateException(call + ": bad target " + target);
+        }
+        check(buffer != 0, call + ": no buffer bound to " + target);
+        return buffer;
+    }
+
+    private Framebuffer boundFramebuffer(int target, String call) {
+        check(target == GLES20.GL_FRAMEBUFFER, call + ": bad target " + target);
+        check(mFramebuffer != 0, call + ": the default framebuffer cannot take attachments");
+        return mFramebuffers.get(mFramebuffer);
+    }
+
+    /**
+     * Checks that a draw reading vertices up to {@code vertexCount} only reads defined data.
+     */
+    private void checkDraw(String call, int vertexCount) {
+        check(mProgram != 0, call + ": no program in use");
+        if (mFramebuffer != 0) {
+            // Sampling the texture being rendered to is undefined.
+            int target = mFramebuffers.get(mFramebuffer).colorTexture;
+            for (int unit = 0; unit < MAX_TEXTURE_UNITS; unit++) {
+                check(target == 0 || mBoundTextures[unit] != target, call + ": texture "
+                        + target + " is bound to unit " + unit + " while rendered to");
+            }
+        }
+        for (int i = 0; i < MAX_ATTRIBS; i++) {
+            if (!mAttribEnabled[i]) {
+                continue;
+            }
+            int buffer = mAttribBuffer[i];
+            check(buffer != 0, call + ": attribute " + i + " is enabled but has no pointer");
+            Integer capacity = mBuffers.get(buffer);
+            check(capacity != null, call + ": attribute " + i + " points at deleted buffer "
+                    + buffer);
+            if (vertexCount > 0) {
+                int stride = mAttribStride[i] != 0 ? mAttribStride[i] : mAttribSize[i] * 4;
+                int end = mAttribOffset[i] + (vertexCount - 1) * stride + mAttribSize[i] * 4;
+                check(end <= capacity, call + ": attribute " + i + " reads " + end
+                        + " bytes from buffer " + buffer + " of " + capacity);
+            }
+        }
+    }
+
+    private void checkAttrib(int index, String call) {
+        check(index >= 0 && index < MAX_ATTRIBS, call + ": bad attribute index " + index);
+    }
+
+    private Program program(int program, String call) {
+        Program p = mPrograms.get(program);
+        check(p != null, call + ": " + program + " is not a program");
+        return p;
+    }
+
+    private Program linkedProgram(int program, String call) {
+        Program p = program(program, call);
+        check(p.linked, call + ": program " + program + " is not linked");
+        return p;
+    }
+
+    private Shader shader(int shader, String call) {
+        Shader s = mShaders.get(shader);
+        check(s != null, call + ": " + shader + " is not a shader");
+        return s;
+    }
+
+    private static int channels(int format) {
+        switch (format) {
+            case GLES20.GL_RGBA:
+                return 4;
+            case GLES20.GL_RGB:
+                return 3;
+            case GLES20.GL_LUMINANCE_ALPHA:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    private static int elementBytes(Buffer buffer) {
+        if (buffer instanceof ByteBuffer) {
+            return 1;
+        } else if (buffer instanceof ShortBuffer) {
+            return 2;
+        }
+        return 4;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException(message);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+/**
+ * Keeps the last finished image of each eye, and shows it again turned to the newest head pose
+ * when a frame is predicted to miss the display.
+ *
+ * A late frame otherwise leaves the previous image up, locked to a head pose the user has already
+ * turned away from, which is the worst case for comfort. Each eye's world is copied out of its
+ * framebuffer by {@link #keep} once it is drawn, before the HUD, which follows the head anyway
+ * and is drawn fresh. On a late frame {@link #draw} puts the copy on a quad filling the old eye's
+ * frustum, turned by the rotation from the old eye pose to the new one. Only rotation is
+ * corrected, as if the whole world were far away: that is what a head turn needs, and without
+ * depth a positional correction would tear near objects from far ones.
+ */
+public class Reprojection {
+
+    private static final int FLOATS_PER_VERTEX = 4; // x, y, u, v
+    private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+    // A unit square as a triangle strip; draw() stretches it over the kept eye's frustum.
+    private static final float[] QUAD = {
+        -1f, -1f, 0f, 0f,
+        1f, -1f, 1f, 0f,
+        -1f, 1f, 0f, 1f,
+        1f, 1f, 1f, 1f,
+    };
+    private static final float[] WHITE = {1f, 1f, 1f, 1f};
+
+    private final Gl mGl;
+
+    private int mProgram;
+    private int mMvpParam;
+    private int mColorParam;
+    private int mTextureParam;
+    private int mPositionParam;
+    private int mTexCoordParam;
+
+    // Indexed by EyeParams.Eye.
+    private final int[] mTextures = new int[3];
+    private final int[] mWidths = new int[3];
+    private final int[] mHeights = new int[3];
+    private final boolean[] mKept = new boolean[3];
+    // The eye view and frustum each kept image was drawn with.
+    private final float[][] mKeptViews = new float[3][16];
+    private final float[][] mKeptTangents = new float[3][4];
+    private final int[] mQuadBuffer = new int[1];
+
+    private final float[] mRotation = new float[16];
+    private final float[] mModel = new float[16];
+    private final float[] mModelView = new float[16];
+    private final float[] mMvp = new float[16];
+
+    public Reprojection(Gl gl) {
+        mGl = gl;
+    }
+
+    /**
+     * Looks up the program's variables. Must be called on the GL thread for each new context; the
+     * copies are made from the next {@link #keep}.
+     * @param program A program linked from the simple image shaders.
+     */
+    public void onSurfaceCreated(int program) {
+        mProgram = program;
+        mMvpParam = mGl.glGetUniformLocation(program, "u_MVP");
+        mColorParam = mGl.glGetUniformLocation(program, "u_Color");
+        mTextureParam = mGl.glGetUniformLocation(program, "u_Texture");
+        mPositionParam = mGl.glGetAttribLocation(program, "a_Position");
+        mTexCoordParam = mGl.glGetAttribLocation(program, "a_TexCoordinate");
+    }
+
+    /**
+     * Forgets the GL objects of a lost context, and with them the kept images.
+     */
+    public void onContextLost() {
+        mProgram = 0;
+        mQuadBuffer[0] = 0;
+        for (int eye = 0; eye < mTextures.length; eye++) {
+            mTextures[eye] = 0;
+            mKept[eye] = false;
+        }
+    }
+
+    /**
+     * Returns whether there is an image of the eye to show again.
+     */
+    public boolean hasImage(int eye) {
+        return mProgram != 0 && mKept[eye];
+    }
+
+    /**
+     * Copies an eye's image out of the bound framebuffer.
+     * @param eye One of EyeParams.Eye.
+     * @param eyeView The view the image was drawn with, after any late pose correction.
+     * @param perspective The projection the image was drawn with.
+     * @param x The left of the eye's viewport.
+     * @param y The bottom of the eye's viewport.
+     */
+    public void keep(int eye, float[] eyeView, float[] perspective, int x, int y, int width,
+            int height) {
+        if (mProgram == 0) {
+            return;
+        }
+        if (mTextures[eye] != 0 && (width != mWidths[eye] || height != mHeights[eye])) {
+            deleteTexture(eye);
+        }
+        if (mTextures[eye] == 0) {
+            createTexture(eye, width, height);
+        }
+        mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[eye]);
+        mGl.glCopyTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, x, y, width, height);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        System.arraycopy(eyeView, 0, mKeptViews[eye], 0, 16);
+        FarField.getFrustumTangents(perspective, mKeptTangents[eye]);
+        mKept[eye] = true;
+    }
+
+    /**
+     * Draws the kept image of an eye as seen from a newer pose. Clear the eye first; the parts
+     * the old image does not cover are left as they are.
+     * @param eyeView The eye's view now.
+     * @param perspective The eye's projection now.
+     */
+    public void draw(int eye, float[] eyeView, float[] perspective) {
+        // The quad lies one unit in front of the old eye, exactly filling its frustum.
+        float[] tangents = mKeptTangents[eye];
+        Matrix.setIdentityM(mModel, 0);
+        mModel[0] = (tangents[1] - tangents[0]) / 2f;
+        mModel[5] = (tangents[3] - tangents[2]) / 2f;
+        mModel[12] = (tangents[1] + tangents[0]) / 2f;
+        mModel[13] = (tangents[3] + tangents[2]) / 2f;
+        mModel[14] = -1f;
+        getRotation(mKeptViews[eye], eyeView, mRotation);
+        Matrix.multiplyMM(mModelView, 0, mRotation, 0, mModel, 0);
+        Matrix.multiplyMM(mMvp, 0, perspective, 0, mModelView, 0);
+
+        mGl.glDisable(GLES20.GL_DEPTH_TEST);
+        mGl.glUseProgram(mProgram);
+        mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[eye]);
+        mGl.glUniform1i(mTextureParam, 0);
+        mGl.glUniform4fv(mColorParam, 1, WHITE, 0);
+        mGl.glUniformMatrix4fv(mMvpParam, 1, false, mMvp, 0);
+
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mQuadBuffer[0]);
+        mGl.glEnableVertexAttribArray(mPositionParam);
+        mGl.glVertexAttribPointer(mPositionParam, 2, GLES20.GL_FLOAT, false, STRIDE, 0);
+        mGl.glEnableVertexAttribArray(mTexCoordParam);
+        mGl.glVertexAttribPointer(mTexCoordParam, 2, GLES20.GL_FLOAT, false, STRIDE, 8);
+        mGl.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        mGl.glDisableVertexAttribArray(mTexCoordParam);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        mGl.glEnable(GLES20.GL_DEPTH_TEST);
+    }
+
+    /**
+     * Computes the rotation that takes directions in the eye space of one view to the eye space of
+     * another, ignoring where the views are.
+     * @param fromView The view directions are given in.
+     * @param toView The view they are wanted in.
+     * @param rotation Receives toView's rotation times the inverse of fromView's.
+     */
+    public static void getRotation(float[] fromView, float[] toView, float[] rotation) {
+        // The inverse of a rotation is its transpose, so the product is of rows with rows.
+        for (int column = 0; column < 3; column++) {
+            for (int row = 0; row < 3; row++) {
+                rotation[column * 4 + row] = toView[row] * fromView[column]
+                        + toView[4 + row] * fromView[4 + column]
+                        + toView[8 + row] * fromView[8 + column];
+            }
+            rotation[column * 4 + 3] = 0f;
+        }
+        rotation[12] = 0f;
+        rotation[13] = 0f;
+        rotation[14] = 0f;
+        rotation[15] = 1f;
+    }
+
+    private void createTexture(int eye, int width, int height) {
+        mWidths[eye] = width;
+        mHeights[eye] = height;
+        mGl.glGenTextures(1, mTextures, eye);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[eye]);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        // RGB, since a copy may not add channels the framebuffer lacks.
+        mGl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGB, width, height, 0,
+                GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, null);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GpuMemory.getShared().allocate(GpuMemory.TEXTURES, GpuMemory.textureBytes(width, height,
+                GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, false));
+
+        if (mQuadBuffer[0] == 0) {
+            FloatBuffer vertices = DirectBufferPool.getShared().allocate(QUAD.length * 4)
+                    .asFloatBuffer();
+            vertices.put(QUAD).position(0);
+            mGl.glGenBuffers(1, mQuadBuffer, 0);
+            mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mQuadBuffer[0]);
+            mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, QUAD.length * 4, vertices,
+                    GLES20.GL_STATIC_DRAW);
+            mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+            GpuMemory.getShared().allocate(GpuMemory.BUFFERS, QUAD.length * 4);
+        }
+    }
+
+    private void deleteTexture(int eye) {
+        mGl.glDeleteTextures(1, mTextures, eye);
+        GpuMemory.getShared().free(GpuMemory.TEXTURES, GpuMemory.textureBytes(mWidths[eye],
+                mHeights[eye], GLES20.GL_RGB, GLES20.GL_UNSIGNED_BYTE, false));
+        mTextures[eye] = 0;
+        mKept[eye] = false;
+    }
+}
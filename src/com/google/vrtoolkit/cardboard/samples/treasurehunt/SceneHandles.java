@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * GL object names and static world data that scene recording needs.
+ *
+ * Filled in on the GL thread in onSurfaceCreated, before any recording starts, and only read
+ * afterwards, so recorder threads may use it without further synchronisation once they have been
+ * handed work by the GL thread.
+ */
+public final class SceneHandles {
+
+    public int program;
+
+    // Uniform locations.
+    public int modelViewProjection;
+    public int modelView;
+    public int lightPositions;
+    public int lightColors;
+    public int lightCount;
+    public int isFloor;
+    public int texture;
+    public int lightmap;
+
+    // Attribute locations.
+    public int position;
+    public int normal;
+    public int color;
+    public int textureCoordinate;
+    public int lightmapCoordinate;
+
+    // Buffer objects.
+    public int cubeVertices;
+    public int cubeColors;
+    public int cubeFoundColors;
+    public int cubeNormals;
+    public int cubeTextureCoords;
+    public int floorVertices;
+    public int floorNormals;
+    public int floorColors;
+    public int floorLightmapCoords;
+    public int floorGridCoords;
+
+    // Vertex array objects holding each mesh's attribute setup; all 0 when the attributes are set
+    // for each draw instead.
+    public int cubeVertexArray;
+    public int cubeFoundVertexArray;
+    public int floorVertexArray;
+
+    // Textures.
+    public int cubeTexture;
+    public int cubeFoundTexture;
+    public int floorLightmap;
+    public int floorGrid;
+
+    /** Viewing transformation of the user's head origin, applied after the eye transform. */
+    public final float[] camera = new float[16];
+    public final float[] floorModel = new float[16];
+    public int floorVertexCount;
+}
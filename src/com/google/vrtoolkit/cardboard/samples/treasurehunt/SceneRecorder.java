@@ -0,0 +1,227 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+/**
+ * Encodes the draw commands for one eye into a {@link CommandBuffer}.
+ *
+ * Does all the per-eye matrix math but makes no GL calls, so it can run on any thread. Each
+ * instance has its own scratch matrices; use one recorder per recording thread.
+ *
+ * Pose-dependent values are recorded in eye space; the projection and any late pose correction
+ * are applied when the buffer is replayed.
+ */
+public class SceneRecorder {
+
+    private static final int COORDS_PER_VERTEX = 3;
+    // Radius of the sphere around the cube's corners, before the model's scale.
+    private static final float CUBE_RADIUS = (float) Math.sqrt(3);
+
+    private final SceneHandles mHandles;
+
+    private final float[] mView = new float[16];
+    private final float[] mModelView = new float[16];
+    private final float[] mLightPositions = new float[PointLights.MAX_PER_OBJECT * 4];
+    private final float[] mWorldPoint = new float[4];
+    private final float[] mEyePoint = new float[4];
+
+    public SceneRecorder(SceneHandles handles) {
+        mHandles = handles;
+    }
+
+    /**
+     * Records one eye's worth of commands into {@code out}, replacing whatever it held.
+     * @param state The world snapshot to draw.
+     * @param eyeView The eye's view matrix, including the head pose.
+     */
+    public void record(CommandBuffer out, FrameState state, float[] eyeView) {
+        record(out, state, eyeView, 0f, Float.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Records the commands for the part of the scene between two depths. Objects entirely outside
+     * the range are left out; the rest are recorded whole, and the projection they are replayed
+     * with clips them to the range.
+     * @param nearDepth The nearest distance in front of the eye to draw.
+     * @param farDepth The furthest distance in front of the eye to draw.
+     */
+    public void record(CommandBuffer out, FrameState state, float[] eyeView, float nearDepth,
+            float farDepth) {
+        final SceneHandles h = mHandles;
+        out.reset();
+
+        out.clear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        out.useProgram(h.program);
+        if (h.floorVertexArray == 0) {
+            recordEnables(out);
+        }
+
+        // Apply the eye transformation to the camera.
+        Matrix.multiplyMM(mView, 0, eyeView, 0, h.camera, 0);
+
+        if (state.cubeVisible && isCubeInRange(state, nearDepth, farDepth)) {
+            recordCube(out, state);
+        }
+        // The floor reaches from under the eye to the horizon, so it is in every range.
+        recordFloor(out, state);
+    }
+
+    /**
+     * Returns whether the cube's bounding sphere reaches into a range of depths in front of the
+     * eye, using the view of the eye being recorded.
+     */
+    private boolean isCubeInRange(FrameState state, float nearDepth, float farDepth) {
+        return isCubeInRange(state.cubeModel, mView, nearDepth, farDepth, mWorldPoint, mEyePoint);
+    }
+
+    /**
+     * Returns whether the cube's bounding sphere reaches into a range of depths in front of a
+     * view.
+     * @param view The view matrix, from world space to eye space.
+     * @param worldPoint Scratch space for four floats.
+     * @param eyePoint Scratch space for four more.
+     */
+    static boolean isCubeInRange(float[] cubeModel, float[] view, float nearDepth, float farDepth,
+            float[] worldPoint, float[] eyePoint) {
+        final float[] m = cubeModel;
+        float scale = Math.max(Matrix.length(m[0], m[1], m[2]),
+                Math.max(Matrix.length(m[4], m[5], m[6]), Matrix.length(m[8], m[9], m[10])));
+        float radius = CUBE_RADIUS * scale;
+        worldPoint[0] = m[12];
+        worldPoint[1] = m[13];
+        worldPoint[2] = m[14];
+        worldPoint[3] = 1f;
+        Matrix.multiplyMV(eyePoint, 0, view, 0, worldPoint, 0);
+        float depth = -eyePoint[2];
+        return depth + radius >= nearDepth && depth - radius <= farDepth;
+    }
+
+    /**
+     * Records the lights assigned to the next object, moved into eye space.
+     */
+    private void recordLights(CommandBuffer out, int count, float[] positions, float[] colors) {
+        final SceneHandles h = mHandles;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(positions, i * 4, mWorldPoint, 0, 3);
+            mWorldPoint[3] = 1f;
+            Matrix.multiplyMV(mEyePoint, 0, mView, 0, mWorldPoint, 0);
+            System.arraycopy(mEyePoint, 0, mLightPositions, i * 4, 3);
+            // Keep the range.
+            mLightPositions[i * 4 + 3] = positions[i * 4 + 3];
+        }
+        out.uniform1i(h.lightCount, count);
+        if (count > 0) {
+            out.uniformEyePoints4fv(h.lightPositions, count, mLightPositions, 0);
+            out.uniform4fv(h.lightColors, count, colors, 0);
+        }
+    }
+
+    /**
+     * Draw the cube. The texture and colors depend on whether the user is looking at it.
+     */
+    private void recordCube(CommandBuffer out, FrameState state) {
+        final SceneHandles h = mHandles;
+        Matrix.multiplyMM(mModelView, 0, mView, 0, state.cubeModel, 0);
+
+        out.uniform1f(h.isFloor, 0f);
+        recordLights(out, state.cubeLightCount, state.cubeLightPositions, state.cubeLightColors);
+        out.uniformEyeMatrix4(h.modelView, mModelView, 0);
+        out.uniformEyeProjectedMatrix4(h.modelViewProjection, mModelView, 0);
+        if (h.cubeVertexArray != 0) {
+            out.bindVertexArray(state.cubeHighlighted
+                    ? h.cubeFoundVertexArray : h.cubeVertexArray);
+        } else {
+            recordCubeAttributes(out, state.cubeHighlighted);
+        }
+        out.bindTexture(0, state.cubeHighlighted ? h.cubeFoundTexture : h.cubeTexture);
+        out.uniform1i(h.texture, 0);
+        out.drawArrays(GLES20.GL_TRIANGLES, 0, 36);
+    }
+
+    /**
+     * Draw the floor.
+     */
+    private void recordFloor(CommandBuffer out, FrameState state) {
+        final SceneHandles h = mHandles;
+        Matrix.multiplyMM(mModelView, 0, mView, 0, h.floorModel, 0);
+
+        out.uniform1f(h.isFloor, 1f);
+        recordLights(out, state.floorLightCount, state.floorLightPositions,
+                state.floorLightColors);
+        out.uniformEyeMatrix4(h.modelView, mModelView, 0);
+        out.uniformEyeProjectedMatrix4(h.modelViewProjection, mModelView, 0);
+        if (h.floorVertexArray != 0) {
+            out.bindVertexArray(h.floorVertexArray);
+        } else {
+            recordFloorAttributes(out);
+        }
+        out.bindTexture(0, h.floorGrid);
+        out.uniform1i(h.texture, 0);
+        out.bindTexture(1, h.floorLightmap);
+        out.uniform1i(h.lightmap, 1);
+        out.drawArrays(GLES20.GL_TRIANGLES, 0, h.floorVertexCount);
+    }
+
+    /**
+     * Records the attribute setup of one cube mesh, with its arrays enabled, e.g. to capture it
+     * in a vertex array object.
+     * @param found Whether to set up the colors the cube shows once it is found.
+     */
+    public void recordCubeLayout(CommandBuffer out, boolean found) {
+        recordEnables(out);
+        recordCubeAttributes(out, found);
+    }
+
+    /**
+     * Records the attribute setup of the floor mesh, with its arrays enabled.
+     */
+    public void recordFloorLayout(CommandBuffer out) {
+        recordEnables(out);
+        recordFloorAttributes(out);
+    }
+
+    private void recordEnables(CommandBuffer out) {
+        final SceneHandles h = mHandles;
+        out.enableAttrib(h.position);
+        out.enableAttrib(h.normal);
+        out.enableAttrib(h.color);
+        out.enableAttrib(h.textureCoordinate);
+        out.enableAttrib(h.lightmapCoordinate);
+    }
+
+    private void recordCubeAttributes(CommandBuffer out, boolean found) {
+        final SceneHandles h = mHandles;
+        out.attribPointer(h.position, COORDS_PER_VERTEX, h.cubeVertices, 0, 0);
+        out.attribPointer(h.normal, 3, h.cubeNormals, 0, 0);
+        out.attribPointer(h.textureCoordinate, 2, h.cubeTextureCoords, 0, 0);
+        // The cube has no lightmap; point the attribute at anything with enough vertices.
+        out.attribPointer(h.lightmapCoordinate, 2, h.cubeTextureCoords, 0, 0);
+        out.attribPointer(h.color, 4, found ? h.cubeFoundColors : h.cubeColors, 0, 0);
+    }
+
+    private void recordFloorAttributes(CommandBuffer out) {
+        final SceneHandles h = mHandles;
+        out.attribPointer(h.position, COORDS_PER_VERTEX, h.floorVertices, 0, 0);
+        out.attribPointer(h.normal, 3, h.floorNormals, 0, 0);
+        out.attribPointer(h.color, 4, h.floorColors, 0, 0);
+        out.attribPointer(h.textureCoordinate, 2, h.floorGridCoords, 0, 0);
+        out.attribPointer(h.lightmapCoordinate, 2, h.floorLightmapCoords, 0, 0);
+    }
+}
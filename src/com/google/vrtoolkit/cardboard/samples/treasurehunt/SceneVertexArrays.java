@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * Vertex array objects that capture the scene meshes' attribute setup, so drawing a mesh takes
+ * one bind instead of an enable and a pointer per attribute.
+ *
+ * The layouts come from the {@link SceneRecorder}, replayed once into each array. An array
+ * refers to its buffers by name, so the arrays are rebuilt whenever a buffer gets a new one.
+ * GL thread only.
+ */
+public class SceneVertexArrays {
+
+    private static final int CUBE = 0;
+    private static final int CUBE_FOUND = 1;
+    private static final int FLOOR = 2;
+    private static final int COUNT = 3;
+
+    private static final float[] NO_PROJECTION = new float[16];
+
+    private final GlExtensions mExtensions;
+    private final SceneRecorder mRecorder;
+    private final CommandBuffer mLayout;
+    private final int[] mArrays = new int[COUNT];
+
+    /**
+     * @param recorder A recorder of the handles the arrays are built from.
+     */
+    public SceneVertexArrays(Gl gl, GlExtensions extensions, SceneRecorder recorder) {
+        mExtensions = extensions;
+        mRecorder = recorder;
+        mLayout = new CommandBuffer(gl, 64, 0);
+    }
+
+    /**
+     * Rebuilds the arrays from the handles' current buffer names and stores them in the handles.
+     * If any mesh has a buffer that is not there, e.g. because it was evicted, no arrays are
+     * built and the meshes go back to setting their attributes per draw until the next rebuild.
+     */
+    public void build(SceneHandles h) {
+        release(h);
+        if (h.cubeVertices == 0 || h.cubeNormals == 0 || h.cubeTextureCoords == 0
+                || h.cubeColors == 0 || h.cubeFoundColors == 0 || h.floorVertices == 0
+                || h.floorNormals == 0 || h.floorColors == 0 || h.floorGridCoords == 0
+                || h.floorLightmapCoords == 0) {
+            return;
+        }
+        mExtensions.glGenVertexArrays(COUNT, mArrays, 0);
+        for (int i = 0; i < COUNT; i++) {
+            mLayout.reset();
+            if (i == FLOOR) {
+                mRecorder.recordFloorLayout(mLayout);
+            } else {
+                mRecorder.recordCubeLayout(mLayout, i == CUBE_FOUND);
+            }
+            mExtensions.glBindVertexArray(mArrays[i]);
+            mLayout.replay(NO_PROJECTION);
+        }
+        mExtensions.glBindVertexArray(0);
+        h.cubeVertexArray = mArrays[CUBE];
+        h.cubeFoundVertexArray = mArrays[CUBE_FOUND];
+        h.floorVertexArray = mArrays[FLOOR];
+    }
+
+    /**
+     * Deletes the arrays, if there are any, and clears them from the handles.
+     */
+    public void release(SceneHandles h) {
+        if (mArrays[0] != 0) {
+            mExtensions.glDeleteVertexArrays(COUNT, mArrays, 0);
+        }
+        forget(h);
+    }
+
+    /**
+     * Forgets the arrays of a lost context, without deleting them.
+     */
+    public void forget(SceneHandles h) {
+        for (int i = 0; i < COUNT; i++) {
+            mArrays[i] = 0;
+        }
+        h.cubeVertexArray = 0;
+        h.cubeFoundVertexArray = 0;
+        h.floorVertexArray = 0;
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Typeface;
+import android.opengl.GLES20;
+
+/**
+ * A texture holding a signed distance field for each printable ASCII character.
+ *
+ * Each glyph is rendered large, turned into a distance field and downsampled into one cell of
+ * the atlas. Because the texture stores distance to the glyph edge rather than coverage, text
+ * stays sharp at any scale with a single texture and a cheap shader.
+ *
+ * Glyph metrics are in units of the font size, so callers can scale text freely.
+ */
+public class SdfGlyphAtlas {
+
+    public static final char FIRST_CHAR = ' ';
+    public static final char LAST_CHAR = '~';
+
+    private static final int COLUMNS = 16;
+    private static final int ROWS = (LAST_CHAR - FIRST_CHAR + COLUMNS) / COLUMNS;
+
+    /** Cell size in the atlas, in texels. */
+    private static final int CELL = 32;
+    /** Glyphs are rendered at this multiple of the cell size before downsampling. */
+    private static final int OVERSAMPLE = 2;
+    private static final int RENDER_CELL = CELL * OVERSAMPLE;
+    /** Font size the glyphs are rendered at, in render pixels. */
+    private static final float RENDER_TEXT_SIZE = 40f;
+    /** Distance, in render pixels, covered by the full range of the field on either side. */
+    private static final float SPREAD = 8f;
+
+    public static final int WIDTH = COLUMNS * CELL;
+    public static final int HEIGHT = ROWS * CELL;
+
+    private final float[] mAdvances = new float[LAST_CHAR - FIRST_CHAR + 1];
+    private final float mCellSize;
+    private final float mCellLeft;
+    private final float mCellTop;
+    private final float mLineHeight;
+    // Atlas texels, kept so the texture can be uploaded again after a context loss.
+    private final ByteBuffer mPixels;
+    private int mTexture;
+    private final Gl mGl;
+
+    /**
+     * Renders the atlas on the CPU; safe on any thread.
+     * @param gl The GL {@link #upload()} uploads it to.
+     */
+    public SdfGlyphAtlas(Gl gl, Typeface typeface) {
+        mGl = gl;
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setTypeface(typeface);
+        paint.setTextSize(RENDER_TEXT_SIZE);
+        paint.setColor(0xffffffff);
+        Paint.FontMetrics metrics = paint.getFontMetrics();
+
+        // Where the pen sits inside a cell, leaving room for the field to spread out.
+        float penX = SPREAD;
+        float baseline = (RENDER_CELL - (metrics.descent - metrics.ascent)) / 2f - metrics.ascent;
+        mCellSize = RENDER_CELL / RENDER_TEXT_SIZE;
+        mCellLeft = -penX / RENDER_TEXT_SIZE;
+        mCellTop = baseline / RENDER_TEXT_SIZE;
+        mLineHeight = (metrics.descent - metrics.ascent) * 1.2f / RENDER_TEXT_SIZE;
+
+        mPixels = DirectBufferPool.getShared().allocate(WIDTH * HEIGHT);
+        Bitmap glyph = Bitmap.createBitmap(RENDER_CELL, RENDER_CELL, Bitmap.Config.ALPHA_8);
+        Canvas canvas = new Canvas(glyph);
+        ByteBuffer glyphPixels = ByteBuffer.allocate(glyph.getRowBytes() * RENDER_CELL);
+        byte[] coverage = new byte[RENDER_CELL * RENDER_CELL];
+        float[] field = new float[RENDER_CELL * RENDER_CELL];
+        int[] scratch = new int[RENDER_CELL * RENDER_CELL * 2];
+        char[] text = new char[1];
+
+        for (char c = FIRST_CHAR; c <= LAST_CHAR; c++) {
+            int index = c - FIRST_CHAR;
+            text[0] = c;
+            mAdvances[index] = paint.measureText(String.valueOf(text)) / RENDER_TEXT_SIZE;
+
+            glyph.eraseColor(0);
+            canvas.drawText(String.valueOf(text), penX, baseline, paint);
+            glyphPixels.clear();
+            glyph.copyPixelsToBuffer(glyphPixels);
+            int rowBytes = glyph.getRowBytes();
+            for (int y = 0; y < RENDER_CELL; y++) {
+                glyphPixels.position(y * rowBytes);
+                glyphPixels.get(coverage, y * RENDER_CELL, RENDER_CELL);
+            }
+
+            computeDistanceField(coverage, RENDER_CELL, RENDER_CELL, SPREAD, field, scratch);
+            storeCell(field, index % COLUMNS, index / COLUMNS);
+        }
+        glyph.recycle();
+        mPixels.position(0);
+    }
+
+    /**
+     * Creates the GL texture. Must be called on the GL thread, once per GL context.
+     */
+    public void upload() {
+        final int[] texture = new int[1];
+        mGl.glGenTextures(1, texture, 0);
+        mTexture = texture[0];
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, mTexture);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_LINEAR);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        mGl.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        mGl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_ALPHA, WIDTH, HEIGHT, 0,
+                GLES20.GL_ALPHA, GLES20.GL_UNSIGNED_BYTE, mPixels);
+        mGl.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GpuMemory.getShared().allocate(GpuMemory.TEXTURES, GpuMemory.textureBytes(WIDTH, HEIGHT,
+                GLES20.GL_ALPHA, GLES20.GL_UNSIGNED_BYTE, false));
+    }
+
+    public int getTexture() {
+        return mTexture;
+    }
+
+    public boolean hasGlyph(char c) {
+        return c >= FIRST_CHAR && c <= LAST_CHAR;
+    }
+
+    /** Horizontal pen advance after drawing {@code c}. */
+    public float getAdvance(char c) {
+        return mAdvances[c - FIRST_CHAR];
+    }
+
+    /** Distance between consecutive baselines. */
+    public float getLineHeight() {
+        return mLineHeight;
+    }
+
+    /** Width and height of a glyph quad. */
+    public float getCellSize() {
+        return mCellSize;
+    }
+
+    /** Offset from the pen position to the left edge of a glyph quad. */
+    public float getCellLeft() {
+        return mCellLeft;
+    }
+
+    /** Offset from the baseline up to the top edge of a glyph quad. */
+    public float getCellTop() {
+        return mCellTop;
+    }
+
+    public float getU(char c) {
+        return (float) ((c - FIRST_CHAR) % COLUMNS) / COLUMNS;
+    }
+
+    public float getV(char c) {
+        return (float) ((c - FIRST_CHAR) / COLUMNS) / ROWS;
+    }
+
+    public float getCellU() {
+        return 1f / COLUMNS;
+    }
+
+    public float getCellV() {
+        return 1f / ROWS;
+    }
+
+    /**
+     * Box-filters a rendered cell down into the atlas and quantizes it to bytes.
+     */
+    private void storeCell(float[] field, int column, int row) {
+        final float scale = 1f / (OVERSAMPLE * OVERSAMPLE);
+        for (int y = 0; y < CELL; y++) {
+            int out = (row * CELL + y) * WIDTH + column * CELL;
+            for (int x = 0; x < CELL; x++) {
+                float sum = 0;
+                for (int sy = 0; sy < OVERSAMPLE; sy++) {
+                    int in = (y * OVERSAMPLE + sy) * RENDER_CELL + x * OVERSAMPLE;
+                    for (int sx = 0; sx < OVERSAMPLE; sx++) {
+                        sum += field[in + sx];
+                    }
+                }
+                mPixels.put(out + x, (byte) Math.round(sum * scale * 255f));
+            }
+        }
+    }
+
+    /**
+     * Computes a signed distance field from an 8-bit coverage mask.
+     *
+     * Uses two sweeps of nearest-seed propagation (8SSEDT), which is linear in the number of
+     * pixels and close enough to exact for glyph rendering.
+     *
+     * @param coverage Coverage per pixel; values of 128 and above count as inside.
+     * @param spread Distance in pixels that maps to the ends of the output range.
+     * @param out Receives 0.5 on the edge, rising to 1 inside and falling to 0 outside.
+     * @param scratch At least {@code 2 * width * height} ints.
+     */
+    public static void computeDistanceField(byte[] coverage, int width, int height, float spread,
+            float[] out, int[] scratch) {
+        int size = width * height;
+        // Distance from outside pixels to the glyph...
+        sweep(coverage, width, height, true, scratch);
+        for (int i = 0; i < size; i++) {
+            out[i] = seedDistance(scratch, i, width);
+        }
+        // ...minus distance from inside pixels to the background.
+        sweep(coverage, width, height, false, scratch);
+        for (int i = 0; i < size; i++) {
+            float signed = out[i] - seedDistance(scratch, i, width);
+            out[i] = Math.max(0f, Math.min(1f, 0.5f - signed / (2f * spread)));
+        }
+    }
+
+    private static boolean isInside(byte[] coverage, int i) {
+        return (coverage[i] & 0xff) >= 128;
+    }
+
+    private static float seedDistance(int[] seeds, int i, int width) {
+        int seed = seeds[i];
+        if (seed < 0) {
+            return 0f;
+        }
+        int dx = seed % width - i % width;
+        int dy = seed / width - i / width;
+        return (float) Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Fills {@code seeds[i]} with the index of the nearest pixel whose inside-ness equals
+     * {@code seedInside}, or -1 for pixels that are seeds themselves. Only the first
+     * {@code width * height} entries of {@code seeds} are used for results; the rest holds the
+     * squared distances.
+     */
+    private static void sweep(byte[] coverage, int width, int height, boolean seedInside,
+            int[] seeds) {
+        final int size = width * height;
+        final int none = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            boolean isSeed = isInside(coverage, i) == seedInside;
+            seeds[i] = isSeed ? -1 : none;
+            seeds[size + i] = isSeed ? 0 : none;
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                relax(seeds, width, height, x, y, -1, 0);
+                relax(seeds, width, height, x, y, -1, -1);
+                relax(seeds, width, height, x, y, 0, -1);
+                relax(seeds, width, height, x, y, 1, -1);
+            }
+            for (int x = width - 1; x >= 0; x--) {
+                relax(seeds, width, height, x, y, 1, 0);
+            }
+        }
+        for (int y = height - 1; y >= 0; y--) {
+            for (int x = width - 1; x >= 0; x--) {
+                relax(seeds, width, height, x, y, 1, 0);
+                relax(seeds, width, height, x, y, 1, 1);
+                relax(seeds, width, height, x, y, 0, 1);
+                relax(seeds, width, height, x, y, -1, 1);
+            }
+            for (int x = 0; x < width; x++) {
+                relax(seeds, width, height, x, y, -1, 0);
+            }
+        }
+    }
+
+    /**
+     * Offers the neighbour's nearest seed (or the neighbour itself, if it is a seed) to a pixel.
+     */
+    private static void relax(int[] seeds, int width, int height, int x, int y, int dx, int dy) {
+        int nx = x + dx;
+        int ny = y + dy;
+        if (nx < 0 || ny < 0 || nx >= width || ny >= height) {
+            return;
+        }
+        int size = width * height;
+        int i = y * width + x;
+        int n = ny * width + nx;
+        if (seeds[size + n] == Integer.MAX_VALUE) {
+            return;
+        }
+        int seed = seeds[n] < 0 ? n : seeds[n];
+        int sx = seed % width - x;
+        int sy = seed / width - y;
+        int distance = sx * sx + sy * sy;
+        if (distance < seeds[size + i]) {
+            seeds[i] = seed;
+            seeds[size + i] = distance;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * A compact binary log of everything a session takes from the outside world: the head pose at
+ * the start of each frame, the tracker samples used for late latching, each eye's transform, the
+ * trigger pulls and the simulation's random seed. Playing a log back feeds the same workload
+ * through the renderer again, so frame times from before and after a change can be compared.
+ *
+ * The log is a header followed by records, each starting with a type byte. A frame record opens
+ * every frame and the records after it, up to the next frame record, belong to that frame. View
+ * matrices are affine, so only their first three rows are stored. Projections and viewports are
+ * only written when they change. A minute at 60 frames per second takes about a megabyte.
+ */
+public final class SessionLog {
+
+    private static final String TAG = "SessionLog";
+
+    private static final int MAGIC = 0x53455353; // "SESS"
+    private static final int VERSION = 1;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    /** Frame start: time, SDK head view, our tracker's view. */
+    private static final int RECORD_FRAME = 1;
+    /** Trigger pull: time. */
+    private static final int RECORD_TRIGGER = 2;
+    /** Eye drawn: eye, eye view, and optionally projection and viewport. */
+    private static final int RECORD_EYE = 3;
+    /** Late latch for the preceding eye: time, our tracker's view. */
+    private static final int RECORD_LATCH = 4;
+
+    /** Eyes as numbered by the SDK's EyeParams: monocular, left and right. */
+    public static final int EYES = 3;
+
+    private static final int TRIGGER_CAPACITY = 16;
+
+    private SessionLog() {
+    }
+
+    /**
+     * One frame of a session, with times moved to when the replay started.
+     */
+    public static final class Frame {
+        public long timeNanos;
+        public final float[] headView = new float[16];
+        public final float[] trackerView = new float[16];
+
+        /** Trigger pulls since the previous frame, oldest first. */
+        public int triggerCount;
+        public long[] triggerNanos = new long[4];
+
+        public final boolean[] hasEye = new boolean[EYES];
+        public final float[][] eyeView = new float[EYES][16];
+        /** The latest projection and viewport (x, y, width, height) of each eye. */
+        public final float[][] perspective = new float[EYES][16];
+        public final int[][] viewport = new int[EYES][4];
+
+        /** Whether the eye latched a fresh tracker sample, and when and what it read. */
+        public final boolean[] latched = new boolean[EYES];
+        public final long[] latchNanos = new long[EYES];
+        public final float[][] latchTrackerView = new float[EYES][16];
+    }
+
+    /**
+     * Writes a session as it happens. Frame, eye and latch records are written on the GL thread;
+     * trigger pulls may come from any thread and are written with the next frame. Writes go
+     * through a buffer, so the GL thread only touches the file every few seconds.
+     *
+     * After the first write error the writer logs it and ignores everything else.
+     */
+    public static final class Writer {
+        private final File mFile;
+        private final DataOutputStream mOut;
+        private final InputEventQueue mTriggers = new InputEventQueue(TRIGGER_CAPACITY);
+        private final InputEventQueue.Event mTrigger = new InputEventQueue.Event();
+        private final float[][] mPerspective = new float[EYES][16];
+        private final int[][] mViewport = new int[EYES][4];
+        private final boolean[] mEyeWritten = new boolean[EYES];
+        private boolean mFailed;
+        private int mFrames;
+
+        /**
+         * @param seed The seed the simulation was started with.
+         */
+        public Writer(File file, long seed) throws IOException {
+            mFile = file;
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    BUFFER_BYTES));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+            mOut.writeLong(seed);
+        }
+
+        /**
+         * Records a trigger pull. Safe to call from any thread.
+         */
+        public void onTrigger(long timeNanos) {
+            if (!mTriggers.post(InputEventQueue.TYPE_TRIGGER, timeNanos)) {
+                Log.w(TAG, "Trigger queue full, dropped trigger");
+            }
+        }
+
+        /**
+         * Starts a frame, followed by the triggers pulled since the last one.
+         * @param headView The head view the SDK gave this frame.
+         * @param trackerView Our tracker's view at the same time.
+         */
+        public void beginFrame(long timeNanos, float[] headView, float[] trackerView) {
+            if (mFailed) {
+                return;
+            }
+            try {
+                mOut.writeByte(RECORD_FRAME);
+                mOut.writeLong(timeNanos);
+                writeAffine(headView);
+                writeAffine(trackerView);
+                while (mTriggers.poll(mTrigger)) {
+                    mOut.writeByte(RECORD_TRIGGER);
+                    mOut.writeLong(mTrigger.timeNanos);
+                }
+                mFrames++;
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Records the transform an eye is drawn with.
+         */
+        public void eye(int eye, float[] eyeView, float[] perspective, int x, int y, int width,
+                int height) {
+            if (mFailed) {
+                return;
+            }
+            int[] viewport = mViewport[eye];
+            boolean changed = !mEyeWritten[eye] || viewport[0] != x || viewport[1] != y
+                    || viewport[2] != width || viewport[3] != height;
+            for (int i = 0; i < 16 && !changed; i++) {
+                changed = mPerspective[eye][i] != perspective[i];
+            }
+            try {
+                mOut.writeByte(RECORD_EYE);
+                mOut.writeByte(eye);
+                writeAffine(eyeView);
+                mOut.writeBoolean(changed);
+                if (changed) {
+                    for (int i = 0; i < 16; i++) {
+                        mOut.writeFloat(perspective[i]);
+                    }
+                    mOut.writeInt(x);
+                    mOut.writeInt(y);
+                    mOut.writeInt(width);
+                    mOut.writeInt(height);
+                    System.arraycopy(perspective, 0, mPerspective[eye], 0, 16);
+                    viewport[0] = x;
+                    viewport[1] = y;
+                    viewport[2] = width;
+                    viewport[3] = height;
+                    mEyeWritten[eye] = true;
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Records the tracker sample the last eye latched.
+         */
+        public void latch(long timeNanos, float[] trackerView) {
+            if (mFailed) {
+                return;
+            }
+            try {
+                mOut.writeByte(RECORD_LATCH);
+                mOut.writeLong(timeNanos);
+                writeAffine(trackerView);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Writes out whatever is buffered. Only call while the GL thread is not writing.
+         */
+        public void flush() {
+            if (mFailed) {
+                return;
+            }
+            try {
+                mOut.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        public void close() {
+            try {
+                mOut.close();
+                if (!mFailed) {
+                    Log.i(TAG, "Wrote " + mFrames + " frames to " + mFile);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+            mFailed = true;
+        }
+
+        private void fail(IOException e) {
+            if (!mFailed) {
+                Log.e(TAG, "Could not write " + mFile + ", recording stopped", e);
+                mFailed = true;
+            }
+        }
+
+        private void writeAffine(float[] m) throws IOException {
+            for (int i = 0; i < 15; i++) {
+                if ((i & 3) != 3) {
+                    mOut.writeFloat(m[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a session back one frame at a time, moving its times so the first frame happens when
+     * the replay starts and later ones keep their recorded spacing.
+     */
+    public static final class Reader {
+        private final DataInputStream mIn;
+        private final long mSeed;
+        private int mNextType;
+        private boolean mStarted;
+        private long mOffsetNanos;
+        private int mFrames;
+
+        public Reader(File file) throws IOException {
+            mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file),
+                    BUFFER_BYTES));
+            try {
+                if (mIn.readInt() != MAGIC || mIn.readInt() != VERSION) {
+                    throw new IOException(file + " is not a session log of version " + VERSION);
+                }
+                mSeed = mIn.readLong();
+                mNextType = mIn.read();
+            } catch (IOException e) {
+                mIn.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the seed the recorded simulation was started with.
+         */
+        public long getSeed() {
+            return mSeed;
+        }
+
+        /**
+         * Returns how many frames have been read so far.
+         */
+        public int getFrameCount() {
+            return mFrames;
+        }
+
+        /**
+         * Reads the next frame. Projections and viewports carry over from earlier frames until
+         * the log changes them.
+         * @param nowNanos The time the replay starts; only used on the first call.
+         * @return false at the end of the log.
+         */
+        public boolean next(long nowNanos, Frame out) throws IOException {
+            if (mNextType < 0) {
+                return false;
+            }
+            if (mNextType != RECORD_FRAME) {
+                throw new IOException("Expected a frame record, found " + mNextType);
+            }
+            long timeNanos = mIn.readLong();
+            if (!mStarted) {
+                mStarted = true;
+                mOffsetNanos = nowNanos - timeNanos;
+            }
+            out.timeNanos = timeNanos + mOffsetNanos;
+            readAffine(out.headView);
+            readAffine(out.trackerView);
+            out.triggerCount = 0;
+            for (int eye = 0; eye < EYES; eye++) {
+                out.hasEye[eye] = false;
+                out.latched[eye] = false;
+            }
+
+            int eye = -1;
+            for (mNextType = mIn.read(); mNextType >= 0 && mNextType != RECORD_FRAME;
+                    mNextType = mIn.read()) {
+                switch (mNextType) {
+                    case RECORD_TRIGGER:
+                        if (out.triggerCount == out.triggerNanos.length) {
+                            long[] grown = new long[out.triggerCount * 2];
+                            System.arraycopy(out.triggerNanos, 0, grown, 0, out.triggerCount);
+                            out.triggerNanos = grown;
+                        }
+                        out.triggerNanos[out.triggerCount++] = mIn.readLong() + mOffsetNanos;
+                        break;
+                    case RECORD_EYE:
+                        eye = mIn.readUnsignedByte();
+                        if (eye >= EYES) {
+                            throw new IOException("Bad eye " + eye);
+                        }
+                        out.hasEye[eye] = true;
+                        readAffine(out.eyeView[eye]);
+                        if (mIn.readBoolean()) {
+                            for (int i = 0; i < 16; i++) {
+                                out.perspective[eye][i] = mIn.readFloat();
+                            }
+                            for (int i = 0; i < 4; i++) {
+                                out.viewport[eye][i] = mIn.readInt();
+                            }
+                        }
+                        break;
+                    case RECORD_LATCH:
+                        if (eye < 0) {
+                            throw new IOException("Latch record before any eye");
+                        }
+                        out.latched[eye] = true;
+                        out.latchNanos[eye] = mIn.readLong() + mOffsetNanos;
+                        readAffine(out.latchTrackerView[eye]);
+                        break;
+                    default:
+                        throw new IOException("Unknown record type " + mNextType);
+                }
+            }
+            mFrames++;
+            return true;
+        }
+
+        /**
+         * Closes the file. Nothing is lost by closing an input, so errors are ignored.
+         */
+        public void close() {
+            try {
+                mIn.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Could not close session log", e);
+            }
+        }
+
+        private void readAffine(float[] m) throws IOException {
+            for (int i = 0; i < 15; i++) {
+                m[i] = (i & 3) != 3 ? mIn.readFloat() : 0f;
+            }
+            m[15] = 1f;
+        }
+    }
+}
@@ -0,0 +1,952 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.opengl.GLES20;
+
+/**
+ * A reference rasterizer behind the {@link Gl} interface, for rendering on machines without a GPU:
+ * golden images for regression tests, and heatmaps of how many fragments each pixel costs.
+ *
+ * Implements what the scene needs: indexed and non-indexed triangles, near-plane clipping, the
+ * depth test with GL_LESS, the scissor test, and nearest or linear texture sampling. Shaders are
+ * Java ports registered against their GLSL source with {@link #registerShader}; draws with any
+ * other program, or with other primitives, are skipped and counted. Blending is not implemented.
+ * Framebuffer objects are validated but not emulated, so draws into them are skipped as well.
+ *
+ * Each draw is binned into tiles, which are rasterized in parallel. Triangles keep their order
+ * within a tile, so results are deterministic. Pure Java apart from GLES20 constants, like
+ * {@link RecordingGl}, whose validation it inherits.
+ */
+public class SoftwareGl extends RecordingGl {
+
+    private static final int TILE_SIZE = 32;
+    // Screen-space vertex: x, y, z, 1/w, then varyings premultiplied by 1/w.
+    private static final int SCREEN_HEADER = 4;
+    // Keep clear of w == 0 when clipping against the near plane.
+    private static final float MIN_W = 1e-5f;
+
+    /**
+     * A Java port of a vertex and fragment shader pair. One instance serves one program at a
+     * time; {@link #shadeFragment} is called from several threads at once, so it may only read
+     * the fields {@link #setUniforms} wrote.
+     */
+    public abstract static class Shader {
+        /** Attribute names in the order {@link #shadeVertex} expects them, 4 floats each. */
+        protected abstract String[] getAttributes();
+
+        protected abstract int getVaryingCount();
+
+        /** Called before each draw with the program's current uniforms. */
+        protected abstract void setUniforms(Uniforms uniforms);
+
+        /**
+         * @param position Receives the clip-space position.
+         */
+        protected abstract void shadeVertex(float[] attributes, float[] position,
+                float[] varyings);
+
+        /**
+         * @param fragZ Window-space depth, as gl_FragCoord.z.
+         * @param fragW 1 / clip w, as gl_FragCoord.w.
+         * @return The color as ARGB.
+         */
+        protected abstract int shadeFragment(float[] varyings, float fragZ, float fragW);
+    }
+
+    /**
+     * The uniforms of the program being drawn with.
+     */
+    public final class Uniforms {
+        private Map<String, float[]> mValues;
+
+        /**
+         * Returns the value, or zeros if it was never set, as GL would.
+         */
+        public float[] get(String name, int floats) {
+            float[] value = mValues.get(name);
+            return value != null ? value : new float[floats];
+        }
+
+        /**
+         * Returns the texture on the unit a sampler uniform names.
+         */
+        public Texture getTexture(String sampler) {
+            int unit = (int) get(sampler, 1)[0];
+            return mTextures.get(getBoundTexture(unit));
+        }
+    }
+
+    /**
+     * A texture's level 0, for sampling.
+     */
+    public static final class Texture {
+        private int mWidth;
+        private int mHeight;
+        private int mChannels;
+        private byte[] mTexels = new byte[0];
+        private boolean mLinear;
+        private boolean mClampS;
+        private boolean mClampT;
+
+        /**
+         * Samples with the texture's magnification filter and wrap modes.
+         * @param rgba Receives the color, 0..1 per channel. Alpha-only textures are black.
+         */
+        public void sample(float u, float v, float[] rgba) {
+            if (mWidth == 0) {
+                rgba[0] = rgba[1] = rgba[2] = 0f;
+                rgba[3] = 1f;
+                return;
+            }
+            float x = u * mWidth - 0.5f;
+            float y = v * mHeight - 0.5f;
+            if (!mLinear) {
+                fetch(Math.round(x), Math.round(y), 1f, rgba, true);
+                return;
+            }
+            int x0 = (int) Math.floor(x);
+            int y0 = (int) Math.floor(y);
+            float fx = x - x0;
+            float fy = y - y0;
+            fetch(x0, y0, (1 - fx) * (1 - fy), rgba, true);
+            fetch(x0 + 1, y0, fx * (1 - fy), rgba, false);
+            fetch(x0, y0 + 1, (1 - fx) * fy, rgba, false);
+            fetch(x0 + 1, y0 + 1, fx * fy, rgba, false);
+        }
+
+        private static int wrap(int coordinate, int size) {
+            int wrapped = coordinate % size;
+            return wrapped < 0 ? wrapped + size : wrapped;
+        }
+
+        private void fetch(int x, int y, float weight, float[] rgba, boolean first) {
+            x = mClampS ? Math.min(Math.max(x, 0), mWidth - 1) : wrap(x, mWidth);
+            y = mClampT ? Math.min(Math.max(y, 0), mHeight - 1) : wrap(y, mHeight);
+            int i = (y * mWidth + x) * mChannels;
+            float scale = weight / 255f;
+            float r = 0f;
+            float g = 0f;
+            float b = 0f;
+            float a;
+            if (mChannels == 1) {
+                a = (mTexels[i] & 0xff) * scale;
+            } else {
+                r = (mTexels[i] & 0xff) * scale;
+                g = (mTexels[i + 1] & 0xff) * scale;
+                b = (mTexels[i + 2] & 0xff) * scale;
+                a = mChannels == 4 ? (mTexels[i + 3] & 0xff) * scale : weight;
+            }
+            if (first) {
+                rgba[0] = r;
+                rgba[1] = g;
+                rgba[2] = b;
+                rgba[3] = a;
+            } else {
+                rgba[0] += r;
+                rgba[1] += g;
+                rgba[2] += b;
+                rgba[3] += a;
+            }
+        }
+    }
+
+    /**
+     * Rasterizer counters, from one {@link #endRasterFrame()} to the next.
+     */
+    public static final class RasterStats {
+        public long trianglesIn;
+        /** Triangles left after clipping, including pieces of split ones. */
+        public long trianglesRasterized;
+        /** Fragments covered, whether or not they passed the depth test. */
+        public long fragments;
+        /** Fragments that passed the depth test and were shaded. */
+        public long fragmentsShaded;
+        /** Draws with an unported program or a primitive other than triangles. */
+        public int skippedDraws;
+
+        @Override
+        public String toString() {
+            return trianglesIn + " triangles in, " + trianglesRasterized + " rasterized, "
+                    + fragments + " fragments, " + fragmentsShaded + " shaded, " + skippedDraws
+                    + " draws skipped";
+        }
+    }
+
+    private static final class Program {
+        final List<Integer> shaders = new ArrayList<Integer>();
+        final Map<String, Integer> attributes = new HashMap<String, Integer>();
+        final Map<Integer, String> uniformNames = new HashMap<Integer, String>();
+        final Map<String, float[]> uniforms = new HashMap<String, float[]>();
+        Shader shader;
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int[] mColor;
+    private final float[] mDepth;
+    private final int[] mFragments;
+    private final int[] mShaded;
+    private final int mTilesX;
+    private final int mTilesY;
+    private final ExecutorService mExecutor;
+    private final int[] mViewport = new int[4];
+
+    private final Map<String, Shader> mShaderPorts = new HashMap<String, Shader>();
+    private final Map<Integer, String> mShaderSources = new HashMap<Integer, String>();
+    private final Map<Integer, Program> mPrograms = new HashMap<Integer, Program>();
+    private final Map<Integer, ByteBuffer> mBufferData = new HashMap<Integer, ByteBuffer>();
+    private final Map<Integer, Texture> mTextures = new HashMap<Integer, Texture>();
+    private final Uniforms mUniforms = new Uniforms();
+    private RasterStats mRasterStats = new RasterStats();
+
+    // Per-draw geometry, rebuilt by each draw on the calling thread.
+    private float[] mScreen = new float[1024];
+    private int mTriangleCount;
+    private int[][] mBins;
+    private int[] mBinCounts;
+
+    /**
+     * @param threads Rasterizer threads, e.g. the number of cores.
+     */
+    public SoftwareGl(int width, int height, int threads) {
+        mWidth = width;
+        mHeight = height;
+        mColor = new int[width * height];
+        mDepth = new float[width * height];
+        mFragments = new int[width * height];
+        mShaded = new int[width * height];
+        mTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        mTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        mBins = new int[mTilesX * mTilesY][16];
+        mBinCounts = new int[mTilesX * mTilesY];
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SoftwareGl");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        setViewport(0, 0, width, height);
+        Arrays.fill(mDepth, 1f);
+    }
+
+    /**
+     * Stops the rasterizer threads.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Uses {@code shader} for every program linked from exactly these sources.
+     */
+    public void registerShader(String vertexSource, String fragmentSource, Shader shader) {
+        mShaderPorts.put(vertexSource + '\0' + fragmentSource, shader);
+    }
+
+    /**
+     * Sets the viewport, as the Cardboard SDK does before each eye. Also set by glViewport.
+     */
+    public void setViewport(int x, int y, int width, int height) {
+        mViewport[0] = x;
+        mViewport[1] = y;
+        mViewport[2] = width;
+        mViewport[3] = height;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the color buffer as ARGB, bottom row first like glReadPixels.
+     */
+    public int[] getColor() {
+        return mColor;
+    }
+
+    /**
+     * Returns the fragments covered per pixel since the last {@link #resetCounts()}.
+     */
+    public int[] getFragmentCounts() {
+        return mFragments;
+    }
+
+    /**
+     * Returns the fragments shaded per pixel since the last {@link #resetCounts()}.
+     */
+    public int[] getShadedCounts() {
+        return mShaded;
+    }
+
+    public void resetCounts() {
+        Arrays.fill(mFragments, 0);
+        Arrays.fill(mShaded, 0);
+    }
+
+    /**
+     * Returns the rasterizer counters since the last call, and starts counting afresh.
+     */
+    public RasterStats endRasterFrame() {
+        RasterStats stats = mRasterStats;
+        mRasterStats = new RasterStats();
+        return stats;
+    }
+
+    /**
+     * Colors per-pixel counts for viewing: black for none, then blue, green, yellow and red for
+     * four or more.
+     * @return ARGB pixels in the same layout as {@code counts}.
+     */
+    public static int[] heatmap(int[] counts) {
+        final int[] ramp = {0xff000000, 0xff0000ff, 0xff00c000, 0xffffff00, 0xffff0000};
+        int[] pixels = new int[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            pixels[i] = ramp[Math.min(counts[i], ramp.length - 1)];
+        }
+        return pixels;
+    }
+
+    @Override
+    public void loseContext() {
+        super.loseContext();
+        mShaderSources.clear();
+        mPrograms.clear();
+        mBufferData.clear();
+        mTextures.clear();
+    }
+
+    @Override
+    public void glShaderSource(int shader, String string) {
+        super.glShaderSource(shader, string);
+        mShaderSources.put(shader, string);
+    }
+
+    @Override
+    public int glCreateProgram() {
+        int program = super.glCreateProgram();
+        mPrograms.put(program, new Program());
+        return program;
+    }
+
+    @Override
+    public void glAttachShader(int program, int shader) {
+        super.glAttachShader(program, shader);
+        mPrograms.get(program).shaders.add(shader);
+    }
+
+    @Override
+    public void glBindAttribLocation(int program, int index, String name) {
+        super.glBindAttribLocation(program, index, name);
+        mPrograms.get(program).attributes.put(name, index);
+    }
+
+    @Override
+    public void glLinkProgram(int program) {
+        super.glLinkProgram(program);
+        Program p = mPrograms.get(program);
+        String vertex = null;
+        String fragment = null;
+        for (int shader : p.shaders) {
+            // Shader types are not kept; try both orders.
+            if (vertex == null) {
+                vertex = mShaderSources.get(shader);
+            } else {
+                fragment = mShaderSources.get(shader);
+            }
+        }
+        p.shader = mShaderPorts.get(vertex + '\0' + fragment);
+        if (p.shader == null) {
+            p.shader = mShaderPorts.get(fragment + '\0' + vertex);
+        }
+    }
+
+    @Override
+    public void glDeleteProgram(int program) {
+        super.glDeleteProgram(program);
+        mPrograms.remove(program);
+    }
+
+    @Override
+    public int glGetUniformLocation(int program, String name) {
+        int location = super.glGetUniformLocation(program, name);
+        mPrograms.get(program).uniformNames.put(location, name);
+        return location;
+    }
+
+    @Override
+    public void glUniform1f(int location, float x) {
+        super.glUniform1f(location, x);
+        setUniform(location, new float[] {x});
+    }
+
+    @Override
+    public void glUniform1i(int location, int x) {
+        super.glUniform1i(location, x);
+        setUniform(location, new float[] {x});
+    }
+
+    @Override
+    public void glUniform2f(int location, float x, float y) {
+        super.glUniform2f(location, x, y);
+        setUniform(location, new float[] {x, y});
+    }
+
+    @Override
+    public void glUniform3f(int location, float x, float y, float z) {
+        super.glUniform3f(location, x, y, z);
+        setUniform(location, new float[] {x, y, z});
+    }
+
+    @Override
+    public void glUniform4fv(int location, int count, float[] v, int offset) {
+        super.glUniform4fv(location, count, v, offset);
+        setUniform(location, Arrays.copyOfRange(v, offset, offset + count * 4));
+    }
+
+    @Override
+    public void glUniformMatrix4fv(int location, int count, boolean transpose, float[] value,
+            int offset) {
+        super.glUniformMatrix4fv(location, count, transpose, value, offset);
+        setUniform(location, Arrays.copyOfRange(value, offset, offset + count * 16));
+    }
+
+    @Override
+    public void glBufferData(int target, int size, Buffer data, int usage) {
+        super.glBufferData(target, size, data, usage);
+        ByteBuffer copy = ByteBuffer.allocate(size).order(ByteOrder.nativeOrder());
+        if (data != null) {
+            copyBytes(data, copy, 0, size);
+        }
+        mBufferData.put(boundBuffer(target), copy);
+    }
+
+    @Override
+    public void glBufferSubData(int target, int offset, int size, Buffer data) {
+        super.glBufferSubData(target, offset, size, data);
+        copyBytes(data, mBufferData.get(boundBuffer(target)), offset, size);
+    }
+
+    @Override
+    public void glDeleteBuffers(int n, int[] buffers, int offset) {
+        super.glDeleteBuffers(n, buffers, offset);
+        for (int i = 0; i < n; i++) {
+            mBufferData.remove(buffers[offset + i]);
+        }
+    }
+
+    @Override
+    public void glGenTextures(int n, int[] textures, int offset) {
+        super.glGenTextures(n, textures, offset);
+        for (int i = 0; i < n; i++) {
+            mTextures.put(textures[offset + i], new Texture());
+        }
+    }
+
+    @Override
+    public void glDeleteTextures(int n, int[] textures, int offset) {
+        super.glDeleteTextures(n, textures, offset);
+        for (int i = 0; i < n; i++) {
+            mTextures.remove(textures[offset + i]);
+        }
+    }
+
+    @Override
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height,
+            int border, int format, int type, Buffer pixels) {
+        super.glTexImage2D(target, level, internalformat, width, height, border, format, type,
+                pixels);
+        if (level != 0) {
+            return;
+        }
+        Texture texture = mTextures.get(getBoundTexture(getActiveTextureUnit()));
+        texture.mWidth = width;
+        texture.mHeight = height;
+        texture.mChannels = format == GLES20.GL_RGBA ? 4 : format == GLES20.GL_RGB ? 3
+                : format == GLES20.GL_LUMINANCE_ALPHA ? 2 : 1;
+        texture.mTexels = new byte[width * height * texture.mChannels];
+        if (pixels != null) {
+            ByteBuffer wrapped = ByteBuffer.wrap(texture.mTexels);
+            copyBytes(pixels, wrapped, 0, texture.mTexels.length);
+        }
+    }
+
+    @Override
+    public void glCopyTexSubImage2D(int target, int level, int xoffset, int yoffset, int x, int y,
+            int width, int height) {
+        super.glCopyTexSubImage2D(target, level, xoffset, yoffset, x, y, width, height);
+        if (level != 0) {
+            return;
+        }
+        Texture texture = mTextures.get(getBoundTexture(getActiveTextureUnit()));
+        int channels = texture.mChannels;
+        for (int row = 0; row < height; row++) {
+            for (int column = 0; column < width; column++) {
+                int sx = x + column;
+                int sy = y + row;
+                int tx = xoffset + column;
+                int ty = yoffset + row;
+                if (sx < 0 || sy < 0 || sx >= mWidth || sy >= mHeight || tx >= texture.mWidth
+                        || ty >= texture.mHeight) {
+                    continue;
+                }
+                int argb = mColor[sy * mWidth + sx];
+                int i = (ty * texture.mWidth + tx) * channels;
+                if (channels <= 2) {
+                    // Alpha, or luminance (taken from red) and alpha.
+                    texture.mTexels[i] = (byte) (channels == 1 ? argb >>> 24 : argb >> 16);
+                    if (channels == 2) {
+                        texture.mTexels[i + 1] = (byte) (argb >>> 24);
+                    }
+                    continue;
+                }
+                texture.mTexels[i] = (byte) (argb >> 16);
+                texture.mTexels[i + 1] = (byte) (argb >> 8);
+                texture.mTexels[i + 2] = (byte) argb;
+                if (channels == 4) {
+                    texture.mTexels[i + 3] = (byte) (argb >>> 24);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void glTexParameteri(int target, int pname, int param) {
+        super.glTexParameteri(target, pname, param);
+        Texture texture = mTextures.get(getBoundTexture(getActiveTextureUnit()));
+        if (pname == GLES20.GL_TEXTURE_MAG_FILTER) {
+            texture.mLinear = param == GLES20.GL_LINEAR;
+        } else if (pname == GLES20.GL_TEXTURE_WRAP_S) {
+            texture.mClampS = param == GLES20.GL_CLAMP_TO_EDGE;
+        } else if (pname == GLES20.GL_TEXTURE_WRAP_T) {
+            texture.mClampT = param == GLES20.GL_CLAMP_TO_EDGE;
+        }
+    }
+
+    @Override
+    public void glClear(int mask) {
+        super.glClear(mask);
+        int x0 = 0;
+        int y0 = 0;
+        int x1 = mWidth;
+        int y1 = mHeight;
+        if (isCapEnabled(GLES20.GL_SCISSOR_TEST)) {
+            int[] scissor = getScissor();
+            x0 = Math.max(scissor[0], 0);
+            y0 = Math.max(scissor[1], 0);
+            x1 = Math.min(scissor[0] + scissor[2], mWidth);
+            y1 = Math.min(scissor[1] + scissor[3], mHeight);
+        }
+        float[] c = getClearColor();
+        int color = packColor(c[0], c[1], c[2], c[3]);
+        for (int y = y0; y < y1; y++) {
+            if ((mask & GLES20.GL_COLOR_BUFFER_BIT) != 0) {
+                Arrays.fill(mColor, y * mWidth + x0, y * mWidth + x1, color);
+            }
+            if ((mask & GLES20.GL_DEPTH_BUFFER_BIT) != 0 && getDepthMask()) {
+                Arrays.fill(mDepth, y * mWidth + x0, y * mWidth + x1, 1f);
+            }
+        }
+    }
+
+    @Override
+    public void glDrawArrays(int mode, int first, int count) {
+        super.glDrawArrays(mode, first, count);
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = first + i;
+        }
+        draw(mode, indices);
+    }
+
+    @Override
+    public void glDrawElements(int mode, int count, int type, int offset) {
+        super.glDrawElements(mode, count, type, offset);
+        ByteBuffer data = mBufferData.get(getElementBuffer());
+        int[] indices = new int[count];
+        for (int i = 0; i < count; i++) {
+            indices[i] = type == GLES20.GL_UNSIGNED_SHORT
+                    ? data.getShort(offset + i * 2) & 0xffff : data.get(offset + i) & 0xff;
+        }
+        draw(mode, indices);
+    }
+
+    @Override
+    public void glViewport(int x, int y, int width, int height) {
+        super.glViewport(x, y, width, height);
+        setViewport(x, y, width, height);
+    }
+
+    private void setUniform(int location, float[] value) {
+        Program p = mPrograms.get(getCurrentProgram());
+        String name = p.uniformNames.get(location);
+        if (name != null) {
+            p.uniforms.put(name, value);
+        }
+    }
+
+    private int boundBuffer(int target) {
+        // RecordingGl has already rejected any other target.
+        return target == GLES20.GL_ELEMENT_ARRAY_BUFFER ? getElementBuffer() : getArrayBuffer();
+    }
+
+    /**
+     * Shades vertices, clips, bins and rasterizes one draw.
+     */
+    private void draw(int mode, int[] indices) {
+        Program program = mPrograms.get(getCurrentProgram());
+        if (mode != GLES20.GL_TRIANGLES || program.shader == null || getFramebuffer() != 0) {
+            mRasterStats.skippedDraws++;
+            return;
+        }
+        final Shader shader = program.shader;
+        mUniforms.mValues = program.uniforms;
+        shader.setUniforms(mUniforms);
+
+        // Vertex stage, once per index; the scene's draws do not share vertices.
+        String[] names = shader.getAttributes();
+        int[] locations = new int[names.length];
+        for (int a = 0; a < names.length; a++) {
+            Integer location = program.attributes.get(names[a]);
+            locations[a] = location != null ? location : -1;
+        }
+        final int varyings = shader.getVaryingCount();
+        final int clipStride = 4 + varyings;
+        float[] clip = new float[indices.length * clipStride];
+        float[] attributes = new float[names.length * 4];
+        float[] position = new float[4];
+        float[] outVaryings = new float[varyings];
+        for (int v = 0; v < indices.length; v++) {
+            fetchAttributes(locations, indices[v], attributes);
+            shader.shadeVertex(attributes, position, outVaryings);
+            System.arraycopy(position, 0, clip, v * clipStride, 4);
+            System.arraycopy(outVaryings, 0, clip, v * clipStride + 4, varyings);
+        }
+
+        // Clip each triangle against the near plane and project what is left.
+        mTriangleCount = 0;
+        final int screenStride = SCREEN_HEADER + varyings;
+        float[] polygon = new float[4 * clipStride];
+        float[] clipped = new float[5 * clipStride];
+        for (int t = 0; t + 2 < indices.length; t += 3) {
+            mRasterStats.trianglesIn++;
+            System.arraycopy(clip, t * clipStride, polygon, 0, 3 * clipStride);
+            int corners = clipNear(polygon, clipped, clipStride);
+            for (int k = 1; k + 1 < corners; k++) {
+                addScreenTriangle(clipped, 0, k, k + 1, clipStride, screenStride);
+            }
+        }
+        mRasterStats.trianglesRasterized += mTriangleCount;
+        binTriangles(screenStride);
+        rasterizeTiles(shader, screenStride, varyings);
+    }
+
+    private void fetchAttributes(int[] locations, int vertex, float[] out) {
+        for (int a = 0; a < locations.length; a++) {
+            int location = locations[a];
+            out[a * 4] = 0f;
+            out[a * 4 + 1] = 0f;
+            out[a * 4 + 2] = 0f;
+            out[a * 4 + 3] = 1f;
+            if (location < 0 || !isAttribEnabled(location)) {
+                continue;
+            }
+            ByteBuffer data = mBufferData.get(getAttribBuffer(location));
+            int size = getAttribSize(location);
+            int stride = getAttribStride(location) != 0 ? getAttribStride(location) : size * 4;
+            int base = getAttribOffset(location) + vertex * stride;
+            for (int c = 0; c < size; c++) {
+                out[a * 4 + c] = data.getFloat(base + c * 4);
+            }
+        }
+    }
+
+    /**
+     * Sutherland-Hodgman against z >= -w, with the varyings interpolated along.
+     * @return The number of corners in {@code out}, 0 to 4.
+     */
+    private static int clipNear(float[] in, float[] out, int stride) {
+        int count = 0;
+        for (int i = 0; i < 3; i++) {
+            int a = i * stride;
+            int b = ((i + 1) % 3) * stride;
+            float da = in[a + 2] + in[a + 3];
+            float db = in[b + 2] + in[b + 3];
+            if (da >= 0) {
+                System.arraycopy(in, a, out, count++ * stride, stride);
+            }
+            if ((da >= 0) != (db >= 0)) {
+                float t = da / (da - db);
+                int o = count++ * stride;
+                for (int c = 0; c < stride; c++) {
+                    out[o + c] = in[a + c] + t * (in[b + c] - in[a + c]);
+                }
+            }
+        }
+        return count;
+    }
+
+    private void addScreenTriangle(float[] clip, int i0, int i1, int i2, int clipStride,
+            int screenStride) {
+        int needed = (mTriangleCount + 1) * 3 * screenStride;
+        if (mScreen.length < needed) {
+            mScreen = Arrays.copyOf(mScreen, needed * 2);
+        }
+        int base = mTriangleCount * 3 * screenStride;
+        int[] corners = {i0, i1, i2};
+        for (int k = 0; k < 3; k++) {
+            int c = corners[k] * clipStride;
+            float invW = 1f / Math.max(clip[c + 3], MIN_W);
+            int s = base + k * screenStride;
+            mScreen[s] = mViewport[0] + (clip[c] * invW + 1f) * 0.5f * mViewport[2];
+            mScreen[s + 1] = mViewport[1] + (clip[c + 1] * invW + 1f) * 0.5f * mViewport[3];
+            mScreen[s + 2] = (clip[c + 2] * invW + 1f) * 0.5f;
+            mScreen[s + 3] = invW;
+            for (int v = 0; v < screenStride - SCREEN_HEADER; v++) {
+                mScreen[s + SCREEN_HEADER + v] = clip[c + 4 + v] * invW;
+            }
+        }
+        mTriangleCount++;
+    }
+
+    private void binTriangles(int screenStride) {
+        Arrays.fill(mBinCounts, 0);
+        for (int t = 0; t < mTriangleCount; t++) {
+            int s = t * 3 * screenStride;
+            float minX = Math.min(mScreen[s], Math.min(mScreen[s + screenStride],
+                    mScreen[s + 2 * screenStride]));
+            float maxX = Math.max(mScreen[s], Math.max(mScreen[s + screenStride],
+                    mScreen[s + 2 * screenStride]));
+            float minY = Math.min(mScreen[s + 1], Math.min(mScreen[s + screenStride + 1],
+                    mScreen[s + 2 * screenStride + 1]));
+            float maxY = Math.max(mScreen[s + 1], Math.max(mScreen[s + screenStride + 1],
+                    mScreen[s + 2 * screenStride + 1]));
+            int tx0 = Math.max((int) Math.floor(minX) / TILE_SIZE, 0);
+            int tx1 = Math.min((int) Math.floor(maxX) / TILE_SIZE, mTilesX - 1);
+            int ty0 = Math.max((int) Math.floor(minY) / TILE_SIZE, 0);
+            int ty1 = Math.min((int) Math.floor(maxY) / TILE_SIZE, mTilesY - 1);
+            for (int ty = ty0; ty <= ty1; ty++) {
+                for (int tx = tx0; tx <= tx1; tx++) {
+                    int bin = ty * mTilesX + tx;
+                    if (mBinCounts[bin] == mBins[bin].length) {
+                        mBins[bin] = Arrays.copyOf(mBins[bin], mBins[bin].length * 2);
+                    }
+                    mBins[bin][mBinCounts[bin]++] = t;
+                }
+            }
+        }
+    }
+
+    private void rasterizeTiles(final Shader shader, final int screenStride, final int varyings) {
+        final int[] clipRect = {
+            Math.max(mViewport[0], 0), Math.max(mViewport[1], 0),
+            Math.min(mViewport[0] + mViewport[2], mWidth),
+            Math.min(mViewport[1] + mViewport[3], mHeight),
+        };
+        if (isCapEnabled(GLES20.GL_SCISSOR_TEST)) {
+            int[] scissor = getScissor();
+            clipRect[0] = Math.max(clipRect[0], scissor[0]);
+            clipRect[1] = Math.max(clipRect[1], scissor[1]);
+            clipRect[2] = Math.min(clipRect[2], scissor[0] + scissor[2]);
+            clipRect[3] = Math.min(clipRect[3], scissor[1] + scissor[3]);
+        }
+        final boolean depthTest = isCapEnabled(GLES20.GL_DEPTH_TEST);
+        final boolean depthWrite = getDepthMask();
+
+        List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+        for (int bin = 0; bin < mBinCounts.length; bin++) {
+            if (mBinCounts[bin] == 0) {
+                continue;
+            }
+            final int tile = bin;
+            tasks.add(new Callable<long[]>() {
+                @Override
+                public long[] call() {
+                    return rasterizeTile(tile, shader, screenStride, varyings, clipRect,
+                            depthTest, depthWrite);
+                }
+            });
+        }
+        try {
+            for (Future<long[]> result : mExecutor.invokeAll(tasks)) {
+                long[] counts = result.get();
+                mRasterStats.fragments += counts[0];
+                mRasterStats.fragmentsShaded += counts[1];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Rasterizes every triangle binned into one tile, in draw order.
+     * @return Fragments covered and fragments shaded.
+     */
+    private long[] rasterizeTile(int tile, Shader shader, int stride, int varyings,
+            int[] clipRect, boolean depthTest, boolean depthWrite) {
+        int tileX0 = Math.max((tile % mTilesX) * TILE_SIZE, clipRect[0]);
+        int tileY0 = Math.max((tile / mTilesX) * TILE_SIZE, clipRect[1]);
+        int tileX1 = Math.min((tile % mTilesX + 1) * TILE_SIZE, clipRect[2]);
+        int tileY1 = Math.min((tile / mTilesX + 1) * TILE_SIZE, clipRect[3]);
+        float[] fragmentVaryings = new float[varyings];
+        long fragments = 0;
+        long shaded = 0;
+        final float[] s = mScreen;
+        int[] bin = mBins[tile];
+        for (int n = 0; n < mBinCounts[tile]; n++) {
+            int v0 = bin[n] * 3 * stride;
+            int v1 = v0 + stride;
+            int v2 = v1 + stride;
+            float area = edge(s[v0], s[v0 + 1], s[v1], s[v1 + 1], s[v2], s[v2 + 1]);
+            if (area == 0f) {
+                continue;
+            }
+            if (area < 0f) {
+                // Either winding is drawn; make it counter-clockwise.
+                int swap = v1;
+                v1 = v2;
+                v2 = swap;
+                area = -area;
+            }
+            float minX = Math.min(s[v0], Math.min(s[v1], s[v2]));
+            float maxX = Math.max(s[v0], Math.max(s[v1], s[v2]));
+            float minY = Math.min(s[v0 + 1], Math.min(s[v1 + 1], s[v2 + 1]));
+            float maxY = Math.max(s[v0 + 1], Math.max(s[v1 + 1], s[v2 + 1]));
+            int x0 = Math.max((int) Math.floor(minX), tileX0);
+            int x1 = Math.min((int) Math.ceil(maxX), tileX1);
+            int y0 = Math.max((int) Math.floor(minY), tileY0);
+            int y1 = Math.min((int) Math.ceil(maxY), tileY1);
+            boolean topLeft0 = isTopLeft(s[v1], s[v1 + 1], s[v2], s[v2 + 1]);
+            boolean topLeft1 = isTopLeft(s[v2], s[v2 + 1], s[v0], s[v0 + 1]);
+            boolean topLeft2 = isTopLeft(s[v0], s[v0 + 1], s[v1], s[v1 + 1]);
+            float invArea = 1f / area;
+            for (int y = y0; y < y1; y++) {
+                float py = y + 0.5f;
+                for (int x = x0; x < x1; x++) {
+                    float px = x + 0.5f;
+                    float w0 = edge(s[v1], s[v1 + 1], s[v2], s[v2 + 1], px, py);
+                    float w1 = edge(s[v2], s[v2 + 1], s[v0], s[v0 + 1], px, py);
+                    float w2 = edge(s[v0], s[v0 + 1], s[v1], s[v1 + 1], px, py);
+                    if (w0 < 0 || w1 < 0 || w2 < 0 || (w0 == 0 && !topLeft0)
+                            || (w1 == 0 && !topLeft1) || (w2 == 0 && !topLeft2)) {
+                        continue;
+                    }
+                    w0 *= invArea;
+                    w1 *= invArea;
+                    w2 *= invArea;
+                    int pixel = y * mWidth + x;
+                    fragments++;
+                    mFragments[pixel]++;
+                    float z = w0 * s[v0 + 2] + w1 * s[v1 + 2] + w2 * s[v2 + 2];
+                    if (z < 0f || z > 1f || (depthTest && !(z < mDepth[pixel]))) {
+                        continue;
+                    }
+                    float invW = w0 * s[v0 + 3] + w1 * s[v1 + 3] + w2 * s[v2 + 3];
+                    float w = 1f / invW;
+                    for (int v = 0; v < varyings; v++) {
+                        int o = SCREEN_HEADER + v;
+                        fragmentVaryings[v] =
+                                (w0 * s[v0 + o] + w1 * s[v1 + o] + w2 * s[v2 + o]) * w;
+                    }
+                    mColor[pixel] = shader.shadeFragment(fragmentVaryings, z, invW);
+                    if (depthTest && depthWrite) {
+                        mDepth[pixel] = z;
+                    }
+                    shaded++;
+                    mShaded[pixel]++;
+                }
+            }
+        }
+        return new long[] {fragments, shaded};
+    }
+
+    /**
+     * Twice the signed area of (a, b, p); positive when p is left of a to b.
+     */
+    private static float edge(float ax, float ay, float bx, float by, float px, float py) {
+        return (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+    }
+
+    /**
+     * Whether a counter-clockwise edge owns the pixels exactly on it: top and left edges do, so
+     * pixels on shared edges are drawn once.
+     */
+    private static boolean isTopLeft(float ax, float ay, float bx, float by) {
+        return by < ay || (by == ay && bx < ax);
+    }
+
+    /**
+     * Packs a color in 0..1 per channel into ARGB, clamping like the framebuffer does.
+     */
+    public static int packColor(float r, float g, float b, float a) {
+        return toByte(a) << 24 | toByte(r) << 16 | toByte(g) << 8 | toByte(b);
+    }
+
+    private static int toByte(float value) {
+        return Math.round(Math.min(Math.max(value, 0f), 1f) * 255f);
+    }
+
+    /**
+     * Copies {@code size} bytes from the start of a buffer, whatever its element type.
+     */
+    private static void copyBytes(Buffer source, ByteBuffer target, int offset, int size) {
+        ByteBuffer bytes;
+        if (source instanceof ByteBuffer) {
+            bytes = ((ByteBuffer) source).duplicate();
+        } else if (source instanceof FloatBuffer) {
+            FloatBuffer floats = ((FloatBuffer) source).duplicate();
+            bytes = ByteBuffer.allocate(floats.remaining() * 4).order(ByteOrder.nativeOrder());
+            bytes.asFloatBuffer().put(floats);
+        } else if (source instanceof ShortBuffer) {
+            ShortBuffer shorts = ((ShortBuffer) source).duplicate();
+            bytes = ByteBuffer.allocate(shorts.remaining() * 2).order(ByteOrder.nativeOrder());
+            bytes.asShortBuffer().put(shorts);
+        } else {
+            throw new IllegalArgumentException("Unsupported buffer " + source.getClass());
+        }
+        bytes.limit(bytes.position() + size);
+        ByteBuffer window = target.duplicate();
+        window.position(offset);
+        window.put(bytes);
+    }
+}
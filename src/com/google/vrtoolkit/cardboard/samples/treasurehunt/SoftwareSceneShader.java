@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+/**
+ * A Java port of light_vertex and grid_fragment, the shaders the cube and floor are drawn with,
+ * for {@link SoftwareGl}. Keep it in step with the GLSL.
+ */
+public class SoftwareSceneShader extends SoftwareGl.Shader {
+
+    private static final int MAX_LIGHTS = 4;
+    private static final float FADE_DISTANCE = 90f;
+    private static final String[] ATTRIBUTES = {
+        "a_Position", "a_Color", "a_Normal", "a_TexCoordinate", "a_LightmapCoord",
+    };
+
+    // Varying layout.
+    private static final int COLOR = 0;
+    private static final int FADE = 4;
+    private static final int TEX_COORD = 5;
+    private static final int LIGHTMAP_COORD = 7;
+    private static final int LIGHT = 9;
+    private static final int IS_FLOOR = 12;
+    private static final int POSITION = 13;
+    private static final int NORMAL = 16;
+    private static final int VARYINGS = 19;
+
+    // Uniforms, written before each draw and only read while shading.
+    private float[] mMvp;
+    private float[] mMvMatrix;
+    private float[] mLightPos;
+    private float[] mLightColor;
+    private int mLightCount;
+    private boolean mIsFloor;
+    private SoftwareGl.Texture mTexture;
+    private SoftwareGl.Texture mLightmap;
+
+    @Override
+    protected String[] getAttributes() {
+        return ATTRIBUTES;
+    }
+
+    @Override
+    protected int getVaryingCount() {
+        return VARYINGS;
+    }
+
+    @Override
+    protected void setUniforms(SoftwareGl.Uniforms uniforms) {
+        mMvp = uniforms.get("u_MVP", 16);
+        mMvMatrix = uniforms.get("u_MVMatrix", 16);
+        mLightPos = uniforms.get("u_LightPos", MAX_LIGHTS * 4);
+        mLightColor = uniforms.get("u_LightColor", MAX_LIGHTS * 4);
+        mLightCount = (int) uniforms.get("u_LightCount", 1)[0];
+        mIsFloor = uniforms.get("u_IsFloor", 1)[0] > 0.5f;
+        mTexture = uniforms.getTexture("u_Texture");
+        mLightmap = uniforms.getTexture("u_Lightmap");
+    }
+
+    @Override
+    protected void shadeVertex(float[] a, float[] position, float[] v) {
+        transform(mMvMatrix, a, 0, 1f, v, POSITION);
+        transform(mMvMatrix, a, 8, 0f, v, NORMAL);
+        v[FADE] = 1f + v[POSITION + 2] / FADE_DISTANCE;
+        System.arraycopy(a, 4, v, COLOR, 4);
+        System.arraycopy(a, 12, v, TEX_COORD, 2);
+        System.arraycopy(a, 16, v, LIGHTMAP_COORD, 2);
+        if (mIsFloor) {
+            diffuseLight(v, POSITION, v[NORMAL], v[NORMAL + 1], v[NORMAL + 2], v, LIGHT);
+        } else {
+            v[LIGHT] = v[LIGHT + 1] = v[LIGHT + 2] = 0f;
+        }
+        v[IS_FLOOR] = mIsFloor ? 1f : 0f;
+        for (int row = 0; row < 4; row++) {
+            position[row] = mMvp[row] * a[0] + mMvp[4 + row] * a[1] + mMvp[8 + row] * a[2]
+                    + mMvp[12 + row] * a[3];
+        }
+    }
+
+    @Override
+    protected int shadeFragment(float[] v, float fragZ, float fragW) {
+        float[] sample = new float[4];
+        float[] light = new float[3];
+        if (v[IS_FLOOR] > 0.5f) {
+            mLightmap.sample(v[LIGHTMAP_COORD], v[LIGHTMAP_COORD + 1], sample);
+            float r = v[COLOR] * Math.max(sample[0] + v[LIGHT], 0.5f);
+            float g = v[COLOR + 1] * Math.max(sample[1] + v[LIGHT + 1], 0.5f);
+            float b = v[COLOR + 2] * Math.max(sample[2] + v[LIGHT + 2], 0.5f);
+            float a = v[COLOR + 3];
+            mTexture.sample(v[TEX_COORD], v[TEX_COORD + 1], sample);
+            float line = sample[3] * Math.min(Math.max(v[FADE], 0f), 1f);
+            float fill = 1f - line;
+            return SoftwareGl.packColor(line + fill * r, line + fill * g, line + fill * b,
+                    line + fill * a);
+        }
+        float nx = v[NORMAL];
+        float ny = v[NORMAL + 1];
+        float nz = v[NORMAL + 2];
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        diffuseLight(v, POSITION, nx / length, ny / length, nz / length, light, 0);
+        mTexture.sample(v[TEX_COORD], v[TEX_COORD + 1], sample);
+        return SoftwareGl.packColor((light[0] + 0.3f) * sample[0], (light[1] + 0.3f) * sample[1],
+                (light[2] + 0.3f) * sample[2], sample[3]);
+    }
+
+    private void diffuseLight(float[] position, int p, float nx, float ny, float nz, float[] out,
+            int o) {
+        out[o] = out[o + 1] = out[o + 2] = 0f;
+        for (int i = 0; i < Math.min(mLightCount, MAX_LIGHTS); i++) {
+            float dx = mLightPos[i * 4] - position[p];
+            float dy = mLightPos[i * 4 + 1] - position[p + 1];
+            float dz = mLightPos[i * 4 + 2] - position[p + 2];
+            float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            float falloff = Math.max(1f - distance / mLightPos[i * 4 + 3], 0f);
+            float lambert = Math.max((nx * dx + ny * dy + nz * dz) / distance, 0f);
+            float scale = lambert * falloff * falloff;
+            out[o] += mLightColor[i * 4] * scale;
+            out[o + 1] += mLightColor[i * 4 + 1] * scale;
+            out[o + 2] += mLightColor[i * 4 + 2] * scale;
+        }
+    }
+
+    /**
+     * Multiplies the xyz of an attribute, with the given w, by a matrix; keeps the result's xyz.
+     */
+    private static void transform(float[] m, float[] in, int i, float w, float[] out, int o) {
+        for (int row = 0; row < 3; row++) {
+            out[o + row] = m[row] * in[i] + m[4 + row] * in[i + 1] + m[8 + row] * in[i + 2]
+                    + m[12 + row] * w;
+        }
+    }
+}
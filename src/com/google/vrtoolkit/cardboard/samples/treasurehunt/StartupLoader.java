@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Runs startup work as a dependency graph of stages.
+ *
+ * CPU stages (reading, decoding, packing) run in parallel on a small thread pool as soon as their
+ * dependencies are done. GL stages (compiling, uploading) become ready the same way, but only run
+ * when the GL thread calls {@link #runGlStages}, which it does once per frame with a time budget,
+ * so frames keep coming while loading.
+ *
+ * Every stage records when it became ready, started and finished, so startup time can be
+ * tracked stage by stage.
+ */
+public class StartupLoader {
+
+    private static final String TAG = "StartupLoader";
+
+    /**
+     * One unit of startup work.
+     */
+    public abstract static class Stage {
+        private final String mName;
+        private final boolean mNeedsGl;
+        private final int mTraceName;
+        private final List<Stage> mDependents = new ArrayList<Stage>();
+        private final AtomicInteger mPendingDependencies = new AtomicInteger();
+        private volatile long mReadyNanos;
+        private volatile long mStartNanos;
+        private volatile long mEndNanos;
+
+        /**
+         * @param needsGl Whether the stage makes GL calls and so must run on the GL thread.
+         */
+        protected Stage(String name, boolean needsGl) {
+            mName = name;
+            mNeedsGl = needsGl;
+            mTraceName = Trace.name("load:" + name);
+        }
+
+        protected abstract void run() throws Exception;
+    }
+
+    private final List<Stage> mStages = new ArrayList<Stage>();
+    private final Queue<Stage> mGlReady = new ConcurrentLinkedQueue<Stage>();
+    private final AtomicInteger mRemaining = new AtomicInteger();
+    private ExecutorService mExecutor;
+    private volatile Throwable mFailure;
+    private volatile boolean mCancelled;
+    private long mStartNanos;
+    private boolean mReported;
+
+    /**
+     * Adds a stage. All stages must be added before {@link #start}.
+     * @param dependencies Stages that must finish before this one can run.
+     */
+    public Stage add(Stage stage, Stage... dependencies) {
+        for (Stage dependency : dependencies) {
+            dependency.mDependents.add(stage);
+        }
+        stage.mPendingDependencies.set(dependencies.length);
+        mStages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Starts every stage that has no dependencies.
+     */
+    public void start() {
+        mStartNanos = System.nanoTime();
+        mRemaining.set(mStages.size());
+        mExecutor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1)));
+        for (Stage stage : mStages) {
+            if (stage.mPendingDependencies.get() == 0) {
+                schedule(stage);
+            }
+        }
+    }
+
+    /**
+     * Runs ready GL stages until the budget is used up. At least one ready stage runs per call,
+     * so loading always makes progress. Only call on the GL thread.
+     * @return true once every stage has finished.
+     */
+    public boolean runGlStages(long budgetNanos) {
+        Throwable failure = mFailure;
+        if (failure != null) {
+            throw new RuntimeException("Startup failed", failure);
+        }
+        long deadline = System.nanoTime() + budgetNanos;
+        Stage stage;
+        do {
+            stage = mGlReady.poll();
+            if (stage != null) {
+                execute(stage);
+            }
+        } while (stage != null && System.nanoTime() < deadline);
+
+        if (isDone() && !mReported) {
+            mReported = true;
+            mExecutor.shutdown();
+            logTimings();
+        }
+        return isDone();
+    }
+
+    public boolean isDone() {
+        return mRemaining.get() == 0;
+    }
+
+    /**
+     * Fraction of stages that have finished, for drawing progress.
+     */
+    public float getProgress() {
+        return mStages.isEmpty() ? 1f : 1f - (float) mRemaining.get() / mStages.size();
+    }
+
+    /**
+     * Stops the worker threads, e.g. when the GL context goes away before loading finished.
+     */
+    public void cancel() {
+        mCancelled = true;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    private void schedule(final Stage stage) {
+        stage.mReadyNanos = System.nanoTime();
+        if (stage.mNeedsGl) {
+            mGlReady.add(stage);
+        } else {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(stage);
+                }
+            });
+        }
+    }
+
+    private void execute(Stage stage) {
+        if (mFailure != null || mCancelled) {
+            return;
+        }
+        stage.mStartNanos = System.nanoTime();
+        Trace.begin(stage.mTraceName);
+        try {
+            stage.run();
+        } catch (Throwable e) {
+            Log.e(TAG, "Stage " + stage.mName + " failed", e);
+            mFailure = e;
+            return;
+        } finally {
+            Trace.end(stage.mTraceName);
+        }
+        stage.mEndNanos = System.nanoTime();
+        mRemaining.decrementAndGet();
+        for (Stage dependent : stage.mDependents) {
+            if (dependent.mPendingDependencies.decrementAndGet() == 0) {
+                schedule(dependent);
+            }
+        }
+    }
+
+    private void logTimings() {
+        for (Stage stage : mStages) {
+            Log.i(TAG, String.format("%-20s ready %6.1f ms, waited %5.1f ms, ran %6.1f ms%s",
+                    stage.mName,
+                    (stage.mReadyNanos - mStartNanos) / 1e6,
+                    (stage.mStartNanos - stage.mReadyNanos) / 1e6,
+                    (stage.mEndNanos - stage.mStartNanos) / 1e6,
+                    stage.mNeedsGl ? " (GL)" : ""));
+        }
+        Log.i(TAG, String.format("Loaded in %.1f ms", (System.nanoTime() - mStartNanos) / 1e6));
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.Matrix;
+
+/**
+ * The GLES 3 backend's scene pass, which draws the world for both eyes in one submission.
+ *
+ * Where the GLES 2 path replays a command buffer per eye, setting every uniform of every draw
+ * twice, this puts the frame's per-object data and the two eyes' projections into two uniform
+ * buffers, and draws each mesh once with two instances, one per eye. The eyes must sit side by
+ * side in one framebuffer, as they do when the SDK corrects the lenses; each instance is squeezed
+ * into its eye's half of a viewport that spans both. Android binds no OVR_multiview entry points,
+ * which would render the eyes into the layers of an array target instead, so this instanced
+ * stereo stands in for it.
+ *
+ * Draws from the {@link SceneVertexArrays}, so it needs them built. GL thread only.
+ */
+public class StereoSceneRenderer {
+
+    public static final int LEFT = 0;
+    public static final int RIGHT = 1;
+
+    private static final int CUBE = 0;
+    private static final int FLOOR = 1;
+
+    // Uniform buffer binding points.
+    private static final int FRAME_BINDING = 0;
+    private static final int EYES_BINDING = 1;
+
+    // The std140 layouts of the blocks in stereo_vertex.shader, in floats.
+    private static final int FRAME_MODEL_VIEW = 0;
+    private static final int FRAME_LIGHT_POSITIONS = 32;
+    private static final int FRAME_LIGHT_COLORS = FRAME_LIGHT_POSITIONS
+            + 2 * PointLights.MAX_PER_OBJECT * 4;
+    private static final int FRAME_LIGHT_COUNT = FRAME_LIGHT_COLORS
+            + 2 * PointLights.MAX_PER_OBJECT * 4;
+    private static final int FRAME_FLOATS = FRAME_LIGHT_COUNT + 4;
+    private static final int EYES_PROJECTION = 0;
+    private static final int EYES_VIEWPORT = 32;
+    private static final int EYES_FLOATS = EYES_VIEWPORT + 8;
+
+    // GL_CLIP_DISTANCE0_EXT, from EXT_clip_cull_distance.
+    private static final int GL_CLIP_DISTANCE0 = 0x3000;
+
+    private final Gl mGl;
+    private final GlExtensions mExtensions;
+    private final SceneHandles mHandles;
+    private final boolean mClipDistances;
+
+    private int mProgram;
+    private int mObjectParam;
+    private final int[] mBuffers = new int[2];
+
+    private final float[] mFrame = new float[FRAME_FLOATS];
+    private final float[] mEyes = new float[EYES_FLOATS];
+    private final ByteBuffer mFrameBytes;
+    private final FloatBuffer mFrameFloats;
+    private final ByteBuffer mEyesBytes;
+    private final FloatBuffer mEyesFloats;
+    private final int[][] mViewports = new int[2][4];
+
+    private final float[] mView = new float[16];
+    private final float[] mWorldPoint = new float[4];
+    private final float[] mEyePoint = new float[4];
+
+    /**
+     * @param handles The scene's GL names, with its vertex arrays.
+     * @param clipDistances Whether the context has EXT_clip_cull_distance, which keeps the eyes
+     *     apart more cheaply than the fragment shader can.
+     */
+    public StereoSceneRenderer(Gl gl, GlExtensions extensions, SceneHandles handles,
+            boolean clipDistances) {
+        mGl = gl;
+        mExtensions = extensions;
+        mHandles = handles;
+        mClipDistances = clipDistances;
+        mFrameBytes = DirectBufferPool.getShared().allocate(FRAME_FLOATS * 4);
+        mFrameFloats = mFrameBytes.asFloatBuffer();
+        mEyesBytes = DirectBufferPool.getShared().allocate(EYES_FLOATS * 4);
+        mEyesFloats = mEyesBytes.asFloatBuffer();
+    }
+
+    /**
+     * Creates the uniform buffers and binds the program's blocks and samplers to them. Must be
+     * called on the GL thread for each new context.
+     * @param program A program linked from the stereo shaders, with the scene program's
+     *     attribute locations.
+     */
+    public void onSurfaceCreated(int program) {
+        mProgram = program;
+        mObjectParam = mGl.glGetUniformLocation(program, "u_Object");
+        mExtensions.glUniformBlockBinding(program,
+                mExtensions.glGetUniformBlockIndex(program, "Frame"), FRAME_BINDING);
+        mExtensions.glUniformBlockBinding(program,
+                mExtensions.glGetUniformBlockIndex(program, "Eyes"), EYES_BINDING);
+        mGl.glUseProgram(program);
+        mGl.glUniform1i(mGl.glGetUniformLocation(program, "u_Texture"), 0);
+        mGl.glUniform1i(mGl.glGetUniformLocation(program, "u_Lightmap"), 1);
+        mGl.glUseProgram(0);
+
+        mGl.glGenBuffers(2, mBuffers, 0);
+        createBuffer(mBuffers[0], FRAME_FLOATS * 4);
+        createBuffer(mBuffers[1], EYES_FLOATS * 4);
+    }
+
+    /**
+     * Forgets the GL objects of a lost context. Not ready until {@link #onSurfaceCreated}.
+     */
+    public void onContextLost() {
+        mProgram = 0;
+    }
+
+    public boolean isReady() {
+        return mProgram != 0;
+    }
+
+    /**
+     * Returns whether a left and a right eye viewport are next to each other on the same rows,
+     * so one viewport can span both.
+     * @param left x, y, width and height of the left eye.
+     */
+    public static boolean isSideBySide(int[] left, int[] right) {
+        return left[2] > 0 && right[2] > 0 && left[0] + left[2] == right[0]
+                && left[1] == right[1] && left[3] == right[3];
+    }
+
+    /**
+     * Sets where and how one eye is drawn by the next {@link #draw}.
+     * @param eye {@link #LEFT} or {@link #RIGHT}.
+     * @param eyeFromHead Transform from head space to the eye's space.
+     * @param projection The eye's projection matrix.
+     * @param viewport The eye's x, y, width and height.
+     */
+    public void setEye(int eye, float[] eyeFromHead, float[] projection, int[] viewport) {
+        Matrix.multiplyMM(mEyes, EYES_PROJECTION + eye * 16, projection, 0, eyeFromHead, 0);
+        System.arraycopy(viewport, 0, mViewports[eye], 0, 4);
+    }
+
+    /**
+     * Clears both eyes and draws the part of the scene up to a depth into them. Leaves the
+     * viewport and scissor spanning both eyes; the caller puts its own back.
+     * @param headView The head view both eyes are offset from.
+     * @param farDepth The furthest distance in front of the head to draw.
+     */
+    public void draw(FrameState state, float[] headView, float farDepth) {
+        final SceneHandles h = mHandles;
+        final GlExtensions ext = mExtensions;
+        Matrix.multiplyMM(mView, 0, headView, 0, h.camera, 0);
+        boolean cube = state.cubeVisible && SceneRecorder.isCubeInRange(state.cubeModel, mView,
+                0f, farDepth, mWorldPoint, mEyePoint);
+        if (cube) {
+            Matrix.multiplyMM(mFrame, FRAME_MODEL_VIEW + CUBE * 16, mView, 0, state.cubeModel, 0);
+            putLights(CUBE, state.cubeLightPositions, state.cubeLightColors);
+        }
+        Matrix.multiplyMM(mFrame, FRAME_MODEL_VIEW + FLOOR * 16, mView, 0, h.floorModel, 0);
+        putLights(FLOOR, state.floorLightPositions, state.floorLightColors);
+
+        // Squeeze each eye's clip space into its half of the pair's viewport.
+        final int[] left = mViewports[LEFT];
+        final int[] right = mViewports[RIGHT];
+        int x = left[0];
+        int width = left[2] + right[2];
+        for (int eye = LEFT; eye <= RIGHT; eye++) {
+            final int[] viewport = mViewports[eye];
+            int o = EYES_VIEWPORT + eye * 4;
+            mEyes[o] = viewport[2] / (float) width;
+            mEyes[o + 1] = (2f * viewport[0] + viewport[2] - 2f * x - width) / width;
+            mEyes[o + 2] = right[0];
+            mEyes[o + 3] = 0f;
+        }
+
+        mFrameFloats.position(0);
+        mFrameFloats.put(mFrame, 0, FRAME_LIGHT_COUNT);
+        mFrameBytes.putInt(FRAME_LIGHT_COUNT * 4, cube ? state.cubeLightCount : 0);
+        mFrameBytes.putInt((FRAME_LIGHT_COUNT + 1) * 4, state.floorLightCount);
+        mEyesFloats.position(0);
+        mEyesFloats.put(mEyes, 0, EYES_FLOATS);
+        // Whole-buffer uploads orphan the old storage, so the GPU can still read last frame's.
+        mGl.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, mBuffers[0]);
+        mGl.glBufferData(GLES30.GL_UNIFORM_BUFFER, FRAME_FLOATS * 4, mFrameBytes,
+                GLES20.GL_STREAM_DRAW);
+        mGl.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, mBuffers[1]);
+        mGl.glBufferData(GLES30.GL_UNIFORM_BUFFER, EYES_FLOATS * 4, mEyesBytes,
+                GLES20.GL_STREAM_DRAW);
+        ext.glBindBufferBase(GLES30.GL_UNIFORM_BUFFER, FRAME_BINDING, mBuffers[0]);
+        ext.glBindBufferBase(GLES30.GL_UNIFORM_BUFFER, EYES_BINDING, mBuffers[1]);
+
+        mGl.glViewport(x, left[1], width, left[3]);
+        mGl.glScissor(x, left[1], width, left[3]);
+        mGl.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+        mGl.glUseProgram(mProgram);
+        if (mClipDistances) {
+            mGl.glEnable(GL_CLIP_DISTANCE0);
+        }
+
+        if (cube) {
+            mGl.glUniform1i(mObjectParam, CUBE);
+            ext.glBindVertexArray(state.cubeHighlighted
+                    ? h.cubeFoundVertexArray : h.cubeVertexArray);
+            mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+            mGl.glBindTexture(GLES20.GL_TEXTURE_2D,
+                    state.cubeHighlighted ? h.cubeFoundTexture : h.cubeTexture);
+            ext.glDrawArraysInstanced(GLES20.GL_TRIANGLES, 0, 36, 2);
+        }
+
+        mGl.glUniform1i(mObjectParam, FLOOR);
+        ext.glBindVertexArray(h.floorVertexArray);
+        mGl.glActiveTexture(GLES20.GL_TEXTURE0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, h.floorGrid);
+        mGl.glActiveTexture(GLES20.GL_TEXTURE1);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, h.floorLightmap);
+        ext.glDrawArraysInstanced(GLES20.GL_TRIANGLES, 0, h.floorVertexCount, 2);
+
+        ext.glBindVertexArray(0);
+        if (mClipDistances) {
+            mGl.glDisable(GL_CLIP_DISTANCE0);
+        }
+    }
+
+    /**
+     * Copies an object's lights into the frame data, moved into head space.
+     */
+    private void putLights(int object, float[] positions, float[] colors) {
+        for (int i = 0; i < PointLights.MAX_PER_OBJECT; i++) {
+            int o = FRAME_LIGHT_POSITIONS + (object * PointLights.MAX_PER_OBJECT + i) * 4;
+            System.arraycopy(positions, i * 4, mWorldPoint, 0, 3);
+            mWorldPoint[3] = 1f;
+            Matrix.multiplyMV(mEyePoint, 0, mView, 0, mWorldPoint, 0);
+            System.arraycopy(mEyePoint, 0, mFrame, o, 3);
+            // Keep the range.
+            mFrame[o + 3] = positions[i * 4 + 3];
+        }
+        System.arraycopy(colors, 0, mFrame,
+                FRAME_LIGHT_COLORS + object * PointLights.MAX_PER_OBJECT * 4,
+                PointLights.MAX_PER_OBJECT * 4);
+    }
+
+    private void createBuffer(int buffer, int bytes) {
+        mGl.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, buffer);
+        mGl.glBufferData(GLES30.GL_UNIFORM_BUFFER, bytes, null, GLES20.GL_STREAM_DRAW);
+        mGl.glBindBuffer(GLES30.GL_UNIFORM_BUFFER, 0);
+        GpuMemory.getShared().allocate(GpuMemory.BUFFERS, bytes);
+    }
+}
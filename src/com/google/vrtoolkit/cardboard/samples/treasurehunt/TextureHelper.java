@@ -8,18 +8,29 @@ import android.opengl.GLUtils;
 
 public class TextureHelper {
   public static int loadTexture(final Context context, final int resourceId) {
+    return uploadTexture(decodeBitmap(context, resourceId));
+  }
+
+  /**
+   * Decodes a bitmap resource without pre-scaling. Safe to call from any thread.
+   */
+  public static Bitmap decodeBitmap(final Context context, final int resourceId) {
+    final BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inScaled = false; // No pre-scaling
+
+    // Read in the resource
+    return BitmapFactory.decodeResource(context.getResources(), resourceId, options);
+  }
+
+  /**
+   * Creates a texture from a bitmap and recycles the bitmap. Must be called on the GL thread.
+   */
+  public static int uploadTexture(final Bitmap bitmap) {
     final int[] textureHandle = new int[1];
 
     GLES20.glGenTextures(1, textureHandle, 0);
 
     if (textureHandle[0] != 0) {
-      final BitmapFactory.Options options = new BitmapFactory.Options();
-      options.inScaled = false; // No pre-scaling
-
-      // Read in the resource
-      final Bitmap bitmap = BitmapFactory.decodeResource(
-          context.getResources(), resourceId, options);
-
       // Bind to the texture in OpenGL
       GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureHandle[0]);
 
@@ -31,6 +42,8 @@ public class TextureHelper {
 
       // Load the bitmap into the bound texture.
       GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+      GpuMemory.getShared().allocate(GpuMemory.TEXTURES, GpuMemory.textureBytes(
+          bitmap.getWidth(), bitmap.getHeight(), GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, false));
 
       // Recycle the bitmap, since its data has been loaded into OpenGL.
       bitmap.recycle();
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Low-overhead tracing into a preallocated ring of fixed-width binary records.
+ *
+ * Event names are interned once, typically into static final fields, and trace points refer to
+ * them by id. Recording a begin, end or counter event claims a slot with one atomic increment and
+ * stores four longs; there is no allocation or string formatting. While tracing is disabled,
+ * each trace point costs a single branch.
+ *
+ * The ring is a flight recorder: when writers lap the {@link TraceExporter}, the oldest records
+ * are overwritten and counted as lost.
+ */
+public final class Trace {
+
+    static final int TYPE_BEGIN = 1;
+    static final int TYPE_END = 2;
+    static final int TYPE_COUNTER = 3;
+
+    // Longs per record: sequence, time, type | thread | name, value.
+    static final int RECORD_LONGS = 4;
+
+    private static boolean sEnabled;
+    private static AtomicLongArray sRecords;
+    private static int sMask;
+    private static final AtomicLong sNext = new AtomicLong();
+
+    private static final List<String> sNames = new ArrayList<String>();
+    private static final Map<String, Integer> sNameIds = new HashMap<String, Integer>();
+    private static final Map<Long, String> sThreadNames = new HashMap<Long, String>();
+
+    private Trace() {}
+
+    /**
+     * Returns the id for an event name, registering it on first use. Not meant for hot paths.
+     */
+    public static synchronized int name(String name) {
+        Integer id = sNameIds.get(name);
+        if (id == null) {
+            id = sNames.size();
+            sNames.add(name);
+            sNameIds.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     * Labels the calling thread in exported traces. Not meant for hot paths.
+     */
+    public static synchronized void nameCurrentThread(String name) {
+        sThreadNames.put(Thread.currentThread().getId(), name);
+    }
+
+    /**
+     * Starts recording into a ring of at least {@code capacity} records. Call before the threads
+     * being traced are started; enabling is not synchronised with trace points.
+     */
+    public static synchronized void enable(int capacity) {
+        if (sRecords == null) {
+            int size = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+            sRecords = new AtomicLongArray(size * RECORD_LONGS);
+            sMask = size - 1;
+            for (int i = 0; i < size; i++) {
+                sRecords.set(i * RECORD_LONGS, -1);
+            }
+        }
+        sEnabled = true;
+    }
+
+    public static void disable() {
+        sEnabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void begin(int name) {
+        if (sEnabled) {
+            record(TYPE_BEGIN, name, 0);
+        }
+    }
+
+    public static void end(int name) {
+        if (sEnabled) {
+            record(TYPE_END, name, 0);
+        }
+    }
+
+    public static void counter(int name, double value) {
+        if (sEnabled) {
+            record(TYPE_COUNTER, name, Double.doubleToRawLongBits(value));
+        }
+    }
+
+    private static void record(int type, int name, long value) {
+        final AtomicLongArray records = sRecords;
+        long sequence = sNext.getAndIncrement();
+        int base = (int) (sequence & sMask) * RECORD_LONGS;
+        long meta = (long) type << 56 | (Thread.currentThread().getId() & 0xffffff) << 32 | name;
+        // Mark the slot as being written, fill it in, then publish it under its sequence number.
+        records.lazySet(base, -1);
+        records.lazySet(base + 1, System.nanoTime());
+        records.lazySet(base + 2, meta);
+        records.lazySet(base + 3, value);
+        records.lazySet(base, sequence);
+    }
+
+    /**
+     * Returns the sequence number the next record will get.
+     */
+    static long getWritePosition() {
+        return sNext.get();
+    }
+
+    static int getCapacity() {
+        return sRecords == null ? 0 : sMask + 1;
+    }
+
+    /**
+     * Copies one record out of the ring.
+     * @param out Receives time, type | thread | name and value.
+     * @return false if the record was overwritten or is still being written.
+     */
+    static boolean read(long sequence, long[] out) {
+        final AtomicLongArray records = sRecords;
+        int base = (int) (sequence & sMask) * RECORD_LONGS;
+        if (records.get(base) != sequence) {
+            return false;
+        }
+        out[0] = records.get(base + 1);
+        out[1] = records.get(base + 2);
+        out[2] = records.get(base + 3);
+        return records.get(base) == sequence;
+    }
+
+    static synchronized String getName(int id) {
+        return id < sNames.size() ? sNames.get(id) : "?";
+    }
+
+    static synchronized Map<Long, String> getThreadNames() {
+        return new HashMap<Long, String>(sThreadNames);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Drains the {@link Trace} ring on a background thread into a Chrome trace-event JSON file,
+ * which chrome://tracing and the Perfetto UI can open.
+ *
+ * All formatting and I/O happens here, so the traced threads never pay for it.
+ */
+public class TraceExporter implements Runnable {
+
+    private static final String TAG = "TraceExporter";
+
+    // How often the ring is drained. Must be short enough that writers never lap the exporter.
+    private static final long DRAIN_INTERVAL_NANOS = 100000000L;
+
+    private final File mFile;
+    private final long[] mRecord = new long[3];
+
+    private volatile boolean mRunning;
+    private Thread mThread;
+
+    // Owned by the exporter thread.
+    private Writer mWriter;
+    private long mExported;
+    private long mLost;
+    private boolean mFirstEvent;
+
+    public TraceExporter(File file) {
+        mFile = file;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, TAG);
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Writes out everything recorded so far and closes the file.
+     */
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            mWriter = new BufferedWriter(new FileWriter(mFile));
+            mWriter.write("{\"traceEvents\":[\n");
+            mFirstEvent = true;
+            mExported = Trace.getWritePosition();
+            while (mRunning) {
+                LockSupport.parkNanos(this, DRAIN_INTERVAL_NANOS);
+                drain();
+            }
+            drain();
+            writeThreadNames();
+            mWriter.write("\n]}\n");
+            mWriter.close();
+            Log.i(TAG, "Wrote " + mFile + ", " + mLost + " records lost");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + mFile, e);
+        }
+    }
+
+    private void drain() throws IOException {
+        long end = Trace.getWritePosition();
+        long oldest = end - Trace.getCapacity();
+        if (mExported < oldest) {
+            mLost += oldest - mExported;
+            mExported = oldest;
+        }
+        while (mExported < end) {
+            if (Trace.read(mExported, mRecord)) {
+                writeEvent(mRecord[0], mRecord[1], mRecord[2]);
+            } else {
+                mLost++;
+            }
+            mExported++;
+        }
+        mWriter.flush();
+    }
+
+    private void writeEvent(long timeNanos, long meta, long value) throws IOException {
+        int type = (int) (meta >>> 56);
+        long thread = (meta >>> 32) & 0xffffff;
+        String name = Trace.getName((int) meta);
+
+        beginEvent();
+        mWriter.write("{\"name\":\"");
+        mWriter.write(name);
+        mWriter.write("\",\"pid\":0,\"tid\":");
+        mWriter.write(Long.toString(thread));
+        mWriter.write(",\"ts\":");
+        mWriter.write(Double.toString(timeNanos / 1000.0));
+        switch (type) {
+            case Trace.TYPE_BEGIN:
+                mWriter.write(",\"ph\":\"B\"}");
+                break;
+            case Trace.TYPE_END:
+                mWriter.write(",\"ph\":\"E\"}");
+                break;
+            default:
+                mWriter.write(",\"ph\":\"C\",\"args\":{\"value\":");
+                mWriter.write(Double.toString(Double.longBitsToDouble(value)));
+                mWriter.write("}}");
+                break;
+        }
+    }
+
+    private void writeThreadNames() throws IOException {
+        for (Map.Entry<Long, String> thread : Trace.getThreadNames().entrySet()) {
+            beginEvent();
+            mWriter.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":");
+            mWriter.write(Long.toString(thread.getKey() & 0xffffff));
+            mWriter.write(",\"args\":{\"name\":\"");
+            mWriter.write(thread.getValue());
+            mWriter.write("\"}}");
+        }
+    }
+
+    private void beginEvent() throws IOException {
+        if (!mFirstEvent) {
+            mWriter.write(",\n");
+        }
+        mFirstEvent = false;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free triple buffer for handing values from exactly one producer thread to exactly one
+ * consumer thread.
+ *
+ * The producer always owns a back slot it can write without synchronisation, the consumer always
+ * owns a front slot it can read without synchronisation, and the third slot sits in the middle.
+ * Publishing and consuming are a single atomic swap with the middle slot, so neither side ever
+ * blocks and the consumer always sees the most recently published value.
+ */
+public final class TripleBuffer<T> {
+
+    /** Set on the middle index when it holds a value the consumer has not picked up yet. */
+    private static final int DIRTY = 4;
+    private static final int INDEX_MASK = 3;
+
+    private final T[] mSlots;
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+
+    // Owned by the producer thread.
+    private int mBack = 0;
+    // Owned by the consumer thread.
+    private int mFront = 2;
+
+    @SuppressWarnings("unchecked")
+    public TripleBuffer(T first, T second, T third) {
+        mSlots = (T[]) new Object[] {first, second, third};
+    }
+
+    /**
+     * Returns the slot the producer may fill in. Only call from the producer thread.
+     */
+    public T getWriteSlot() {
+        return mSlots[mBack];
+    }
+
+    /**
+     * Makes the write slot visible to the consumer and hands the producer a fresh slot.
+     */
+    public void publish() {
+        int previous = mMiddle.getAndSet(mBack | DIRTY);
+        mBack = previous & INDEX_MASK;
+    }
+
+    /**
+     * Picks up the latest published value, if there is one. Only call from the consumer thread.
+     * @return true if the read slot changed since the last call.
+     */
+    public boolean update() {
+        if ((mMiddle.get() & DIRTY) == 0) {
+            return false;
+        }
+        int previous = mMiddle.getAndSet(mFront);
+        mFront = previous & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * Returns the slot the consumer may read. Only call from the consumer thread.
+     */
+    public T getReadSlot() {
+        return mSlots[mFront];
+    }
+}
@@ -21,6 +21,30 @@ package com.google.vrtoolkit.cardboard.samples.treasurehunt;
  */
 public final class WorldLayoutData {
 
+    /** How far below the user the floor is. */
+    public static final float FLOOR_DEPTH = 20f;
+
+    /** Width of the square floor in {@link #FLOOR_COORDS}. */
+    public static final float FLOOR_SIZE = 400f;
+
+    /** Side of the floor's baked lightmap, in texels. */
+    public static final int FLOOR_LIGHTMAP_SIZE = 256;
+
+    /**
+     * Lights that never move, packed as x, y, z, range, r, g, b, unused. Their effect on the
+     * floor is baked into its lightmap by LightmapBaker; moving objects light them as usual.
+     * Rebake after changing them.
+     */
+    public static final float[] STATIC_LIGHTS = new float[] {
+            // Just above the user.
+            0f, 2f, 0f, 400f,           0.8f, 0.8f, 0.8f, 0f,
+            // Lamps standing on the floor.
+            40f, -16f, 40f, 35f,        0.9f, 0.6f, 0.3f, 0f,
+            -40f, -16f, 40f, 35f,       0.9f, 0.6f, 0.3f, 0f,
+            40f, -16f, -40f, 35f,       0.9f, 0.6f, 0.3f, 0f,
+            -40f, -16f, -40f, 35f,      0.9f, 0.6f, 0.3f, 0f,
+    };
+
     public static final float[] CUBE_FOUND_COLORS = new float[] {
             // front, yellow
             1.0f,  0.6523f, 0.0f, 1.0f,
@@ -0,0 +1,458 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import android.opengl.Matrix;
+import android.util.Log;
+
+/**
+ * Runs the game logic on its own thread so it overlaps with rendering.
+ *
+ * The renderer calls {@link #requestFrame()} once per frame. Each request produces exactly one
+ * simulation step, whose result is published as a {@link FrameState} through a triple buffer.
+ * Because the simulation never runs more than one step ahead of the renderer, a snapshot is at
+ * most one frame old when it is consumed.
+ *
+ * Input arrives through an {@link InputEventQueue} and is resolved against the head pose that was
+ * on the display when the event happened, not the pose of whichever frame is current when the
+ * simulation gets to it.
+ *
+ * Motion is animated from the display time of the frame each step is for, so it runs at the same
+ * speed whatever the frame rate.
+ *
+ * Object placement draws from a generator seeded at construction, so a recorded session replays
+ * the same world when given the same seed and the same inputs.
+ */
+public class WorldSimulation implements Runnable {
+
+    private static final String TAG = "WorldSimulation";
+
+    // What used to be 0.3 degrees a frame at 60 Hz.
+    private static final float CUBE_SPIN_DEGREES_PER_SECOND = 18f;
+    // A found cube pops up at its new place, overshooting a little.
+    private static final float[] CUBE_APPEAR_TIMES = {0f, 0.2f, 0.3f};
+    private static final float[] CUBE_APPEAR_SCALES = {0f, 1.15f, 1f};
+
+    private static final float YAW_LIMIT = 0.12f;
+    private static final float PITCH_LIMIT = 0.12f;
+
+    /** Upper bound on how long the thread sleeps between checks for a stop request. */
+    private static final long IDLE_PARK_NANOS = 100000000L;
+
+    private static final int INPUT_QUEUE_CAPACITY = 64;
+
+    // Recent head poses to hit-test input against; a quarter second at 60Hz.
+    private static final int POSE_HISTORY = 16;
+
+    // Lights hover a little above the floor and at cube height, circling the user.
+    private static final int MAX_LIGHTS = 32;
+    private static final int RING_LIGHTS = 4;
+    private static final float FLOOR_RING_RADIUS = 15f;
+    private static final float FLOOR_RING_HEIGHT = 3f;
+    private static final float FLOOR_RING_RANGE = 20f;
+    private static final float CUBE_RING_RADIUS = 10f;
+    private static final float CUBE_RING_RANGE = 12f;
+    // What used to be 0.01 radians a frame at 60 Hz.
+    private static final float RING_DEGREES_PER_SECOND = 34.4f;
+    private static final float[][] RING_COLORS = {
+        {0.8f, 0.3f, 0.2f}, {0.2f, 0.7f, 0.3f}, {0.2f, 0.4f, 0.9f}, {0.8f, 0.7f, 0.2f},
+    };
+    // Bounding sphere radii; the cube spans -1 to 1 on each axis.
+    private static final float CUBE_RADIUS = 1.75f;
+    private static final float FLOOR_RADIUS = WorldLayoutData.FLOOR_SIZE * 0.7072f;
+
+    private static final int TRACE_STEP = Trace.name("simulationStep");
+    private static final int TRACE_OBJECT_PITCH = Trace.name("objectPitch");
+    private static final int TRACE_OBJECT_YAW = Trace.name("objectYaw");
+
+    /**
+     * Receives the outcome of a trigger pull. Called on the simulation thread.
+     */
+    public interface Listener {
+        void onTriggerResult(boolean found, int score);
+    }
+
+    private final TripleBuffer<FrameState> mFrames = new TripleBuffer<FrameState>(
+            new FrameState(), new FrameState(), new FrameState());
+    private final TripleBuffer<HeadPose> mHeadPoses = new TripleBuffer<HeadPose>(
+            new HeadPose(), new HeadPose(), new HeadPose());
+
+    private final AtomicLong mRequestedSteps = new AtomicLong();
+    private final InputEventQueue mInput = new InputEventQueue(INPUT_QUEUE_CAPACITY);
+
+    private final Listener mListener;
+    private final Random mRandom;
+
+    private volatile int mLightsPerObject = PointLights.MAX_PER_OBJECT;
+
+    private volatile boolean mRunning;
+    private Thread mThread;
+
+    // Owned by the simulation thread.
+    private final float[] mModelCube = new float[16];
+    private final float[] mModelView = new float[16];
+    private final float[] mRotation = new float[16];
+    private final float[] mPosition = new float[4];
+    private final float[] mCubePosition = new float[4];
+    private final float[] mLightPosition = new float[3];
+    private final float[] mOrigin = {0, 0, 0, 1.0f};
+    private float mObjectDistance = 12f;
+    private long mSequence;
+    private long mCompletedSteps;
+    private int mScore;
+    private int mBursts;
+    private final float[] mBurstPosition = new float[3];
+    private final InputEventQueue.Event mEvent = new InputEventQueue.Event();
+    private final PointLights mLights = new PointLights(MAX_LIGHTS);
+    private int mFirstRingLight;
+    // The cube and two objects per ring light, which carry the lights around.
+    private final AnimationSystem mAnimation = new AnimationSystem(1 + RING_LIGHTS * 2, null);
+    private final int mCube;
+    private int mFirstRingObject;
+    private long mAnimationEpochNanos = Long.MIN_VALUE;
+    private final HeadPose[] mPoseHistory = new HeadPose[POSE_HISTORY];
+    private int mPoseCount;
+    private long mLastPoseTimeNanos = Long.MIN_VALUE;
+    // Time from an input event until the step that resolved it was published.
+    private int mInputEvents;
+    private long mTotalInputLatencyNanos;
+    private long mMaxInputLatencyNanos;
+
+    /**
+     * @param seed Seeds where the object is hidden after each find.
+     */
+    public WorldSimulation(Listener listener, long seed) {
+        mListener = listener;
+        mRandom = new Random(seed);
+
+        mCube = mAnimation.add();
+        // Cube appears mObjectDistance units in front of the user.
+        mAnimation.setPosition(mCube, 0, 0, -mObjectDistance);
+        mAnimation.setSpin(mCube, 0.5f, 0.5f, 1.0f, CUBE_SPIN_DEGREES_PER_SECOND, 0f);
+        addLights();
+        animate(0f);
+
+        for (int i = 0; i < POSE_HISTORY; i++) {
+            mPoseHistory[i] = new HeadPose();
+        }
+        Matrix.setIdentityM(mHeadPoses.getWriteSlot().headView, 0);
+        mHeadPoses.publish();
+        publishState(false);
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mRunning = true;
+        mThread = new Thread(this, TAG);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mThread);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mThread = null;
+        logInputLatency();
+    }
+
+    /**
+     * Hands the latest head pose to the simulation. Only call from the render thread.
+     * @param displayTimeNanos When the frame drawn with this pose will be on the display.
+     */
+    public void setHeadView(float[] headView, long displayTimeNanos) {
+        HeadPose pose = mHeadPoses.getWriteSlot();
+        System.arraycopy(headView, 0, pose.headView, 0, 16);
+        pose.displayTimeNanos = displayTimeNanos;
+        mHeadPoses.publish();
+    }
+
+    /**
+     * Limits the dynamic lights each object is lit by, dropping the weakest, from the next step
+     * on. Safe to call from any thread.
+     */
+    public void setLightsPerObject(int count) {
+        mLightsPerObject = Math.max(0, Math.min(PointLights.MAX_PER_OBJECT, count));
+    }
+
+    /**
+     * Asks for the next simulation step. Only call from the render thread.
+     */
+    public void requestFrame() {
+        mRequestedSteps.incrementAndGet();
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Returns the most recently published snapshot. Only call from the render thread, and do not
+     * hold on to the result past the next call.
+     */
+    public FrameState acquireLatest() {
+        mFrames.update();
+        return mFrames.getReadSlot();
+    }
+
+    /**
+     * Records a trigger pull; it is resolved during the next simulation step. Safe to call from
+     * any thread, and never allocates.
+     * @param timeNanos {@link System#nanoTime()} when the trigger was pulled.
+     */
+    public void onTrigger(long timeNanos) {
+        if (!mInput.post(InputEventQueue.TYPE_TRIGGER, timeNanos)) {
+            Log.w(TAG, "Input queue full, dropped trigger");
+        }
+    }
+
+    /**
+     * Runs the requested step on the calling thread, for replaying without the simulation
+     * thread. Only call while the simulation is stopped.
+     */
+    public void runPendingSteps() {
+        if (mThread != null) {
+            throw new IllegalStateException("Simulation thread is running");
+        }
+        if (mCompletedSteps < mRequestedSteps.get()) {
+            mCompletedSteps = mRequestedSteps.get();
+            step();
+        }
+    }
+
+    @Override
+    public void run() {
+        Trace.nameCurrentThread(TAG);
+        while (mRunning) {
+            if (mCompletedSteps < mRequestedSteps.get()) {
+                // Collapse a backlog into a single step so we never run behind the renderer.
+                mCompletedSteps = mRequestedSteps.get();
+                Trace.begin(TRACE_STEP);
+                step();
+                Trace.end(TRACE_STEP);
+            } else {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private void step() {
+        mHeadPoses.update();
+        HeadPose latest = mHeadPoses.getReadSlot();
+        recordPose(latest);
+        float seconds = animationSeconds(latest.displayTimeNanos);
+
+        int events = 0;
+        long oldestEventNanos = 0;
+        long eventTimeSum = 0;
+        while (mInput.poll(mEvent)) {
+            if (events++ == 0) {
+                oldestEventNanos = mEvent.timeNanos;
+            }
+            eventTimeSum += mEvent.timeNanos;
+            if (mEvent.type == InputEventQueue.TYPE_TRIGGER) {
+                boolean found = isLookingAtObject(poseAt(mEvent.timeNanos).headView);
+                if (found) {
+                    mScore++;
+                    mBursts++;
+                    System.arraycopy(mModelCube, 12, mBurstPosition, 0, 3);
+                    hideObject(seconds);
+                    // Later events this step must see the cube where it is now.
+                    animate(seconds);
+                }
+                mListener.onTriggerResult(found, mScore);
+            }
+        }
+
+        animate(seconds);
+
+        long publishTime = publishState(isLookingAtObject(latest.headView));
+        if (events > 0) {
+            // Measured until the result is visible to the renderer, not just until it is decided.
+            mInputEvents += events;
+            mTotalInputLatencyNanos += events * publishTime - eventTimeSum;
+            mMaxInputLatencyNanos = Math.max(mMaxInputLatencyNanos, publishTime - oldestEventNanos);
+        }
+    }
+
+    /**
+     * Returns the animation time of a display time: seconds since the first step was shown. A
+     * replayed session then animates the same way however long startup took.
+     */
+    private float animationSeconds(long displayTimeNanos) {
+        if (mAnimationEpochNanos == Long.MIN_VALUE) {
+            mAnimationEpochNanos = displayTimeNanos;
+        }
+        return (displayTimeNanos - mAnimationEpochNanos) / 1e9f;
+    }
+
+    /**
+     * Evaluates every animated object for the given time, and picks up the cube's model matrix
+     * and the ring lights' positions.
+     */
+    private void animate(float seconds) {
+        mAnimation.evaluate(seconds);
+        mAnimation.getModel(mCube, mModelCube, 0);
+        placeRingLights();
+    }
+
+    private void logInputLatency() {
+        if (mInputEvents == 0) {
+            return;
+        }
+        Log.i(TAG, "Input latency over " + mInputEvents + " events: mean "
+                + mTotalInputLatencyNanos / mInputEvents / 1000 + " us, max "
+                + mMaxInputLatencyNanos / 1000 + " us, " + mInput.getDroppedCount() + " dropped");
+    }
+
+    /**
+     * Appends a pose to the history, unless it is the one we saw last step.
+     */
+    private void recordPose(HeadPose pose) {
+        if (pose.displayTimeNanos == mLastPoseTimeNanos && mPoseCount > 0) {
+            return;
+        }
+        mLastPoseTimeNanos = pose.displayTimeNanos;
+        mPoseHistory[mPoseCount++ % POSE_HISTORY].set(pose);
+    }
+
+    /**
+     * Returns the recorded pose whose display time is closest to {@code timeNanos}, i.e. what the
+     * user was looking at when the event happened.
+     */
+    private HeadPose poseAt(long timeNanos) {
+        int count = Math.min(mPoseCount, POSE_HISTORY);
+        HeadPose best = mHeadPoses.getReadSlot();
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            HeadPose pose = mPoseHistory[i];
+            long distance = Math.abs(pose.displayTimeNanos - timeNanos);
+            if (distance < bestDistance) {
+                best = pose;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return The publish time of the new state.
+     */
+    private long publishState(boolean highlighted) {
+        FrameState state = mFrames.getWriteSlot();
+        state.sequence = mSequence++;
+        System.arraycopy(mModelCube, 0, state.cubeModel, 0, 16);
+        state.cubeVisible = true;
+        state.cubeHighlighted = highlighted;
+        state.score = mScore;
+        state.bursts = mBursts;
+        System.arraycopy(mBurstPosition, 0, state.burstPosition, 0, 3);
+        // The lights come strongest first, so a shorter list keeps the ones that matter most.
+        int lightsPerObject = mLightsPerObject;
+        state.cubeLightCount = Math.min(lightsPerObject, mLights.assign(mModelCube[12],
+                mModelCube[13], mModelCube[14], CUBE_RADIUS, true, state.cubeLightPositions,
+                state.cubeLightColors));
+        state.floorLightCount = Math.min(lightsPerObject, mLights.assign(0f,
+                -WorldLayoutData.FLOOR_DEPTH, 0f, FLOOR_RADIUS, false, state.floorLightPositions,
+                state.floorLightColors));
+        long now = System.nanoTime();
+        state.publishTimeNanos = now;
+        mFrames.publish();
+        return now;
+    }
+
+    private void addLights() {
+        mLights.addAll(WorldLayoutData.STATIC_LIGHTS, true);
+        mFirstRingLight = mLights.getCount();
+        mFirstRingObject = mAnimation.getCount();
+        for (int i = 0; i < RING_LIGHTS; i++) {
+            float[] c = RING_COLORS[i];
+            mLights.add(0f, 0f, 0f, FLOOR_RING_RANGE, c[0], c[1], c[2]);
+            mLights.add(0f, 0f, 0f, CUBE_RING_RANGE, c[0], c[1], c[2]);
+            // Each light rides on an object spinning around the vertical axis at the origin.
+            float start = i * 360f / RING_LIGHTS;
+            mAnimation.setSpin(mAnimation.add(), 0f, 1f, 0f, -RING_DEGREES_PER_SECOND, -start);
+            mAnimation.setSpin(mAnimation.add(), 0f, 1f, 0f, RING_DEGREES_PER_SECOND, start);
+        }
+    }
+
+    /**
+     * Moves the two light rings along with their objects; they turn in opposite directions.
+     */
+    private void placeRingLights() {
+        for (int i = 0; i < RING_LIGHTS; i++) {
+            int light = mFirstRingLight + i * 2;
+            int object = mFirstRingObject + i * 2;
+            mAnimation.transformPoint(object, FLOOR_RING_RADIUS,
+                    FLOOR_RING_HEIGHT - WorldLayoutData.FLOOR_DEPTH, 0f, mLightPosition, 0);
+            mLights.setPosition(light, mLightPosition[0], mLightPosition[1], mLightPosition[2]);
+            mAnimation.transformPoint(object + 1, 0f, 0f, CUBE_RING_RADIUS, mLightPosition, 0);
+            mLights.setPosition(light + 1, mLightPosition[0], mLightPosition[1],
+                    mLightPosition[2]);
+        }
+    }
+
+    /**
+     * Find a new random position for the object.
+     * We'll rotate it around the Y-axis so it's out of sight, and then up or down by a little bit.
+     */
+    private void hideObject(float seconds) {
+        // First rotate in XZ plane, between 90 and 270 deg away, and scale so that we vary
+        // the object's distance from the user.
+        float angleXZ = mRandom.nextFloat() * 180 + 90;
+        Matrix.setRotateM(mRotation, 0, angleXZ, 0f, 1f, 0f);
+        float oldObjectDistance = mObjectDistance;
+        mObjectDistance = mRandom.nextFloat() * 15 + 5;
+        float objectScalingFactor = mObjectDistance / oldObjectDistance;
+        Matrix.scaleM(mRotation, 0, objectScalingFactor, objectScalingFactor, objectScalingFactor);
+        mAnimation.getPosition(mCube, mCubePosition, 0);
+        mCubePosition[3] = 1f;
+        Matrix.multiplyMV(mPosition, 0, mRotation, 0, mCubePosition, 0);
+        // Now get the up or down angle, between -20 and 20 degrees
+        float angleY = mRandom.nextFloat() * 80 - 40; // angle in Y plane, between -40 and 40
+        angleY = (float) Math.toRadians(angleY);
+        float newY = (float) Math.tan(angleY) * mObjectDistance;
+        mAnimation.setPosition(mCube, mPosition[0], newY, mPosition[2]);
+        mAnimation.setScaleKeys(mCube, CUBE_APPEAR_TIMES, CUBE_APPEAR_SCALES, seconds);
+    }
+
+    /**
+     * Check if user is looking at object by calculating where the object is in eye-space.
+     */
+    private boolean isLookingAtObject(float[] headView) {
+        // Convert object space to camera space.
+        Matrix.multiplyMM(mModelView, 0, headView, 0, mModelCube, 0);
+        Matrix.multiplyMV(mPosition, 0, mModelView, 0, mOrigin, 0);
+        float pitch = (float) Math.atan2(mPosition[1], -mPosition[2]);
+        float yaw = (float) Math.atan2(mPosition[0], -mPosition[2]);
+        Trace.counter(TRACE_OBJECT_PITCH, pitch);
+        Trace.counter(TRACE_OBJECT_YAW, yaw);
+        return (Math.abs(pitch) < PITCH_LIMIT) && (Math.abs(yaw) < YAW_LIMIT);
+    }
+}
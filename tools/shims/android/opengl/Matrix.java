@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package android.opengl;
+
+/**
+ * The parts of android.opengl.Matrix the desktop tools use, with the same column-major layout
+ * and semantics, so app classes that do matrix math can run on a plain JVM. Put this directory
+ * on the source path ahead of android.jar, whose methods only throw.
+ */
+public class Matrix {
+
+    private Matrix() {
+    }
+
+    /**
+     * result = lhs x rhs. The result must not overlap either input.
+     */
+    public static void multiplyMM(float[] result, int resultOffset, float[] lhs, int lhsOffset,
+            float[] rhs, int rhsOffset) {
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0f;
+                for (int k = 0; k < 4; k++) {
+                    sum += lhs[lhsOffset + k * 4 + row] * rhs[rhsOffset + column * 4 + k];
+                }
+                result[resultOffset + column * 4 + row] = sum;
+            }
+        }
+    }
+
+    /**
+     * resultVec = lhsMat x rhsVec. The result must not overlap either input.
+     */
+    public static void multiplyMV(float[] resultVec, int resultVecOffset, float[] lhsMat,
+            int lhsMatOffset, float[] rhsVec, int rhsVecOffset) {
+        for (int row = 0; row < 4; row++) {
+            float sum = 0f;
+            for (int k = 0; k < 4; k++) {
+                sum += lhsMat[lhsMatOffset + k * 4 + row] * rhsVec[rhsVecOffset + k];
+            }
+            resultVec[resultVecOffset + row] = sum;
+        }
+    }
+
+    public static void setIdentityM(float[] sm, int smOffset) {
+        for (int i = 0; i < 16; i++) {
+            sm[smOffset + i] = i % 5 == 0 ? 1f : 0f;
+        }
+    }
+
+    /**
+     * Translates m in place by (x, y, z), applied before m's own transform.
+     */
+    public static void translateM(float[] m, int mOffset, float x, float y, float z) {
+        for (int i = 0; i < 4; i++) {
+            m[mOffset + 12 + i] += m[mOffset + i] * x + m[mOffset + 4 + i] * y
+                    + m[mOffset + 8 + i] * z;
+        }
+    }
+
+    public static void setLookAtM(float[] rm, int rmOffset, float eyeX, float eyeY, float eyeZ,
+            float centerX, float centerY, float centerZ, float upX, float upY, float upZ) {
+        float fx = centerX - eyeX;
+        float fy = centerY - eyeY;
+        float fz = centerZ - eyeZ;
+        float rlf = 1f / (float) Math.sqrt(fx * fx + fy * fy + fz * fz);
+        fx *= rlf;
+        fy *= rlf;
+        fz *= rlf;
+        // s = f x up
+        float sx = fy * upZ - fz * upY;
+        float sy = fz * upX - fx * upZ;
+        float sz = fx * upY - fy * upX;
+        float rls = 1f / (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+        sx *= rls;
+        sy *= rls;
+        sz *= rls;
+        // u = s x f
+        float ux = sy * fz - sz * fy;
+        float uy = sz * fx - sx * fz;
+        float uz = sx * fy - sy * fx;
+
+        rm[rmOffset] = sx;
+        rm[rmOffset + 1] = ux;
+        rm[rmOffset + 2] = -fx;
+        rm[rmOffset + 3] = 0f;
+        rm[rmOffset + 4] = sy;
+        rm[rmOffset + 5] = uy;
+        rm[rmOffset + 6] = -fy;
+        rm[rmOffset + 7] = 0f;
+        rm[rmOffset + 8] = sz;
+        rm[rmOffset + 9] = uz;
+        rm[rmOffset + 10] = -fz;
+        rm[rmOffset + 11] = 0f;
+        rm[rmOffset + 12] = 0f;
+        rm[rmOffset + 13] = 0f;
+        rm[rmOffset + 14] = 0f;
+        rm[rmOffset + 15] = 1f;
+        translateM(rm, rmOffset, -eyeX, -eyeY, -eyeZ);
+    }
+
+    /**
+     * @param fovy The vertical field of view, in degrees.
+     */
+    public static void perspectiveM(float[] m, int offset, float fovy, float aspect, float zNear,
+            float zFar) {
+        float f = 1f / (float) Math.tan(fovy * (Math.PI / 360.0));
+        float rangeReciprocal = 1f / (zNear - zFar);
+        for (int i = 0; i < 16; i++) {
+            m[offset + i] = 0f;
+        }
+        m[offset] = f / aspect;
+        m[offset + 5] = f;
+        m[offset + 10] = (zFar + zNear) * rangeReciprocal;
+        m[offset + 11] = -1f;
+        m[offset + 14] = 2f * zFar * zNear * rangeReciprocal;
+    }
+
+    public static void frustumM(float[] m, int offset, float left, float right, float bottom,
+            float top, float near, float far) {
+        float rWidth = 1f / (right - left);
+        float rHeight = 1f / (top - bottom);
+        float rDepth = 1f / (near - far);
+        for (int i = 0; i < 16; i++) {
+            m[offset + i] = 0f;
+        }
+        m[offset] = 2f * near * rWidth;
+        m[offset + 5] = 2f * near * rHeight;
+        m[offset + 8] = (right + left) * rWidth;
+        m[offset + 9] = (top + bottom) * rHeight;
+        m[offset + 10] = (far + near) * rDepth;
+        m[offset + 11] = -1f;
+        m[offset + 14] = 2f * far * near * rDepth;
+    }
+
+    /**
+     * Scales m in place by (x, y, z), applied before m's own transform.
+     */
+    public static void scaleM(float[] m, int mOffset, float x, float y, float z) {
+        for (int i = 0; i < 4; i++) {
+            m[mOffset + i] *= x;
+            m[mOffset + 4 + i] *= y;
+            m[mOffset + 8 + i] *= z;
+        }
+    }
+
+    /**
+     * Returns the length of the vector (x, y, z).
+     */
+    public static float length(float x, float y, float z) {
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    /**
+     * Sets rm to a rotation by angle degrees around the axis (x, y, z).
+     */
+    public static void setRotateM(float[] rm, int rmOffset, float a, float x, float y, float z) {
+        setIdentityM(rm, rmOffset);
+        float radians = (float) Math.toRadians(a);
+        float s = (float) Math.sin(radians);
+        float c = (float) Math.cos(radians);
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        x /= length;
+        y /= length;
+        z /= length;
+        float nc = 1f - c;
+        rm[rmOffset] = x * x * nc + c;
+        rm[rmOffset + 1] = y * x * nc + z * s;
+        rm[rmOffset + 2] = x * z * nc - y * s;
+        rm[rmOffset + 4] = x * y * nc - z * s;
+        rm[rmOffset + 5] = y * y * nc + c;
+        rm[rmOffset + 6] = y * z * nc + x * s;
+        rm[rmOffset + 8] = x * z * nc + y * s;
+        rm[rmOffset + 9] = y * z * nc - x * s;
+        rm[rmOffset + 10] = z * z * nc + c;
+    }
+
+    /**
+     * Rotates m in place by angle degrees around the axis (x, y, z), applied before m's own
+     * transform.
+     */
+    public static void rotateM(float[] m, int mOffset, float a, float x, float y, float z) {
+        float[] rotation = new float[16];
+        float[] result = new float[16];
+        setRotateM(rotation, 0, a, x, y, z);
+        multiplyMM(result, 0, m, mOffset, rotation, 0);
+        System.arraycopy(result, 0, m, mOffset, 16);
+    }
+
+    /**
+     * Inverts m into mInv by cofactor expansion.
+     * @return false, leaving mInv unchanged, if m is singular.
+     */
+    public static boolean invertM(float[] mInv, int mInvOffset, float[] m, int mOffset) {
+        float[] a = new float[16];
+        System.arraycopy(m, mOffset, a, 0, 16);
+        float[] inv = new float[16];
+        inv[0] = a[5] * a[10] * a[15] - a[5] * a[11] * a[14] - a[9] * a[6] * a[15]
+                + a[9] * a[7] * a[14] + a[13] * a[6] * a[11] - a[13] * a[7] * a[10];
+        inv[4] = -a[4] * a[10] * a[15] + a[4] * a[11] * a[14] + a[8] * a[6] * a[15]
+                - a[8] * a[7] * a[14] - a[12] * a[6] * a[11] + a[12] * a[7] * a[10];
+        inv[8] = a[4] * a[9] * a[15] - a[4] * a[11] * a[13] - a[8] * a[5] * a[15]
+                + a[8] * a[7] * a[13] + a[12] * a[5] * a[11] - a[12] * a[7] * a[9];
+        inv[12] = -a[4] * a[9] * a[14] + a[4] * a[10] * a[13] + a[8] * a[5] * a[14]
+                - a[8] * a[6] * a[13] - a[12] * a[5] * a[10] + a[12] * a[6] * a[9];
+        inv[1] = -a[1] * a[10] * a[15] + a[1] * a[11] * a[14] + a[9] * a[2] * a[15]
+                - a[9] * a[3] * a[14] - a[13] * a[2] * a[11] + a[13] * a[3] * a[10];
+        inv[5] = a[0] * a[10] * a[15] - a[0] * a[11] * a[14] - a[8] * a[2] * a[15]
+                + a[8] * a[3] * a[14] + a[12] * a[2] * a[11] - a[12] * a[3] * a[10];
+        inv[9] = -a[0] * a[9] * a[15] + a[0] * a[11] * a[13] + a[8] * a[1] * a[15]
+                - a[8] * a[3] * a[13] - a[12] * a[1] * a[11] + a[12] * a[3] * a[9];
+        inv[13] = a[0] * a[9] * a[14] - a[0] * a[10] * a[13] - a[8] * a[1] * a[14]
+                + a[8] * a[2] * a[13] + a[12] * a[1] * a[10] - a[12] * a[2] * a[9];
+        inv[2] = a[1] * a[6] * a[15] - a[1] * a[7] * a[14] - a[5] * a[2] * a[15]
+                + a[5] * a[3] * a[14] + a[13] * a[2] * a[7] - a[13] * a[3] * a[6];
+        inv[6] = -a[0] * a[6] * a[15] + a[0] * a[7] * a[14] + a[4] * a[2] * a[15]
+                - a[4] * a[3] * a[14] - a[12] * a[2] * a[7] + a[12] * a[3] * a[6];
+        inv[10] = a[0] * a[5] * a[15] - a[0] * a[7] * a[13] - a[4] * a[1] * a[15]
+                + a[4] * a[3] * a[13] + a[12] * a[1] * a[7] - a[12] * a[3] * a[5];
+        inv[14] = -a[0] * a[5] * a[14] + a[0] * a[6] * a[13] + a[4] * a[1] * a[14]
+                - a[4] * a[2] * a[13] - a[12] * a[1] * a[6] + a[12] * a[2] * a[5];
+        inv[3] = -a[1] * a[6] * a[11] + a[1] * a[7] * a[10] + a[5] * a[2] * a[11]
+                - a[5] * a[3] * a[10] - a[9] * a[2] * a[7] + a[9] * a[3] * a[6];
+        inv[7] = a[0] * a[6] * a[11] - a[0] * a[7] * a[10] - a[4] * a[2] * a[11]
+                + a[4] * a[3] * a[10] + a[8] * a[2] * a[7] - a[8] * a[3] * a[6];
+        inv[11] = -a[0] * a[5] * a[11] + a[0] * a[7] * a[9] + a[4] * a[1] * a[11]
+                - a[4] * a[3] * a[9] - a[8] * a[1] * a[7] + a[8] * a[3] * a[5];
+        inv[15] = a[0] * a[5] * a[10] - a[0] * a[6] * a[9] - a[4] * a[1] * a[10]
+                + a[4] * a[2] * a[9] + a[8] * a[1] * a[6] - a[8] * a[2] * a[5];
+        float det = a[0] * inv[0] + a[1] * inv[4] + a[2] * inv[8] + a[3] * inv[12];
+        if (det == 0f) {
+            return false;
+        }
+        for (int i = 0; i < 16; i++) {
+            mInv[mInvOffset + i] = inv[i] / det;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Churns a {@link DirectBufferPool} with a mix of buffer sizes like the renderer's, releasing a
+ * random live buffer for every new one, and prints the allocation throughput next to that of
+ * plain direct buffers, and how well the slabs stay used as the churn goes on. Every buffer is
+ * stamped when allocated and checked when released, so overlapping blocks are caught too; the
+ * exit status is 1 if any were. Runs on a desktop JVM.
+ *
+ * From the project root:
+ * <pre>
+ * javac -Xprefer:source -sourcepath tools/shims:src:gen -cp $ANDROID_JAR -d /tmp/churn \
+ *     tools/src/com/google/vrtoolkit/cardboard/samples/treasurehunt/BufferPoolChurn.java
+ * java -cp /tmp/churn com.google.vrtoolkit.cardboard.samples.treasurehunt.BufferPoolChurn \
+ *     [operations] [live buffers]
+ * </pre>
+ *
+ * Utilization counts the bytes asked for; "rounded" counts the size classes they were rounded up
+ * to, so what the rounded figure leaves of the slabs is what sits on the free lists. Under steady
+ * churn the slab count should stop growing once the free lists cover the mix.
+ */
+public final class BufferPoolChurn {
+
+    private static final int DEFAULT_OPERATIONS = 2000000;
+    private static final int DEFAULT_LIVE = 2000;
+    private static final int REPORTS = 10;
+    private static final long SIZE_SEED = 1;
+    private static final long VICTIM_SEED = 2;
+    // Matches DirectBufferPool.
+    private static final int MIN_CLASS_BYTES = 64;
+    private static final int SLAB_BYTES = 1 << 18;
+
+    private BufferPoolChurn() {}
+
+    public static void main(String[] args) {
+        if (args.length > 2) {
+            System.err.println("Usage: BufferPoolChurn [operations] [live buffers]");
+            System.exit(2);
+        }
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_OPERATIONS;
+        int live = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_LIVE;
+
+        // The same sizes for both runs.
+        int[] sizes = new int[operations + live];
+        Random sizeRandom = new Random(SIZE_SEED);
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = pickSize(sizeRandom);
+        }
+
+        long directNanos = churnDirect(sizes, live);
+        System.out.println(String.format("allocateDirect: %.0f allocations per second",
+                operations / (directNanos / 1e9)));
+
+        DirectBufferPool pool = new DirectBufferPool(false);
+        ByteBuffer[] buffers = new ByteBuffer[live];
+        int[] stamps = new int[live];
+        long roundedBytes = 0;
+        for (int i = 0; i < live; i++) {
+            buffers[i] = pool.allocate(sizes[i]);
+            stamps[i] = i;
+            stamp(buffers[i], i);
+            roundedBytes += rounded(sizes[i]);
+        }
+        Random victims = new Random(VICTIM_SEED);
+        int overlaps = 0;
+        long poolNanos = 0;
+        int reportEvery = Math.max(1, operations / REPORTS);
+        for (int i = 0; i < operations; i++) {
+            int victim = victims.nextInt(live);
+            int size = sizes[live + i];
+            if (!isStamped(buffers[victim], stamps[victim])) {
+                overlaps++;
+            }
+            roundedBytes += rounded(size) - rounded(buffers[victim].capacity());
+
+            long start = System.nanoTime();
+            pool.release(buffers[victim]);
+            buffers[victim] = pool.allocate(size);
+            poolNanos += System.nanoTime() - start;
+
+            stamps[victim] = live + i;
+            stamp(buffers[victim], live + i);
+            if ((i + 1) % reportEvery == 0) {
+                long slabBytes = (long) pool.getSlabCount() * SLAB_BYTES;
+                System.out.println(String.format("%9d operations: %3d slabs, %5.1f%% utilization, "
+                        + "%5.1f%% rounded", i + 1, pool.getSlabCount(),
+                        pool.getUtilization() * 100f, roundedBytes * 100.0 / slabBytes));
+            }
+        }
+        System.out.println(String.format("DirectBufferPool: %.0f allocations per second, "
+                + "%d overlapping blocks", operations / (poolNanos / 1e9), overlaps));
+        if (overlaps > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Mostly small vertex and uniform arrays, some textures, and the odd one bigger than a slab.
+     */
+    private static int pickSize(Random random) {
+        int kind = random.nextInt(100);
+        if (kind < 70) {
+            return 16 + random.nextInt(2048);
+        } else if (kind < 95) {
+            return 2048 + random.nextInt(30 * 1024);
+        } else if (kind < 99) {
+            return 32 * 1024 + random.nextInt(96 * 1024);
+        }
+        return SLAB_BYTES + random.nextInt(SLAB_BYTES);
+    }
+
+    private static long churnDirect(int[] sizes, int live) {
+        ByteBuffer[] buffers = new ByteBuffer[live];
+        for (int i = 0; i < live; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(sizes[i]).order(ByteOrder.nativeOrder());
+        }
+        Random victims = new Random(VICTIM_SEED);
+        long start = System.nanoTime();
+        for (int i = live; i < sizes.length; i++) {
+            buffers[victims.nextInt(live)] = ByteBuffer.allocateDirect(sizes[i])
+                    .order(ByteOrder.nativeOrder());
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Writes a buffer's number at both of its ends. Every size picked holds two ints.
+     */
+    private static void stamp(ByteBuffer buffer, int stamp) {
+        buffer.putInt(0, stamp);
+        buffer.putInt(buffer.capacity() - 4, stamp);
+    }
+
+    /**
+     * Returns whether nothing else wrote over a buffer's ends since it was stamped.
+     */
+    private static boolean isStamped(ByteBuffer buffer, int stamp) {
+        return buffer.getInt(0) == stamp && buffer.getInt(buffer.capacity() - 4) == stamp;
+    }
+
+    private static long rounded(int bytes) {
+        if (bytes > SLAB_BYTES) {
+            return 0;
+        }
+        return Math.max(MIN_CLASS_BYTES, Integer.highestOneBit(bytes - 1) << 1);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Replays the quality governor's inputs from a trace recorded with MainActivity.TRACING through
+ * a fresh {@link QualityGovernor}, and prints each tier change next to the ones the device made.
+ * Use it to tune the governor's thresholds against real sessions. Runs on a desktop JVM.
+ *
+ * From the project root:
+ * <pre>
+ * javac -Xprefer:source -sourcepath tools/shims:src:gen -cp $ANDROID_JAR -d /tmp/replay \
+ *     tools/src/com/google/vrtoolkit/cardboard/samples/treasurehunt/GovernorReplay.java
+ * java -cp /tmp/replay com.google.vrtoolkit.cardboard.samples.treasurehunt.GovernorReplay \
+ *     trace.json [dwell seconds]
+ * </pre>
+ */
+public final class GovernorReplay {
+
+    // Matches MainActivity.
+    private static final long FRAME_PERIOD_NANOS = 16666667L;
+    private static final double DEFAULT_DWELL_SECONDS = 5;
+
+    // TraceExporter writes one event per line.
+    private static final Pattern COUNTER = Pattern.compile("\"name\":\"(\\w+)\".*"
+            + "\"ts\":([0-9.E]+),\"ph\":\"C\",\"args\":\\{\"value\":([-0-9.EaN]+)");
+
+    private GovernorReplay() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: GovernorReplay <trace.json> [dwell seconds]");
+            System.exit(2);
+        }
+        double dwell = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_DWELL_SECONDS;
+        QualityGovernor governor = new QualityGovernor(QualityGovernor.DEFAULT_TIERS,
+                FRAME_PERIOD_NANOS, (long) (dwell * 1e9));
+
+        float level = 1f;
+        boolean charging = true;
+        float temperature = Float.NaN;
+        long firstNanos = -1;
+        int frames = 0;
+        BufferedReader reader = new BufferedReader(new FileReader(args[0]));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher m = COUNTER.matcher(line);
+                if (!m.find()) {
+                    continue;
+                }
+                String name = m.group(1);
+                long nanos = (long) (Double.parseDouble(m.group(2)) * 1000);
+                double value = Double.parseDouble(m.group(3));
+                if (firstNanos < 0) {
+                    firstNanos = nanos;
+                }
+                double seconds = (nanos - firstNanos) / 1e9;
+                if (name.equals("batteryLevel")) {
+                    level = (float) value;
+                } else if (name.equals("batteryCharging")) {
+                    charging = value != 0;
+                } else if (name.equals("batteryTemperature")) {
+                    temperature = (float) value;
+                } else if (name.equals("qualityTier")) {
+                    System.out.printf("%9.2f s  device  -> %s%n", seconds,
+                            QualityGovernor.DEFAULT_TIERS[(int) value]);
+                    continue;
+                } else if (!name.equals("frameBusyMs")) {
+                    continue;
+                }
+                governor.setBattery(level, charging, temperature);
+                if (name.equals("frameBusyMs")) {
+                    // The counter is recorded as the frame ends.
+                    long busyNanos = (long) (value * 1e6);
+                    frames++;
+                    if (governor.onFrame(nanos - busyNanos, busyNanos)) {
+                        System.out.printf("%9.2f s  replay  -> %s at load %.2f, %.0f%% battery, "
+                                + "%.1f C%n", seconds, governor.getTier(), governor.getLoad(),
+                                level * 100, temperature);
+                    }
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        System.out.println(frames + " frames. " + governor.describe());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts events to a small {@link InputEventQueue} from several threads at once while this thread
+ * polls them, and checks that every event comes out exactly once and in the order its producer
+ * posted it. Producers post again when the queue is full, so the drops the queue counts must
+ * match the posts it refused. A queue that gives up no event for two seconds is reported as stuck.
+ * Prints what went wrong and exits with status 1 if anything did. Runs on a desktop JVM.
+ *
+ * From the project root:
+ * <pre>
+ * javac -Xprefer:source -sourcepath tools/shims:src:gen -cp $ANDROID_JAR -d /tmp/stress \
+ *     tools/src/com/google/vrtoolkit/cardboard/samples/treasurehunt/InputQueueStress.java
+ * java -cp /tmp/stress com.google.vrtoolkit.cardboard.samples.treasurehunt.InputQueueStress \
+ *     [producers] [events per producer] [capacity]
+ * </pre>
+ *
+ * Each event's type is its producer's number and its time is its place in that producer's
+ * sequence, so the consumer can tell events apart without anything else crossing threads.
+ */
+public final class InputQueueStress {
+
+    private static final int DEFAULT_EVENTS = 1000000;
+    // Small, so the producers lap the consumer and find the queue full often.
+    private static final int DEFAULT_CAPACITY = 64;
+    private static final int MAX_REPORTED_ERRORS = 10;
+    // How long the queue may go without giving up an event before the run is called stuck.
+    private static final long STALL_NANOS = 2000000000L;
+
+    private int mErrors;
+
+    private InputQueueStress() {}
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length > 3) {
+            System.err.println("Usage: InputQueueStress [producers] [events per producer] "
+                    + "[capacity]");
+            System.exit(2);
+        }
+        int producers = args.length > 0 ? Integer.parseInt(args[0])
+                : Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+        int events = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_EVENTS;
+        int capacity = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CAPACITY;
+
+        InputQueueStress stress = new InputQueueStress();
+        stress.run(producers, events, capacity);
+        if (stress.mErrors > 0) {
+            System.exit(1);
+        }
+    }
+
+    private void run(int producers, final int events, int capacity) throws InterruptedException {
+        final InputEventQueue queue = new InputEventQueue(capacity);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong refused = new AtomicLong();
+        final AtomicBoolean stuck = new AtomicBoolean();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int type = p;
+            threads[p] = new Thread("producer " + p) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long full = 0;
+                    for (int i = 0; i < events; i++) {
+                        while (!queue.post(type, i)) {
+                            if (stuck.get()) {
+                                return;
+                            }
+                            full++;
+                            Thread.yield();
+                        }
+                    }
+                    refused.addAndGet(full);
+                }
+            };
+            threads[p].start();
+        }
+
+        long[] expected = new long[producers];
+        long total = (long) producers * events;
+        long received = 0;
+        long emptyPolls = 0;
+        InputEventQueue.Event event = new InputEventQueue.Event();
+        long startNanos = System.nanoTime();
+        long lastEventNanos = startNanos;
+        start.countDown();
+        while (received < total) {
+            if (!queue.poll(event)) {
+                emptyPolls++;
+                if (System.nanoTime() - lastEventNanos > STALL_NANOS) {
+                    error(String.format("stuck with %d events not received", total - received));
+                    stuck.set(true);
+                    break;
+                }
+                // Lets the producers run where there are fewer cores than threads.
+                Thread.yield();
+                continue;
+            }
+            lastEventNanos = System.nanoTime();
+            received++;
+            if (event.type < 0 || event.type >= producers) {
+                error("event of unknown producer " + event.type);
+                continue;
+            }
+            if (event.timeNanos != expected[event.type]) {
+                // Below what is expected is a duplicate; above it, events were lost or reordered.
+                error(String.format("producer %d: got event %d, expected %d", event.type,
+                        event.timeNanos, expected[event.type]));
+            }
+            expected[event.type] = Math.max(expected[event.type], event.timeNanos + 1);
+        }
+        long nanos = System.nanoTime() - startNanos;
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!stuck.get() && queue.poll(event)) {
+            error("event left over after all were received: producer " + event.type + " event "
+                    + event.timeNanos);
+        }
+        for (int p = 0; p < producers; p++) {
+            if (expected[p] != events) {
+                error(String.format("producer %d: last event was %d of %d", p, expected[p] - 1,
+                        events));
+            }
+        }
+        if (!stuck.get() && queue.getDroppedCount() != refused.get()) {
+            error(String.format("queue counted %d drops, producers were refused %d times",
+                    queue.getDroppedCount(), refused.get()));
+        }
+
+        System.out.println(String.format("%d producers, %d events through %d slots in %.0f ms: "
+                + "%.1f million per second, %d posts refused, %d empty polls, %d errors",
+                producers, total, capacity, nanos / 1e6, total / (nanos / 1e3), refused.get(),
+                emptyPolls, mErrors));
+    }
+
+    private void error(String message) {
+        if (++mErrors <= MAX_REPORTED_ERRORS) {
+            System.out.println("ERROR: " + message);
+        }
+    }
+}
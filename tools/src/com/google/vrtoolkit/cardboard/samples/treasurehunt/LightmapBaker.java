@@ -0,0 +1,242 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Bakes the static lights' diffuse lighting on the floor into a lightmap. Runs on a desktop JVM;
+ * it only uses the Android-free classes of the app.
+ *
+ * From the project root:
+ * <pre>
+ * javac -sourcepath src -d /tmp/baker \
+ *     tools/src/com/google/vrtoolkit/cardboard/samples/treasurehunt/LightmapBaker.java
+ * java -cp /tmp/baker com.google.vrtoolkit.cardboard.samples.treasurehunt.LightmapBaker \
+ *     res/drawable-nodpi/floor_lightmap.png
+ * </pre>
+ *
+ * Uses the lighting model of {@link PointLights#diffuse}, and the coordinates of
+ * {@link LightmapUvs}, so the result lines up with what the shaders would have computed.
+ */
+public final class LightmapBaker {
+
+    // Rows per task; small enough that all cores stay busy until the end.
+    private static final int ROWS_PER_TASK = 8;
+
+    // For the cost estimate: a level look at the floor through one eye of a 1920x1080 phone.
+    private static final int EYE_WIDTH = 960;
+    private static final int EYE_HEIGHT = 1080;
+    private static final float EYE_FOV_DEGREES = 80f;
+    private static final float Z_FAR = 100f;
+    private static final int FRAMES_PER_SECOND = 60;
+    // Vector instructions per light in diffuseLight() of grid_fragment.shader, counted by hand.
+    private static final int ALU_OPS_PER_LIGHT = 10;
+
+    private final float[] mCoords;
+    private final float[] mNormals;
+    private final float[] mUvs;
+    private final float[] mLights;
+    private final int mSize;
+    private final int[] mPixels;
+    private final AtomicInteger mUncovered = new AtomicInteger();
+
+    public LightmapBaker(float[] coords, float[] normals, float[] lights, int size) {
+        mCoords = coords;
+        mNormals = normals;
+        mUvs = LightmapUvs.generate(coords, normals, size);
+        mLights = lights;
+        mSize = size;
+        mPixels = new int[size * size];
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: LightmapBaker <output.png> [threads]");
+            System.exit(2);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        // The floor model matrix is a plain translation, so move the vertices down here.
+        float[] coords = WorldLayoutData.FLOOR_COORDS.clone();
+        for (int i = 1; i < coords.length; i += 3) {
+            coords[i] -= WorldLayoutData.FLOOR_DEPTH;
+        }
+        LightmapBaker baker = new LightmapBaker(coords, WorldLayoutData.FLOOR_NORMALS,
+                WorldLayoutData.STATIC_LIGHTS, WorldLayoutData.FLOOR_LIGHTMAP_SIZE);
+
+        long start = System.nanoTime();
+        baker.bake(threads);
+        long bakeMillis = (System.nanoTime() - start) / 1000000;
+        baker.write(new File(args[0]));
+
+        int lights = WorldLayoutData.STATIC_LIGHTS.length / 8;
+        System.out.println("Baked " + lights + " lights into " + baker.mSize + "x" + baker.mSize
+                + " texels in " + bakeMillis + " ms on " + threads + " threads, "
+                + baker.mUncovered.get() + " texels uncovered");
+        reportSavings(lights);
+    }
+
+    /**
+     * Fills in every texel, splitting the rows between {@code threads} threads.
+     */
+    public void bake(int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            for (int row = 0; row < mSize; row += ROWS_PER_TASK) {
+                final int first = row;
+                final int last = Math.min(row + ROWS_PER_TASK, mSize);
+                tasks.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        bakeRows(first, last);
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                // Rethrows anything a task failed with.
+                task.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void write(File file) throws IOException {
+        BufferedImage image = new BufferedImage(mSize, mSize, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, mSize, mSize, mPixels, 0, mSize);
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG writer");
+        }
+    }
+
+    private void bakeRows(int first, int last) {
+        final float[] point = new float[6];
+        for (int y = first; y < last; y++) {
+            float v = (y + 0.5f) / mSize;
+            for (int x = 0; x < mSize; x++) {
+                float u = (x + 0.5f) / mSize;
+                if (!surfaceAt(u, v, point)) {
+                    mUncovered.incrementAndGet();
+                    continue;
+                }
+                float r = 0f;
+                float g = 0f;
+                float b = 0f;
+                for (int l = 0; l < mLights.length; l += 8) {
+                    float diffuse = PointLights.diffuse(mLights, l,
+                            point[0], point[1], point[2], point[3], point[4], point[5]);
+                    r += diffuse * mLights[l + 4];
+                    g += diffuse * mLights[l + 5];
+                    b += diffuse * mLights[l + 6];
+                }
+                mPixels[y * mSize + x] = (toByte(r) << 16) | (toByte(g) << 8) | toByte(b);
+            }
+        }
+    }
+
+    /**
+     * Finds the surface point under a lightmap coordinate.
+     * @param out Receives the position and unit normal.
+     * @return False if no triangle covers the coordinate.
+     */
+    private boolean surfaceAt(float u, float v, float[] out) {
+        // Texel centres on the inset border sit exactly on an edge; accept them.
+        final float epsilon = 1e-5f;
+        for (int t = 0; t < mUvs.length / 2; t += 3) {
+            float u0 = mUvs[t * 2];
+            float v0 = mUvs[t * 2 + 1];
+            float u1 = mUvs[t * 2 + 2] - u0;
+            float v1 = mUvs[t * 2 + 3] - v0;
+            float u2 = mUvs[t * 2 + 4] - u0;
+            float v2 = mUvs[t * 2 + 5] - v0;
+            float area = u1 * v2 - u2 * v1;
+            if (area == 0f) {
+                continue;
+            }
+            float pu = u - u0;
+            float pv = v - v0;
+            float b1 = (pu * v2 - u2 * pv) / area;
+            float b2 = (u1 * pv - pu * v1) / area;
+            float b0 = 1f - b1 - b2;
+            if (b0 < -epsilon || b1 < -epsilon || b2 < -epsilon) {
+                continue;
+            }
+            // Interpolate each component of the position and the normal.
+            for (int c = 0; c < 3; c++) {
+                int i = t * 3 + c;
+                out[c] = b0 * mCoords[i] + b1 * mCoords[i + 3] + b2 * mCoords[i + 6];
+                out[3 + c] = b0 * mNormals[i] + b1 * mNormals[i + 3] + b2 * mNormals[i + 6];
+            }
+            float length = (float) Math.sqrt(out[3] * out[3] + out[4] * out[4] + out[5] * out[5]);
+            out[3] /= length;
+            out[4] /= length;
+            out[5] /= length;
+            return true;
+        }
+        return false;
+    }
+
+    private static int toByte(float value) {
+        return Math.round(Math.min(Math.max(value, 0f), 1f) * 255f);
+    }
+
+    /**
+     * Estimates the per-fragment lighting the lightmap saves, compared to evaluating the baked
+     * lights in the fragment shader.
+     */
+    private static void reportSavings(int lights) {
+        double tanY = Math.tan(Math.toRadians(EYE_FOV_DEGREES / 2));
+        double tanX = tanY * EYE_WIDTH / EYE_HEIGHT;
+        double halfSize = WorldLayoutData.FLOOR_SIZE / 2;
+        long fragments = 0;
+        for (int y = 0; y < EYE_HEIGHT; y++) {
+            double dy = tanY * (1 - 2 * (y + 0.5) / EYE_HEIGHT);
+            if (dy >= 0) {
+                continue;
+            }
+            // Distance along the view axis to the floor plane.
+            double t = WorldLayoutData.FLOOR_DEPTH / -dy;
+            for (int x = 0; x < EYE_WIDTH; x++) {
+                double dx = tanX * (2 * (x + 0.5) / EYE_WIDTH - 1);
+                if (t < Z_FAR && Math.abs(dx * t) < halfSize && t < halfSize) {
+                    fragments++;
+                }
+            }
+        }
+        long opsPerFragment = (long) lights * ALU_OPS_PER_LIGHT;
+        long opsPerSecond = fragments * 2 * opsPerFragment * FRAMES_PER_SECOND;
+        System.out.println("Floor covers about " + fragments + " of " + EYE_WIDTH * EYE_HEIGHT
+                + " fragments per eye looking level");
+        System.out.println("One lightmap fetch replaces about " + opsPerFragment
+                + " ALU ops per floor fragment: " + opsPerSecond / 1000000
+                + " M ops per second for both eyes at " + FRAMES_PER_SECOND + " Hz");
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.opengl.Matrix;
+
+/**
+ * Feeds the head poses of a session recorded with MainActivity.RECORD_SESSION through a fresh
+ * {@link PosePredictor}, the way MainActivity does at the start of each frame and at each eye's
+ * late latch, and prints how far its predictions were from the recorded pose at the display
+ * time. The error of simply showing the newest pose is printed next to it, for each display
+ * latency asked for. Use it to tune the predictor against real head motion. Runs on a desktop
+ * JVM.
+ *
+ * From the project root, with the shims ahead of android.jar so Matrix does real math:
+ * <pre>
+ * javac -Xprefer:source -sourcepath tools/shims:src:gen -cp $ANDROID_JAR -d /tmp/poses \
+ *     tools/src/com/google/vrtoolkit/cardboard/samples/treasurehunt/PoseTraceReplay.java
+ * java -cp /tmp/poses com.google.vrtoolkit.cardboard.samples.treasurehunt.PoseTraceReplay \
+ *     session.bin [display latency ms ...]
+ * </pre>
+ */
+public final class PoseTraceReplay {
+
+    // Matches MainActivity.
+    private static final long FRAME_PERIOD_NANOS = 16666667L;
+    private static final long DISPLAY_LATENCY_NANOS = FRAME_PERIOD_NANOS * 3 / 2;
+
+    // The head poses of the session in time order, each with the display time it predicts for.
+    private long[] mTimes = new long[1024];
+    private long[] mFrameTimes = new long[1024];
+    private float[] mQuats = new float[1024 * 4];
+    private int mCount;
+
+    private final float[] mInverse = new float[16];
+    private final float[] mCorrection = new float[16];
+    private final float[] mLatched = new float[16];
+    private final float[] mQuat = new float[4];
+
+    private PoseTraceReplay() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: PoseTraceReplay <session.bin> [display latency ms ...]");
+            System.exit(2);
+        }
+        PoseTraceReplay replay = new PoseTraceReplay();
+        replay.read(new File(args[0]));
+        System.out.println(replay.mCount + " head poses");
+        if (args.length == 1) {
+            replay.report(DISPLAY_LATENCY_NANOS);
+        }
+        for (int i = 1; i < args.length; i++) {
+            replay.report((long) (Double.parseDouble(args[i]) * 1e6));
+        }
+    }
+
+    /**
+     * Collects the poses the app would have fed its predictor: the SDK's head view at the start
+     * of each frame, and the tracker's motion since then applied to it at each latch.
+     */
+    private void read(File file) throws IOException {
+        SessionLog.Reader reader = new SessionLog.Reader(file);
+        try {
+            SessionLog.Frame frame = new SessionLog.Frame();
+            while (reader.next(0, frame)) {
+                add(frame.timeNanos, frame.timeNanos, frame.headView);
+                Matrix.invertM(mInverse, 0, frame.trackerView, 0);
+                // Eyes latch in the order they are drawn.
+                for (int latch = 0; latch < SessionLog.EYES; latch++) {
+                    int eye = nextLatch(frame);
+                    if (eye < 0) {
+                        break;
+                    }
+                    frame.latched[eye] = false;
+                    Matrix.multiplyMM(mCorrection, 0, frame.latchTrackerView[eye], 0, mInverse, 0);
+                    Matrix.multiplyMM(mLatched, 0, mCorrection, 0, frame.headView, 0);
+                    add(frame.latchNanos[eye], frame.timeNanos, mLatched);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        if (mCount < 2) {
+            throw new IOException(file + " has too few head poses");
+        }
+    }
+
+    /**
+     * Prints the prediction error for one display latency.
+     */
+    private void report(long latencyNanos) {
+        PosePredictor predictor = new PosePredictor();
+        float[] headView = new float[16];
+        double unpredictedSum = 0;
+        float unpredictedMax = 0;
+        int unpredicted = 0;
+        int after = 1;
+        for (int i = 0; i < mCount; i++) {
+            int q = i * 4;
+            predictor.addSample(mTimes[i], mQuats[q], mQuats[q + 1], mQuats[q + 2], mQuats[q + 3]);
+            long target = mFrameTimes[i] + latencyNanos;
+            predictor.predict(target, headView);
+
+            // Without prediction this pose would be shown as it is.
+            while (after < mCount && mTimes[after] < target) {
+                after++;
+            }
+            if (after == mCount || target <= mTimes[i]) {
+                continue;
+            }
+            int before = after - 1;
+            float t = (float) (target - mTimes[before]) / (mTimes[after] - mTimes[before]);
+            PosePredictor.nlerp(mQuats, before * 4, mQuats, after * 4, t, mQuat);
+            float degrees = angleDegrees(mQuats, i * 4, mQuat);
+            unpredictedSum += degrees;
+            unpredictedMax = Math.max(unpredictedMax, degrees);
+            unpredicted++;
+        }
+        System.out.println(String.format("%5.1f ms ahead: predicted mean %.3f, max %.3f deg over "
+                + "%d; unpredicted mean %.3f, max %.3f deg over %d", latencyNanos / 1e6,
+                predictor.getMeanErrorDegrees(), predictor.getMaxErrorDegrees(),
+                predictor.getErrorSampleCount(), unpredictedSum / Math.max(unpredicted, 1),
+                unpredictedMax, unpredicted));
+    }
+
+    private static int nextLatch(SessionLog.Frame frame) {
+        int next = -1;
+        for (int eye = 0; eye < SessionLog.EYES; eye++) {
+            if (frame.latched[eye]
+                    && (next < 0 || frame.latchNanos[eye] < frame.latchNanos[next])) {
+                next = eye;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Adds a pose, unless it is no newer than the last; the predictor ignores those too.
+     */
+    private void add(long timeNanos, long frameNanos, float[] headView) {
+        if (mCount > 0 && timeNanos <= mTimes[mCount - 1]) {
+            return;
+        }
+        if (mCount == mTimes.length) {
+            long[] times = new long[mCount * 2];
+            long[] frameTimes = new long[mCount * 2];
+            float[] quats = new float[mCount * 2 * 4];
+            System.arraycopy(mTimes, 0, times, 0, mCount);
+            System.arraycopy(mFrameTimes, 0, frameTimes, 0, mCount);
+            System.arraycopy(mQuats, 0, quats, 0, mCount * 4);
+            mTimes = times;
+            mFrameTimes = frameTimes;
+            mQuats = quats;
+        }
+        PosePredictor.matrixToQuaternion(headView, mQuat);
+        if (mCount > 0) {
+            // The same hemisphere as the last, so interpolating between them takes the short way.
+            int p = (mCount - 1) * 4;
+            if (mQuats[p] * mQuat[0] + mQuats[p + 1] * mQuat[1] + mQuats[p + 2] * mQuat[2]
+                    + mQuats[p + 3] * mQuat[3] < 0) {
+                for (int i = 0; i < 4; i++) {
+                    mQuat[i] = -mQuat[i];
+                }
+            }
+        }
+        mTimes[mCount] = timeNanos;
+        mFrameTimes[mCount] = frameNanos;
+        System.arraycopy(mQuat, 0, mQuats, mCount * 4, 4);
+        mCount++;
+    }
+
+    private static float angleDegrees(float[] a, int offset, float[] b) {
+        float dot = Math.abs(a[offset] * b[0] + a[offset + 1] * b[1] + a[offset + 2] * b[2]
+                + a[offset + 3] * b[3]);
+        return (float) Math.toDegrees(2.0 * Math.acos(Math.min(dot, 1f)));
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+/**
+ * Renders the starting view of both eyes through {@link SoftwareGl}, with the same
+ * {@link SceneRecorder} and {@link CommandBuffer} the app draws with, and writes the image
+ * together with heatmaps of the fragments covered and shaded per pixel. Use it to make golden
+ * images, to check a change against them, and to see where overdraw goes. Runs on a desktop JVM.
+ *
+ * From the project root, with the shims ahead of android.jar so Matrix does real math:
+ * <pre>
+ * javac -Xprefer:source -sourcepath tools/shims:src:gen -cp $ANDROID_JAR -d /tmp/snapshot \
+ *     tools/src/com/google/vrtoolkit/cardboard/samples/treasurehunt/RenderSnapshot.java
+ * java -cp /tmp/snapshot com.google.vrtoolkit.cardboard.samples.treasurehunt.RenderSnapshot \
+ *     /tmp/snapshot-out
+ * </pre>
+ *
+ * With {@code --golden <directory> [tolerance]} ahead of the output directory, each image is also
+ * compared with the one of the same name in the golden directory. A pixel differs when one of its
+ * channels is more than the tolerance (0 by default) away from the golden one. The differing
+ * pixels of each eye are counted and drawn in white to a diff image, and the exit status is 1 if
+ * there were any.
+ *
+ * The moving ring lights are left out and the cube sits where a new game puts it, so the output
+ * only changes when the rendering does.
+ */
+public final class RenderSnapshot {
+
+    // One eye of a 1920x1080 phone, as in LightmapBaker's estimate.
+    private static final int EYE_WIDTH = 960;
+    private static final int EYE_HEIGHT = 1080;
+    private static final float EYE_FOV_DEGREES = 80f;
+    private static final float Z_NEAR = 0.1f;
+    private static final float Z_FAR = 100f;
+    private static final float INTERPUPILLARY_DISTANCE = 0.06f;
+    // Where MainActivity and WorldSimulation put the camera and the cube at the start.
+    private static final float CAMERA_Z = 0.01f;
+    private static final float CUBE_DISTANCE = 12f;
+    private static final float CUBE_RADIUS = 1.75f;
+    private static final float FLOOR_RADIUS = WorldLayoutData.FLOOR_SIZE * 0.7072f;
+
+    private static final int COMMAND_INTS = 256;
+    private static final int COMMAND_FLOATS = 256;
+
+    private static final String[] IMAGES = {"color", "fragments", "shaded"};
+    private static final String USAGE = "Usage: RenderSnapshot [--golden <directory> [tolerance]] "
+            + "<output directory> [threads]";
+
+    private final SoftwareGl mGl;
+    private final SceneHandles mHandles = new SceneHandles();
+    private final FrameState mState = new FrameState();
+
+    public RenderSnapshot(SoftwareGl gl) {
+        mGl = gl;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File goldenDirectory = null;
+        int tolerance = 0;
+        int next = 0;
+        if (args.length > 1 && args[0].equals("--golden")) {
+            goldenDirectory = new File(args[1]);
+            next = 2;
+            // An output directory named like a number needs the tolerance before it.
+            if (args.length > 3 && args[2].matches("\\d+")) {
+                tolerance = Integer.parseInt(args[2]);
+                next = 3;
+            }
+        }
+        if (args.length - next < 1 || args.length - next > 2) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        File outputDirectory = new File(args[next]);
+        int threads = args.length - next > 1 ? Integer.parseInt(args[next + 1])
+                : Runtime.getRuntime().availableProcessors();
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + outputDirectory);
+        }
+
+        SoftwareGl gl = new SoftwareGl(EYE_WIDTH * 2, EYE_HEIGHT, threads);
+        try {
+            RenderSnapshot snapshot = new RenderSnapshot(gl);
+            snapshot.load(new File("res"));
+            gl.endFrame();
+            gl.endRasterFrame();
+
+            long start = System.nanoTime();
+            snapshot.render();
+            long renderMillis = (System.nanoTime() - start) / 1000000;
+
+            System.out.println("Rendered " + gl.getWidth() + "x" + gl.getHeight() + " in "
+                    + renderMillis + " ms on " + threads + " threads");
+            System.out.println("GL: " + gl.endFrame());
+            System.out.println("Raster: " + gl.endRasterFrame());
+            System.out.println(String.format("Overdraw: %.2f fragments and %.2f shaded per pixel",
+                    mean(gl.getFragmentCounts()), mean(gl.getShadedCounts())));
+
+            BufferedImage[] images = {
+                toImage(gl, gl.getColor()),
+                toImage(gl, SoftwareGl.heatmap(gl.getFragmentCounts())),
+                toImage(gl, SoftwareGl.heatmap(gl.getShadedCounts())),
+            };
+            boolean differs = false;
+            for (int i = 0; i < IMAGES.length; i++) {
+                write(images[i], new File(outputDirectory, IMAGES[i] + ".png"));
+                if (goldenDirectory != null) {
+                    differs |= compare(images[i], new File(goldenDirectory, IMAGES[i] + ".png"),
+                            tolerance, new File(outputDirectory, IMAGES[i] + "-diff.png"));
+                }
+            }
+            if (differs) {
+                System.exit(1);
+            }
+        } finally {
+            gl.shutdown();
+        }
+    }
+
+    /**
+     * Creates the scene's GL objects and the starting world state, as the app does at startup.
+     */
+    public void load(File resources) throws IOException {
+        final SceneHandles h = mHandles;
+        WorldLayoutData data = new WorldLayoutData();
+        String vertexSource = readText(new File(resources, "raw/light_vertex.shader"));
+        String fragmentSource = readText(new File(resources, "raw/grid_fragment.shader"));
+        mGl.registerShader(vertexSource, fragmentSource, new SoftwareSceneShader());
+        h.program = ShaderHelper.createAndLinkProgram(mGl,
+                ShaderHelper.compileShader(mGl, GLES20.GL_VERTEX_SHADER, vertexSource),
+                ShaderHelper.compileShader(mGl, GLES20.GL_FRAGMENT_SHADER, fragmentSource),
+                new String[] {"a_Position", "a_Color", "a_Normal", "a_TexCoordinate",
+                        "a_LightmapCoord"});
+
+        h.modelViewProjection = mGl.glGetUniformLocation(h.program, "u_MVP");
+        h.lightPositions = mGl.glGetUniformLocation(h.program, "u_LightPos");
+        h.lightColors = mGl.glGetUniformLocation(h.program, "u_LightColor");
+        h.lightCount = mGl.glGetUniformLocation(h.program, "u_LightCount");
+        h.modelView = mGl.glGetUniformLocation(h.program, "u_MVMatrix");
+        h.isFloor = mGl.glGetUniformLocation(h.program, "u_IsFloor");
+        h.texture = mGl.glGetUniformLocation(h.program, "u_Texture");
+        h.lightmap = mGl.glGetUniformLocation(h.program, "u_Lightmap");
+        h.position = mGl.glGetAttribLocation(h.program, "a_Position");
+        h.normal = mGl.glGetAttribLocation(h.program, "a_Normal");
+        h.color = mGl.glGetAttribLocation(h.program, "a_Color");
+        h.textureCoordinate = mGl.glGetAttribLocation(h.program, "a_TexCoordinate");
+        h.lightmapCoordinate = mGl.glGetAttribLocation(h.program, "a_LightmapCoord");
+
+        h.cubeVertices = createBuffer(data.CUBE_COORDS);
+        h.cubeColors = createBuffer(data.CUBE_COLORS);
+        h.cubeFoundColors = createBuffer(WorldLayoutData.CUBE_FOUND_COLORS);
+        h.cubeNormals = createBuffer(data.CUBE_NORMALS);
+        h.cubeTextureCoords = createBuffer(data.CUBE_TEXTURE);
+        FloorGrid floor = new FloorGrid(WorldLayoutData.FLOOR_COORDS,
+                WorldLayoutData.FLOOR_NORMALS, WorldLayoutData.FLOOR_COLORS);
+        h.floorVertices = createBuffer(floor.getCoords());
+        h.floorNormals = createBuffer(floor.getNormals());
+        h.floorColors = createBuffer(floor.getColors());
+        h.floorLightmapCoords = createBuffer(LightmapUvs.generate(floor.getCoords(),
+                floor.getNormals(), WorldLayoutData.FLOOR_LIGHTMAP_SIZE));
+        h.floorGridCoords = createBuffer(floor.getGridCoords());
+        h.floorVertexCount = floor.getVertexCount();
+        h.cubeTexture = createTexture(new File(resources, "drawable-nodpi/robot.png"),
+                GLES20.GL_NEAREST);
+        h.cubeFoundTexture = createTexture(new File(resources, "drawable-nodpi/usb_android.png"),
+                GLES20.GL_NEAREST);
+        h.floorLightmap = createTexture(new File(resources, "drawable-nodpi/floor_lightmap.png"),
+                GLES20.GL_LINEAR);
+        h.floorGrid = new FloorGrid.Texture("floorGrid", 0).create(mGl);
+
+        Matrix.setIdentityM(h.floorModel, 0);
+        Matrix.translateM(h.floorModel, 0, 0, -WorldLayoutData.FLOOR_DEPTH, 0);
+        Matrix.setLookAtM(h.camera, 0, 0f, 0f, CAMERA_Z, 0f, 0f, 0f, 0f, 1f, 0f);
+
+        PointLights lights = new PointLights(WorldLayoutData.STATIC_LIGHTS.length / 8);
+        lights.addAll(WorldLayoutData.STATIC_LIGHTS, true);
+        Matrix.setIdentityM(mState.cubeModel, 0);
+        Matrix.translateM(mState.cubeModel, 0, 0, 0, -CUBE_DISTANCE);
+        mState.cubeVisible = true;
+        mState.cubeLightCount = lights.assign(0f, 0f, -CUBE_DISTANCE, CUBE_RADIUS, true,
+                mState.cubeLightPositions, mState.cubeLightColors);
+        mState.floorLightCount = lights.assign(0f, -WorldLayoutData.FLOOR_DEPTH, 0f,
+                FLOOR_RADIUS, false, mState.floorLightPositions, mState.floorLightColors);
+    }
+
+    /**
+     * Returns the handles of the objects {@link #load} created, for drawing other views of the
+     * scene.
+     */
+    public SceneHandles getHandles() {
+        return mHandles;
+    }
+
+    /**
+     * Draws both eyes side by side, each clipped to its half, with the head looking ahead.
+     */
+    public void render() {
+        SceneRecorder recorder = new SceneRecorder(mHandles);
+        CommandBuffer commands = new CommandBuffer(mGl, COMMAND_INTS, COMMAND_FLOATS);
+        float[] eyeView = new float[16];
+        float[] projection = new float[16];
+        Matrix.perspectiveM(projection, 0, EYE_FOV_DEGREES, EYE_WIDTH / (float) EYE_HEIGHT,
+                Z_NEAR, Z_FAR);
+
+        mGl.glClearColor(0.1f, 0.1f, 0.1f, 0.5f);
+        mGl.glEnable(GLES20.GL_DEPTH_TEST);
+        mGl.glEnable(GLES20.GL_SCISSOR_TEST);
+        for (int eye = 0; eye < 2; eye++) {
+            mGl.setViewport(eye * EYE_WIDTH, 0, EYE_WIDTH, EYE_HEIGHT);
+            mGl.glScissor(eye * EYE_WIDTH, 0, EYE_WIDTH, EYE_HEIGHT);
+            // The left eye sits left of the head, so it sees the world moved right.
+            Matrix.setIdentityM(eyeView, 0);
+            Matrix.translateM(eyeView, 0,
+                    (eye == 0 ? 0.5f : -0.5f) * INTERPUPILLARY_DISTANCE, 0f, 0f);
+            recorder.record(commands, mState, eyeView);
+            commands.replay(projection);
+        }
+        mGl.glDisable(GLES20.GL_SCISSOR_TEST);
+    }
+
+    private int createBuffer(float[] values) {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(values.length * 4)
+                .order(ByteOrder.nativeOrder());
+        bytes.asFloatBuffer().put(values);
+        int[] buffer = new int[1];
+        mGl.glGenBuffers(1, buffer, 0);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, buffer[0]);
+        mGl.glBufferData(GLES20.GL_ARRAY_BUFFER, values.length * 4, bytes,
+                GLES20.GL_STATIC_DRAW);
+        mGl.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        return buffer[0];
+    }
+
+    /**
+     * Uploads a PNG as RGBA, top row first, the way BitmapFactory and GLUtils do.
+     */
+    private int createTexture(File file, int filter) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Cannot decode " + file);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+        ByteBuffer pixels = ByteBuffer.allocateDirect(width * height * 4);
+        for (int pixel : argb) {
+            pixels.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel)
+                    .put((byte) (pixel >>> 24));
+        }
+        pixels.position(0);
+        int[] texture = new int[1];
+        mGl.glGenTextures(1, texture, 0);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, texture[0]);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, filter);
+        mGl.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, filter);
+        mGl.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, width, height, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+        mGl.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        return texture[0];
+    }
+
+    private static String readText(File file) throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), Charset.forName("UTF-8"));
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static float mean(int[] counts) {
+        long total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        return total / (float) counts.length;
+    }
+
+    /**
+     * Turns ARGB pixels that are bottom row first, as GL stores them, into an upright image.
+     */
+    private static BufferedImage toImage(SoftwareGl gl, int[] pixels) {
+        int width = gl.getWidth();
+        int height = gl.getHeight();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            image.setRGB(0, height - 1 - y, width, 1, pixels, y * width, width);
+        }
+        return image;
+    }
+
+    private static void write(BufferedImage image, File file) throws IOException {
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No PNG writer");
+        }
+    }
+
+    /**
+     * Compares an image with its golden one, prints how many pixels of each eye differ by more
+     * than the tolerance in some channel, and writes those pixels in white to the diff file.
+     *
+     * @return true if the images differ.
+     */
+    private static boolean compare(BufferedImage image, File goldenFile, int tolerance,
+            File diffFile) throws IOException {
+        BufferedImage golden = ImageIO.read(goldenFile);
+        if (golden == null) {
+            throw new IOException("Cannot decode " + goldenFile);
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (golden.getWidth() != width || golden.getHeight() != height) {
+            System.out.println(String.format("%s: golden is %dx%d, not %dx%d",
+                    goldenFile.getName(), golden.getWidth(), golden.getHeight(), width, height));
+            return true;
+        }
+        BufferedImage diff = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] differing = new int[2];
+        int maxDifference = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int actual = image.getRGB(x, y);
+                int expected = golden.getRGB(x, y);
+                int difference = 0;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    difference = Math.max(difference,
+                            Math.abs(((actual >> shift) & 0xff) - ((expected >> shift) & 0xff)));
+                }
+                maxDifference = Math.max(maxDifference, difference);
+                if (difference > tolerance) {
+                    differing[x < width / 2 ? 0 : 1]++;
+                    diff.setRGB(x, y, 0xffffff);
+                }
+            }
+        }
+        System.out.println(String.format("%s: %d left and %d right eye pixels differ by more "
+                + "than %d, at most by %d", goldenFile.getName(), differing[0], differing[1],
+                tolerance, maxDifference));
+        if (differing[0] + differing[1] == 0) {
+            // Leave no diff from an earlier run behind.
+            diffFile.delete();
+            return false;
+        }
+        write(diff, diffFile);
+        return true;
+    }
+}
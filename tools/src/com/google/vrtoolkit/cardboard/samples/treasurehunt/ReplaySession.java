@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.opengl.GLES20;
+import android.opengl.Matrix;
+
+/**
+ * Plays a session recorded with MainActivity.RECORD_SESSION through the world simulation and the
+ * scene renderer on {@link SoftwareGl}, and prints what each second of it asked of the GPU and
+ * how long it took to draw. The head motion, triggers and random seed are the recorded ones, so
+ * two runs of the same session give the same frames, and a change's effect on the workload can be
+ * measured without a device. Runs on a desktop JVM.
+ *
+ * From the project root, with the shims ahead of android.jar:
+ * <pre>
+ * javac -Xprefer:source -sourcepath tools/shims:tools/src:src:gen -cp $ANDROID_JAR \
+ *     -d /tmp/session \
+ *     tools/src/com/google/vrtoolkit/cardboard/samples/treasurehunt/ReplaySession.java
+ * java -cp /tmp/session com.google.vrtoolkit.cardboard.samples.treasurehunt.ReplaySession \
+ *     session.bin [threads]
+ * </pre>
+ *
+ * Only the scene is drawn, as if it were loaded from the first frame, and each eye uses the
+ * predicted head pose without late latching. The simulation steps on this thread after each
+ * frame, as the device's simulation thread does when it keeps up.
+ */
+public final class ReplaySession {
+
+    // Matches MainActivity.
+    private static final long FRAME_PERIOD_NANOS = 16666667L;
+    private static final long DISPLAY_LATENCY_NANOS = FRAME_PERIOD_NANOS * 3 / 2;
+
+    private static final int COMMAND_INTS = 256;
+    private static final int COMMAND_FLOATS = 256;
+    // Frames per line of output; a second of the recorded session.
+    private static final int REPORT_FRAMES = 60;
+
+    private final SoftwareGl mGl;
+    private final WorldSimulation mSimulation;
+    private final PosePredictor mPosePredictor = new PosePredictor();
+    private final SceneRecorder mRecorder;
+    private final CommandBuffer mCommands;
+    private final float[] mHeadView = new float[16];
+    private final float[] mInverse = new float[16];
+    private final float[] mEyeFromHead = new float[16];
+    private final float[] mEyeView = new float[16];
+    private int mFinds;
+
+    public ReplaySession(SoftwareGl gl, SceneHandles handles, long seed) {
+        mGl = gl;
+        mRecorder = new SceneRecorder(handles);
+        mCommands = new CommandBuffer(gl, COMMAND_INTS, COMMAND_FLOATS);
+        mSimulation = new WorldSimulation(new WorldSimulation.Listener() {
+            @Override
+            public void onTriggerResult(boolean found, int score) {
+                if (found) {
+                    mFinds++;
+                }
+            }
+        }, seed);
+        mGl.glClearColor(0.1f, 0.1f, 0.1f, 0.5f);
+        mGl.glEnable(GLES20.GL_DEPTH_TEST);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: ReplaySession <session.bin> [threads]");
+            System.exit(2);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+
+        SessionLog.Reader reader = new SessionLog.Reader(new File(args[0]));
+        SoftwareGl gl = null;
+        try {
+            SessionLog.Frame frame = new SessionLog.Frame();
+            if (!reader.next(0, frame)) {
+                throw new IOException(args[0] + " has no frames");
+            }
+            // The screen is as large as the eyes' viewports together.
+            int width = 0;
+            int height = 0;
+            for (int eye = 0; eye < SessionLog.EYES; eye++) {
+                if (frame.hasEye[eye]) {
+                    int[] viewport = frame.viewport[eye];
+                    width = Math.max(width, viewport[0] + viewport[2]);
+                    height = Math.max(height, viewport[1] + viewport[3]);
+                }
+            }
+            if (width == 0 || height == 0) {
+                throw new IOException(args[0] + " has no eyes in its first frame");
+            }
+
+            gl = new SoftwareGl(width, height, threads);
+            RenderSnapshot snapshot = new RenderSnapshot(gl);
+            snapshot.load(new File("res"));
+            ReplaySession session = new ReplaySession(gl, snapshot.getHandles(),
+                    reader.getSeed());
+            gl.endFrame();
+            gl.endRasterFrame();
+
+            int frames = 0;
+            long drawCalls = 0;
+            long shaded = 0;
+            long drawNanos = 0;
+            long totalDrawNanos = 0;
+            do {
+                long start = System.nanoTime();
+                session.drawFrame(frame);
+                drawNanos += System.nanoTime() - start;
+                drawCalls += gl.endFrame().drawCalls;
+                shaded += gl.endRasterFrame().fragmentsShaded;
+                if (++frames % REPORT_FRAMES == 0) {
+                    System.out.println(String.format("Frames %d-%d: %.2f ms, %d draws, "
+                            + "%d fragments shaded per frame, %d finds so far",
+                            frames - REPORT_FRAMES, frames - 1, drawNanos / 1e6 / REPORT_FRAMES,
+                            drawCalls / REPORT_FRAMES, shaded / REPORT_FRAMES, session.mFinds));
+                    totalDrawNanos += drawNanos;
+                    drawNanos = 0;
+                    drawCalls = 0;
+                    shaded = 0;
+                }
+            } while (reader.next(0, frame));
+            totalDrawNanos += drawNanos;
+            System.out.println(String.format("Replayed %d frames of %dx%d in %.2f ms per frame on "
+                    + "%d threads, %d finds", frames, width, height,
+                    totalDrawNanos / 1e6 / frames, threads, session.mFinds));
+        } finally {
+            reader.close();
+            if (gl != null) {
+                gl.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Runs one recorded frame the way MainActivity does: predicts the head pose, hands it and the
+     * frame's triggers to the simulation, draws each recorded eye from the latest snapshot, and
+     * then lets the simulation step.
+     */
+    public void drawFrame(SessionLog.Frame frame) {
+        FrameState state = mSimulation.acquireLatest();
+        long displayTimeNanos = frame.timeNanos + DISPLAY_LATENCY_NANOS;
+        mPosePredictor.addSample(frame.timeNanos, frame.headView);
+        System.arraycopy(frame.headView, 0, mHeadView, 0, 16);
+        mPosePredictor.predict(displayTimeNanos, mHeadView);
+        for (int i = 0; i < frame.triggerCount; i++) {
+            mSimulation.onTrigger(frame.triggerNanos[i]);
+        }
+        mSimulation.setHeadView(mHeadView, displayTimeNanos);
+        mSimulation.requestFrame();
+
+        Matrix.invertM(mInverse, 0, frame.headView, 0);
+        mGl.glEnable(GLES20.GL_SCISSOR_TEST);
+        for (int eye = 0; eye < SessionLog.EYES; eye++) {
+            if (!frame.hasEye[eye]) {
+                continue;
+            }
+            int[] viewport = frame.viewport[eye];
+            mGl.glViewport(viewport[0], viewport[1], viewport[2], viewport[3]);
+            mGl.glScissor(viewport[0], viewport[1], viewport[2], viewport[3]);
+            Matrix.multiplyMM(mEyeFromHead, 0, frame.eyeView[eye], 0, mInverse, 0);
+            Matrix.multiplyMM(mEyeView, 0, mEyeFromHead, 0, mHeadView, 0);
+            mRecorder.record(mCommands, state, mEyeView);
+            mCommands.replay(frame.perspective[eye]);
+        }
+        mGl.glDisable(GLES20.GL_SCISSOR_TEST);
+
+        mSimulation.runPendingSteps();
+    }
+}
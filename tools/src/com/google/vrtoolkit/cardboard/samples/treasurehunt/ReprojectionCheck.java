@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Google Inc. All Rights Reserved.
+
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.vrtoolkit.cardboard.samples.treasurehunt;
+
+import java.util.Random;
+
+import android.opengl.Matrix;
+
+/**
+ * Checks the math behind reprojection: the rotation {@link Reprojection} turns a kept eye image
+ * by, for known head poses, and the late-frame decisions of {@link FrameDeadline}. Prints each
+ * failed check and exits with status 1 if there were any. Runs on a desktop JVM.
+ *
+ * From the project root, with the shims ahead of android.jar so Matrix does real math:
+ * <pre>
+ * javac -Xprefer:source -sourcepath tools/shims:src:gen -cp $ANDROID_JAR:libs/cardboard.jar \
+ *     -d /tmp/reprojection \
+ *     tools/src/com/google/vrtoolkit/cardboard/samples/treasurehunt/ReprojectionCheck.java
+ * java -cp /tmp/reprojection \
+ *     com.google.vrtoolkit.cardboard.samples.treasurehunt.ReprojectionCheck
+ * </pre>
+ */
+public final class ReprojectionCheck {
+
+    private static final float EPSILON = 1e-5f;
+    // Matches MainActivity.
+    private static final long FRAME_PERIOD_NANOS = 16666667L;
+    private static final int RANDOM_POSES = 1000;
+
+    private int mChecks;
+    private int mFailures;
+
+    private ReprojectionCheck() {}
+
+    public static void main(String[] args) {
+        ReprojectionCheck check = new ReprojectionCheck();
+        check.checkRotations();
+        check.checkDirections();
+        check.checkDeadline();
+        System.out.println(check.mChecks + " checks, " + check.mFailures + " failed");
+        if (check.mFailures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Turning the head from one pose to another turns the kept image by the difference, whatever
+     * the eyes' positions.
+     */
+    private void checkRotations() {
+        float[] from = new float[16];
+        float[] to = new float[16];
+        float[] expected = new float[16];
+        float[] rotation = new float[16];
+
+        // The same pose, even away from the origin, needs no turn.
+        view(from, 30f, 10f, 0f, 0.03f, 1.7f, -2f);
+        Reprojection.getRotation(from, from, rotation);
+        Matrix.setIdentityM(expected, 0);
+        expectEqual("same pose", expected, rotation);
+
+        // Turning the head left by 10 degrees turns the world right in the eye by as much.
+        view(from, 0f, 0f, 0f, 0f, 0f, 0f);
+        view(to, 10f, 0f, 0f, 0f, 0f, 0f);
+        Reprojection.getRotation(from, to, rotation);
+        Matrix.setRotateM(expected, 0, -10f, 0f, 1f, 0f);
+        expectEqual("yaw 10 from ahead", expected, rotation);
+
+        // Only the difference between the poses counts.
+        view(from, 30f, 0f, 0f, 0f, 0f, 0f);
+        view(to, 45f, 0f, 0f, 0f, 0f, 0f);
+        Reprojection.getRotation(from, to, rotation);
+        Matrix.setRotateM(expected, 0, -15f, 0f, 1f, 0f);
+        expectEqual("yaw 30 to 45", expected, rotation);
+
+        view(from, 0f, 0f, 0f, 0f, 0f, 0f);
+        view(to, 0f, 20f, 0f, 0f, 0f, 0f);
+        Reprojection.getRotation(from, to, rotation);
+        Matrix.setRotateM(expected, 0, -20f, 1f, 0f, 0f);
+        expectEqual("pitch 20", expected, rotation);
+
+        view(from, 0f, 0f, 5f, 0f, 0f, 0f);
+        view(to, 0f, 0f, -5f, 0f, 0f, 0f);
+        Reprojection.getRotation(from, to, rotation);
+        Matrix.setRotateM(expected, 0, 10f, 0f, 0f, 1f);
+        expectEqual("roll 5 to -5", expected, rotation);
+
+        // Moving without turning, as an eye offset or a step does, is not corrected.
+        view(from, 20f, 5f, 0f, 0.03f, 0f, 0f);
+        view(to, 20f, 5f, 0f, -0.03f, 0.1f, 0.5f);
+        Reprojection.getRotation(from, to, rotation);
+        Matrix.setIdentityM(expected, 0);
+        expectEqual("translation only", expected, rotation);
+    }
+
+    /**
+     * For random poses, the rotation takes a world direction as the old eye saw it to where the
+     * new eye sees it, and is a pure rotation.
+     */
+    private void checkDirections() {
+        Random random = new Random(1);
+        float[] from = new float[16];
+        float[] to = new float[16];
+        float[] rotation = new float[16];
+        float[] direction = new float[4];
+        float[] seenBefore = new float[4];
+        float[] turned = new float[4];
+        float[] seenNow = new float[4];
+        int failuresBefore = mFailures;
+        for (int i = 0; i < RANDOM_POSES; i++) {
+            view(from, angle(random, 180f), angle(random, 90f), angle(random, 30f),
+                    angle(random, 1f), angle(random, 1f), angle(random, 1f));
+            view(to, angle(random, 180f), angle(random, 90f), angle(random, 30f),
+                    angle(random, 1f), angle(random, 1f), angle(random, 1f));
+            Reprojection.getRotation(from, to, rotation);
+
+            direction[0] = angle(random, 1f);
+            direction[1] = angle(random, 1f);
+            direction[2] = angle(random, 1f);
+            direction[3] = 0f;
+            Matrix.multiplyMV(seenBefore, 0, from, 0, direction, 0);
+            Matrix.multiplyMV(turned, 0, rotation, 0, seenBefore, 0);
+            Matrix.multiplyMV(seenNow, 0, to, 0, direction, 0);
+            for (int j = 0; j < 3; j++) {
+                expect(Math.abs(turned[j] - seenNow[j]) < EPSILON,
+                        "random pose " + i + " direction component " + j);
+            }
+            float[] r = rotation;
+            float determinant = r[0] * (r[5] * r[10] - r[9] * r[6])
+                    - r[4] * (r[1] * r[10] - r[9] * r[2])
+                    + r[8] * (r[1] * r[6] - r[5] * r[2]);
+            expect(Math.abs(determinant - 1f) < EPSILON, "random pose " + i + " determinant");
+            if (mFailures - failuresBefore > 10) {
+                // One broken formula fails every pose; the first few say enough.
+                return;
+            }
+        }
+    }
+
+    /**
+     * A frame is reprojected when it would run past the budget, at most a few times in a row,
+     * and only when there are images to show.
+     */
+    private void checkDeadline() {
+        FrameDeadline deadline = new FrameDeadline(FRAME_PERIOD_NANOS, 2);
+        deadline.onDrawn(10000000L);
+        expect(!deadline.shouldReproject(5000000L, true), "on time");
+        expect(deadline.shouldReproject(8000000L, true), "late");
+        expect(deadline.shouldReproject(8000000L, true), "late again");
+        expect(!deadline.shouldReproject(8000000L, true), "late a third time in a row");
+        expect(deadline.shouldReproject(8000000L, true), "late after a drawn frame");
+        expect(!deadline.shouldReproject(8000000L, false), "late without images");
+        expect(deadline.getReprojectedFrames() == 3, "reprojected frame count");
+
+        // Slower eyes make the same start late.
+        FrameDeadline slow = new FrameDeadline(FRAME_PERIOD_NANOS, 2);
+        slow.onDrawn(4000000L);
+        expect(!slow.shouldReproject(8000000L, true), "fast eyes");
+        for (int i = 0; i < 64; i++) {
+            slow.onDrawn(12000000L);
+        }
+        expect(slow.shouldReproject(8000000L, true), "eyes slowed down");
+    }
+
+    /**
+     * Sets a view matrix for a head turned by yaw, then pitch, then roll, in degrees, with its eye
+     * at (x, y, z).
+     */
+    private static void view(float[] view, float yaw, float pitch, float roll, float x, float y,
+            float z) {
+        float[] head = new float[16];
+        float[] scratch = new float[16];
+        Matrix.setIdentityM(head, 0);
+        Matrix.translateM(head, 0, x, y, z);
+        Matrix.rotateM(head, 0, yaw, 0f, 1f, 0f);
+        Matrix.rotateM(head, 0, pitch, 1f, 0f, 0f);
+        Matrix.rotateM(head, 0, roll, 0f, 0f, 1f);
+        Matrix.invertM(scratch, 0, head, 0);
+        System.arraycopy(scratch, 0, view, 0, 16);
+    }
+
+    private static float angle(Random random, float range) {
+        return (random.nextFloat() * 2f - 1f) * range;
+    }
+
+    private void expectEqual(String name, float[] expected, float[] actual) {
+        for (int i = 0; i < 16; i++) {
+            if (Math.abs(expected[i] - actual[i]) > EPSILON) {
+                expect(false, name + ": element " + i + " is " + actual[i] + ", not "
+                        + expected[i]);
+                return;
+            }
+        }
+        expect(true, name);
+    }
+
+    private void expect(boolean passed, String name) {
+        mChecks++;
+        if (!passed) {
+            mFailures++;
+            System.out.println("FAILED: " + name);
+        }
+    }
+}